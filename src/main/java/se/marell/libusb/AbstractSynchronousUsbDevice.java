@@ -41,7 +41,13 @@ public abstract class AbstractSynchronousUsbDevice {
     }
 
     protected UsbDevice getUsbDevice(int vendor, int product, int deviceNumber) throws LibUsbException {
-        List<UsbDevice> devices = us.visitUsbDevices(new VendorProductVisitor(vendor, product, deviceNumber));
+        VendorProductVisitor visitor = new VendorProductVisitor(vendor, product, deviceNumber);
+        List<UsbDevice> devices;
+        if (us instanceof ManagedUsbSystem) {
+            devices = ((ManagedUsbSystem) us).getDeviceCache().visitUsbDevices(visitor);
+        } else {
+            devices = us.visitUsbDevices(visitor);
+        }
         if (devices.isEmpty()) {
             return null; // Device not found
         }
@@ -51,6 +57,11 @@ public abstract class AbstractSynchronousUsbDevice {
             log.trace("device opened");
         } catch (LibUsbException e) {
             log.warn("open failed:" + e.getMessage());
+            device = null;
+            // The cached device may be gone, enumerate again on the next attempt
+            if (us instanceof ManagedUsbSystem) {
+                ((ManagedUsbSystem) us).getDeviceCache().invalidate();
+            }
             return null;
         }
 
@@ -66,6 +77,8 @@ public abstract class AbstractSynchronousUsbDevice {
             log.trace("claim_interface succeeded");
         } catch (LibUsbException e) {
             log.warn("claim_interface failed:" + e.getMessage());
+            device.close();
+            device = null;
             return null;
         }
 
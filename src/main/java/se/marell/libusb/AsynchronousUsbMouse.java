@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Driver for USB mouse, event driven variant of SynchronousUsbMouse.
+ * 
+ * Instead of a thread blocking in interrupt_read() the driver subscribes to the interrupt endpoint of the mouse
+ * (see UsbDevice.subscribeInterrupt()) and the listener is called for every report. Reports are delivered from
+ * libusb event handling, so an event thread must be running:
+ * <pre>
+ * us.startEventThread(100);
+ * mouse = new AsynchronousUsbMouse(us, vendorId, productId, 0, listener);
+ * mouse.start();
+ * </pre>
+ */
+public class AsynchronousUsbMouse extends AbstractSynchronousUsbDevice {
+    private static final int ENDPOINT = 0x81;
+    private static final int REPORT_SIZE = 4;
+
+    public interface Listener {
+        /**
+         * A mouse report has been received. The getters of the mouse return the new values.
+         *
+         * @param mouse the mouse
+         */
+        void mouseEvent(AsynchronousUsbMouse mouse);
+
+        /**
+         * The mouse was disconnected or failed. Called from libusb event handling, so start() and stop() must not
+         * be called from here; reconnect from another thread.
+         *
+         * @param mouse the mouse
+         */
+        void mouseDisconnected(AsynchronousUsbMouse mouse);
+    }
+
+    private final int vendorId;
+    private final int productId;
+    private final Listener listener;
+    private InterruptSubscription subscription;
+    private volatile int buttons;
+    private volatile int x;
+    private volatile int y;
+    private volatile int wheel;
+
+    private final InterruptSubscription.Listener reportListener = new InterruptSubscription.Listener() {
+        @Override
+        public void reportReceived(UsbDevice device, ByteBuffer report) {
+            int n = report.remaining();
+            int p = report.position();
+            buttons = n > 0 ? report.get(p) & 0xff : 0;
+            x = n > 1 ? report.get(p + 1) : 0;
+            y = n > 2 ? report.get(p + 2) : 0;
+            wheel = n > 3 ? report.get(p + 3) : 0;
+            listener.mouseEvent(AsynchronousUsbMouse.this);
+        }
+
+        @Override
+        public void subscriptionFailed(UsbDevice device, LibUsbException e) {
+            log.info("read failed:" + e.getClass().getSimpleName() + ":" + e.getMessage());
+            listener.mouseDisconnected(AsynchronousUsbMouse.this);
+        }
+    };
+
+    /**
+     * @param us           The UsbSystem
+     * @param vendorId     Vendor id
+     * @param productId    Product id
+     * @param deviceNumber 0 for first board, 1 for 2nd etc.
+     * @param listener     Receives the mouse events
+     */
+    public AsynchronousUsbMouse(UsbSystem us, int vendorId, int productId, int deviceNumber, Listener listener) {
+        super(us, deviceNumber);
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.listener = listener;
+    }
+
+    /**
+     * Find and open the mouse and start receiving events. Any previous connection is closed first.
+     *
+     * @return true if the mouse was found and events are being received
+     */
+    public synchronized boolean start() {
+        if (!stop()) {
+            return false;
+        }
+        try {
+            device = getUsbDevice(vendorId, productId, deviceNumber);
+            if (device == null) {
+                return false;
+            }
+            subscription = device.subscribeInterrupt(ENDPOINT, REPORT_SIZE, 2, reportListener);
+            return true;
+        } catch (LibUsbException e) {
+            log.info("start failed:" + e.getClass().getSimpleName() + ":" + e.getMessage());
+            stop();
+            return false;
+        }
+    }
+
+    /**
+     * Stop receiving events and close the device. Must not be called from the listener.
+     *
+     * @return true if stopped, false if the transfers were not cancelled in time. The device is then left open
+     * and stop() may be called again.
+     */
+    public synchronized boolean stop() {
+        if (subscription != null) {
+            if (!subscription.cancel(1000)) {
+                return false;
+            }
+            subscription = null;
+        }
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+        return true;
+    }
+
+    public boolean getButton(int n) {
+        return (buttons & (1 << n)) != 0;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWheel() {
+        return wheel;
+    }
+}
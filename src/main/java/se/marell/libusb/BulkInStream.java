@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.TransferSet.Slot;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+
+/**
+ * Continuous reader for a bulk IN endpoint.
+ *
+ * Keeps queueDepth transfers of transferSize bytes submitted at all times, so the host controller always has a
+ * transfer to put data into. A transfer is resubmitted as soon as its data has been handed to the consumer.
+ * Data is delivered in the order the transfers were submitted, which is the order the data arrived on the bus.
+ *
+ * Completions, and so the consumer, run from within libusb event handling, normally on the event thread of
+ * LibUsbSystem (see LibUsbSystem.startEventThread()).
+ */
+public class BulkInStream {
+    private static final Logger log = LoggerFactory.getLogger(BulkInStream.class);
+
+    public interface Consumer {
+        /**
+         * Data has been received.
+         *
+         * @param data received data between position and limit. The buffer is a view of native transfer memory
+         *             that is reused when this method returns; copy what you want to keep.
+         */
+        void dataReceived(ByteBuffer data);
+
+        /**
+         * The stream stopped because of an error. No more data will be delivered.
+         *
+         * @param e the error
+         */
+        void streamFailed(LibUsbException e);
+    }
+
+    private final UsbDevice device;
+    private final int endpoint;
+    private final int queueDepth;
+    private final int transferSize;
+    private final int timeout;
+    private final Consumer consumer;
+
+    private final TransferSet transfers = new TransferSet(this) {
+        @Override
+        void fill(Slot slot) {
+            slot.transfer.fill_bulk_transfer(device.get_dev_handle(), endpoint, slot.memory, transferSize, timeout);
+            slot.seq = nextSubmitSeq++;
+        }
+
+        @Override
+        void completed(Slot slot) {
+            BulkInStream.this.completed(slot);
+        }
+    };
+    private final TreeMap<Long, Slot> completedOutOfOrder = new TreeMap<Long, Slot>();
+    private long nextSubmitSeq;
+    private long nextDeliverSeq;
+
+    private volatile long bytesReceived;
+    private volatile long transfersCompleted;
+    private volatile long startNanos;
+    private volatile long stopNanos;
+
+    /**
+     * @param device       opened device with the interface of the endpoint claimed
+     * @param endpoint     address of a bulk IN endpoint
+     * @param queueDepth   number of transfers kept submitted
+     * @param transferSize size in bytes of each transfer, preferably a multiple of the endpoint max packet size
+     * @param timeout      timeout in ms for each transfer, 0 for no timeout. A timed out transfer delivers the
+     *                     data it received and is resubmitted.
+     * @param consumer     receives the data
+     */
+    public BulkInStream(UsbDevice device, int endpoint, int queueDepth, int transferSize, int timeout,
+                        Consumer consumer) {
+        if (queueDepth < 1 || transferSize < 1) {
+            throw new IllegalArgumentException("queueDepth=" + queueDepth + ",transferSize=" + transferSize);
+        }
+        this.device = device;
+        this.endpoint = endpoint;
+        this.queueDepth = queueDepth;
+        this.transferSize = transferSize;
+        this.timeout = timeout;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Allocate the transfers and submit all of them. If a submit fails, the transfers already submitted are
+     * cancelled and start() waits for event handling to complete them before throwing, after which the stream
+     * can be started again. If they do not complete in time, stop() must be called before restarting.
+     *
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if a transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public synchronized void start() throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        if (transfers.isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        nextSubmitSeq = 0;
+        nextDeliverSeq = 0;
+        bytesReceived = 0;
+        transfersCompleted = 0;
+        startNanos = System.nanoTime();
+        stopNanos = 0;
+        transfers.start(device.getLibUsb(), queueDepth, 0, transferSize);
+    }
+
+    /**
+     * Cancel all transfers and wait for the cancellations to complete. Event handling must keep running while
+     * waiting. Must not be called from the consumer.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if all transfers completed and were freed, false on timeout. Transfers still submitted
+     * after a timeout are not freed.
+     */
+    public synchronized boolean stop(long timeoutMs) {
+        if (transfers.isStarted() && stopNanos == 0) {
+            stopNanos = System.nanoTime();
+        }
+        if (!transfers.stop(timeoutMs)) {
+            return false;
+        }
+        completedOutOfOrder.clear();
+        return true;
+    }
+
+    /**
+     * @return number of transfers kept submitted
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return size in bytes of each transfer
+     */
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * @return total number of bytes delivered since start()
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return number of transfers completed since start()
+     */
+    public long getTransfersCompleted() {
+        return transfersCompleted;
+    }
+
+    /**
+     * @return achieved throughput in bytes per second since start(), until stop()
+     */
+    public double getThroughput() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = stopNanos != 0 ? stopNanos : System.nanoTime();
+        return end == start ? 0 : bytesReceived * 1e9 / (end - start);
+    }
+
+    private void completed(Slot slot) {
+        int status = slot.transfer.getStatus();
+        if (status != libusb_transfer_status.TRANSFER_COMPLETED && status != libusb_transfer_status.TRANSFER_TIMED_OUT) {
+            fail(slot.transfer.getStatusException());
+            return;
+        }
+        if (slot.seq != nextDeliverSeq) {
+            completedOutOfOrder.put(slot.seq, slot);
+            return;
+        }
+        deliverAndResubmit(slot);
+        while (transfers.isActive() && !completedOutOfOrder.isEmpty() && completedOutOfOrder.firstKey() == nextDeliverSeq) {
+            deliverAndResubmit(completedOutOfOrder.pollFirstEntry().getValue());
+        }
+    }
+
+    private void deliverAndResubmit(Slot slot) {
+        nextDeliverSeq++;
+        int n = slot.transfer.getActualLength();
+        transfersCompleted++;
+        bytesReceived += n;
+        if (n > 0) {
+            slot.view.limit(n).position(0);
+            try {
+                consumer.dataReceived(slot.view);
+            } catch (RuntimeException e) {
+                log.error("Consumer failed", e);
+            }
+        }
+        try {
+            transfers.submit(slot);
+        } catch (LibUsbException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(LibUsbException e) {
+        log.info("Stream on endpoint " + endpoint + " failed:" + e.getClass().getSimpleName());
+        stopNanos = System.nanoTime();
+        transfers.cancel();
+        consumer.streamFailed(e);
+    }
+
+    @Override
+    public String toString() {
+        return "BulkInStream {" +
+                " endpoint=" + endpoint +
+                " queueDepth=" + queueDepth +
+                " transferSize=" + transferSize +
+                " transfersCompleted=" + transfersCompleted +
+                " bytesReceived=" + bytesReceived +
+                " throughput=" + (long) getThroughput() + " B/s" +
+                "}";
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined writer for a bulk OUT endpoint.
+ *
+ * Buffers are accepted into a bounded queue and submitted so that up to maxInFlight transfers are in progress
+ * at once, which hides the round trip of each transfer behind the next. When queueCapacity buffers are
+ * outstanding (queued or in flight) write() blocks and offer() fails, which applies backpressure to producers.
+ * The result of each buffer is reported through the returned future.
+ *
+ * Any failure, including a short write, fails the writer: the failed buffer's future and all later ones
+ * complete exceptionally with the same LibUsbException, since the data order on the endpoint can no longer
+ * be guaranteed.
+ *
+ * Completions run from within libusb event handling, normally on the event thread of LibUsbSystem. Futures are
+ * completed without holding the writer's lock, so their dependent actions may write to the writer.
+ */
+public class BulkOutWriter {
+    private static final Logger log = LoggerFactory.getLogger(BulkOutWriter.class);
+
+    private final UsbDevice device;
+    private final int endpoint;
+    private final int maxInFlight;
+    private final int queueCapacity;
+    private final int timeout;
+
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+
+    /**
+     * Buffers whose result is known, to be completed by completeFinished() after the lock is released
+     */
+    private final ArrayDeque<Pending> finished = new ArrayDeque<Pending>();
+    private final ArrayDeque<Slot> idleSlots = new ArrayDeque<Slot>();
+    private final Slot[] slots;
+    private int outstanding;
+    private LibUsbException failure;
+    private boolean closed;
+
+    private volatile long buffersWritten;
+    private volatile long bytesWritten;
+
+    /**
+     * @param device        opened device with the interface of the endpoint claimed
+     * @param endpoint      address of a bulk OUT endpoint
+     * @param maxInFlight   maximum number of transfers submitted at once
+     * @param queueCapacity maximum number of outstanding buffers, queued or in flight
+     * @param timeout       timeout in ms for each transfer, 0 for no timeout
+     */
+    public BulkOutWriter(UsbDevice device, int endpoint, int maxInFlight, int queueCapacity, int timeout) {
+        if (maxInFlight < 1 || queueCapacity < maxInFlight) {
+            throw new IllegalArgumentException("maxInFlight=" + maxInFlight + ",queueCapacity=" + queueCapacity);
+        }
+        this.device = device;
+        this.endpoint = endpoint;
+        this.maxInFlight = maxInFlight;
+        this.queueCapacity = queueCapacity;
+        this.timeout = timeout;
+        LibUsb usb = device.getLibUsb();
+        slots = new Slot[maxInFlight];
+        for (int i = 0; i < maxInFlight; ++i) {
+            slots[i] = new Slot(new UsbTransfer(usb, 0));
+            idleSlots.add(slots[i]);
+        }
+    }
+
+    /**
+     * Queue a buffer for writing, blocking while the queue is full.
+     *
+     * @param data data to write. It must not be modified until the returned future is done.
+     * @return future completed with the number of bytes written
+     * @throws InterruptedException if interrupted while waiting for queue space
+     */
+    public CompletableFuture<Integer> write(byte[] data) throws InterruptedException {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            while (outstanding >= queueCapacity && failure == null && !closed) {
+                wait();
+            }
+            future = enqueue(data);
+        }
+        completeFinished();
+        return future;
+    }
+
+    /**
+     * Queue a buffer for writing if there is space in the queue.
+     *
+     * @param data data to write. It must not be modified until the returned future is done.
+     * @return future completed with the number of bytes written, or null if the queue is full
+     */
+    public CompletableFuture<Integer> offer(byte[] data) {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            if (outstanding >= queueCapacity && failure == null) {
+                return null;
+            }
+            future = enqueue(data);
+        }
+        completeFinished();
+        return future;
+    }
+
+    /**
+     * Queue a buffer for writing, waiting up to the given time for queue space.
+     *
+     * @param data    data to write. It must not be modified until the returned future is done.
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return future completed with the number of bytes written, or null if the queue stayed full
+     * @throws InterruptedException if interrupted while waiting for queue space
+     */
+    public CompletableFuture<Integer> offer(byte[] data, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (outstanding >= queueCapacity && failure == null && !closed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            future = enqueue(data);
+        }
+        completeFinished();
+        return future;
+    }
+
+    /**
+     * Wait until all outstanding buffers have completed. Event handling must keep running while waiting.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if no buffers are outstanding
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (outstanding > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Flush, then cancel whatever is still in flight and free the transfers. Event handling must keep running
+     * while waiting.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if everything completed and the transfers were freed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean close(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean flushed;
+        synchronized (this) {
+            closed = true;
+            flushed = flush(timeoutMs);
+            if (!flushed) {
+                fail(new LibUsbTimeoutException());
+            }
+        }
+        completeFinished();
+        synchronized (this) {
+            while (!flushed && idleSlots.size() < maxInFlight) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    log.warn((maxInFlight - idleSlots.size()) + " transfers did not complete cancellation");
+                    return false;
+                }
+                wait(left);
+            }
+            for (Slot slot : slots) {
+                slot.transfer.free();
+            }
+            idleSlots.clear();
+        }
+        return true;
+    }
+
+    /**
+     * @return maximum number of transfers submitted at once
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return maximum number of outstanding buffers
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return number of buffers queued or in flight
+     */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return number of buffers successfully written
+     */
+    public long getBuffersWritten() {
+        return buffersWritten;
+    }
+
+    /**
+     * @return number of bytes successfully written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private CompletableFuture<Integer> enqueue(byte[] data) {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        Pending p = new Pending(data, new CompletableFuture<Integer>());
+        if (failure != null) {
+            finish(p, failure);
+            return p.future;
+        }
+        queue.add(p);
+        outstanding++;
+        pump();
+        return p.future;
+    }
+
+    private void pump() {
+        while (failure == null && !queue.isEmpty() && !idleSlots.isEmpty()) {
+            Slot slot = idleSlots.poll();
+            Pending p = queue.poll();
+            try {
+                slot.submit(p);
+            } catch (LibUsbException e) {
+                idleSlots.add(slot);
+                outstanding--;
+                finish(p, e);
+                fail(e);
+            }
+        }
+    }
+
+    private void completed(Slot slot) {
+        synchronized (this) {
+            Pending p = slot.pending;
+            slot.pending = null;
+            idleSlots.add(slot);
+            outstanding--;
+            UsbTransfer t = slot.transfer;
+            int n = t.getActualLength();
+            if (t.getStatus() == libusb_transfer_status.TRANSFER_CANCELLED && failure != null) {
+                finish(p, failure);
+            } else if (t.getStatus() != libusb_transfer_status.TRANSFER_COMPLETED) {
+                LibUsbException e = t.getStatusException();
+                finish(p, e);
+                fail(e);
+            } else if (n != p.data.length) {
+                LibUsbException e = new LibUsbTransmissionException("Transferred " + n + " bytes of " + p.data.length);
+                finish(p, e);
+                fail(e);
+            } else {
+                buffersWritten++;
+                bytesWritten += n;
+                p.written = n;
+                finished.add(p);
+                pump();
+            }
+            notifyAll();
+        }
+        completeFinished();
+    }
+
+    /**
+     * Record the failure of a buffer, reported by completeFinished(). Called with the lock held.
+     */
+    private void finish(Pending p, LibUsbException e) {
+        p.error = e;
+        finished.add(p);
+    }
+
+    /**
+     * Complete the futures of the finished buffers. Called without the lock held, so that actions depending on
+     * the futures can use the writer from any thread.
+     */
+    private void completeFinished() {
+        while (true) {
+            Pending p;
+            synchronized (this) {
+                p = finished.poll();
+            }
+            if (p == null) {
+                return;
+            }
+            if (p.error != null) {
+                p.future.completeExceptionally(p.error);
+            } else {
+                p.future.complete(p.written);
+            }
+        }
+    }
+
+    private void fail(LibUsbException e) {
+        if (failure != null) {
+            return;
+        }
+        log.info("Writer on endpoint " + endpoint + " failed:" + e.getClass().getSimpleName());
+        failure = e;
+        for (Pending p : queue) {
+            finish(p, e);
+        }
+        outstanding -= queue.size();
+        queue.clear();
+        for (Slot slot : slots) {
+            slot.transfer.cancel();
+        }
+        notifyAll();
+    }
+
+    private static class Pending {
+        final byte[] data;
+        final CompletableFuture<Integer> future;
+        int written;
+        LibUsbException error;
+
+        Pending(byte[] data, CompletableFuture<Integer> future) {
+            this.data = data;
+            this.future = future;
+        }
+    }
+
+    private class Slot implements UsbTransfer.Listener {
+        final UsbTransfer transfer;
+        Memory memory;
+        Pending pending;
+
+        Slot(UsbTransfer transfer) {
+            this.transfer = transfer;
+            transfer.setListener(this);
+        }
+
+        void submit(Pending p) throws LibUsbNoDeviceException,
+                LibUsbBusyException,
+                LibUsbOtherException {
+            int length = p.data.length;
+            if (memory == null || memory.size() < length) {
+                memory = new Memory(Math.max(length, 1));
+            }
+            memory.write(0, p.data, 0, length);
+            transfer.fill_bulk_transfer(device.get_dev_handle(), endpoint, memory, length, timeout);
+            pending = p;
+            transfer.submit();
+        }
+
+        @Override
+        public void transferCompleted(UsbTransfer t) {
+            completed(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BulkOutWriter {" +
+                " endpoint=" + endpoint +
+                " maxInFlight=" + maxInFlight +
+                " queueCapacity=" + queueCapacity +
+                " buffersWritten=" + buffersWritten +
+                " bytesWritten=" + bytesWritten +
+                "}";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_INTERFACE;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_SIZE;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_ALTSETTING;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_ENDPOINT;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_SIZE;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_NUM_ALTSETTING;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_SIZE;
+
+/**
+ * Reads the native libusb descriptor structures at the fixed offsets of DescriptorLayout into the immutable
+ * descriptor objects.
+ */
+final class DescriptorReader {
+    private static final byte[] NO_EXTRA = new byte[0];
+
+    private DescriptorReader() {
+    }
+
+    /**
+     * @param p struct libusb_device_descriptor
+     */
+    static UsbDeviceDescriptor readDeviceDescriptor(Pointer p) {
+        return new UsbDeviceDescriptor(p.getShort(2), p.getByte(4), p.getByte(5), p.getByte(6), p.getByte(7),
+                p.getShort(8), p.getShort(10), p.getShort(12), p.getByte(14), p.getByte(15), p.getByte(16),
+                p.getByte(17));
+    }
+
+    /**
+     * @param p struct libusb_config_descriptor
+     */
+    static UsbConfigDescriptor readConfigDescriptor(Pointer p) {
+        int n = p.getByte(4) & 0xff;
+        UsbInterface[] interfaces = new UsbInterface[n];
+        Pointer array = n == 0 ? null : p.getPointer(CONFIG_INTERFACE);
+        for (int i = 0; i < n; ++i) {
+            interfaces[i] = readInterface(array.share(i * INTERFACE_SIZE));
+        }
+        return new UsbConfigDescriptor(p.getShort(2), p.getByte(5), p.getByte(6), p.getByte(7), p.getByte(8),
+                interfaces, readExtra(p, CONFIG_EXTRA, CONFIG_EXTRA_LENGTH));
+    }
+
+    private static UsbInterface readInterface(Pointer p) {
+        int n = p.getInt(INTERFACE_NUM_ALTSETTING);
+        UsbInterfaceDescriptor[] altSettings = new UsbInterfaceDescriptor[Math.max(n, 0)];
+        Pointer array = n <= 0 ? null : p.getPointer(INTERFACE_ALTSETTING);
+        for (int i = 0; i < altSettings.length; ++i) {
+            altSettings[i] = readInterfaceDescriptor(array.share(i * INTERFACE_DESCRIPTOR_SIZE));
+        }
+        return new UsbInterface(altSettings);
+    }
+
+    private static UsbInterfaceDescriptor readInterfaceDescriptor(Pointer p) {
+        int n = p.getByte(4) & 0xff;
+        UsbEndpointDescriptor[] endpoints = new UsbEndpointDescriptor[n];
+        Pointer array = n == 0 ? null : p.getPointer(INTERFACE_DESCRIPTOR_ENDPOINT);
+        for (int i = 0; i < n; ++i) {
+            endpoints[i] = readEndpointDescriptor(array.share(i * ENDPOINT_DESCRIPTOR_SIZE));
+        }
+        return new UsbInterfaceDescriptor(p.getByte(2), p.getByte(3), p.getByte(5), p.getByte(6), p.getByte(7),
+                p.getByte(8), endpoints, readExtra(p, INTERFACE_DESCRIPTOR_EXTRA, INTERFACE_DESCRIPTOR_EXTRA_LENGTH));
+    }
+
+    private static UsbEndpointDescriptor readEndpointDescriptor(Pointer p) {
+        return new UsbEndpointDescriptor(p.getByte(2), p.getByte(3), p.getShort(4), p.getByte(6), p.getByte(7),
+                p.getByte(8), readExtra(p, ENDPOINT_DESCRIPTOR_EXTRA, ENDPOINT_DESCRIPTOR_EXTRA_LENGTH));
+    }
+
+    private static byte[] readExtra(Pointer p, int extraOffset, int lengthOffset) {
+        int length = p.getInt(lengthOffset);
+        if (length <= 0) {
+            return NO_EXTRA;
+        }
+        return p.getPointer(extraOffset).getByteArray(0, length);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a UsbDeviceProbe on a list of devices on an executor, see LibUsbSystem.probeDevices().
+ *
+ * At most parallelism probes are live at a time, and each device gets deadlineNanos from when its probe is
+ * handed to the executor. libusb calls cannot be interrupted, so a probe that misses its deadline is reported as
+ * timed out and keeps its thread until its libusb calls return. It no longer counts as live though, so the next
+ * device is handed to the executor at once; the executor must start a thread when none is idle.
+ */
+final class DeviceProber<T> {
+    private final UsbDeviceProbe<T> probe;
+    private final int parallelism;
+    private final long deadlineNanos;
+    private final Semaphore completions = new Semaphore(0);
+
+    private final class Slot implements Runnable {
+        final UsbDevice device;
+        volatile long startNanos;
+        volatile long endNanos;
+        volatile T value;
+        volatile Throwable error;
+        volatile boolean done;
+        UsbDeviceProbe.Result<T> result;
+
+        Slot(UsbDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public void run() {
+            try {
+                device.open();
+                try {
+                    value = probe.probe(device);
+                } finally {
+                    device.close();
+                }
+            } catch (LibUsbException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                endNanos = System.nanoTime();
+                done = true;
+                completions.release();
+            }
+        }
+    }
+
+    DeviceProber(UsbDeviceProbe<T> probe, int parallelism, long deadlineNanos) {
+        this.probe = probe;
+        this.parallelism = parallelism;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Probe the devices and wait until every probe has completed or missed its deadline.
+     *
+     * @return the results, in the order of devices
+     */
+    List<UsbDeviceProbe.Result<T>> run(List<UsbDevice> devices, ExecutorService executor) throws InterruptedException {
+        List<Slot> slots = new ArrayList<Slot>(devices.size());
+        for (UsbDevice d : devices) {
+            slots.add(new Slot(d));
+        }
+        int started = 0;
+        int live = 0;
+        int pending = slots.size();
+        while (pending > 0) {
+            while (live < parallelism && started < slots.size()) {
+                Slot s = slots.get(started++);
+                s.startNanos = System.nanoTime();
+                executor.execute(s);
+                ++live;
+            }
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            for (int i = 0; i < started; ++i) {
+                Slot s = slots.get(i);
+                if (s.result != null) {
+                    continue;
+                }
+                if (s.done) {
+                    s.result = new UsbDeviceProbe.Result<T>(s.device, s.value, s.error, false,
+                            s.endNanos - s.startNanos);
+                    --pending;
+                    --live;
+                    continue;
+                }
+                long remaining = s.startNanos + deadlineNanos - now;
+                if (remaining <= 0) {
+                    s.result = new UsbDeviceProbe.Result<T>(s.device, null, null, true, now - s.startNanos);
+                    --pending;
+                    --live;
+                } else {
+                    wait = Math.min(wait, remaining);
+                }
+            }
+            if (pending > 0 && (live == parallelism || started == slots.size())) {
+                // Woken by each completion, or when the earliest deadline passes
+                completions.tryAcquire(wait, TimeUnit.NANOSECONDS);
+            }
+        }
+        List<UsbDeviceProbe.Result<T>> results = new ArrayList<UsbDeviceProbe.Result<T>>(slots.size());
+        for (Slot s : slots) {
+            results.add(s.result);
+        }
+        return results;
+    }
+}
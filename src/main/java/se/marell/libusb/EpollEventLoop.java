@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibC;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single threaded epoll reactor (Linux only) multiplexing libusb event handling with other file descriptors.
+ *
+ * The file descriptors of a UsbPollSource are kept registered with the epoll instance as libusb adds and
+ * removes them. libusb is only called into, through UsbPollSource.handleEvents(), when one of its file
+ * descriptors is ready or when a libusb timeout expires. Other file descriptors, e.g. sockets, are registered
+ * with register() and their handlers are called on the loop thread.
+ *
+ * Call run() from the reactor thread, or runOnce() from an existing loop.
+ */
+public class EpollEventLoop implements Runnable, UsbPollSource.Listener {
+    private static final Logger log = LoggerFactory.getLogger(EpollEventLoop.class);
+
+    /**
+     * struct epoll_event is packed on x86 and x86_64: uint32_t events followed by a 64 bit data union.
+     */
+    private static final boolean PACKED_EVENT = System.getProperty("os.arch").matches("x86|i[3-6]86|amd64|x86_64");
+    static final int EVENT_SIZE = PACKED_EVENT ? 12 : 16;
+    static final int EVENT_DATA_OFFSET = PACKED_EVENT ? 4 : 8;
+    private static final int MAX_EVENTS = 64;
+
+    public interface Handler {
+        /**
+         * A registered file descriptor is ready.
+         *
+         * @param fd     the file descriptor
+         * @param events ready events, LibC.EPOLLIN etc.
+         */
+        void ready(int fd, int events);
+    }
+
+    private final LibC libc;
+    private final UsbPollSource usbSource;
+    private final int epfd;
+    private final int wakeupFd;
+    private final Memory events = new Memory(MAX_EVENTS * EVENT_SIZE);
+    private final Memory ctlEvent = new Memory(EVENT_SIZE);
+    private final Memory counter = new Memory(8);
+    private final Map<Integer, Handler> handlers = new ConcurrentHashMap<Integer, Handler>();
+    private final Set<Integer> usbFds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean running;
+
+    /**
+     * Create the epoll instance and register the current and future file descriptors of usbSource.
+     *
+     * @param usbSource opened libusb event source
+     * @throws IOException if the epoll instance could not be created
+     */
+    public EpollEventLoop(UsbPollSource usbSource) throws IOException {
+        this(LibC.libC, usbSource);
+    }
+
+    EpollEventLoop(LibC libc, UsbPollSource usbSource) throws IOException {
+        this.libc = libc;
+        this.usbSource = usbSource;
+        epfd = libc.epoll_create1(LibC.EPOLL_CLOEXEC);
+        if (epfd < 0) {
+            throw new IOException("epoll_create1 failed, errno=" + Native.getLastError());
+        }
+        wakeupFd = libc.eventfd(0, LibC.EFD_NONBLOCK | LibC.EFD_CLOEXEC);
+        if (wakeupFd < 0) {
+            libc.close(epfd);
+            throw new IOException("eventfd failed, errno=" + Native.getLastError());
+        }
+        ctl(LibC.EPOLL_CTL_ADD, wakeupFd, LibC.EPOLLIN);
+        usbSource.addListener(this);
+    }
+
+    /**
+     * Monitor a file descriptor.
+     *
+     * @param fd      file descriptor
+     * @param events  LibC.EPOLLIN and/or LibC.EPOLLOUT
+     * @param handler called on the loop thread when the file descriptor is ready
+     * @throws IOException if epoll_ctl failed
+     */
+    public void register(int fd, int events, Handler handler) throws IOException {
+        handlers.put(fd, handler);
+        if (ctl(LibC.EPOLL_CTL_ADD, fd, events) < 0) {
+            handlers.remove(fd);
+            throw new IOException("epoll_ctl failed for fd " + fd + ", errno=" + Native.getLastError());
+        }
+    }
+
+    /**
+     * Stop monitoring a file descriptor registered with register().
+     *
+     * @param fd file descriptor
+     */
+    public void unregister(int fd) {
+        if (handlers.remove(fd) != null) {
+            ctl(LibC.EPOLL_CTL_DEL, fd, 0);
+        }
+    }
+
+    @Override
+    public void pollfdAdded(int fd, int events) {
+        usbFds.add(fd);
+        if (ctl(LibC.EPOLL_CTL_ADD, fd, events) < 0) {
+            log.warn("epoll_ctl failed for libusb fd " + fd + ", errno=" + Native.getLastError());
+        }
+    }
+
+    @Override
+    public void pollfdRemoved(int fd) {
+        if (usbFds.remove(fd)) {
+            ctl(LibC.EPOLL_CTL_DEL, fd, 0);
+        }
+    }
+
+    /**
+     * Wait for and dispatch events once.
+     *
+     * @param timeoutMs maximum time to wait in ms, -1 to wait until an event or libusb timeout
+     * @throws IOException          if epoll_wait failed
+     * @throws LibUsbOtherException if libusb event handling failed
+     */
+    public void runOnce(int timeoutMs) throws IOException, LibUsbOtherException {
+        int usbTimeout = usbSource.pollfdsHandleTimeouts() ? -1 : usbSource.getNextTimeoutMillis();
+        int timeout = timeoutMs;
+        if (usbTimeout >= 0 && (timeout < 0 || usbTimeout < timeout)) {
+            timeout = usbTimeout;
+        }
+        long t0 = System.nanoTime();
+        int n = libc.epoll_wait(epfd, events, MAX_EVENTS, timeout);
+        if (n < 0) {
+            int errno = Native.getLastError();
+            if (errno == LibC.EINTR) {
+                return;
+            }
+            throw new IOException("epoll_wait failed, errno=" + errno);
+        }
+        boolean usbReady = false;
+        for (int i = 0; i < n; ++i) {
+            int ready = events.getInt(i * EVENT_SIZE);
+            int fd = (int) events.getLong(i * EVENT_SIZE + EVENT_DATA_OFFSET);
+            if (fd == wakeupFd) {
+                libc.read(wakeupFd, counter, new NativeLong(8));
+            } else if (usbFds.contains(fd)) {
+                usbReady = true;
+            } else {
+                Handler h = handlers.get(fd);
+                if (h != null) {
+                    h.ready(fd, ready);
+                }
+            }
+        }
+        if (!usbReady && usbTimeout >= 0) {
+            usbReady = System.nanoTime() - t0 >= usbTimeout * 1000000L;
+        }
+        if (usbReady) {
+            usbSource.handleEvents();
+        }
+    }
+
+    /**
+     * Run the loop until stop() is called.
+     */
+    @Override
+    public void run() {
+        running = true;
+        while (running) {
+            try {
+                runOnce(-1);
+            } catch (IOException e) {
+                log.error("Event loop failed", e);
+                break;
+            } catch (LibUsbOtherException e) {
+                log.warn("libusb event handling failed:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Make run() return. May be called from any thread.
+     */
+    public void stop() {
+        running = false;
+        wakeup();
+    }
+
+    /**
+     * Make a blocking runOnce() return early. May be called from any thread.
+     */
+    public void wakeup() {
+        Memory one = new Memory(8);
+        one.setLong(0, 1);
+        libc.write(wakeupFd, one, new NativeLong(8));
+    }
+
+    /**
+     * Stop monitoring libusb and close the epoll instance.
+     */
+    public void close() {
+        usbSource.removeListener(this);
+        libc.close(wakeupFd);
+        libc.close(epfd);
+    }
+
+    private int ctl(int op, int fd, int events) {
+        synchronized (ctlEvent) {
+            ctlEvent.clear();
+            ctlEvent.setInt(0, events);
+            ctlEvent.setLong(EVENT_DATA_OFFSET, fd);
+            return libc.epoll_ctl(epfd, op, fd, ctlEvent);
+        }
+    }
+}
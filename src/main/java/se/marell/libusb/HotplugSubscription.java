@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_hotplug_callback_fn;
+import se.marell.libusb.jna.libusb_hotplug_event;
+import se.marell.libusb.jna.libusb_hotplug_flag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscription to devices arriving and leaving, created with LibUsbSystem.registerHotplugListener().
+ *
+ * If libusb supports hotplug (libusb 1.0.16 and a supported platform) a libusb hotplug callback is registered,
+ * so no enumeration is needed to detect changes. Otherwise the device cache of the system is refreshed every
+ * pollIntervalMs and its changes are reported.
+ *
+ * The listener is invoked from within event handling, normally on the event thread of LibUsbSystem (see
+ * LibUsbSystem.startEventThread()). When polling, the cache is only refreshed while events are handled.
+ *
+ * The subscription of a ShardedUsbSystem consists of one subscription per shard, each reporting the devices
+ * assigned to its shard.
+ */
+public class HotplugSubscription {
+    private static final Logger log = LoggerFactory.getLogger(HotplugSubscription.class);
+
+    public interface Listener {
+        /**
+         * A matching device has been connected, or was connected when the subscription was registered with
+         * enumerate set. The listener may read descriptors and open the device, but should not block.
+         *
+         * @param device the device. Its reference is held until it leaves or the subscription is cancelled; call
+         *               ref_device() to keep it longer.
+         */
+        void deviceArrived(UsbDevice device);
+
+        /**
+         * A matching device has been disconnected. Only its cached descriptor and port path are still valid.
+         *
+         * @param device the device
+         */
+        void deviceLeft(UsbDevice device);
+    }
+
+    private final LibUsbSystem system;
+    private final LibUsb usb;
+    private final int vendorId;
+    private final int productId;
+    private final int deviceClass;
+    private final Listener listener;
+    private final Map<Long, UsbDevice> devices = new ConcurrentHashMap<Long, UsbDevice>();
+    private volatile boolean active;
+    private boolean polling;
+    private int handle;
+
+    /**
+     * Strongly referenced for as long as libusb may invoke it
+     */
+    private libusb_hotplug_callback_fn callback;
+    private UsbDeviceCache.Listener cacheListener;
+    private Runnable pollTask;
+
+    /**
+     * The subscriptions of the shards, or null
+     */
+    private final List<HotplugSubscription> shards;
+
+    HotplugSubscription(LibUsbSystem system, int vendorId, int productId, int deviceClass, Listener listener) {
+        this.system = system;
+        this.usb = system.getLibUsb();
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.deviceClass = deviceClass;
+        this.listener = listener;
+        this.shards = null;
+    }
+
+    /**
+     * Combine the active subscriptions of the shards of a ShardedUsbSystem.
+     */
+    HotplugSubscription(List<HotplugSubscription> shards, int vendorId, int productId, int deviceClass) {
+        this.system = null;
+        this.usb = null;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.deviceClass = deviceClass;
+        this.listener = null;
+        this.shards = new ArrayList<HotplugSubscription>(shards);
+        for (HotplugSubscription s : shards) {
+            polling |= s.polling;
+        }
+        active = true;
+    }
+
+    /**
+     * Register with libusb, or start polling if libusb does not support hotplug.
+     */
+    void start(boolean enumerate, long pollIntervalMs) throws LibUsbOtherException {
+        active = true;
+        if (system.hasHotplug()) {
+            callback = new libusb_hotplug_callback_fn() {
+                @Override
+                public int invoke(Pointer context, Pointer device, int event, Pointer user_data) {
+                    return hotplugEvent(device, event);
+                }
+            };
+            int[] h = new int[1];
+            int rc = usb.libusb_hotplug_register_callback(system.get_context(),
+                    libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED | libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_LEFT,
+                    enumerate ? libusb_hotplug_flag.HOTPLUG_ENUMERATE : libusb_hotplug_flag.HOTPLUG_NO_FLAGS,
+                    vendorId, productId, deviceClass, callback, null, h);
+            if (rc == 0) {
+                handle = h[0];
+                return;
+            }
+            callback = null;
+            if (rc != libusb_error.ERROR_NOT_SUPPORTED) {
+                active = false;
+                throw new LibUsbOtherException(rc);
+            }
+        }
+        startPolling(enumerate, pollIntervalMs);
+    }
+
+    private void startPolling(boolean enumerate, long pollIntervalMs) throws LibUsbOtherException {
+        polling = true;
+        log.debug("Hotplug not supported, polling every " + pollIntervalMs + " ms");
+        final UsbDeviceCache cache = system.getDeviceCache();
+        cacheListener = new UsbDeviceCache.Listener() {
+            @Override
+            public void devicesChanged(UsbDeviceCache.Diff diff) {
+                for (UsbDevice d : diff.getRemoved()) {
+                    if (active && matches(d)) {
+                        deliver(d, false);
+                    }
+                }
+                for (UsbDevice d : diff.getAdded()) {
+                    if (active && matches(d)) {
+                        deliver(d, true);
+                    }
+                }
+            }
+        };
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(pollIntervalMs);
+        pollTask = new Runnable() {
+            private long polledNanos = System.nanoTime();
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (now - polledNanos < intervalNanos) {
+                    return;
+                }
+                polledNanos = now;
+                try {
+                    cache.refresh();
+                } catch (LibUsbOtherException e) {
+                    log.warn("Hotplug poll failed:" + e.getMessage());
+                }
+            }
+        };
+        synchronized (cache) {
+            // Enumerate before listening, so that the devices already connected are not reported as added
+            List<UsbDevice> connected = cache.getDevices();
+            if (enumerate) {
+                for (UsbDevice d : connected) {
+                    if (matches(d)) {
+                        deliver(d, true);
+                    }
+                }
+            }
+            cache.addListener(cacheListener);
+        }
+        system.addEventTask(pollTask);
+    }
+
+    private int hotplugEvent(Pointer device, int event) {
+        synchronized (this) {
+            if (!active) {
+                return 1;
+            }
+            long key = Pointer.nativeValue(device);
+            if (event == libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED) {
+                UsbDevice d;
+                try {
+                    d = new UsbDevice(usb, system.get_context(), device);
+                } catch (LibUsbException e) {
+                    log.debug("Skipped arrived device:" + e.getMessage());
+                    return 0;
+                }
+                d.ref_device();
+                devices.put(key, d);
+                deliver(d, true);
+            } else {
+                UsbDevice d = devices.remove(key);
+                if (d == null) {
+                    try {
+                        d = new UsbDevice(usb, system.get_context(), device);
+                    } catch (LibUsbException e) {
+                        log.debug("Skipped left device:" + e.getMessage());
+                        return 0;
+                    }
+                    deliver(d, false);
+                } else {
+                    deliver(d, false);
+                    d.unref_device();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void deliver(UsbDevice d, boolean arrived) {
+        try {
+            if (arrived) {
+                listener.deviceArrived(d);
+            } else {
+                listener.deviceLeft(d);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Hotplug listener failed", e);
+        }
+    }
+
+    private boolean matches(UsbDevice d) {
+        return (vendorId == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || vendorId == (d.getIdVendor() & 0xffff)) &&
+                (productId == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || productId == (d.getIdProduct() & 0xffff)) &&
+                (deviceClass == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || deviceClass == (d.getBDeviceClass() & 0xff));
+    }
+
+    /**
+     * Stop delivering events and release the devices held by the subscription. When called from another thread
+     * than the one handling events, a listener invocation in progress may still complete.
+     */
+    public void cancel() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        if (shards != null) {
+            for (HotplugSubscription s : shards) {
+                s.cancel();
+            }
+            return;
+        }
+        if (polling) {
+            system.removeEventTask(pollTask);
+            system.getDeviceCache().removeListener(cacheListener);
+        } else {
+            usb.libusb_hotplug_deregister_callback(system.get_context(), handle);
+        }
+        List<UsbDevice> held;
+        synchronized (this) {
+            held = new ArrayList<UsbDevice>(devices.values());
+            devices.clear();
+        }
+        for (UsbDevice d : held) {
+            d.unref_device();
+        }
+        system.hotplugCancelled(this);
+    }
+
+    /**
+     * @return true until cancelled
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return true if changes are detected by polling the device cache instead of by libusb, in any shard
+     */
+    public boolean isPolling() {
+        return polling;
+    }
+
+    @Override
+    public String toString() {
+        return "HotplugSubscription{vendorId=" + vendorId + ", productId=" + productId +
+                ", deviceClass=" + deviceClass + ", polling=" + polling + ", active=" + active + "}";
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.TransferSet.Slot;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Subscription to the reports of an interrupt IN endpoint, created with UsbDevice.subscribeInterrupt().
+ *
+ * A number of interrupt transfers without timeout are kept submitted, so an idle endpoint costs neither a thread
+ * nor any wakeups. Each received report is pushed to the listener and the transfer is resubmitted. A failed
+ * transfer ends the subscription: the other transfers are cancelled and the listener is told. The transfers are
+ * freed by cancel(), which must be called also after a failure.
+ *
+ * The listener is invoked from within libusb event handling, normally on the event thread of LibUsbSystem
+ * (see LibUsbSystem.startEventThread()).
+ */
+public class InterruptSubscription {
+    private static final Logger log = LoggerFactory.getLogger(InterruptSubscription.class);
+
+    public interface Listener {
+        /**
+         * A report has been received.
+         *
+         * @param device the device
+         * @param report report data between position and limit. The buffer is a view of native transfer memory
+         *               that is reused when this method returns; copy what you want to keep.
+         */
+        void reportReceived(UsbDevice device, ByteBuffer report);
+
+        /**
+         * The subscription ended because of an error, typically LibUsbNoDeviceException when the device has
+         * been disconnected. No more reports will be delivered.
+         *
+         * @param device the device
+         * @param e      the error
+         */
+        void subscriptionFailed(UsbDevice device, LibUsbException e);
+    }
+
+    private final UsbDevice device;
+    private final int endpoint;
+    private final int reportSize;
+    private final int queueDepth;
+    private final Listener listener;
+    private final TransferSet transfers = new TransferSet(this) {
+        @Override
+        void fill(Slot slot) {
+            slot.transfer.fill_interrupt_transfer(device.get_dev_handle(), endpoint, slot.memory, reportSize, 0);
+        }
+
+        @Override
+        void completed(Slot slot) {
+            InterruptSubscription.this.completed(slot);
+        }
+    };
+
+    private volatile long reportsReceived;
+
+    InterruptSubscription(UsbDevice device, int endpoint, int reportSize, int queueDepth, Listener listener) {
+        if (queueDepth < 1 || reportSize < 1) {
+            throw new IllegalArgumentException("queueDepth=" + queueDepth + ",reportSize=" + reportSize);
+        }
+        this.device = device;
+        this.endpoint = endpoint;
+        this.reportSize = reportSize;
+        this.queueDepth = queueDepth;
+        this.listener = listener;
+    }
+
+    /**
+     * Allocate and submit the transfers. If a submit fails, the transfers already submitted are cancelled and
+     * waited for before throwing.
+     */
+    synchronized void start() throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        transfers.start(device.getLibUsb(), queueDepth, 0, reportSize);
+    }
+
+    /**
+     * Cancel the subscription and wait for the transfers to be cancelled. Event handling must keep running while
+     * waiting. Must not be called from the listener.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if all transfers completed and were freed, false on timeout
+     */
+    public synchronized boolean cancel(long timeoutMs) {
+        return transfers.stop(timeoutMs);
+    }
+
+    /**
+     * @return true until the subscription has been cancelled or has failed
+     */
+    public synchronized boolean isActive() {
+        return transfers.isActive();
+    }
+
+    /**
+     * @return the device
+     */
+    public UsbDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return endpoint address
+     */
+    public int getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return number of reports received
+     */
+    public long getReportsReceived() {
+        return reportsReceived;
+    }
+
+    private void completed(Slot slot) {
+        UsbTransfer t = slot.transfer;
+        if (t.getStatus() != libusb_transfer_status.TRANSFER_COMPLETED) {
+            fail(t.getStatusException());
+            return;
+        }
+        reportsReceived++;
+        slot.view.limit(t.getActualLength()).position(0);
+        try {
+            listener.reportReceived(device, slot.view);
+        } catch (RuntimeException e) {
+            log.error("Listener failed", e);
+        }
+        try {
+            transfers.submit(slot);
+        } catch (LibUsbException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(LibUsbException e) {
+        log.info("Subscription on endpoint " + endpoint + " failed:" + e.getClass().getSimpleName());
+        transfers.cancel();
+        listener.subscriptionFailed(device, e);
+    }
+
+    @Override
+    public String toString() {
+        return "InterruptSubscription {" +
+                " endpoint=" + endpoint +
+                " reportSize=" + reportSize +
+                " reportsReceived=" + reportsReceived +
+                "}";
+    }
+}
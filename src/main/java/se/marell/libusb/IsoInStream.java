@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.TransferSet.Slot;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Continuous reader for an isochronous IN endpoint, e.g. USB audio or video capture.
+ *
+ * Keeps queueDepth transfers of packetsPerTransfer packets submitted at all times. When a transfer completes,
+ * every packet is handed to the consumer together with its status, and the transfer is resubmitted. Packets
+ * are delivered as views of the native transfer memory, so no Java objects are allocated per packet.
+ *
+ * libusb completes the transfers of an endpoint in submission order, so packets are delivered in the order
+ * they arrived on the bus. Completions, and so the consumer, run from within libusb event handling, normally
+ * on the event thread of LibUsbSystem.
+ */
+public class IsoInStream {
+    private static final Logger log = LoggerFactory.getLogger(IsoInStream.class);
+
+    public interface Consumer {
+        /**
+         * A packet has been received.
+         *
+         * @param data   received data between position and limit, empty if nothing was received. The buffer is
+         *               a view of native transfer memory that is reused when this method returns; copy what you
+         *               want to keep.
+         * @param status packet status from libusb_transfer_status
+         */
+        void packetReceived(ByteBuffer data, int status);
+
+        /**
+         * The stream stopped because of an error. No more data will be delivered.
+         *
+         * @param e the error
+         */
+        void streamFailed(LibUsbException e);
+    }
+
+    private final UsbDevice device;
+    private final int endpoint;
+    private final int queueDepth;
+    private final int packetsPerTransfer;
+    private final int packetSize;
+    private final int timeout;
+    private final Consumer consumer;
+
+    private final TransferSet transfers = new TransferSet(this) {
+        @Override
+        void fill(Slot slot) {
+            slot.transfer.fill_iso_transfer(device.get_dev_handle(), endpoint, slot.memory, packetsPerTransfer,
+                    packetSize, timeout);
+        }
+
+        @Override
+        void completed(Slot slot) {
+            IsoInStream.this.completed(slot);
+        }
+    };
+
+    private volatile long bytesReceived;
+    private volatile long packetsReceived;
+    private volatile long packetErrors;
+
+    /**
+     * @param device             opened device with the interface of the endpoint claimed and an alternate
+     *                           setting with bandwidth for the endpoint selected
+     * @param endpoint           address of an isochronous IN endpoint
+     * @param queueDepth         number of transfers kept submitted
+     * @param packetsPerTransfer number of packets in each transfer
+     * @param packetSize         size of each packet, normally UsbDevice.get_max_iso_packet_size(endpoint)
+     * @param timeout            timeout in ms for each transfer, 0 for no timeout
+     * @param consumer           receives the packets
+     */
+    public IsoInStream(UsbDevice device, int endpoint, int queueDepth, int packetsPerTransfer, int packetSize,
+                       int timeout, Consumer consumer) {
+        if (queueDepth < 1 || packetsPerTransfer < 1 || packetSize < 1) {
+            throw new IllegalArgumentException("queueDepth=" + queueDepth + ",packetsPerTransfer=" +
+                    packetsPerTransfer + ",packetSize=" + packetSize);
+        }
+        this.device = device;
+        this.endpoint = endpoint;
+        this.queueDepth = queueDepth;
+        this.packetsPerTransfer = packetsPerTransfer;
+        this.packetSize = packetSize;
+        this.timeout = timeout;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Allocate the transfers and submit all of them. If a submit fails, the transfers already submitted are
+     * cancelled and start() waits for event handling to complete them before throwing, after which the stream
+     * can be started again. If they do not complete in time, stop() must be called before restarting.
+     *
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if a transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public synchronized void start() throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        if (transfers.isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        bytesReceived = 0;
+        packetsReceived = 0;
+        packetErrors = 0;
+        transfers.start(device.getLibUsb(), queueDepth, packetsPerTransfer, packetsPerTransfer * packetSize);
+    }
+
+    /**
+     * Cancel all transfers and wait for the cancellations to complete. Event handling must keep running while
+     * waiting. Must not be called from the consumer.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if all transfers completed and were freed, false on timeout. Transfers still submitted
+     * after a timeout are not freed.
+     */
+    public synchronized boolean stop(long timeoutMs) {
+        return transfers.stop(timeoutMs);
+    }
+
+    /**
+     * @return number of packets in each transfer
+     */
+    public int getPacketsPerTransfer() {
+        return packetsPerTransfer;
+    }
+
+    /**
+     * @return size of each packet
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return total number of bytes delivered since start()
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return number of packets delivered since start(), including failed packets
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * @return number of packets delivered with a status other than TRANSFER_COMPLETED since start()
+     */
+    public long getPacketErrors() {
+        return packetErrors;
+    }
+
+    private void completed(Slot slot) {
+        UsbTransfer t = slot.transfer;
+        int status = t.getStatus();
+        if (status != libusb_transfer_status.TRANSFER_COMPLETED && status != libusb_transfer_status.TRANSFER_TIMED_OUT) {
+            fail(t.getStatusException());
+            return;
+        }
+        ByteBuffer view = slot.view;
+        for (int i = 0; i < packetsPerTransfer; ++i) {
+            int n = t.getIsoPacketActualLength(i);
+            int packetStatus = t.getIsoPacketStatus(i);
+            int offset = i * packetSize;
+            view.limit(offset + n).position(offset);
+            packetsReceived++;
+            bytesReceived += n;
+            if (packetStatus != libusb_transfer_status.TRANSFER_COMPLETED) {
+                packetErrors++;
+            }
+            try {
+                consumer.packetReceived(view, packetStatus);
+            } catch (RuntimeException e) {
+                log.error("Consumer failed", e);
+            }
+        }
+        try {
+            transfers.submit(slot);
+        } catch (LibUsbException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(LibUsbException e) {
+        log.info("Stream on endpoint " + endpoint + " failed:" + e.getClass().getSimpleName());
+        transfers.cancel();
+        consumer.streamFailed(e);
+    }
+
+    @Override
+    public String toString() {
+        return "IsoInStream {" +
+                " endpoint=" + endpoint +
+                " queueDepth=" + queueDepth +
+                " packetsPerTransfer=" + packetsPerTransfer +
+                " packetSize=" + packetSize +
+                " packetsReceived=" + packetsReceived +
+                " packetErrors=" + packetErrors +
+                " bytesReceived=" + bytesReceived +
+                "}";
+    }
+}
@@ -27,24 +27,111 @@ import com.sun.jna.Pointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.LibUsbDirect;
+import se.marell.libusb.jna.LibUsbLoader;
+import se.marell.libusb.jna.libusb_capability;
 import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.panama.PanamaBackend;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
-public class LibUsbSystem implements UsbSystem {
+public class LibUsbSystem implements ManagedUsbSystem {
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
 
+    /**
+     * Largest buffer size kept by the buffer pool
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Maximum age of the device cache before it is refreshed on access
+     */
+    public static final long DEFAULT_DEVICE_CACHE_MAX_AGE_MS = 1000;
+
+    /**
+     * Interval at which the device cache is refreshed by hotplug subscriptions when libusb does not support
+     * hotplug
+     */
+    public static final long DEFAULT_HOTPLUG_POLL_INTERVAL_MS = 1000;
+
+    /**
+     * System property selecting how libusb is called: "panama" for the Foreign Function and Memory backend
+     * (Java 22 and later), "direct" for LibUsbDirect, which uses JNA direct mapping for the frequently used
+     * functions, or "interface" for the interface mapped LibUsb only. If not set, the Panama backend is used
+     * when the JVM supports it, otherwise "direct" when it loads and "interface" as the last resort.
+     */
+    public static final String BINDING_PROPERTY = "se.marell.libusb.binding";
+
     private Pointer context;
-    private LibUsb usb = LibUsb.libUsb;
+    private final LibUsb usb;
+    private UsbEventThread eventThread;
+    private UsbDeviceCache deviceCache;
+    private final List<Runnable> eventTasks = new CopyOnWriteArrayList<Runnable>();
+    private final List<HotplugSubscription> hotplugSubscriptions = new CopyOnWriteArrayList<HotplugSubscription>();
+    private final UsbBufferPool bufferPool = new UsbBufferPool(DEFAULT_MAX_POOLED_BUFFER_SIZE,
+            LoggerFactory.getLogger(UsbBufferPool.class).isDebugEnabled());
 
     public LibUsbSystem(boolean setContext) {
+        this(selectBinding(), setContext);
+    }
+
+    /**
+     * Create a system on top of a given LibUsb backend, for example a SimulatedLibUsb, instead of the native
+     * libusb library selected by BINDING_PROPERTY.
+     *
+     * @param usb        the backend
+     * @param setContext true if a non-null context shall be used in libusb_init
+     * @throws IllegalStateException if libusb_init fails
+     */
+    public LibUsbSystem(LibUsb usb, boolean setContext) {
+        this.usb = usb;
+        int rc;
         if (setContext) {
             Pointer[] p = new Pointer[1];
-            usb.libusb_init(p);
+            rc = usb.libusb_init(p);
             context = p[0];
         } else {
-            usb.libusb_init(null);
+            rc = usb.libusb_init(null);
+        }
+        if (rc < 0) {
+            throw new IllegalStateException("libusb_init failed:" + libusb_error.getText(rc));
+        }
+    }
+
+    static LibUsb selectBinding() {
+        LibUsb libUsb = LibUsbLoader.getLibUsb();
+        String binding = System.getProperty(BINDING_PROPERTY);
+        if (!LibUsbLoader.isAvailable() || "interface".equals(binding)) {
+            return libUsb;
+        }
+        if (binding == null || "panama".equals(binding)) {
+            if (PanamaBackend.isSupported()) {
+                try {
+                    return PanamaBackend.create(libUsb);
+                } catch (LinkageError e) {
+                    LoggerFactory.getLogger(LibUsbSystem.class).warn("Panama backend failed, using direct mapping:" + e.getMessage());
+                } catch (RuntimeException e) {
+                    LoggerFactory.getLogger(LibUsbSystem.class).warn("Panama backend failed, using direct mapping:" + e.getMessage());
+                }
+            } else if (binding != null) {
+                LoggerFactory.getLogger(LibUsbSystem.class).warn("Panama backend requires Java 22, using direct mapping");
+            }
+        }
+        try {
+            return new LibUsbDirect(libUsb);
+        } catch (LinkageError e) {
+            LoggerFactory.getLogger(LibUsbSystem.class).warn("Direct mapping of libusb failed, using interface mapping:" + e.getMessage());
+            return libUsb;
         }
     }
 
@@ -77,6 +164,19 @@ public class LibUsbSystem implements UsbSystem {
         usb.libusb_set_debug(context, debugLevel);
     }
 
+    /**
+     * Create a system on top of a given LibUsb backend and set its message verbosity,
+     * see LibUsbSystem(boolean, int).
+     *
+     * @param usb        the backend
+     * @param setContext true if a non-null context shall be used in libusb_init
+     * @param debugLevel Debug level: 0=none ... 3=most
+     */
+    public LibUsbSystem(LibUsb usb, boolean setContext, int debugLevel) {
+        this(usb, setContext);
+        usb.libusb_set_debug(context, debugLevel);
+    }
+
     @Override
     public List<UsbDevice> visitUsbDevices(UsbDeviceVisitor visitor) throws LibUsbNoDeviceException,
             LibUsbPermissionException,
@@ -97,26 +197,321 @@ public class LibUsbSystem implements UsbSystem {
         log.debug("Found " + parr.length + " devices");
 
         for (Pointer usb_device : parr) {
-            devices.add(new UsbDevice(usb, usb_device));
+            devices.add(new UsbDevice(usb, context, usb_device));
         }
 
         List<UsbDevice> targetDevices = visitor.visitDevices(devices);
+        Set<UsbDevice> targets = new HashSet<UsbDevice>(targetDevices);
 
-        // unref all other devices
+        // The selected devices keep the reference from the list, all other devices are unreferenced
         for (UsbDevice d : devices) {
-            if (!targetDevices.contains(d)) {
+            if (targets.contains(d)) {
+                d.adopt_reference();
+            } else {
                 usb.libusb_unref_device(d.get_usb_device());
             }
         }
 
         // Free the device list itself
-        usb.libusb_free_device_list(context, device_list, 0);
+        usb.libusb_free_device_list(device_list, 0);
 
         return targetDevices;
     }
 
+    /**
+     * Get the attached devices one at a time, see UsbDeviceIterator. Unlike visitUsbDevices(), no device is
+     * created or has its descriptor read before it is reached. The iterator must be closed.
+     *
+     * @return the iterator
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public UsbDeviceIterator iterateUsbDevices() throws LibUsbOtherException {
+        Pointer[] pa = new Pointer[1];
+        int rc = usb.libusb_get_device_list(context, pa);
+        if (rc < 0) {
+            switch (rc) {
+                case libusb_error.ERROR_NO_MEM:
+                    throw new OutOfMemoryError("ERROR_NO_MEM when calling libusb_get_device_list");
+                default:
+                    throw new LibUsbOtherException(rc);
+            }
+        }
+        return new UsbDeviceIterator(usb, context, pa[0], rc);
+    }
+
+    /**
+     * Get the attached devices as a stream, see iterateUsbDevices(). The stream must be closed, and its devices
+     * are only valid until then unless referenced with ref_device().
+     *
+     * @return the stream
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public Stream<UsbDevice> streamUsbDevices() throws LibUsbOtherException {
+        return iterateUsbDevices().stream();
+    }
+
+    /**
+     * Find the first attached device matching a query, without creating the devices after it. The keys of
+     * the query are compared in the order port path, descriptor fields, serial number, so only the devices
+     * needed are read.
+     *
+     * @param query the query
+     * @return the device, holding a reference released by unref_device() or when it is garbage collected, or
+     * null if no device matches
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public UsbDevice findUsbDevice(UsbDeviceRegistry.Query query) throws LibUsbOtherException {
+        UsbDeviceIterator it = iterateUsbDevices();
+        try {
+            while (it.hasNext()) {
+                UsbDevice d = it.next();
+                if (query.matches(d)) {
+                    d.ref_device();
+                    return d;
+                }
+            }
+            return null;
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Get libusb_context pointer.
+     *
+     * @return context pointer, or null if the default context is used
+     */
+    public Pointer get_context() {
+        return context;
+    }
+
+    /**
+     * Create and open an event source for integrating libusb event handling into an application's own poll loop,
+     * see UsbPollSource and EpollEventLoop. Use either this or startEventThread(), not both.
+     *
+     * @return opened event source for this system's context
+     */
+    public UsbPollSource createPollSource() {
+        UsbPollSource source = new UsbPollSource(usb, context);
+        source.open();
+        return source;
+    }
+
+    /**
+     * Start a thread owned by this object which handles libusb events for its context. Asynchronous transfers
+     * then complete on that thread and there is no need to call handle_events(). The thread is stopped by
+     * cleanup().
+     *
+     * @param tickMs maximum time in ms the thread blocks in libusb per iteration. This bounds the time it takes
+     *               to stop the thread.
+     * @return the started thread, which also reports per-iteration timing
+     */
+    public synchronized UsbEventThread startEventThread(int tickMs) {
+        if (eventThread != null) {
+            throw new IllegalStateException("Event thread already started");
+        }
+        eventThread = new UsbEventThread(usb, context, tickMs);
+        eventThread.addTask(new Runnable() {
+            @Override
+            public void run() {
+                runEventTasks();
+            }
+        });
+        eventThread.start();
+        return eventThread;
+    }
+
+    /**
+     * @return the event thread started with startEventThread(), or null
+     */
+    public synchronized UsbEventThread getEventThread() {
+        return eventThread;
+    }
+
+    /**
+     * Get the pool of native transfer buffers of this system. Leak detection is enabled when debug logging is
+     * enabled for UsbBufferPool.
+     *
+     * @return the buffer pool
+     */
+    public UsbBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Get the handle manager counting the open handles and device references of this system's backend.
+     *
+     * @return the handle manager
+     */
+    public UsbHandleManager getHandleManager() {
+        return UsbHandleManager.get(usb);
+    }
+
+    /**
+     * Get the device cache of this system's context. It is refreshed on access when older than
+     * DEFAULT_DEVICE_CACHE_MAX_AGE_MS, and its devices are released by cleanup().
+     *
+     * @return the device cache
+     */
+    @Override
+    public synchronized UsbDeviceCache getDeviceCache() {
+        if (deviceCache == null) {
+            deviceCache = new UsbDeviceCache(usb, context, DEFAULT_DEVICE_CACHE_MAX_AGE_MS);
+        }
+        return deviceCache;
+    }
+
+    /**
+     * Check if libusb supports hotplug notification on this platform.
+     *
+     * @return true if hotplug callbacks can be registered
+     */
+    public boolean hasHotplug() {
+        try {
+            return usb.libusb_has_capability(libusb_capability.CAP_HAS_HOTPLUG) != 0;
+        } catch (UnsatisfiedLinkError e) {
+            // libusb older than 1.0.9
+            return false;
+        }
+    }
+
+    /**
+     * Register a listener for matching devices arriving and leaving, see HotplugSubscription. If libusb does not
+     * support hotplug, the device cache is polled every DEFAULT_HOTPLUG_POLL_INTERVAL_MS instead.
+     *
+     * @param vendorId    vendor id to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param productId   product id to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param deviceClass device class to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param enumerate   true to get deviceArrived() for the matching devices already connected, before this
+     *                    method returns
+     * @param listener    the listener
+     * @return the subscription, which is cancelled by cleanup() at the latest
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    @Override
+    public HotplugSubscription registerHotplugListener(int vendorId, int productId, int deviceClass,
+                                                       boolean enumerate, HotplugSubscription.Listener listener)
+            throws LibUsbOtherException {
+        HotplugSubscription s = new HotplugSubscription(this, vendorId, productId, deviceClass, listener);
+        hotplugSubscriptions.add(s);
+        try {
+            s.start(enumerate, DEFAULT_HOTPLUG_POLL_INTERVAL_MS);
+        } catch (LibUsbOtherException e) {
+            hotplugSubscriptions.remove(s);
+            throw e;
+        }
+        return s;
+    }
+
+    void hotplugCancelled(HotplugSubscription s) {
+        hotplugSubscriptions.remove(s);
+    }
+
+    /**
+     * Probe all devices in the device cache in parallel, see probeDevices(List, UsbDeviceProbe, int, long).
+     *
+     * @throws LibUsbOtherException if the device list could not be read
+     */
+    public <T> List<UsbDeviceProbe.Result<T>> probeDevices(UsbDeviceProbe<T> probe, int parallelism,
+                                                           long deadlineMs) throws LibUsbOtherException {
+        return probeDevices(getDeviceCache().getDevices(), probe, parallelism, deadlineMs);
+    }
+
+    /**
+     * Open, probe and close devices in parallel on at most parallelism threads. A device already open is probed
+     * through its existing handle. A failure to open or probe one device does not affect the others, and a
+     * probe not completed within deadlineMs from its start is given up as timed out. A timed out probe keeps its
+     * thread until its libusb calls return, and another thread takes over the remaining devices.
+     *
+     * @param devices     the devices to probe
+     * @param probe       the query run on each device
+     * @param parallelism max number of devices probed at the same time
+     * @param deadlineMs  max time in ms per device
+     * @return one result per device, in the order of devices. Returns when all probes have completed or timed out.
+     */
+    public <T> List<UsbDeviceProbe.Result<T>> probeDevices(List<UsbDevice> devices, UsbDeviceProbe<T> probe,
+                                                           int parallelism, long deadlineMs) {
+        if (parallelism <= 0 || deadlineMs <= 0) {
+            throw new IllegalArgumentException("parallelism and deadlineMs must be positive");
+        }
+        if (devices.isEmpty()) {
+            return new ArrayList<UsbDeviceProbe.Result<T>>();
+        }
+        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "UsbDeviceProbe-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            return new DeviceProber<T>(probe, parallelism, TimeUnit.MILLISECONDS.toNanos(deadlineMs))
+                    .run(devices, executor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while probing devices");
+        } finally {
+            // Probes past their deadline finish in the background
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Add a task run each time events have been handled, by the event thread or by handle_events().
+     */
+    void addEventTask(Runnable task) {
+        eventTasks.add(task);
+    }
+
+    void removeEventTask(Runnable task) {
+        eventTasks.remove(task);
+    }
+
+    private void runEventTasks() {
+        for (Runnable task : eventTasks) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void handle_events() throws LibUsbOtherException {
+        int rc = usb.libusb_handle_events(context);
+        if (rc < 0) {
+            throw new LibUsbOtherException(rc);
+        }
+        runEventTasks();
+    }
+
+    /**
+     * @throws IllegalStateException if called from the event thread, for example from a transfer callback
+     */
     @Override
     public void cleanup() {
+        synchronized (this) {
+            if (eventThread == Thread.currentThread()) {
+                throw new IllegalStateException("cleanup() called from the event thread");
+            }
+        }
+        for (HotplugSubscription s : hotplugSubscriptions) {
+            s.cancel();
+        }
+        synchronized (this) {
+            if (eventThread != null) {
+                eventThread.shutdown();
+                eventThread = null;
+            }
+            if (deviceCache != null) {
+                deviceCache.clear();
+            }
+        }
+        if (bufferPool.getInUseBytes() != 0) {
+            log.warn("Buffers still leased at cleanup:" + bufferPool);
+        }
+        bufferPool.trim();
+        UsbHandleManager.get(usb).release(context);
         usb.libusb_exit(context);
     }
 
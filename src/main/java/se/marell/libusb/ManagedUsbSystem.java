@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+/**
+ * A UsbSystem that keeps a cache of the attached devices and reports devices arriving and leaving, implemented
+ * by LibUsbSystem and ShardedUsbSystem.
+ *
+ * Code written against UsbSystem can check for this interface and use the cache where available, falling back
+ * to visitUsbDevices() otherwise.
+ */
+public interface ManagedUsbSystem extends UsbSystem {
+    /**
+     * Get the cache of attached devices. Use it instead of visitUsbDevices() where devices are looked up
+     * repeatedly, for example when reconnecting.
+     *
+     * @return the device cache
+     */
+    UsbDeviceCache getDeviceCache();
+
+    /**
+     * Register a listener for devices arriving and leaving.
+     *
+     * @param vendorId    vendor id to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param productId   product id to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param deviceClass device class to match, or libusb_hotplug_flag.HOTPLUG_MATCH_ANY
+     * @param enumerate   true to get deviceArrived() for the matching devices already connected
+     * @param listener    the listener, invoked from within event handling
+     * @return the subscription, cancel it to stop listening
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    HotplugSubscription registerHotplugListener(int vendorId, int productId, int deviceClass, boolean enumerate,
+                                                HotplugSubscription.Listener listener) throws LibUsbOtherException;
+}
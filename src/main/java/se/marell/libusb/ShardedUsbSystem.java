@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A UsbSystem spreading devices over several libusb contexts, each with its own event thread, so that the
+ * completion handling of many high rate devices is not serialized on the locks and the event thread of a single
+ * context.
+ *
+ * Each shard is a LibUsbSystem with a context of its own and a started event thread. A UsbShardPolicy assigns
+ * every device to a shard, and the devices returned by this system come from the context of their shard, so
+ * their transfers complete on the event thread of that shard. Apart from that the system behaves as a single
+ * UsbSystem: the device cache, visitUsbDevices() and hotplug listeners cover all devices once.
+ */
+public class ShardedUsbSystem implements ManagedUsbSystem {
+    protected final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final LibUsb usb;
+    private final UsbShardPolicy policy;
+    private final List<LibUsbSystem> shards;
+    private final int tickMs;
+    private UsbDeviceCache deviceCache;
+
+    /**
+     * Create a sharded system on the native libusb library, selected as by LibUsbSystem.
+     *
+     * @param shardCount number of contexts, for example the number of cores to spread completion handling over
+     * @param policy     assigns devices to shards
+     * @param tickMs     maximum time in ms the event threads block in libusb per iteration
+     */
+    public ShardedUsbSystem(int shardCount, UsbShardPolicy policy, int tickMs) {
+        this(LibUsbSystem.selectBinding(), shardCount, policy, tickMs);
+    }
+
+    /**
+     * Create a sharded system on top of a given LibUsb backend.
+     *
+     * @param usb        the backend
+     * @param shardCount number of contexts
+     * @param policy     assigns devices to shards
+     * @param tickMs     maximum time in ms the event threads block in libusb per iteration
+     * @throws IllegalStateException if a context cannot be created, after cleaning up the shards already created
+     */
+    public ShardedUsbSystem(LibUsb usb, int shardCount, UsbShardPolicy policy, int tickMs) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount=" + shardCount);
+        }
+        this.usb = usb;
+        this.policy = policy;
+        this.tickMs = tickMs;
+        List<LibUsbSystem> systems = new ArrayList<LibUsbSystem>(shardCount);
+        boolean created = false;
+        try {
+            for (int i = 0; i < shardCount; ++i) {
+                LibUsbSystem shard = new LibUsbSystem(usb, true);
+                systems.add(shard);
+                shard.startEventThread(tickMs).setName("libusb-events-" + i);
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                for (LibUsbSystem shard : systems) {
+                    shard.cleanup();
+                }
+            }
+        }
+        shards = Collections.unmodifiableList(systems);
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Get a shard, for example to read the statistics of its event thread or lease buffers from its pool.
+     *
+     * @param shard the shard, 0..getShardCount()-1
+     * @return the system of the shard
+     */
+    public LibUsbSystem getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * @param device a device
+     * @return the system of the shard the device is assigned to
+     */
+    public LibUsbSystem getShard(UsbDevice device) {
+        return shards.get(shardOf(device));
+    }
+
+    public UsbShardPolicy getPolicy() {
+        return policy;
+    }
+
+    private int shardOf(UsbDevice device) {
+        int shard = policy.shardOf(device, shards.size());
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalStateException(policy + " assigned " + device.getPortPath() + " to shard " + shard);
+        }
+        return shard;
+    }
+
+    @Override
+    public LibUsb getLibUsb() {
+        return usb;
+    }
+
+    /**
+     * Find and select USB devices among the devices of all shards, each device taken from its own shard.
+     */
+    @Override
+    public List<UsbDevice> visitUsbDevices(UsbDeviceVisitor visitor) throws LibUsbNoDeviceException,
+            LibUsbPermissionException,
+            LibUsbOtherException {
+        List<UsbDevice> devices = new ArrayList<UsbDevice>();
+        try {
+            for (int i = 0; i < shards.size(); ++i) {
+                UsbDeviceIterator it = shards.get(i).iterateUsbDevices();
+                try {
+                    while (it.hasNext()) {
+                        UsbDevice d = it.next();
+                        if (shardOf(d) == i) {
+                            d.ref_device();
+                            devices.add(d);
+                        }
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+        } catch (LibUsbOtherException e) {
+            for (UsbDevice d : devices) {
+                d.unref_device();
+            }
+            throw e;
+        }
+        log.debug("Found " + devices.size() + " devices");
+
+        List<UsbDevice> targetDevices = visitor.visitDevices(devices);
+        Set<UsbDevice> targets = new HashSet<UsbDevice>(targetDevices);
+        for (UsbDevice d : devices) {
+            if (!targets.contains(d)) {
+                d.unref_device();
+            }
+        }
+        return targetDevices;
+    }
+
+    /**
+     * Get the device cache covering all shards, see UsbDeviceCache. Its devices are released by cleanup().
+     *
+     * @return the device cache
+     */
+    @Override
+    public synchronized UsbDeviceCache getDeviceCache() {
+        if (deviceCache == null) {
+            Pointer[] contexts = new Pointer[shards.size()];
+            for (int i = 0; i < contexts.length; ++i) {
+                contexts[i] = shards.get(i).get_context();
+            }
+            deviceCache = new UsbDeviceCache(usb, contexts, policy, LibUsbSystem.DEFAULT_DEVICE_CACHE_MAX_AGE_MS);
+        }
+        return deviceCache;
+    }
+
+    /**
+     * Register a listener with every shard, each reporting the devices assigned to it. The listener is invoked on
+     * the event thread of the shard of the device, so it may be invoked from several threads at the same time.
+     */
+    @Override
+    public HotplugSubscription registerHotplugListener(int vendorId, int productId, int deviceClass,
+                                                       boolean enumerate, final HotplugSubscription.Listener listener)
+            throws LibUsbOtherException {
+        List<HotplugSubscription> subscriptions = new ArrayList<HotplugSubscription>();
+        try {
+            for (int i = 0; i < shards.size(); ++i) {
+                final int shard = i;
+                subscriptions.add(shards.get(i).registerHotplugListener(vendorId, productId, deviceClass, enumerate,
+                        new HotplugSubscription.Listener() {
+                            @Override
+                            public void deviceArrived(UsbDevice device) {
+                                if (shardOf(device) == shard) {
+                                    listener.deviceArrived(device);
+                                }
+                            }
+
+                            @Override
+                            public void deviceLeft(UsbDevice device) {
+                                if (shardOf(device) == shard) {
+                                    listener.deviceLeft(device);
+                                }
+                            }
+                        }));
+            }
+        } catch (LibUsbOtherException e) {
+            for (HotplugSubscription s : subscriptions) {
+                s.cancel();
+            }
+            throw e;
+        }
+        return new HotplugSubscription(subscriptions, vendorId, productId, deviceClass);
+    }
+
+    /**
+     * Events are handled by the event threads of the shards, so this only waits for at most one tick. It is
+     * there for code written against UsbSystem that calls it in a loop.
+     */
+    @Override
+    public void handle_events() throws LibUsbOtherException {
+        try {
+            Thread.sleep(tickMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Release the device cache and clean up every shard, stopping their event threads.
+     */
+    @Override
+    public void cleanup() {
+        synchronized (this) {
+            if (deviceCache != null) {
+                deviceCache.clear();
+            }
+        }
+        for (LibUsbSystem shard : shards) {
+            shard.cleanup();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedUsbSystem{shards=" + shards.size() + ", policy=" + policy + "}";
+    }
+}
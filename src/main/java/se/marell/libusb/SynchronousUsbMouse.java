@@ -38,6 +38,7 @@ import java.util.Arrays;
  *  usbdev.get inputs
  * }
  * </pre>
+ * See AsynchronousUsbMouse for an event driven variant that needs no thread.
  */
 public class SynchronousUsbMouse extends AbstractSynchronousUsbDevice {
     private UsbDevice device;
@@ -97,18 +98,16 @@ public class SynchronousUsbMouse extends AbstractSynchronousUsbDevice {
         }
 
         Arrays.fill(dataBuffer, (byte) 0);
-        while (true) {
-            try {
-                device.interrupt_read(0x81, dataBuffer, DEFAULT_RW_TIMEOUT_MS);
-                break;
-            } catch (LibUsbTimeoutException e) {
-                // nop, read again
-            } catch (LibUsbException e) {
-                log.info("read failed:" + e.getClass().getSimpleName() + ":" + e.getMessage());
-                device.close();
-                device = null;
-                return false;
-            }
+        long r;
+        do {
+            // Timeout is the normal idle case, read again
+            r = device.interrupt_transfer(0x81, dataBuffer, DEFAULT_RW_TIMEOUT_MS);
+        } while (TransferResult.isTimeout(r));
+        if (!TransferResult.isSuccess(r)) {
+            log.info("read failed:" + TransferResult.toString(r));
+            device.close();
+            device = null;
+            return false;
         }
 
         // Unpack byte-array from mouse to variables
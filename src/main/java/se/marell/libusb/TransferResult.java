@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import se.marell.libusb.jna.libusb_error;
+
+/**
+ * Helpers for the packed transfer results returned by the non-throwing transfer methods of UsbDevice
+ * (bulk_transfer(), interrupt_transfer() and control_transfer()).
+ *
+ * A result is a long holding a libusb_error code in the high 32 bits, 0 on success, and the number of bytes
+ * transferred in the low 32 bits. The number of bytes is valid also on error, e.g. for a timeout after part of
+ * the data was transferred. Nothing is allocated to produce or inspect a result.
+ */
+public final class TransferResult {
+    private TransferResult() {
+    }
+
+    /**
+     * Pack a result.
+     *
+     * @param error       libusb_error code, 0 for success
+     * @param transferred number of bytes transferred
+     * @return packed result
+     */
+    public static long of(int error, int transferred) {
+        return ((long) error << 32) | (transferred & 0xffffffffL);
+    }
+
+    /**
+     * @param result packed result
+     * @return libusb_error code, 0 on success
+     */
+    public static int getError(long result) {
+        return (int) (result >> 32);
+    }
+
+    /**
+     * @param result packed result
+     * @return number of bytes transferred
+     */
+    public static int getTransferred(long result) {
+        return (int) result;
+    }
+
+    /**
+     * @param result packed result
+     * @return true if the transfer succeeded. It may still have transferred fewer bytes than requested.
+     */
+    public static boolean isSuccess(long result) {
+        return getError(result) == 0;
+    }
+
+    /**
+     * @param result packed result
+     * @return true if the transfer timed out
+     */
+    public static boolean isTimeout(long result) {
+        return getError(result) == libusb_error.ERROR_TIMEOUT;
+    }
+
+    /**
+     * @param result packed result
+     * @param length requested number of bytes
+     * @return true if the transfer succeeded and transferred length bytes
+     */
+    public static boolean isComplete(long result, int length) {
+        return getError(result) == 0 && getTransferred(result) == length;
+    }
+
+    /**
+     * @param result packed result
+     * @return text describing the result
+     */
+    public static String toString(long result) {
+        int error = getError(result);
+        return (error == 0 ? "SUCCESS" : libusb_error.getText(error)) + " transferred=" + getTransferred(result);
+    }
+}
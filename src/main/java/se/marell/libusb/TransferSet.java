@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A set of transfers kept submitted, each with its own native buffer: the lifecycle shared by BulkInStream,
+ * IsoInStream and InterruptSubscription. The set allocates the transfers and submits all of them, cancels them
+ * and waits for the cancellations, and frees them. The owner fills each transfer before it is submitted and
+ * handles its completion, normally by consuming the data and resubmitting it.
+ *
+ * The set is guarded by the lock of its owner: its methods must be called holding that lock, and completions
+ * are handled holding it.
+ */
+abstract class TransferSet {
+    private static final Logger log = LoggerFactory.getLogger(TransferSet.class);
+
+    /**
+     * Time start() waits for the cancellation of the transfers already submitted when a submit fails
+     */
+    static final long START_CANCEL_TIMEOUT_MS = 1000;
+
+    private final Object lock;
+    private Slot[] slots;
+    private int submittedCount;
+    private boolean active;
+
+    /**
+     * A transfer and its buffer
+     */
+    final class Slot implements UsbTransfer.Listener {
+        final UsbTransfer transfer;
+        final Memory memory;
+        final ByteBuffer view;
+
+        /**
+         * For use by the owner, for example to number the submits
+         */
+        long seq;
+
+        Slot(UsbTransfer transfer, Memory memory) {
+            this.transfer = transfer;
+            this.memory = memory;
+            this.view = memory.getByteBuffer(0, memory.size());
+            transfer.setListener(this);
+        }
+
+        @Override
+        public void transferCompleted(UsbTransfer t) {
+            slotCompleted(this);
+        }
+    }
+
+    /**
+     * @param lock the lock of the owner, also used to wait for cancellations
+     */
+    TransferSet(Object lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Fill the transfer of a slot, before each submit.
+     */
+    abstract void fill(Slot slot);
+
+    /**
+     * Handle a transfer that completed while the set is active. Called holding the lock.
+     */
+    abstract void completed(Slot slot);
+
+    /**
+     * Allocate the transfers and submit all of them. If a submit fails, the transfers already submitted are
+     * cancelled and waited for up to START_CANCEL_TIMEOUT_MS before throwing, see stop().
+     *
+     * @param usb        the backend
+     * @param count      number of transfers
+     * @param isoPackets number of isochronous packets of each transfer, 0 for other transfer types
+     * @param bufferSize size in bytes of the buffer of each transfer
+     * @throws IllegalStateException if already started and not stopped
+     */
+    void start(LibUsb usb, int count, int isoPackets, int bufferSize) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        if (slots != null) {
+            throw new IllegalStateException("Already started");
+        }
+        slots = new Slot[count];
+        for (int i = 0; i < count; ++i) {
+            slots[i] = new Slot(new UsbTransfer(usb, isoPackets), new Memory(bufferSize));
+        }
+        active = true;
+        try {
+            for (Slot slot : slots) {
+                submit(slot);
+            }
+        } catch (LibUsbException e) {
+            stop(START_CANCEL_TIMEOUT_MS);
+            throw e;
+        }
+    }
+
+    /**
+     * Fill and submit the transfer of a slot.
+     */
+    void submit(Slot slot) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        fill(slot);
+        slot.transfer.submit();
+        submittedCount++;
+    }
+
+    /**
+     * Stop handling completions and cancel all transfers, without waiting. Used when the owner fails.
+     */
+    void cancel() {
+        active = false;
+        for (Slot slot : slots) {
+            slot.transfer.cancel();
+        }
+        lock.notifyAll();
+    }
+
+    /**
+     * Cancel all transfers and wait for the cancellations to complete, then free the transfers. Event handling
+     * must keep running while waiting.
+     *
+     * @param timeoutMs maximum time to wait in ms
+     * @return true if all transfers completed and were freed, or none were allocated. False on timeout, in which
+     * case the transfers still submitted are not freed and stop() shall be called again.
+     */
+    boolean stop(long timeoutMs) {
+        if (slots == null) {
+            return true;
+        }
+        cancel();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (submittedCount > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                log.warn(submittedCount + " transfers did not complete cancellation");
+                return false;
+            }
+            try {
+                lock.wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        for (Slot slot : slots) {
+            slot.transfer.free();
+        }
+        slots = null;
+        return true;
+    }
+
+    /**
+     * @return true if the transfers are allocated, from start() until stop() has freed them
+     */
+    boolean isStarted() {
+        return slots != null;
+    }
+
+    /**
+     * @return true from start() until cancelled or stopped
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    private void slotCompleted(Slot slot) {
+        synchronized (lock) {
+            submittedCount--;
+            if (!active) {
+                lock.notifyAll();
+                return;
+            }
+            completed(slot);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native buffer leased from a UsbBufferPool. The memory can be given directly to transfers, either as the
+ * Memory or as the direct ByteBuffer view. Call release() when done, after which the buffer must not be used.
+ */
+public class UsbBuffer {
+    private final UsbBufferPool pool;
+    private final Memory memory;
+    private final ByteBuffer byteBuffer;
+    private final int sizeClass;
+    boolean leased;
+    UsbBufferPool.LeakRef leakRef;
+
+    UsbBuffer(UsbBufferPool pool, Memory memory, int sizeClass) {
+        this.pool = pool;
+        this.memory = memory;
+        this.byteBuffer = memory.getByteBuffer(0, memory.size());
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * @return the native memory of the buffer
+     */
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return direct buffer view of the whole memory. It is cleared when the buffer is leased.
+     */
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * @return size of the memory, at least the size asked for when leasing
+     */
+    public int capacity() {
+        return (int) memory.size();
+    }
+
+    /**
+     * Return the buffer to its pool.
+     */
+    public void release() {
+        pool.release(this);
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    @Override
+    public String toString() {
+        return "UsbBuffer {" +
+                " capacity=" + capacity() +
+                " leased=" + leased +
+                "}";
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pool of native transfer buffers in power of two size classes.
+ *
+ * Buffers are leased with lease() and given back with UsbBuffer.release(). Released buffers are kept for reuse,
+ * so once a workload has leased its peak number of buffers of each size no more native memory is allocated.
+ * Requests larger than the largest size class are allocated and freed individually.
+ *
+ * With leak detection enabled every lease records the stack of the caller, and a buffer that is garbage collected
+ * without having been released is logged with that stack and its memory is reclaimed by the pool. Leak detection
+ * costs an allocation per lease and is meant for debugging.
+ *
+ * The pool is thread safe.
+ */
+public class UsbBufferPool {
+    private static final Logger log = LoggerFactory.getLogger(UsbBufferPool.class);
+
+    /**
+     * Smallest size class
+     */
+    public static final int MIN_SIZE = 64;
+
+    private final int maxPooledSize;
+    private final ArrayDeque<UsbBuffer>[] free;
+    private final ReferenceQueue<UsbBuffer> leakQueue = new ReferenceQueue<UsbBuffer>();
+    private final Set<LeakRef> leakRefs = new HashSet<LeakRef>();
+    private volatile boolean leakDetection;
+
+    private long allocatedBytes;
+    private long inUseBytes;
+    private long highWaterBytes;
+    private long allocations;
+    private long leases;
+    private long leaks;
+
+    /**
+     * A leased buffer that is tracked for leaks. Keeps the memory alive so it can be reclaimed.
+     */
+    static class LeakRef extends PhantomReference<UsbBuffer> {
+        final Memory memory;
+        final int sizeClass;
+        final Throwable leasedAt;
+
+        LeakRef(UsbBuffer buffer, ReferenceQueue<UsbBuffer> queue) {
+            super(buffer, queue);
+            this.memory = buffer.getMemory();
+            this.sizeClass = buffer.getSizeClass();
+            this.leasedAt = new Throwable("Leased at");
+        }
+    }
+
+    /**
+     * @param maxPooledSize largest size class, rounded up to a power of two
+     * @param leakDetection true to enable leak detection
+     */
+    public UsbBufferPool(int maxPooledSize, boolean leakDetection) {
+        if (maxPooledSize < MIN_SIZE) {
+            throw new IllegalArgumentException("maxPooledSize=" + maxPooledSize);
+        }
+        int classes = sizeClass(maxPooledSize) + 1;
+        this.maxPooledSize = classSize(classes - 1);
+        this.free = newDequeArray(classes);
+        for (int i = 0; i < classes; ++i) {
+            free[i] = new ArrayDeque<UsbBuffer>();
+        }
+        this.leakDetection = leakDetection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArrayDeque<T>[] newDequeArray(int length) {
+        return (ArrayDeque<T>[]) new ArrayDeque<?>[length];
+    }
+
+    /**
+     * Lease a buffer.
+     *
+     * @param size minimum size of the buffer
+     * @return the buffer, with its ByteBuffer view cleared
+     */
+    public UsbBuffer lease(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size=" + size);
+        }
+        UsbBuffer buffer;
+        synchronized (this) {
+            reclaimLeaks();
+            if (size > maxPooledSize) {
+                buffer = new UsbBuffer(this, new Memory(size), -1);
+                allocations++;
+                allocatedBytes += size;
+            } else {
+                int c = sizeClass(size);
+                buffer = free[c].poll();
+                if (buffer == null) {
+                    buffer = new UsbBuffer(this, new Memory(classSize(c)), c);
+                    allocations++;
+                    allocatedBytes += classSize(c);
+                }
+            }
+            buffer.leased = true;
+            leases++;
+            inUseBytes += buffer.capacity();
+            if (inUseBytes > highWaterBytes) {
+                highWaterBytes = inUseBytes;
+            }
+            if (leakDetection) {
+                buffer.leakRef = new LeakRef(buffer, leakQueue);
+                leakRefs.add(buffer.leakRef);
+            }
+        }
+        buffer.getByteBuffer().clear();
+        return buffer;
+    }
+
+    synchronized void release(UsbBuffer buffer) {
+        if (!buffer.leased) {
+            throw new IllegalStateException("Buffer is not leased");
+        }
+        buffer.leased = false;
+        inUseBytes -= buffer.capacity();
+        if (buffer.leakRef != null) {
+            leakRefs.remove(buffer.leakRef);
+            buffer.leakRef.clear();
+            buffer.leakRef = null;
+        }
+        if (buffer.getSizeClass() < 0) {
+            allocatedBytes -= buffer.capacity();
+        } else {
+            free[buffer.getSizeClass()].push(buffer);
+        }
+        reclaimLeaks();
+    }
+
+    /**
+     * Enable or disable leak detection for buffers leased from now on.
+     *
+     * @param leakDetection true to enable
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @return true if leak detection is enabled
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Drop all free buffers, leaving their memory to be freed by the garbage collector.
+     */
+    public synchronized void trim() {
+        reclaimLeaks();
+        for (ArrayDeque<UsbBuffer> f : free) {
+            for (UsbBuffer b : f) {
+                allocatedBytes -= b.capacity();
+            }
+            f.clear();
+        }
+    }
+
+    /**
+     * @return bytes of native memory owned by the pool, free or leased
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return bytes currently leased
+     */
+    public synchronized long getInUseBytes() {
+        return inUseBytes;
+    }
+
+    /**
+     * @return highest number of bytes leased at the same time
+     */
+    public synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    /**
+     * @return number of native allocations made
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return number of leases made
+     */
+    public synchronized long getLeases() {
+        return leases;
+    }
+
+    /**
+     * @return number of leaked buffers detected
+     */
+    public synchronized long getLeaks() {
+        reclaimLeaks();
+        return leaks;
+    }
+
+    /**
+     * Log and reclaim the memory of leased buffers that have been garbage collected.
+     */
+    private void reclaimLeaks() {
+        LeakRef ref;
+        while ((ref = (LeakRef) leakQueue.poll()) != null) {
+            if (!leakRefs.remove(ref)) {
+                continue;
+            }
+            leaks++;
+            inUseBytes -= ref.memory.size();
+            log.error("UsbBuffer of " + ref.memory.size() + " bytes was not released", ref.leasedAt);
+            if (ref.sizeClass < 0) {
+                allocatedBytes -= ref.memory.size();
+            } else {
+                free[ref.sizeClass].push(new UsbBuffer(this, ref.memory, ref.sizeClass));
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int c = 0;
+        while (classSize(c) < size) {
+            c++;
+        }
+        return c;
+    }
+
+    private static int classSize(int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbBufferPool {" +
+                " allocatedBytes=" + allocatedBytes +
+                " inUseBytes=" + inUseBytes +
+                " highWaterBytes=" + highWaterBytes +
+                " allocations=" + allocations +
+                " leases=" + leases +
+                " leaks=" + leaks +
+                "}";
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable USB configuration descriptor with its interfaces, see UsbDevice.get_config_descriptor().
+ */
+public final class UsbConfigDescriptor {
+    private final short wTotalLength;
+    private final byte bConfigurationValue;
+    private final byte iConfiguration;
+    private final byte bmAttributes;
+    private final byte maxPower;
+    private final List<UsbInterface> interfaces;
+    private final byte[] extra;
+    private final int hash;
+
+    UsbConfigDescriptor(short wTotalLength, byte bConfigurationValue, byte iConfiguration, byte bmAttributes,
+                        byte maxPower, UsbInterface[] interfaces, byte[] extra) {
+        this.wTotalLength = wTotalLength;
+        this.bConfigurationValue = bConfigurationValue;
+        this.iConfiguration = iConfiguration;
+        this.bmAttributes = bmAttributes;
+        this.maxPower = maxPower;
+        this.interfaces = Collections.unmodifiableList(Arrays.asList(interfaces));
+        this.extra = extra;
+        int h = (wTotalLength & 0xffff) << 16 | (bConfigurationValue & 0xff) << 8 | (iConfiguration & 0xff);
+        h = 31 * h + ((bmAttributes & 0xff) << 8 | (maxPower & 0xff));
+        h = 31 * h + Arrays.hashCode(interfaces);
+        hash = 31 * h + Arrays.hashCode(extra);
+    }
+
+    /**
+     * @return Total length of data returned for this configuration.
+     */
+    public short getWTotalLength() {
+        return wTotalLength;
+    }
+
+    /**
+     * @return Number of interfaces supported by this configuration.
+     */
+    public int getBNumInterfaces() {
+        return interfaces.size();
+    }
+
+    /**
+     * @return Identifier value for this configuration, see UsbDevice.set_configuration().
+     */
+    public byte getBConfigurationValue() {
+        return bConfigurationValue;
+    }
+
+    /**
+     * @return Index of string descriptor describing this configuration.
+     */
+    public byte getIConfiguration() {
+        return iConfiguration;
+    }
+
+    /**
+     * @return Configuration characteristics. Bit 6 is set for self-powered and bit 5 for remote wakeup.
+     */
+    public byte getBmAttributes() {
+        return bmAttributes;
+    }
+
+    /**
+     * @return Maximum power consumption of the USB device from this bus in this configuration when the device is
+     * fully operational, in units of 2 mA (8 mA for SuperSpeed devices).
+     */
+    public byte getMaxPower() {
+        return maxPower;
+    }
+
+    /**
+     * @return The interfaces of this configuration
+     */
+    public List<UsbInterface> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     * Get an interface by number.
+     *
+     * @param interfaceNumber bInterfaceNumber of the interface
+     * @return the interface, or null if this configuration has no such interface
+     */
+    public UsbInterface getInterface(int interfaceNumber) {
+        for (UsbInterface i : interfaces) {
+            if (i.getInterfaceNumber() == interfaceNumber) {
+                return i;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Extra descriptors following the configuration descriptor, empty if there are none
+     */
+    public byte[] getExtra() {
+        return extra.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsbConfigDescriptor)) {
+            return false;
+        }
+        UsbConfigDescriptor d = (UsbConfigDescriptor) o;
+        return hash == d.hash &&
+                wTotalLength == d.wTotalLength && bConfigurationValue == d.bConfigurationValue &&
+                iConfiguration == d.iConfiguration && bmAttributes == d.bmAttributes && maxPower == d.maxPower &&
+                interfaces.equals(d.interfaces) && Arrays.equals(extra, d.extra);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UsbConfigDescriptor{bConfigurationValue=%d, bmAttributes=%02x, MaxPower=%d, interfaces=%s}",
+                bConfigurationValue & 0xff, bmAttributes & 0xff, maxPower & 0xff, interfaces);
+    }
+}
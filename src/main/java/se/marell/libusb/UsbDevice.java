@@ -23,28 +23,136 @@
  */
 package se.marell.libusb;
 
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import se.marell.libusb.jna.DescriptorLayout;
 import se.marell.libusb.jna.LibUsb;
-import se.marell.libusb.jna.libusb_device_descriptor;
+import se.marell.libusb.jna.libusb_descriptor_type;
 import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_request_type;
+import se.marell.libusb.jna.libusb_standard_request;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.libusb_transfer_type;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Represents an USB device. libusb-operations operating on a specific USB device is collected here.
- * When you receive an USB device, it is opened. It is your responsibility to close it when you are done
- * with it. You may re-open a closed device.
+ * Open the device before doing I/O and close it when you are done with it, for example with try-with-resources.
+ * Opens are counted by the UsbHandleManager of the backend: each open() needs a close(), and opening a device
+ * that is already open reuses its handle.
+ * 
+ * The methods are thread safe. Synchronous transfers on the same endpoint are serialized while transfers on
+ * different endpoints run in parallel, and open(), close() and reset_device() wait for the calls in progress on
+ * the object to return. Asynchronous transfers are only guarded while being submitted; cancel them before
+ * closing the device.
  */
-public class UsbDevice {
-    private Pointer usb_device;
-    private Pointer dev_handle;
-    private LibUsb usb;
-    private libusb_device_descriptor descriptor;
+public class UsbDevice implements AutoCloseable {
+    /**
+     * Maximum hub depth, see libusb_get_port_numbers()
+     */
+    private static final int MAX_PORT_DEPTH = 7;
+
+    /**
+     * Timeout of string descriptor requests, as used by libusb_get_string_descriptor_ascii()
+     */
+    private static final int STRING_DESCRIPTOR_TIMEOUT_MS = 1000;
+
+    /**
+     * Language ID part of the string cache key for strings read with get_string_ascii()
+     */
+    private static final int STRING_ASCII = 0x10000;
+
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final Pointer context;
+    private final Pointer usb_device;
+    private volatile Pointer dev_handle;
+
+    /**
+     * Held shared by calls using dev_handle, and exclusively by open(), close() and reset_device() so that they
+     * wait for those calls to return. Not reentrant; unlike ReentrantReadWriteLock it does not allocate per-thread
+     * hold counts when several threads hold it shared.
+     */
+    private final StampedLock handleLock = new StampedLock();
 
+    /**
+     * Locks serializing synchronous transfers per endpoint, created on first use. Index 0 is the control
+     * endpoint, 1..15 OUT and 17..31 IN endpoints.
+     */
+    private final AtomicReferenceArray<ReentrantLock> endpointLocks = new AtomicReferenceArray<ReentrantLock>(32);
+    private final LibUsb usb;
+    private final UsbHandleManager handles;
+
+    /**
+     * Opens and references held by this object, guarded by handles
+     */
+    UsbHandleManager.Lease lease;
+    private volatile UsbDeviceDescriptor descriptor;
+    private volatile String portPath;
+
+    /**
+     * Strings read from the device, by language ID << 8 | index
+     */
+    private final Map<Integer, String> strings = new ConcurrentHashMap<Integer, String>();
+    private volatile int[] languageIds;
+
+    /**
+     * Create a device of the default context.
+     */
     public UsbDevice(LibUsb usb, Pointer usb_device) throws LibUsbNoDeviceException,
             LibUsbPermissionException,
             LibUsbOtherException {
+        this(usb, null, usb_device);
+    }
+
+    /**
+     * Create a device of a context. The opens and references still held through it when the context is exited
+     * are released by LibUsbSystem.cleanup().
+     */
+    UsbDevice(LibUsb usb, Pointer context, Pointer usb_device) throws LibUsbNoDeviceException,
+            LibUsbPermissionException,
+            LibUsbOtherException {
+        this(usb, context, usb_device, null);
+        descriptor = get_descriptor();
+    }
+
+    private UsbDevice(LibUsb usb, Pointer context, Pointer usb_device, UsbDeviceDescriptor descriptor) {
         this.usb = usb;
+        this.context = context;
         this.usb_device = usb_device;
-        descriptor = get_descriptor();
+        this.handles = UsbHandleManager.get(usb);
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * Create a device whose descriptor is read on first use, see UsbDeviceIterator.
+     */
+    static UsbDevice lazy(LibUsb usb, Pointer context, Pointer usb_device) {
+        return new UsbDevice(usb, context, usb_device, null);
+    }
+
+    /**
+     * @return the context of the device, null for the default context
+     */
+    Pointer getContext() {
+        return context;
     }
 
     /**
@@ -56,6 +164,32 @@ public class UsbDevice {
         return usb_device;
     }
 
+    /**
+     * Devices are equal if they refer to the same libusb_device of the same backend, whichever UsbDevice object
+     * wraps it. A libusb_device stays the same while the device is connected and referenced.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsbDevice)) {
+            return false;
+        }
+        UsbDevice d = (UsbDevice) o;
+        return usb == d.usb && usb_device != null && d.usb_device != null &&
+                Pointer.nativeValue(usb_device) == Pointer.nativeValue(d.usb_device);
+    }
+
+    @Override
+    public int hashCode() {
+        if (usb_device == null) {
+            return 0;
+        }
+        long peer = Pointer.nativeValue(usb_device);
+        return (int) (peer ^ (peer >>> 32));
+    }
+
     /**
      * Get usb_handle pointer.
      *
@@ -65,6 +199,13 @@ public class UsbDevice {
         return dev_handle;
     }
 
+    /**
+     * @return native library object used by this device
+     */
+    LibUsb getLibUsb() {
+        return usb;
+    }
+
     /**
      * Get the number of the bus that a device is connected to.
      *
@@ -83,6 +224,55 @@ public class UsbDevice {
         return usb.libusb_get_device_address(usb_device);
     }
 
+    /**
+     * Get the list of all port numbers from root for the device. Requires libusb 1.0.16.
+     *
+     * @return the port numbers, empty for a root hub
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public int[] get_port_numbers() throws LibUsbOtherException {
+        byte[] ports = new byte[MAX_PORT_DEPTH];
+        int rc = usb.libusb_get_port_numbers(usb_device, ports, ports.length);
+        if (rc < 0) {
+            throw new LibUsbOtherException(rc);
+        }
+        int[] result = new int[rc];
+        for (int i = 0; i < rc; ++i) {
+            result[i] = ports[i] & 0xff;
+        }
+        return result;
+    }
+
+    /**
+     * Get the location of the device as bus number and port numbers, for example "1-2.4" for port 4 of the hub
+     * at port 2 of bus 1, or "1" for the root hub. Unlike the address, the location stays the same when the
+     * device is reconnected to the same port.
+     * 
+     * If the port numbers cannot be read (libusb older than 1.0.16), the address is used instead: "1@5".
+     *
+     * @return the port path
+     */
+    public String getPortPath() {
+        String path = portPath;
+        if (path == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(get_bus_number());
+            try {
+                int[] ports = get_port_numbers();
+                for (int i = 0; i < ports.length; ++i) {
+                    sb.append(i == 0 ? '-' : '.').append(ports[i]);
+                }
+            } catch (LibUsbOtherException e) {
+                sb.append('@').append(get_address());
+            } catch (UnsatisfiedLinkError e) {
+                sb.append('@').append(get_address());
+            }
+            path = sb.toString();
+            portPath = path;
+        }
+        return path;
+    }
+
     /**
      * Calculate the maximum packet size which a specific endpoint is capable is sending or receiving in the
      * duration of 1 microframe.
@@ -120,10 +310,11 @@ public class UsbDevice {
     }
 
     /**
-     * Increment the reference count of a device.
+     * Increment the reference count of a device. The reference is counted as held by this object, and released
+     * when it is garbage collected if not by unref_device().
      */
     public void ref_device() {
-        usb.libusb_ref_device(usb_device);
+        handles.ref(this);
     }
 
     /**
@@ -131,7 +322,14 @@ public class UsbDevice {
      * to reach zero, the device shall be destroyed.
      */
     public void unref_device() {
-        usb.libusb_unref_device(usb_device);
+        handles.unref(this);
+    }
+
+    /**
+     * Count a reference already taken, by libusb_get_device_list(), as held by this object.
+     */
+    void adopt_reference() {
+        handles.adopt(this);
     }
 
     /**
@@ -142,6 +340,9 @@ public class UsbDevice {
      * Internally, this function adds a reference to the device and makes it available to you through
      * libusb_get_device(). This reference is removed during libusb_close().
      * 
+     * If the device is already open, through this or another UsbDevice object, its handle is reused and
+     * libusb_open() is not called. Each open() is undone by one close().
+     * 
      * This is a non-blocking function; no requests are sent over the bus.
      *
      * @throws LibUsbNoDeviceException   if the device has been disconnected
@@ -151,9 +352,17 @@ public class UsbDevice {
     public void open() throws LibUsbNoDeviceException,
             LibUsbPermissionException,
             LibUsbOtherException {
-        close(); // Make sure it's closed if we're reopening a device
         Pointer[] arr = new Pointer[1];
-        int rc = usb.libusb_open(usb_device, arr);
+        int rc;
+        long stamp = handleLock.writeLock();
+        try {
+            rc = handles.open(this, arr);
+            if (rc == 0) {
+                dev_handle = arr[0];
+            }
+        } finally {
+            handleLock.unlockWrite(stamp);
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_ACCESS:
@@ -164,23 +373,69 @@ public class UsbDevice {
                     throw new LibUsbOtherException(rc);
             }
         }
-        dev_handle = arr[0];
     }
 
     /**
-     * Close a device handle.
+     * Undo one open(), closing the device handle when no opens remain. Does nothing if the device is not open.
      * 
      * Should be called on all open handles before your application exits.
      * 
-     * Internally, this function destroys the reference that was added by open().
+     * Internally, closing the handle destroys the reference that was added by open().
      * 
-     * This is a non-blocking function; no requests are sent over the bus.
+     * Waits for calls in progress on this object to return; no requests are sent over the bus.
      */
+    @Override
     public void close() {
-        if (dev_handle != null) {
-            usb.libusb_close(dev_handle);
-            dev_handle = null;
+        long stamp = handleLock.writeLock();
+        try {
+            if (handles.close(this) == 0) {
+                dev_handle = null;
+            }
+        } finally {
+            handleLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Take the handle lock shared, so that open(), close() and reset_device() wait for the caller.
+     *
+     * @return the device handle, null if not open
+     */
+    private Pointer lockShared() {
+        handleLock.asReadLock().lock();
+        return dev_handle;
+    }
+
+    private void unlockShared() {
+        handleLock.asReadLock().unlock();
+    }
+
+    /**
+     * Take the handle lock shared and the lock of an endpoint. Transfers on the same endpoint are serialized,
+     * transfers on different endpoints run in parallel.
+     *
+     * @param endpoint endpoint address, 0 for the control endpoint in both directions
+     * @return the device handle, null if not open
+     */
+    private Pointer lockEndpoint(int endpoint) {
+        Pointer handle = lockShared();
+        endpointLock(endpoint).lock();
+        return handle;
+    }
+
+    private void unlockEndpoint(int endpoint) {
+        endpointLock(endpoint).unlock();
+        unlockShared();
+    }
+
+    private ReentrantLock endpointLock(int endpoint) {
+        int i = (endpoint & 0x0f) == 0 ? 0 : (endpoint & 0x0f) | (endpoint & 0x80) >> 3;
+        ReentrantLock lock = endpointLocks.get(i);
+        if (lock == null) {
+            endpointLocks.compareAndSet(i, null, new ReentrantLock());
+            lock = endpointLocks.get(i);
         }
+        return lock;
     }
 
     /**
@@ -188,101 +443,129 @@ public class UsbDevice {
      * A value of 0x0200 indicates USB 2.0, 0x0110 indicates USB 1.1, etc.
      */
     public short getBcdUSB() {
-        return descriptor.bcdDevice;
+        return getDeviceDescriptor().getBcdUSB();
     }
 
     /**
      * @return USB-IF class code for the device.
      */
     public byte getBDeviceClass() {
-        return descriptor.bDeviceClass;
+        return getDeviceDescriptor().getBDeviceClass();
     }
 
     /**
      * @return USB-IF subclass code for the device, qualified by the bDeviceClass value.
      */
     public byte getBDeviceSubClass() {
-        return descriptor.bDeviceSubClass;
+        return getDeviceDescriptor().getBDeviceSubClass();
     }
 
     /**
      * @return USB-IF protocol code for the device, qualified by the bDeviceClass and bDeviceSubClass values.
      */
     public byte getBDeviceProtocol() {
-        return descriptor.bDeviceProtocol;
+        return getDeviceDescriptor().getBDeviceProtocol();
     }
 
     /**
      * @return Maximum packet size for endpoint 0.
      */
     public byte getBMaxPacketSize0() {
-        return descriptor.bMaxPacketSize0;
+        return getDeviceDescriptor().getBMaxPacketSize0();
     }
 
     /**
      * @return USB-IF vendor ID.
      */
     public short getIdVendor() {
-        return descriptor.idVendor;
+        return getDeviceDescriptor().getIdVendor();
     }
 
     /**
      * @return USB-IF product ID.
      */
     public short getIdProduct() {
-        return descriptor.idProduct;
+        return getDeviceDescriptor().getIdProduct();
     }
 
     /**
      * @return Device release number in binary-coded decimal.
      */
     public short getBcdDevice() {
-        return descriptor.bcdDevice;
+        return getDeviceDescriptor().getBcdDevice();
     }
 
     /**
-     * @return String describing manufacturer.
+     * @return String describing manufacturer, or "" if there is none or it could not be read. Cached, see
+     * getString().
      */
     public String getManufacturer() {
-        return get_string_ascii(descriptor.iManufacturer);
+        return nonNull(getString(getDeviceDescriptor().getIManufacturer()));
     }
 
     /**
-     * @return String describing product.
+     * @return String describing product, or "" if there is none or it could not be read. Cached, see
+     * getString().
      */
     public String getProduct() {
-        return get_string_ascii(descriptor.iProduct);
+        return nonNull(getString(getDeviceDescriptor().getIProduct()));
     }
 
     /**
-     * @return String containing device serial number.
+     * @return String containing device serial number, or "" if there is none or it could not be read.
+     * Cached, see getString().
      */
     public String getSerialNumber() {
-        return get_string_ascii(descriptor.iSerialNumber);
+        return nonNull(getString(getDeviceDescriptor().getISerialNumber()));
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
     }
 
     /**
      * @return Number of possible configurations.
      */
     public byte getBNumConfigurations() {
-        return descriptor.bNumConfigurations;
+        return getDeviceDescriptor().getBNumConfigurations();
+    }
+
+    /**
+     * Get the device descriptor, read when this object was created or, for devices from a UsbDeviceIterator,
+     * on first use.
+     *
+     * @return the descriptor
+     * @throws IllegalStateException if the descriptor was not read on creation and cannot be read now
+     */
+    public UsbDeviceDescriptor getDeviceDescriptor() {
+        UsbDeviceDescriptor d = descriptor;
+        if (d == null) {
+            try {
+                d = get_descriptor();
+            } catch (LibUsbException e) {
+                throw new IllegalStateException("Device descriptor could not be read:" + e.getMessage());
+            }
+            descriptor = d;
+        }
+        return d;
     }
 
     /**
      * Get the USB device descriptor for a given device.
      * 
-     * This is a non-blocking function; the device descriptor is cached in memory.
+     * This is a non-blocking function; the device descriptor is cached in memory. It is read at its fixed
+     * offsets, see DescriptorLayout.
      *
      * @return the descriptor
      * @throws LibUsbNoDeviceException   if the device has been disconnected
      * @throws LibUsbPermissionException if the user has insufficient permissions
      * @throws LibUsbOtherException      if another USB error occurred
      */
-    private libusb_device_descriptor get_descriptor() throws LibUsbNoDeviceException,
+    private UsbDeviceDescriptor get_descriptor() throws LibUsbNoDeviceException,
             LibUsbPermissionException,
             LibUsbOtherException {
-        libusb_device_descriptor[] arr = new libusb_device_descriptor[1];
-        int rc = usb.libusb_get_device_descriptor(usb_device, arr);
+        Memory m = scratch.get().descriptor;
+        int rc = usb.libusb_get_device_descriptor(usb_device, m);
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_ACCESS:
@@ -293,27 +576,235 @@ public class UsbDevice {
                     throw new LibUsbOtherException(rc);
             }
         }
-        return arr[0];
+        return DescriptorReader.readDeviceDescriptor(m);
+    }
+
+    /**
+     * Get a configuration descriptor with its interfaces, alternate settings and endpoints. No request is sent
+     * to the device.
+     *
+     * @param config_index the index of the configuration, 0..getBNumConfigurations()-1
+     * @return the descriptor
+     * @throws LibUsbNotFoundException if the configuration does not exist
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public UsbConfigDescriptor get_config_descriptor(int config_index) throws LibUsbNotFoundException,
+            LibUsbOtherException {
+        Pointer[] arr = new Pointer[1];
+        return readConfigDescriptor(usb.libusb_get_config_descriptor(usb_device, (byte) config_index, arr), arr[0]);
+    }
+
+    /**
+     * Get the descriptor of the active configuration. No request is sent to the device.
+     *
+     * @return the descriptor
+     * @throws LibUsbNotFoundException if the device is in unconfigured state
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public UsbConfigDescriptor get_active_config_descriptor() throws LibUsbNotFoundException,
+            LibUsbOtherException {
+        Pointer[] arr = new Pointer[1];
+        return readConfigDescriptor(usb.libusb_get_active_config_descriptor(usb_device, arr), arr[0]);
+    }
+
+    private UsbConfigDescriptor readConfigDescriptor(int rc, Pointer config) throws LibUsbNotFoundException,
+            LibUsbOtherException {
+        if (rc < 0) {
+            switch (rc) {
+                case libusb_error.ERROR_NOT_FOUND:
+                    throw new LibUsbNotFoundException();
+                default:
+                    throw new LibUsbOtherException(rc);
+            }
+        }
+        try {
+            return DescriptorReader.readConfigDescriptor(config);
+        } finally {
+            usb.libusb_free_config_descriptor(config);
+        }
     }
 
     /**
      * Retrieve a string descriptor in C style ASCII.
      * 
-     * Wrapper around libusb_get_string_descriptor(). Uses the first language supported by the device.
+     * Wrapper around libusb_get_string_descriptor_ascii(). Uses the first language supported by the device.
+     * Strings that have been read are cached, see get_string_descriptor(). If the device is not open, it is
+     * opened for the duration of the request.
      *
      * @param desc_index the index of the descriptor to retrieve
-     * @return Text string or null
+     * @return Text string, empty if it could not be read
      */
     public String get_string_ascii(byte desc_index) {
-        byte[] data = new byte[256];
-        usb.libusb_get_string_descriptor_ascii(dev_handle, desc_index, data, data.length);
+        Integer key = STRING_ASCII << 8 | (desc_index & 0xff);
+        String s = strings.get(key);
+        if (s != null) {
+            return s;
+        }
+        byte[] data = scratch.get().string;
+        data[0] = 0;
+        int rc;
+        Pointer handle = lockEndpoint(0);
+        try {
+            boolean temporary = handle == null;
+            if (temporary && (handle = openTemporary()) == null) {
+                return "";
+            }
+            try {
+                rc = usb.libusb_get_string_descriptor_ascii(handle, desc_index, data, data.length);
+            } finally {
+                if (temporary) {
+                    handles.close(this);
+                }
+            }
+        } finally {
+            unlockEndpoint(0);
+        }
+        if (rc < 0) {
+            return "";
+        }
 
         // Convert C string to Java String
         int len = 0;
         while (data[len] != 0) {
             ++len;
         }
-        return new String(data, 0, len);
+        s = new String(data, 0, len);
+        strings.put(key, s);
+        return s;
+    }
+
+    /**
+     * Retrieve a string descriptor in the first language supported by the device, see get_string_descriptor().
+     *
+     * @param desc_index the index of the descriptor to retrieve
+     * @return the string, or null if desc_index is 0 or the string could not be read
+     */
+    public String getString(int desc_index) {
+        if ((desc_index & 0xff) == 0) {
+            return null;
+        }
+        try {
+            int[] languages = get_language_ids();
+            return languages.length == 0 ? null : get_string_descriptor(desc_index, languages[0]);
+        } catch (LibUsbException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve a string descriptor in UTF-16 with a GET_DESCRIPTOR request.
+     * 
+     * Each string is requested from the device once; later calls are served from a cache kept by this object.
+     * If the device is not open, it is opened for the duration of the request.
+     *
+     * @param desc_index the index of the descriptor to retrieve, 1..255
+     * @param langid     the language ID, see get_language_ids()
+     * @return the string
+     * @throws LibUsbTimeoutException  if the request timed out
+     * @throws LibUsbPipeException     if the device has no such string
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public String get_string_descriptor(int desc_index, int langid) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        Integer key = (langid & 0xffff) << 8 | (desc_index & 0xff);
+        String s = strings.get(key);
+        if (s == null) {
+            byte[] data = scratch.get().string;
+            int n = get_string_descriptor(desc_index, langid, data);
+            s = new String(data, 2, n - 2, UTF_16LE);
+            strings.put(key, s);
+        }
+        return s;
+    }
+
+    /**
+     * Get the language IDs supported by the string descriptors of the device, from string descriptor 0. The
+     * IDs are cached after the first request.
+     *
+     * @return the language IDs, for example 0x0409 for English (United States), empty if the device has no
+     * string descriptors
+     * @throws LibUsbTimeoutException  if the request timed out
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int[] get_language_ids() throws LibUsbTimeoutException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        int[] ids = languageIds;
+        if (ids == null) {
+            byte[] data = scratch.get().string;
+            int n;
+            try {
+                n = get_string_descriptor(0, 0, data);
+            } catch (LibUsbPipeException e) {
+                n = 2;
+            }
+            ids = new int[(n - 2) / 2];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = (data[2 + 2 * i] & 0xff) | (data[3 + 2 * i] & 0xff) << 8;
+            }
+            languageIds = ids;
+        }
+        return ids.clone();
+    }
+
+    /**
+     * Request a string descriptor into data.
+     *
+     * @return length of the descriptor in data, at least 2
+     */
+    private int get_string_descriptor(int desc_index, int langid, byte[] data) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        int rc;
+        Pointer handle = lockEndpoint(0);
+        try {
+            boolean temporary = handle == null;
+            if (temporary) {
+                Pointer[] arr = new Pointer[1];
+                rc = handles.open(this, arr);
+                if (rc < 0) {
+                    switch (rc) {
+                        case libusb_error.ERROR_NO_DEVICE:
+                            throw new LibUsbNoDeviceException();
+                        default:
+                            throw new LibUsbOtherException(rc);
+                    }
+                }
+                handle = arr[0];
+            }
+            try {
+                rc = usb.libusb_control_transfer(handle, (byte) (0x80 | libusb_request_type.REQUEST_TYPE_STANDARD),
+                        (byte) libusb_standard_request.REQUEST_GET_DESCRIPTOR,
+                        (short) (libusb_descriptor_type.DT_STRING << 8 | (desc_index & 0xff)), (short) langid,
+                        data, (short) (data.length - 1), STRING_DESCRIPTOR_TIMEOUT_MS);
+            } finally {
+                if (temporary) {
+                    handles.close(this);
+                }
+            }
+        } finally {
+            unlockEndpoint(0);
+        }
+        checkControl(TransferResult.of(Math.min(rc, 0), Math.max(rc, 0)));
+        int n = rc < 2 ? 0 : Math.min(rc, data[0] & 0xff) & ~1;
+        if (n < 2 || data[1] != libusb_descriptor_type.DT_STRING) {
+            throw new LibUsbOtherException(libusb_error.ERROR_IO);
+        }
+        return n;
+    }
+
+    /**
+     * @return a handle opened for a single request and closed with handles.close(), or null if the device could not
+     * be opened
+     */
+    private Pointer openTemporary() {
+        Pointer[] arr = new Pointer[1];
+        return handles.open(this, arr) < 0 ? null : arr[0];
     }
 
     /**
@@ -336,7 +827,13 @@ public class UsbDevice {
             LibUsbPermissionException,
             LibUsbOtherException {
         int[] arr = new int[1];
-        int rc = usb.libusb_get_configuration(dev_handle, arr);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_get_configuration(handle, arr);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_ACCESS:
@@ -385,7 +882,13 @@ public class UsbDevice {
             LibUsbBusyException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_set_configuration(dev_handle, configuration);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_set_configuration(handle, configuration);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -424,7 +927,13 @@ public class UsbDevice {
             LibUsbBusyException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_claim_interface(dev_handle, interface_number);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_claim_interface(handle, interface_number);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -457,7 +966,13 @@ public class UsbDevice {
             LibUsbBusyException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_release_interface(dev_handle, interface_number);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_release_interface(handle, interface_number);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -492,7 +1007,13 @@ public class UsbDevice {
     public void set_interface_alt_setting(int interface_number, int alternate_setting) throws LibUsbNotFoundException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_set_interface_alt_setting(dev_handle, interface_number, alternate_setting);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_set_interface_alt_setting(handle, interface_number, alternate_setting);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -522,7 +1043,13 @@ public class UsbDevice {
     public void clear_halt(byte endpoint) throws LibUsbNotFoundException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_clear_halt(dev_handle, endpoint);
+        int rc;
+        Pointer handle = lockEndpoint(endpoint);
+        try {
+            rc = usb.libusb_clear_halt(handle, endpoint);
+        } finally {
+            unlockEndpoint(endpoint);
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -546,14 +1073,21 @@ public class UsbDevice {
      * handle is no longer valid (you should close it) and rediscover the device. A return
      * code of LIBUSB_ERROR_NOT_FOUND indicates when this is the case.
      * 
-     * This is a blocking function which usually incurs a noticeable delay.
+     * This is a blocking function which usually incurs a noticeable delay. It waits for calls in progress on this
+     * object to return first.
      *
      * @throws LibUsbNotFoundException if re-enumeration is required, or if the device has been disconnected
      * @throws LibUsbOtherException    if another USB error occurred
      */
     public void reset_device() throws LibUsbNotFoundException,
             LibUsbOtherException {
-        int rc = usb.libusb_reset_device(dev_handle);
+        int rc;
+        long stamp = handleLock.writeLock();
+        try {
+            rc = usb.libusb_reset_device(dev_handle);
+        } finally {
+            handleLock.unlockWrite(stamp);
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NOT_FOUND:
@@ -576,7 +1110,13 @@ public class UsbDevice {
      */
     public boolean kernel_driver_active(int interface_number) throws LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_kernel_driver_active(dev_handle, interface_number);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_kernel_driver_active(handle, interface_number);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_NO_DEVICE:
@@ -603,7 +1143,13 @@ public class UsbDevice {
             LibUsbNotFoundException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_detach_kernel_driver(dev_handle, interface_number);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_detach_kernel_driver(handle, interface_number);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_INVALID_PARAM:
@@ -634,7 +1180,13 @@ public class UsbDevice {
             LibUsbBusyException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_attach_kernel_driver(dev_handle, interface_number);
+        int rc;
+        Pointer handle = lockShared();
+        try {
+            rc = usb.libusb_attach_kernel_driver(handle, interface_number);
+        } finally {
+            unlockShared();
+        }
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_INVALID_PARAM:
@@ -678,22 +1230,11 @@ public class UsbDevice {
             LibUsbNoDeviceException,
             LibUsbTransmissionException,
             LibUsbOtherException {
-        int rc = usb.libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
-        if (rc < 0) {
-            switch (rc) {
-                case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException();
-                case libusb_error.ERROR_PIPE:
-                    throw new LibUsbPipeException();
-                case libusb_error.ERROR_NO_DEVICE:
-                    throw new LibUsbNoDeviceException();
-                default:
-                    throw new LibUsbOtherException(rc);
-            }
-        } else {
-            if (rc != data.length) {
-                throw new LibUsbTransmissionException("Transferred " + rc + " bytes of " + data.length);
-            }
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+        checkControl(r);
+        int n = TransferResult.getTransferred(r);
+        if (n != data.length) {
+            throw new LibUsbTransmissionException("Transferred " + n + " bytes of " + data.length);
         }
     }
 
@@ -723,20 +1264,9 @@ public class UsbDevice {
             LibUsbPipeException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int rc = usb.libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, data, (short) data.length, timeout);
-        if (rc < 0) {
-            switch (rc) {
-                case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException();
-                case libusb_error.ERROR_PIPE:
-                    throw new LibUsbPipeException();
-                case libusb_error.ERROR_NO_DEVICE:
-                    throw new LibUsbNoDeviceException();
-                default:
-                    throw new LibUsbOtherException(rc);
-            }
-        }
-        return rc;
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, (short) data.length, timeout);
+        checkControl(r);
+        return TransferResult.getTransferred(r);
     }
 
     /**
@@ -764,23 +1294,7 @@ public class UsbDevice {
             LibUsbNoDeviceException,
             LibUsbTransmissionException,
             LibUsbOtherException {
-        int[] transferred = new int[1];
-        int rc = usb.libusb_bulk_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, timeout);
-        if (transferred[0] != data.length) {
-            throw new LibUsbTransmissionException("Transferred " + transferred[0] + " bytes of " + data.length);
-        }
-        if (rc < 0) {
-            switch (rc) {
-                case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException(transferred[0]);
-                case libusb_error.ERROR_PIPE:
-                    throw new LibUsbPipeException();
-                case libusb_error.ERROR_NO_DEVICE:
-                    throw new LibUsbNoDeviceException();
-                default:
-                    throw new LibUsbOtherException(rc);
-            }
-        }
+        checkWrite(bulk_transfer(endpoint, data, timeout), data.length);
     }
 
     /**
@@ -808,23 +1322,9 @@ public class UsbDevice {
             LibUsbOverflowException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int[] transferred = new int[1];
-        int rc = usb.libusb_bulk_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, timeout);
-        if (rc < 0) {
-            switch (rc) {
-                case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException(transferred[0]);
-                case libusb_error.ERROR_PIPE:
-                    throw new LibUsbPipeException();
-                case libusb_error.ERROR_OVERFLOW:
-                    throw new LibUsbOverflowException();
-                case libusb_error.ERROR_NO_DEVICE:
-                    throw new LibUsbNoDeviceException();
-                default:
-                    throw new LibUsbOtherException(rc);
-            }
-        }
-        return transferred[0];
+        long r = bulk_transfer(endpoint, data, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
     }
 
     /**
@@ -856,23 +1356,7 @@ public class UsbDevice {
             LibUsbNoDeviceException,
             LibUsbTransmissionException,
             LibUsbOtherException {
-        int[] transferred = new int[1];
-        int rc = usb.libusb_interrupt_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, timeout);
-        if (transferred[0] != data.length) {
-            throw new LibUsbTransmissionException("Transferred " + transferred[0] + " bytes of " + data.length);
-        }
-        if (rc < 0) {
-            switch (rc) {
-                case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException();
-                case libusb_error.ERROR_PIPE:
-                    throw new LibUsbPipeException();
-                case libusb_error.ERROR_NO_DEVICE:
-                    throw new LibUsbNoDeviceException();
-                default:
-                    throw new LibUsbOtherException(rc);
-            }
-        }
+        checkWrite(interrupt_transfer(endpoint, data, timeout), data.length);
     }
 
     /**
@@ -906,12 +1390,559 @@ public class UsbDevice {
             LibUsbOverflowException,
             LibUsbNoDeviceException,
             LibUsbOtherException {
-        int[] transferred = new int[1];
-        int rc = usb.libusb_interrupt_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, timeout);
+        long r = interrupt_transfer(endpoint, data, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB control write from native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See control_write() with byte array.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          native data buffer to send
+     * @param wLength       the length field for the setup packet and number of bytes to send
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the control request was not supported by the device
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     */
+    public void control_write(byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data,
+                              short wLength, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+        checkControl(r);
+        int n = TransferResult.getTransferred(r);
+        if (n != (wLength & 0xffff)) {
+            throw new LibUsbTransmissionException("Transferred " + n + " bytes of " + (wLength & 0xffff));
+        }
+    }
+
+    /**
+     * Perform a USB control write from a direct ByteBuffer. The bytes between position and limit are sent
+     * without copying and wLength is set to their number. The position is advanced past the sent bytes.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          direct buffer with data to send
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the control request was not supported by the device
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     * @throws IllegalArgumentException    if more than 65535 bytes remain in the buffer
+     */
+    public void control_write(byte bmRequestType, byte bRequest, short wValue, short wIndex, ByteBuffer data,
+                              int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        int length = data.remaining();
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, timeout);
+        checkControl(r);
+        int n = TransferResult.getTransferred(r);
+        if (n != length) {
+            throw new LibUsbTransmissionException("Transferred " + n + " bytes of " + length);
+        }
+    }
+
+    /**
+     * Perform a USB control read into native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See control_read() with byte array.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          native data buffer for input of at least wLength bytes
+     * @param wLength       the length field for the setup packet
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @return the number of bytes actually transferred
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the control request was not supported by the device
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int control_read(byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data,
+                            short wLength, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+        checkControl(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB control read into a direct ByteBuffer. wLength is set to the number of bytes between position
+     * and limit. The data is received without copying and the position is advanced past the received bytes.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          direct buffer for input
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @return the number of bytes actually transferred
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the control request was not supported by the device
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     * @throws IllegalArgumentException if more than 65535 bytes remain in the buffer
+     */
+    public int control_read(byte bmRequestType, byte bRequest, short wValue, short wIndex, ByteBuffer data,
+                            int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, data, timeout);
+        checkControl(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB bulk write from native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See bulk_write() with byte array.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer to send
+     * @param length   number of bytes to send
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the endpoint halted
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     */
+    public void bulk_write(int endpoint, Pointer data, int length, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        checkWrite(bulk_transfer(endpoint, data, length, timeout), length);
+    }
+
+    /**
+     * Perform a USB bulk write from a direct ByteBuffer. The bytes between position and limit are sent without
+     * copying and the position is advanced past them.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer with data to send
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the endpoint halted
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     */
+    public void bulk_write(int endpoint, ByteBuffer data, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        int length = data.remaining();
+        checkWrite(bulk_transfer(endpoint, data, timeout), length);
+    }
+
+    /**
+     * Perform a USB bulk read into native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See bulk_read() with byte array.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer for input of at least length bytes
+     * @param length   maximum number of bytes to receive
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return Number of bytes received
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the endpoint halted
+     * @throws LibUsbOverflowException if the device offered more data, see Packets and overflows
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int bulk_read(int endpoint, Pointer data, int length, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbOverflowException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = bulk_transfer(endpoint, data, length, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB bulk read into a direct ByteBuffer. At most the number of bytes between position and limit are
+     * received, without copying, and the position is advanced past the received bytes.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer for input
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return Number of bytes received
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the endpoint halted
+     * @throws LibUsbOverflowException if the device offered more data, see Packets and overflows
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int bulk_read(int endpoint, ByteBuffer data, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbOverflowException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = bulk_transfer(endpoint, data, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB interrupt write from native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See interrupt_write() with byte array.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer to send
+     * @param length   number of bytes to send
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                 being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the endpoint halted
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     */
+    public void interrupt_write(int endpoint, Pointer data, int length, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        checkWrite(interrupt_transfer(endpoint, data, length, timeout), length);
+    }
+
+    /**
+     * Perform a USB interrupt write from a direct ByteBuffer. The bytes between position and limit are sent
+     * without copying and the position is advanced past them.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer with data to send
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                 being received. For an unlimited timeout, use value 0.
+     * @throws LibUsbTimeoutException      if the transfer timed out
+     * @throws LibUsbPipeException         if the endpoint halted
+     * @throws LibUsbNoDeviceException     if the device has been disconnected
+     * @throws LibUsbTransmissionException if all data could not be sent
+     * @throws LibUsbOtherException        if another USB error occurred
+     */
+    public void interrupt_write(int endpoint, ByteBuffer data, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        int length = data.remaining();
+        checkWrite(interrupt_transfer(endpoint, data, timeout), length);
+    }
+
+    /**
+     * Perform a USB interrupt read into native memory, e.g. a com.sun.jna.Memory. The data is not copied.
+     * See interrupt_read() with byte array.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer for input of at least length bytes
+     * @param length   maximum number of bytes to receive
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                 being received. For an unlimited timeout, use value 0.
+     * @return Number of bytes received
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the endpoint halted
+     * @throws LibUsbOverflowException if the device offered more data, see Packets and overflows
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int interrupt_read(int endpoint, Pointer data, int length, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbOverflowException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = interrupt_transfer(endpoint, data, length, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB interrupt read into a direct ByteBuffer. At most the number of bytes between position and
+     * limit are received, without copying, and the position is advanced past the received bytes.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer for input
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                 being received. For an unlimited timeout, use value 0.
+     * @return Number of bytes received
+     * @throws LibUsbTimeoutException  if the transfer timed out
+     * @throws LibUsbPipeException     if the endpoint halted
+     * @throws LibUsbOverflowException if the device offered more data, see Packets and overflows
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public int interrupt_read(int endpoint, ByteBuffer data, int timeout) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbOverflowException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        long r = interrupt_transfer(endpoint, data, timeout);
+        checkRead(r);
+        return TransferResult.getTransferred(r);
+    }
+
+    /**
+     * Perform a USB control transfer without throwing on failure.
+     * 
+     * The direction of the transfer is inferred from the bmRequestType field of the setup packet. This and the
+     * other *_transfer() methods return a packed result, see TransferResult, and allocate nothing. They are meant
+     * for loops where a timeout or a short transfer is a normal outcome. The exception based methods are
+     * wrappers around them.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          a suitably-sized data buffer for either input or output
+     * @param wLength       the length field for the setup packet. The data buffer should be at least this size.
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long control_transfer(byte bmRequestType, byte bRequest, short wValue, short wIndex, byte[] data,
+                                 short wLength, int timeout) {
+        int rc;
+        Pointer handle = lockEndpoint(0);
+        try {
+            rc = usb.libusb_control_transfer(handle, bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+        } finally {
+            unlockEndpoint(0);
+        }
+        return rc < 0 ? TransferResult.of(rc, 0) : TransferResult.of(0, rc);
+    }
+
+    /**
+     * Perform a USB control transfer with native memory without throwing on failure. See control_transfer() with
+     * byte array.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          native data buffer for either input or output
+     * @param wLength       the length field for the setup packet. The data buffer should be at least this size.
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long control_transfer(byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data,
+                                 short wLength, int timeout) {
+        int rc;
+        Pointer handle = lockEndpoint(0);
+        try {
+            rc = usb.libusb_control_transfer(handle, bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+        } finally {
+            unlockEndpoint(0);
+        }
+        return rc < 0 ? TransferResult.of(rc, 0) : TransferResult.of(0, rc);
+    }
+
+    /**
+     * Perform a USB control transfer with a direct ByteBuffer without throwing on failure. wLength is set to the
+     * number of bytes between position and limit, and the position is advanced past the transferred bytes.
+     * See control_transfer() with byte array.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          direct buffer for either input or output
+     * @param timeout       timeout (in milliseconds) that this function should wait before giving up due to no response
+     *                      being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     * @throws IllegalArgumentException if more than 65535 bytes remain in the buffer, which wLength cannot hold
+     */
+    public long control_transfer(byte bmRequestType, byte bRequest, short wValue, short wIndex, ByteBuffer data,
+                                 int timeout) {
+        checkControlLength(data.remaining());
+        long r = control_transfer(bmRequestType, bRequest, wValue, wIndex, getBufferPointer(data),
+                (short) data.remaining(), timeout);
+        data.position(data.position() + TransferResult.getTransferred(r));
+        return r;
+    }
+
+    private static void checkControlLength(int length) {
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("Control transfer of " + length + " bytes, wLength is at most 65535");
+        }
+    }
+
+    /**
+     * Perform a USB bulk transfer without throwing on failure. See control_transfer() and bulk_read().
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     a suitably-sized data buffer for either input or output (depending on endpoint)
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long bulk_transfer(int endpoint, byte[] data, int timeout) {
+        int[] transferred = getTransferredScratch();
+        int rc;
+        Pointer handle = lockEndpoint(endpoint);
+        try {
+            rc = usb.libusb_bulk_transfer(handle, (byte) endpoint, data, data.length, transferred, timeout);
+        } finally {
+            unlockEndpoint(endpoint);
+        }
+        return TransferResult.of(rc, transferred[0]);
+    }
+
+    /**
+     * Perform a USB bulk transfer with native memory without throwing on failure.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer for either input or output (depending on endpoint)
+     * @param length   number of bytes to send or maximum number of bytes to receive
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long bulk_transfer(int endpoint, Pointer data, int length, int timeout) {
+        int[] transferred = getTransferredScratch();
+        int rc;
+        Pointer handle = lockEndpoint(endpoint);
+        try {
+            rc = usb.libusb_bulk_transfer(handle, (byte) endpoint, data, length, transferred, timeout);
+        } finally {
+            unlockEndpoint(endpoint);
+        }
+        return TransferResult.of(rc, transferred[0]);
+    }
+
+    /**
+     * Perform a USB bulk transfer with a direct ByteBuffer without throwing on failure. The bytes between
+     * position and limit are sent or received into, and the position is advanced past the transferred bytes.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer for either input or output (depending on endpoint)
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long bulk_transfer(int endpoint, ByteBuffer data, int timeout) {
+        long r = bulk_transfer(endpoint, getBufferPointer(data), data.remaining(), timeout);
+        data.position(data.position() + TransferResult.getTransferred(r));
+        return r;
+    }
+
+    /**
+     * Perform a USB interrupt transfer without throwing on failure. See control_transfer() and interrupt_read().
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     a suitably-sized data buffer for either input or output (depending on endpoint)
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long interrupt_transfer(int endpoint, byte[] data, int timeout) {
+        int[] transferred = getTransferredScratch();
+        int rc;
+        Pointer handle = lockEndpoint(endpoint);
+        try {
+            rc = usb.libusb_interrupt_transfer(handle, (byte) endpoint, data, data.length, transferred, timeout);
+        } finally {
+            unlockEndpoint(endpoint);
+        }
+        return TransferResult.of(rc, transferred[0]);
+    }
+
+    /**
+     * Perform a USB interrupt transfer with native memory without throwing on failure.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     native data buffer for either input or output (depending on endpoint)
+     * @param length   number of bytes to send or maximum number of bytes to receive
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long interrupt_transfer(int endpoint, Pointer data, int length, int timeout) {
+        int[] transferred = getTransferredScratch();
+        int rc;
+        Pointer handle = lockEndpoint(endpoint);
+        try {
+            rc = usb.libusb_interrupt_transfer(handle, (byte) endpoint, data, length, transferred, timeout);
+        } finally {
+            unlockEndpoint(endpoint);
+        }
+        return TransferResult.of(rc, transferred[0]);
+    }
+
+    /**
+     * Perform a USB interrupt transfer with a direct ByteBuffer without throwing on failure. The bytes between
+     * position and limit are sent or received into, and the position is advanced past the transferred bytes.
+     *
+     * @param endpoint the address of a valid endpoint to communicate with
+     * @param data     direct buffer for either input or output (depending on endpoint)
+     * @param timeout  timeout (in milliseconds) that this function should wait before giving up due to no
+     *                 response being received. For an unlimited timeout, use value 0.
+     * @return packed result with libusb_error code and number of bytes transferred
+     */
+    public long interrupt_transfer(int endpoint, ByteBuffer data, int timeout) {
+        long r = interrupt_transfer(endpoint, getBufferPointer(data), data.remaining(), timeout);
+        data.position(data.position() + TransferResult.getTransferred(r));
+        return r;
+    }
+
+    private static void checkControl(long result) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        int rc = TransferResult.getError(result);
+        if (rc < 0) {
+            switch (rc) {
+                case libusb_error.ERROR_TIMEOUT:
+                    throw new LibUsbTimeoutException();
+                case libusb_error.ERROR_PIPE:
+                    throw new LibUsbPipeException();
+                case libusb_error.ERROR_NO_DEVICE:
+                    throw new LibUsbNoDeviceException();
+                default:
+                    throw new LibUsbOtherException(rc);
+            }
+        }
+    }
+
+    private static void checkRead(long result) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbOverflowException,
+            LibUsbNoDeviceException,
+            LibUsbOtherException {
+        int rc = TransferResult.getError(result);
         if (rc < 0) {
             switch (rc) {
                 case libusb_error.ERROR_TIMEOUT:
-                    throw new LibUsbTimeoutException(transferred[0]);
+                    throw new LibUsbTimeoutException(TransferResult.getTransferred(result));
                 case libusb_error.ERROR_PIPE:
                     throw new LibUsbPipeException();
                 case libusb_error.ERROR_OVERFLOW:
@@ -922,7 +1953,346 @@ public class UsbDevice {
                     throw new LibUsbOtherException(rc);
             }
         }
-        return transferred[0];
+    }
+
+    private static void checkWrite(long result, int length) throws LibUsbTimeoutException,
+            LibUsbPipeException,
+            LibUsbNoDeviceException,
+            LibUsbTransmissionException,
+            LibUsbOtherException {
+        int transferred = TransferResult.getTransferred(result);
+        if (transferred != length) {
+            throw new LibUsbTransmissionException("Transferred " + transferred + " bytes of " + length);
+        }
+        int rc = TransferResult.getError(result);
+        if (rc < 0) {
+            switch (rc) {
+                case libusb_error.ERROR_TIMEOUT:
+                    throw new LibUsbTimeoutException(transferred);
+                case libusb_error.ERROR_PIPE:
+                    throw new LibUsbPipeException();
+                case libusb_error.ERROR_NO_DEVICE:
+                    throw new LibUsbNoDeviceException();
+                default:
+                    throw new LibUsbOtherException(rc);
+            }
+        }
+    }
+
+    /**
+     * Get a pointer to the position of a direct buffer. The returned pointer is per-thread scratch storage that
+     * is only valid until the next call.
+     */
+    private static Pointer getBufferPointer(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not direct");
+        }
+        Scratch s = scratch.get();
+        if (s.buffer != buffer) {
+            s.bufferAddress = Pointer.nativeValue(Native.getDirectBufferPointer(buffer));
+            s.buffer = buffer;
+        }
+        s.pointer.setPeer(s.bufferAddress + buffer.position());
+        return s.pointer;
+    }
+
+    private static int[] getTransferredScratch() {
+        int[] transferred = scratch.get().transferred;
+        transferred[0] = 0;
+        return transferred;
+    }
+
+    /**
+     * Per-thread storage reused by the synchronous transfer methods, so that a successful transfer allocates nothing.
+     */
+    private static class Scratch {
+        final int[] transferred = new int[1];
+        final byte[] string = new byte[256];
+        final Memory descriptor = new Memory(DescriptorLayout.DEVICE_DESCRIPTOR_SIZE);
+        final ScratchPointer pointer = new ScratchPointer();
+        /**
+         * Last direct buffer used by the thread and its address, normally the same buffer is used over and over
+         */
+        ByteBuffer buffer;
+        long bufferAddress;
+    }
+
+    private static class ScratchPointer extends Pointer {
+        ScratchPointer() {
+            super(0);
+        }
+
+        void setPeer(long peer) {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Start an asynchronous USB bulk read.
+     * 
+     * This method returns as soon as the transfer has been submitted. The returned future is completed from
+     * within libusb event handling (see UsbSystem.handle_events()) with the number of bytes received, which
+     * by then have been copied into data. On failure the future completes exceptionally with the LibUsbException
+     * matching the transfer status, see UsbTransfer.getStatusException(). Cancelling the future cancels the transfer.
+     *
+     * @param endpoint the address of a valid IN endpoint to communicate with
+     * @param data     a suitably-sized data buffer for input. It must not be touched until the future is done.
+     * @param timeout  timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes received
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public CompletableFuture<Integer> bulkReadAsync(int endpoint, byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitAsync(libusb_transfer_type.TRANSFER_TYPE_BULK, endpoint, data, true, timeout);
+    }
+
+    /**
+     * Start an asynchronous USB bulk write.
+     * 
+     * The data is copied before this method returns, the array may be reused immediately. The returned future
+     * completes with the number of bytes sent, or exceptionally with LibUsbTransmissionException if all data
+     * could not be sent.
+     *
+     * @param endpoint the address of a valid OUT endpoint to communicate with
+     * @param data     data to send
+     * @param timeout  timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes sent
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public CompletableFuture<Integer> bulkWriteAsync(int endpoint, byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitAsync(libusb_transfer_type.TRANSFER_TYPE_BULK, endpoint, data, false, timeout);
+    }
+
+    /**
+     * Start an asynchronous USB interrupt read. See bulkReadAsync().
+     *
+     * @param endpoint the address of a valid IN endpoint to communicate with
+     * @param data     a suitably-sized data buffer for input. It must not be touched until the future is done.
+     * @param timeout  timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes received
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public CompletableFuture<Integer> interruptReadAsync(int endpoint, byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitAsync(libusb_transfer_type.TRANSFER_TYPE_INTERRUPT, endpoint, data, true, timeout);
+    }
+
+    /**
+     * Start an asynchronous USB interrupt write. See bulkWriteAsync().
+     *
+     * @param endpoint the address of a valid OUT endpoint to communicate with
+     * @param data     data to send
+     * @param timeout  timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes sent
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public CompletableFuture<Integer> interruptWriteAsync(int endpoint, byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitAsync(libusb_transfer_type.TRANSFER_TYPE_INTERRUPT, endpoint, data, false, timeout);
+    }
+
+    /**
+     * Start an asynchronous USB control read. See bulkReadAsync().
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          a suitably-sized data buffer for input, its length is used as wLength
+     * @param timeout       timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes received
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     * @throws IllegalArgumentException if data is longer than 65535 bytes
+     */
+    public CompletableFuture<Integer> controlReadAsync(byte bmRequestType, byte bRequest, short wValue, short wIndex,
+                                                       byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitControlAsync(bmRequestType, bRequest, wValue, wIndex, data, true, timeout);
+    }
+
+    /**
+     * Start an asynchronous USB control write. See bulkWriteAsync().
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          data to send, its length is used as wLength
+     * @param timeout       timeout (in milliseconds) for the transfer. For an unlimited timeout, use value 0.
+     * @return future completed with the number of bytes sent
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     * @throws IllegalArgumentException if data is longer than 65535 bytes
+     */
+    public CompletableFuture<Integer> controlWriteAsync(byte bmRequestType, byte bRequest, short wValue, short wIndex,
+                                                        byte[] data, int timeout) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        return submitControlAsync(bmRequestType, bRequest, wValue, wIndex, data, false, timeout);
+    }
+
+    /**
+     * Subscribe to the reports of an interrupt IN endpoint.
+     * 
+     * queueDepth interrupt transfers without timeout are kept submitted and every received report is pushed to
+     * the listener from within libusb event handling (see UsbSystem.handle_events()). Unlike a loop on
+     * interrupt_read() this needs no thread per device and does not wake up while the endpoint is idle.
+     *
+     * @param endpoint   the address of a valid interrupt IN endpoint
+     * @param reportSize maximum report size, normally the max packet size of the endpoint
+     * @param queueDepth number of transfers kept submitted, 1 or 2 is normally enough
+     * @param listener   receives the reports
+     * @return the subscription, cancel it when no longer needed
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if a transfer could not be submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public InterruptSubscription subscribeInterrupt(int endpoint, int reportSize, int queueDepth,
+                                                    InterruptSubscription.Listener listener) throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        InterruptSubscription subscription = new InterruptSubscription(this, endpoint, reportSize, queueDepth, listener);
+        subscription.start();
+        return subscription;
+    }
+
+    private CompletableFuture<Integer> submitAsync(int type, int endpoint, byte[] data, boolean read, int timeout)
+            throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        Memory buffer = new Memory(Math.max(data.length, 1));
+        if (!read) {
+            buffer.write(0, data, 0, data.length);
+        }
+        UsbTransfer transfer = new UsbTransfer(usb, 0);
+        Pointer handle = lockShared();
+        try {
+            if (type == libusb_transfer_type.TRANSFER_TYPE_BULK) {
+                transfer.fill_bulk_transfer(handle, endpoint, buffer, data.length, timeout);
+            } else {
+                transfer.fill_interrupt_transfer(handle, endpoint, buffer, data.length, timeout);
+            }
+            return submit(transfer, data, 0, read);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    private CompletableFuture<Integer> submitControlAsync(byte bmRequestType, byte bRequest, short wValue, short wIndex,
+                                                          byte[] data, boolean read, int timeout)
+            throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        checkControlLength(data.length);
+        Memory buffer = new Memory(libusb_transfer.CONTROL_SETUP_SIZE + data.length);
+        libusb_transfer.fill_control_setup(buffer, bmRequestType, bRequest, wValue, wIndex, (short) data.length);
+        if (!read) {
+            buffer.write(libusb_transfer.CONTROL_SETUP_SIZE, data, 0, data.length);
+        }
+        UsbTransfer transfer = new UsbTransfer(usb, 0);
+        Pointer handle = lockShared();
+        try {
+            transfer.fill_control_transfer(handle, buffer, timeout);
+            return submit(transfer, data, libusb_transfer.CONTROL_SETUP_SIZE, read);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    private CompletableFuture<Integer> submit(UsbTransfer transfer, byte[] data, int offset, boolean read)
+            throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        TransferFuture future = new TransferFuture(transfer, data, offset, read);
+        transfer.setListener(future);
+        try {
+            transfer.submit();
+        } catch (LibUsbException e) {
+            transfer.free();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Future for a single asynchronous transfer on a byte array. Frees the transfer when it completes.
+     *
+     * cancel() and the callback decide under the monitor which of them wins, so that no data is copied to the
+     * caller's array after cancel() has returned true.
+     */
+    private static class TransferFuture extends CompletableFuture<Integer> implements UsbTransfer.Listener {
+        private final UsbTransfer transfer;
+        private final byte[] data;
+        private final int offset;
+        private final boolean read;
+        private boolean completing;
+
+        TransferFuture(UsbTransfer transfer, byte[] data, int offset, boolean read) {
+            this.transfer = transfer;
+            this.data = data;
+            this.offset = offset;
+            this.read = read;
+        }
+
+        @Override
+        public void transferCompleted(UsbTransfer t) {
+            LibUsbException e;
+            int n;
+            boolean transferCancelled;
+            synchronized (this) {
+                completing = true;
+                try {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    e = t.getStatusException();
+                    n = t.getActualLength();
+                    transferCancelled = t.getStatus() == libusb_transfer_status.TRANSFER_CANCELLED;
+                    if (!transferCancelled && e == null && read) {
+                        t.getBuffer().read(offset, data, 0, Math.min(n, data.length));
+                    }
+                } finally {
+                    t.free();
+                }
+            }
+            if (transferCancelled) {
+                super.cancel(false);
+            } else if (e != null) {
+                completeExceptionally(e);
+            } else if (!read && n != data.length) {
+                completeExceptionally(new LibUsbTransmissionException("Transferred " + n + " bytes of " + data.length));
+            } else {
+                complete(n);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (completing) {
+                    return isCancelled();
+                }
+                transfer.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        }
     }
 
     @Override
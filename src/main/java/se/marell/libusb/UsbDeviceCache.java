@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_error;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the devices attached to a libusb context, keyed by port path (see UsbDevice.getPortPath()).
+ *
+ * A refresh enumerates the bus once and keeps the UsbDevice objects, with their descriptors, of devices that
+ * are still attached. Only new devices are read; a device reconnected to the same port is a new device. The
+ * cache holds a reference on each cached device, released when the device disappears or the cache is cleared.
+ *
+ * The cache is refreshed explicitly with refresh(), or on access when it is older than its maximum age.
+ *
+ * The cached devices are also indexed by a UsbDeviceRegistry for lookups on other keys, see find().
+ *
+ * The cache of a ShardedUsbSystem enumerates all its contexts and takes each device from the context of the
+ * shard it is assigned to.
+ */
+public class UsbDeviceCache {
+    private static final Logger log = LoggerFactory.getLogger(UsbDeviceCache.class);
+
+    /**
+     * Devices added and removed by a refresh.
+     */
+    public static class Diff {
+        private final List<UsbDevice> added;
+        private final List<UsbDevice> removed;
+
+        Diff(List<UsbDevice> added, List<UsbDevice> removed) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * @return devices not in the cache before the refresh
+         */
+        public List<UsbDevice> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return devices no longer attached. Their reference is released and they must not be opened again.
+         */
+        public List<UsbDevice> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Diff{added=" + added + ", removed=" + removed + "}";
+        }
+    }
+
+    public interface Listener {
+        /**
+         * The attached devices have changed. Called from the thread refreshing the cache, with the cache locked.
+         *
+         * @param diff the change
+         */
+        void devicesChanged(Diff diff);
+    }
+
+    private final LibUsb usb;
+    private final Pointer[] contexts;
+    private final UsbShardPolicy policy;
+    private final long maxAgeNanos;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private Map<String, UsbDevice> devices = new LinkedHashMap<String, UsbDevice>();
+    private final UsbDeviceRegistry registry = new UsbDeviceRegistry();
+    private boolean valid;
+    private long refreshedNanos;
+    private long refreshCount;
+
+    /**
+     * @param usb      libusb
+     * @param context  context to enumerate, or null for the default context
+     * @param maxAgeMs age in ms after which the cache is refreshed on access, 0 to refresh on every access or
+     *                 negative to refresh only explicitly
+     */
+    public UsbDeviceCache(LibUsb usb, Pointer context, long maxAgeMs) {
+        this(usb, new Pointer[]{context}, null, maxAgeMs);
+    }
+
+    /**
+     * @param usb      libusb
+     * @param contexts the contexts of the shards
+     * @param policy   assigns each device to a shard, null if there is a single context
+     * @param maxAgeMs see UsbDeviceCache(LibUsb, Pointer, long)
+     */
+    UsbDeviceCache(LibUsb usb, Pointer[] contexts, UsbShardPolicy policy, long maxAgeMs) {
+        this.usb = usb;
+        this.contexts = contexts.clone();
+        this.policy = policy;
+        this.maxAgeNanos = maxAgeMs < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Enumerate the bus and update the cache.
+     *
+     * @return the devices added and removed since the previous refresh
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public synchronized Diff refresh() throws LibUsbOtherException {
+        Pointer[] device_lists = new Pointer[contexts.length];
+        Map<Long, UsbDevice> previous = new HashMap<Long, UsbDevice>();
+        for (UsbDevice d : devices.values()) {
+            previous.put(Pointer.nativeValue(d.get_usb_device()), d);
+        }
+        Map<String, UsbDevice> current = new LinkedHashMap<String, UsbDevice>();
+        List<UsbDevice> added = new ArrayList<UsbDevice>();
+        try {
+            int[] counts = new int[contexts.length];
+            for (int shard = 0; shard < contexts.length; ++shard) {
+                Pointer[] pa = new Pointer[1];
+                int rc = usb.libusb_get_device_list(contexts[shard], pa);
+                if (rc < 0) {
+                    switch (rc) {
+                        case libusb_error.ERROR_NO_MEM:
+                            throw new OutOfMemoryError("ERROR_NO_MEM when calling libusb_get_device_list");
+                        default:
+                            throw new LibUsbOtherException(rc);
+                    }
+                }
+                device_lists[shard] = pa[0];
+                counts[shard] = rc;
+            }
+            for (int shard = 0; shard < contexts.length; ++shard) {
+                Pointer[] parr = counts[shard] > 0 ? device_lists[shard].getPointerArray(0) : new Pointer[0];
+                for (Pointer usb_device : parr) {
+                    UsbDevice d = previous.remove(Pointer.nativeValue(usb_device));
+                    if (d == null) {
+                        if (policy != null && policy.shardOf(UsbDevice.lazy(usb, contexts[shard], usb_device),
+                                contexts.length) != shard) {
+                            continue;
+                        }
+                        try {
+                            d = new UsbDevice(usb, contexts[shard], usb_device);
+                        } catch (LibUsbException e) {
+                            log.debug("Skipped device:" + e.getMessage());
+                            continue;
+                        }
+                        d.ref_device();
+                        added.add(d);
+                    }
+                    current.put(d.getPortPath(), d);
+                }
+            }
+        } finally {
+            for (int shard = 0; shard < contexts.length; ++shard) {
+                if (device_lists[shard] != null) {
+                    usb.libusb_free_device_list(device_lists[shard], 1);
+                }
+            }
+        }
+        List<UsbDevice> removed = new ArrayList<UsbDevice>(previous.values());
+        for (UsbDevice d : removed) {
+            registry.remove(d);
+            d.unref_device();
+        }
+        for (UsbDevice d : added) {
+            registry.add(d);
+        }
+        devices = current;
+        valid = true;
+        refreshedNanos = System.nanoTime();
+        ++refreshCount;
+        Diff diff = new Diff(added, removed);
+        if (!diff.isEmpty()) {
+            log.debug("Devices changed:" + diff);
+            for (Listener l : listeners) {
+                l.devicesChanged(diff);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Mark the cache as stale so that the next access refreshes it.
+     */
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Get the attached devices, refreshing the cache if it is stale.
+     *
+     * @return the devices in enumeration order
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public synchronized List<UsbDevice> getDevices() throws LibUsbOtherException {
+        refreshIfStale();
+        return new ArrayList<UsbDevice>(devices.values());
+    }
+
+    /**
+     * Get a device by location, refreshing the cache if it is stale.
+     *
+     * @param portPath port path as returned by UsbDevice.getPortPath()
+     * @return the device, or null if there is no device at that location
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public synchronized UsbDevice getDevice(String portPath) throws LibUsbOtherException {
+        refreshIfStale();
+        return devices.get(portPath);
+    }
+
+    /**
+     * Get the registry indexing the cached devices, refreshing the cache if it is stale. The registry is updated
+     * by later refreshes.
+     *
+     * @return the registry
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public synchronized UsbDeviceRegistry getRegistry() throws LibUsbOtherException {
+        refreshIfStale();
+        return registry;
+    }
+
+    /**
+     * Find devices by the keys of a query with the indexes of the registry, refreshing the cache if it is stale.
+     * The references of the devices remain owned by the cache.
+     *
+     * @param query the keys to match
+     * @return the matching devices
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public synchronized List<UsbDevice> find(UsbDeviceRegistry.Query query) throws LibUsbOtherException {
+        refreshIfStale();
+        return registry.find(query);
+    }
+
+    /**
+     * Select devices from the cache, see UsbSystem.visitUsbDevices(). Unlike UsbSystem.visitUsbDevices() the
+     * references of the devices remain owned by the cache.
+     *
+     * @param visitor selects devices
+     * @return the selected devices
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public List<UsbDevice> visitUsbDevices(UsbSystem.UsbDeviceVisitor visitor) throws LibUsbOtherException {
+        return visitor.visitDevices(getDevices());
+    }
+
+    /**
+     * @return number of refreshes, that is bus enumerations, so far
+     */
+    public synchronized long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Release all cached devices. The cache is refreshed on the next access.
+     */
+    public synchronized void clear() {
+        for (UsbDevice d : devices.values()) {
+            d.unref_device();
+        }
+        devices = new LinkedHashMap<String, UsbDevice>();
+        registry.clear();
+        valid = false;
+    }
+
+    private void refreshIfStale() throws LibUsbOtherException {
+        if (!valid || maxAgeNanos >= 0 && System.nanoTime() - refreshedNanos >= maxAgeNanos) {
+            refresh();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbDeviceCache{devices=" + devices.keySet() + ", refreshCount=" + refreshCount + "}";
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+/**
+ * Immutable USB device descriptor, see UsbDevice.getDeviceDescriptor().
+ */
+public final class UsbDeviceDescriptor {
+    private final short bcdUSB;
+    private final byte bDeviceClass;
+    private final byte bDeviceSubClass;
+    private final byte bDeviceProtocol;
+    private final byte bMaxPacketSize0;
+    private final short idVendor;
+    private final short idProduct;
+    private final short bcdDevice;
+    private final byte iManufacturer;
+    private final byte iProduct;
+    private final byte iSerialNumber;
+    private final byte bNumConfigurations;
+    private final int hash;
+
+    UsbDeviceDescriptor(short bcdUSB, byte bDeviceClass, byte bDeviceSubClass, byte bDeviceProtocol,
+                        byte bMaxPacketSize0, short idVendor, short idProduct, short bcdDevice,
+                        byte iManufacturer, byte iProduct, byte iSerialNumber, byte bNumConfigurations) {
+        this.bcdUSB = bcdUSB;
+        this.bDeviceClass = bDeviceClass;
+        this.bDeviceSubClass = bDeviceSubClass;
+        this.bDeviceProtocol = bDeviceProtocol;
+        this.bMaxPacketSize0 = bMaxPacketSize0;
+        this.idVendor = idVendor;
+        this.idProduct = idProduct;
+        this.bcdDevice = bcdDevice;
+        this.iManufacturer = iManufacturer;
+        this.iProduct = iProduct;
+        this.iSerialNumber = iSerialNumber;
+        this.bNumConfigurations = bNumConfigurations;
+        int h = (idVendor & 0xffff) << 16 | (idProduct & 0xffff);
+        h = 31 * h + (bcdDevice & 0xffff);
+        h = 31 * h + (bcdUSB & 0xffff);
+        h = 31 * h + ((bDeviceClass & 0xff) << 16 | (bDeviceSubClass & 0xff) << 8 | (bDeviceProtocol & 0xff));
+        h = 31 * h + ((bMaxPacketSize0 & 0xff) << 8 | (bNumConfigurations & 0xff));
+        h = 31 * h + ((iManufacturer & 0xff) << 16 | (iProduct & 0xff) << 8 | (iSerialNumber & 0xff));
+        hash = h;
+    }
+
+    /**
+     * @return USB specification release number in binary-coded decimal.
+     * A value of 0x0200 indicates USB 2.0, 0x0110 indicates USB 1.1, etc.
+     */
+    public short getBcdUSB() {
+        return bcdUSB;
+    }
+
+    /**
+     * @return USB-IF class code for the device.
+     */
+    public byte getBDeviceClass() {
+        return bDeviceClass;
+    }
+
+    /**
+     * @return USB-IF subclass code for the device, qualified by the bDeviceClass value.
+     */
+    public byte getBDeviceSubClass() {
+        return bDeviceSubClass;
+    }
+
+    /**
+     * @return USB-IF protocol code for the device, qualified by the bDeviceClass and bDeviceSubClass values.
+     */
+    public byte getBDeviceProtocol() {
+        return bDeviceProtocol;
+    }
+
+    /**
+     * @return Maximum packet size for endpoint 0.
+     */
+    public byte getBMaxPacketSize0() {
+        return bMaxPacketSize0;
+    }
+
+    /**
+     * @return USB-IF vendor ID.
+     */
+    public short getIdVendor() {
+        return idVendor;
+    }
+
+    /**
+     * @return USB-IF product ID.
+     */
+    public short getIdProduct() {
+        return idProduct;
+    }
+
+    /**
+     * @return Device release number in binary-coded decimal.
+     */
+    public short getBcdDevice() {
+        return bcdDevice;
+    }
+
+    /**
+     * @return Index of string descriptor describing manufacturer.
+     */
+    public byte getIManufacturer() {
+        return iManufacturer;
+    }
+
+    /**
+     * @return Index of string descriptor describing product.
+     */
+    public byte getIProduct() {
+        return iProduct;
+    }
+
+    /**
+     * @return Index of string descriptor containing device serial number.
+     */
+    public byte getISerialNumber() {
+        return iSerialNumber;
+    }
+
+    /**
+     * @return Number of possible configurations.
+     */
+    public byte getBNumConfigurations() {
+        return bNumConfigurations;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsbDeviceDescriptor)) {
+            return false;
+        }
+        UsbDeviceDescriptor d = (UsbDeviceDescriptor) o;
+        return hash == d.hash &&
+                idVendor == d.idVendor && idProduct == d.idProduct && bcdDevice == d.bcdDevice &&
+                bcdUSB == d.bcdUSB && bDeviceClass == d.bDeviceClass && bDeviceSubClass == d.bDeviceSubClass &&
+                bDeviceProtocol == d.bDeviceProtocol && bMaxPacketSize0 == d.bMaxPacketSize0 &&
+                iManufacturer == d.iManufacturer && iProduct == d.iProduct && iSerialNumber == d.iSerialNumber &&
+                bNumConfigurations == d.bNumConfigurations;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UsbDeviceDescriptor{id=%04x:%04x, bcdDevice=%04x, bcdUSB=%04x, class=%02x/%02x/%02x, " +
+                        "bMaxPacketSize0=%d, bNumConfigurations=%d}",
+                idVendor & 0xffff, idProduct & 0xffff, bcdDevice & 0xffff, bcdUSB & 0xffff,
+                bDeviceClass & 0xff, bDeviceSubClass & 0xff, bDeviceProtocol & 0xff,
+                bMaxPacketSize0 & 0xff, bNumConfigurations & 0xff);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import se.marell.libusb.jna.LibUsb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over a libusb device list without reading more of it than needed.
+ *
+ * A UsbDevice is created when next() reaches it, and its device descriptor is read on first use, so devices can
+ * be selected by for example port path without any descriptor being read. Each device is borrowed: it is valid
+ * until the next call to next() or close(), at which point the reference held by the list is released. Call
+ * ref_device() on a device to keep it longer. close() releases the devices not reached and frees the list, so
+ * stopping early costs nothing for the remaining devices.
+ *
+ * Not thread safe.
+ */
+public final class UsbDeviceIterator implements Iterator<UsbDevice>, AutoCloseable {
+    private final LibUsb usb;
+    private final Pointer context;
+    private Pointer device_list;
+    private final int count;
+    private int index;
+    private UsbDevice current;
+
+    UsbDeviceIterator(LibUsb usb, Pointer context, Pointer device_list, int count) {
+        this.usb = usb;
+        this.context = context;
+        this.device_list = device_list;
+        this.count = count;
+    }
+
+    /**
+     * @return number of devices in the list
+     */
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return device_list != null && index < count;
+    }
+
+    /**
+     * Release the previous device and get the next one.
+     *
+     * @return the device, valid until the next call to next() or close()
+     */
+    @Override
+    public UsbDevice next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        releaseCurrent();
+        current = UsbDevice.lazy(usb, context, device_list.getPointer((long) index * Pointer.SIZE));
+        index++;
+        return current;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Release the current device and the devices not reached, and free the list. Does nothing if already closed.
+     */
+    @Override
+    public void close() {
+        if (device_list == null) {
+            return;
+        }
+        releaseCurrent();
+        for (; index < count; ++index) {
+            usb.libusb_unref_device(device_list.getPointer((long) index * Pointer.SIZE));
+        }
+        usb.libusb_free_device_list(device_list, 0);
+        device_list = null;
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            usb.libusb_unref_device(current.get_usb_device());
+            current = null;
+        }
+    }
+
+    /**
+     * Get a spliterator advancing this iterator. It does not split, as the devices are borrowed one at a time.
+     *
+     * @return the spliterator
+     */
+    public Spliterator<UsbDevice> spliterator() {
+        return new Spliterators.AbstractSpliterator<UsbDevice>(count - index,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super UsbDevice> action) {
+                if (!hasNext()) {
+                    return false;
+                }
+                action.accept(next());
+                return true;
+            }
+
+            @Override
+            public Spliterator<UsbDevice> trySplit() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Get a sequential stream of the devices, closing this iterator when the stream is closed.
+     *
+     * @return the stream
+     */
+    public Stream<UsbDevice> stream() {
+        return StreamSupport.stream(spliterator(), false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "UsbDeviceIterator{index=" + index + ", count=" + count + ", closed=" + (device_list == null) + "}";
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+/**
+ * Query of a device, run in parallel on many devices with LibUsbSystem.probeDevices(). The device is open
+ * when probe() is called and closed afterwards.
+ *
+ * @param <T> type of the information read from the device
+ */
+public interface UsbDeviceProbe<T> {
+    /**
+     * Read information from a device. Called on a thread of the probing executor.
+     *
+     * @param device the open device
+     * @return the information
+     * @throws LibUsbException if a USB error occurred
+     */
+    T probe(UsbDevice device) throws LibUsbException;
+
+    /**
+     * Outcome of probing one device: a value, an error or a timeout.
+     *
+     * @param <T> type of the information read from the device
+     */
+    final class Result<T> {
+        private final UsbDevice device;
+        private final T value;
+        private final Throwable error;
+        private final boolean timedOut;
+        private final long elapsedNanos;
+
+        Result(UsbDevice device, T value, Throwable error, boolean timedOut, long elapsedNanos) {
+            this.device = device;
+            this.value = value;
+            this.error = error;
+            this.timedOut = timedOut;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public UsbDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * @return the value returned by the probe, or null if it failed or timed out
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return the exception thrown when opening or probing the device, or null
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return true if the probe did not complete within the deadline. It may still be running and closes the
+         * device when done.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @return true if the probe returned a value
+         */
+        public boolean isSuccess() {
+            return error == null && !timedOut;
+        }
+
+        /**
+         * @return time from the start of the probe to its completion or timeout, 0 if it never started
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{device=" + device.getPortPath() +
+                    (timedOut ? ", timedOut" : error != null ? ", error=" + error : ", value=" + value) +
+                    ", elapsedNanos=" + elapsedNanos + "}";
+        }
+    }
+
+    /**
+     * The manufacturer, product and serial number strings of a device.
+     */
+    final class Strings {
+        private final String manufacturer;
+        private final String product;
+        private final String serialNumber;
+
+        Strings(String manufacturer, String product, String serialNumber) {
+            this.manufacturer = manufacturer;
+            this.product = product;
+            this.serialNumber = serialNumber;
+        }
+
+        /**
+         * @return String describing manufacturer, or null if the device has none
+         */
+        public String getManufacturer() {
+            return manufacturer;
+        }
+
+        /**
+         * @return String describing product, or null if the device has none
+         */
+        public String getProduct() {
+            return product;
+        }
+
+        /**
+         * @return String containing device serial number, or null if the device has none
+         */
+        public String getSerialNumber() {
+            return serialNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "Strings{manufacturer=" + manufacturer + ", product=" + product +
+                    ", serialNumber=" + serialNumber + "}";
+        }
+    }
+
+    /**
+     * Reads the manufacturer, product and serial number strings in the first language of the device. Unlike
+     * UsbDevice.getManufacturer() and the like, failures are reported instead of giving "".
+     */
+    UsbDeviceProbe<Strings> STRINGS = new UsbDeviceProbe<Strings>() {
+        @Override
+        public Strings probe(UsbDevice device) throws LibUsbException {
+            UsbDeviceDescriptor d = device.getDeviceDescriptor();
+            int[] languages = device.get_language_ids();
+            int langid = languages.length == 0 ? 0 : languages[0];
+            return new Strings(string(device, d.getIManufacturer(), langid),
+                    string(device, d.getIProduct(), langid),
+                    string(device, d.getISerialNumber(), langid));
+        }
+
+        private String string(UsbDevice device, byte index, int langid) throws LibUsbException {
+            return index == 0 || langid == 0 ? null : device.get_string_descriptor(index, langid);
+        }
+    };
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of devices by vendor/product ID, class/subclass/protocol, serial number and port path, maintained by
+ * UsbDeviceCache (see UsbDeviceCache.getRegistry()).
+ *
+ * Lookups on a single key are hash lookups. A Query combining several keys starts from the most selective index
+ * it has a key for and filters those candidates on the remaining keys.
+ *
+ * Serial numbers are read from the devices, which means a request to each device, so the serial number index
+ * is built on the first lookup by serial number. After that the serial number of each added device is read
+ * when it is added.
+ */
+public class UsbDeviceRegistry {
+    private static final int ANY = -1;
+
+    /**
+     * Device selection on any combination of keys. Keys not set match any device. A Query may also be used as
+     * visitor with UsbSystem.visitUsbDevices().
+     */
+    public static class Query implements UsbSystem.UsbDeviceVisitor {
+        private int vendorId = ANY;
+        private int productId = ANY;
+        private int deviceClass = ANY;
+        private int deviceSubClass = ANY;
+        private int deviceProtocol = ANY;
+        private String serialNumber;
+        private String portPath;
+
+        public Query vendorId(int vendorId) {
+            this.vendorId = vendorId & 0xffff;
+            return this;
+        }
+
+        public Query productId(int productId) {
+            this.productId = productId & 0xffff;
+            return this;
+        }
+
+        public Query deviceClass(int deviceClass) {
+            this.deviceClass = deviceClass & 0xff;
+            return this;
+        }
+
+        public Query deviceSubClass(int deviceSubClass) {
+            this.deviceSubClass = deviceSubClass & 0xff;
+            return this;
+        }
+
+        public Query deviceProtocol(int deviceProtocol) {
+            this.deviceProtocol = deviceProtocol & 0xff;
+            return this;
+        }
+
+        public Query serialNumber(String serialNumber) {
+            this.serialNumber = serialNumber;
+            return this;
+        }
+
+        public Query portPath(String portPath) {
+            this.portPath = portPath;
+            return this;
+        }
+
+        /**
+         * @param d a device
+         * @return true if the device matches all keys of this query. The port path is compared first and the
+         * serial number last, read from the device if needed.
+         */
+        public boolean matches(UsbDevice d) {
+            return (portPath == null || portPath.equals(d.getPortPath())) &&
+                    (vendorId == ANY || vendorId == (d.getIdVendor() & 0xffff)) &&
+                    (productId == ANY || productId == (d.getIdProduct() & 0xffff)) &&
+                    (deviceClass == ANY || deviceClass == (d.getBDeviceClass() & 0xff)) &&
+                    (deviceSubClass == ANY || deviceSubClass == (d.getBDeviceSubClass() & 0xff)) &&
+                    (deviceProtocol == ANY || deviceProtocol == (d.getBDeviceProtocol() & 0xff)) &&
+                    (serialNumber == null || serialNumber.equals(d.getSerialNumber()));
+        }
+
+        /**
+         * Select the matching devices. The caller is expected to unref the devices not returned, as with any
+         * visitor.
+         */
+        @Override
+        public List<UsbDevice> visitDevices(List<UsbDevice> allDevices) {
+            List<UsbDevice> result = new ArrayList<UsbDevice>();
+            for (UsbDevice d : allDevices) {
+                if (matches(d)) {
+                    result.add(d);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Query{vendorId=" + vendorId + ", productId=" + productId + ", deviceClass=" + deviceClass +
+                    ", deviceSubClass=" + deviceSubClass + ", deviceProtocol=" + deviceProtocol +
+                    ", serialNumber=" + serialNumber + ", portPath=" + portPath + "}";
+        }
+    }
+
+    private final Map<String, UsbDevice> byPortPath = new LinkedHashMap<String, UsbDevice>();
+    private final Map<Integer, List<UsbDevice>> byVendorProduct = new HashMap<Integer, List<UsbDevice>>();
+    private final Map<Integer, List<UsbDevice>> byVendor = new HashMap<Integer, List<UsbDevice>>();
+    private final Map<Integer, List<UsbDevice>> byClass = new HashMap<Integer, List<UsbDevice>>();
+    private final Map<Integer, List<UsbDevice>> byClassSubClassProtocol = new HashMap<Integer, List<UsbDevice>>();
+    private Map<String, List<UsbDevice>> bySerialNumber;
+
+    /**
+     * Add a device, replacing any device at the same port path.
+     *
+     * @param d the device
+     */
+    public synchronized void add(UsbDevice d) {
+        UsbDevice previous = byPortPath.put(d.getPortPath(), d);
+        if (previous != null) {
+            removeFromIndexes(previous);
+        }
+        put(byVendorProduct, vendorProductKey(d.getIdVendor() & 0xffff, d.getIdProduct() & 0xffff), d);
+        put(byVendor, d.getIdVendor() & 0xffff, d);
+        put(byClass, d.getBDeviceClass() & 0xff, d);
+        put(byClassSubClassProtocol, classKey(d.getBDeviceClass() & 0xff, d.getBDeviceSubClass() & 0xff,
+                d.getBDeviceProtocol() & 0xff), d);
+        if (bySerialNumber != null) {
+            putSerialNumber(d);
+        }
+    }
+
+    /**
+     * @param d the device
+     * @return true if the device was in the registry
+     */
+    public synchronized boolean remove(UsbDevice d) {
+        String path = d.getPortPath();
+        if (!d.equals(byPortPath.get(path))) {
+            return false;
+        }
+        byPortPath.remove(path);
+        removeFromIndexes(d);
+        return true;
+    }
+
+    private void removeFromIndexes(UsbDevice d) {
+        remove(byVendorProduct, vendorProductKey(d.getIdVendor() & 0xffff, d.getIdProduct() & 0xffff), d);
+        remove(byVendor, d.getIdVendor() & 0xffff, d);
+        remove(byClass, d.getBDeviceClass() & 0xff, d);
+        remove(byClassSubClassProtocol, classKey(d.getBDeviceClass() & 0xff, d.getBDeviceSubClass() & 0xff,
+                d.getBDeviceProtocol() & 0xff), d);
+        if (bySerialNumber != null) {
+            String serial = d.getSerialNumber();
+            if (!serial.isEmpty()) {
+                remove(bySerialNumber, serial, d);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        byPortPath.clear();
+        byVendorProduct.clear();
+        byVendor.clear();
+        byClass.clear();
+        byClassSubClassProtocol.clear();
+        bySerialNumber = null;
+    }
+
+    /**
+     * @return number of devices
+     */
+    public synchronized int size() {
+        return byPortPath.size();
+    }
+
+    /**
+     * @return all devices, in the order they were added
+     */
+    public synchronized List<UsbDevice> getDevices() {
+        return new ArrayList<UsbDevice>(byPortPath.values());
+    }
+
+    /**
+     * @param portPath port path as returned by UsbDevice.getPortPath()
+     * @return the device, or null if there is no device at that location
+     */
+    public synchronized UsbDevice getByPortPath(String portPath) {
+        return byPortPath.get(portPath);
+    }
+
+    /**
+     * @param vendorId  vendor ID
+     * @param productId product ID
+     * @return the matching devices
+     */
+    public synchronized List<UsbDevice> findByVendorProduct(int vendorId, int productId) {
+        return copy(byVendorProduct.get(vendorProductKey(vendorId & 0xffff, productId & 0xffff)));
+    }
+
+    /**
+     * @param deviceClass    bDeviceClass
+     * @param deviceSubClass bDeviceSubClass
+     * @param deviceProtocol bDeviceProtocol
+     * @return the matching devices
+     */
+    public synchronized List<UsbDevice> findByClass(int deviceClass, int deviceSubClass, int deviceProtocol) {
+        return copy(byClassSubClassProtocol.get(classKey(deviceClass & 0xff, deviceSubClass & 0xff,
+                deviceProtocol & 0xff)));
+    }
+
+    /**
+     * @param serialNumber serial number
+     * @return the matching devices, normally at most one
+     */
+    public synchronized List<UsbDevice> findBySerialNumber(String serialNumber) {
+        return copy(serialNumberIndex().get(serialNumber));
+    }
+
+    /**
+     * @param query the keys to match
+     * @return the matching devices
+     */
+    public synchronized List<UsbDevice> find(Query query) {
+        List<UsbDevice> candidates;
+        if (query.portPath != null) {
+            UsbDevice d = byPortPath.get(query.portPath);
+            candidates = d == null ? Collections.<UsbDevice>emptyList() : Collections.singletonList(d);
+        } else if (query.serialNumber != null) {
+            candidates = serialNumberIndex().get(query.serialNumber);
+        } else if (query.vendorId != ANY && query.productId != ANY) {
+            candidates = byVendorProduct.get(vendorProductKey(query.vendorId, query.productId));
+        } else if (query.deviceClass != ANY && query.deviceSubClass != ANY && query.deviceProtocol != ANY) {
+            candidates = byClassSubClassProtocol.get(classKey(query.deviceClass, query.deviceSubClass,
+                    query.deviceProtocol));
+        } else if (query.vendorId != ANY) {
+            candidates = byVendor.get(query.vendorId);
+        } else if (query.deviceClass != ANY) {
+            candidates = byClass.get(query.deviceClass);
+        } else {
+            candidates = new ArrayList<UsbDevice>(byPortPath.values());
+        }
+        return candidates == null ? new ArrayList<UsbDevice>() : query.visitDevices(candidates);
+    }
+
+    /**
+     * @param query the keys to match
+     * @return the first matching device, or null
+     */
+    public UsbDevice findFirst(Query query) {
+        List<UsbDevice> devices = find(query);
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    private Map<String, List<UsbDevice>> serialNumberIndex() {
+        if (bySerialNumber == null) {
+            bySerialNumber = new HashMap<String, List<UsbDevice>>();
+            for (UsbDevice d : byPortPath.values()) {
+                putSerialNumber(d);
+            }
+        }
+        return bySerialNumber;
+    }
+
+    private void putSerialNumber(UsbDevice d) {
+        String serial = d.getSerialNumber();
+        if (!serial.isEmpty()) {
+            put(bySerialNumber, serial, d);
+        }
+    }
+
+    private static int vendorProductKey(int vendorId, int productId) {
+        return vendorId << 16 | productId;
+    }
+
+    private static int classKey(int deviceClass, int deviceSubClass, int deviceProtocol) {
+        return deviceClass << 16 | deviceSubClass << 8 | deviceProtocol;
+    }
+
+    private static <K> void put(Map<K, List<UsbDevice>> index, K key, UsbDevice d) {
+        List<UsbDevice> devices = index.get(key);
+        if (devices == null) {
+            devices = new ArrayList<UsbDevice>(1);
+            index.put(key, devices);
+        }
+        devices.add(d);
+    }
+
+    private static <K> void remove(Map<K, List<UsbDevice>> index, K key, UsbDevice d) {
+        List<UsbDevice> devices = index.get(key);
+        if (devices != null && devices.remove(d) && devices.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static List<UsbDevice> copy(List<UsbDevice> devices) {
+        return devices == null ? new ArrayList<UsbDevice>() : new ArrayList<UsbDevice>(devices);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbDeviceRegistry{devices=" + byPortPath.size() + ", vendorProducts=" + byVendorProduct.size() +
+                ", classes=" + byClassSubClassProtocol.size() + "}";
+    }
+}
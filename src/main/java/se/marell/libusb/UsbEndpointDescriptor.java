@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.Arrays;
+
+/**
+ * Immutable USB endpoint descriptor, part of a UsbInterfaceDescriptor.
+ */
+public final class UsbEndpointDescriptor {
+    private final byte bEndpointAddress;
+    private final byte bmAttributes;
+    private final short wMaxPacketSize;
+    private final byte bInterval;
+    private final byte bRefresh;
+    private final byte bSynchAddress;
+    private final byte[] extra;
+    private final int hash;
+
+    UsbEndpointDescriptor(byte bEndpointAddress, byte bmAttributes, short wMaxPacketSize, byte bInterval,
+                          byte bRefresh, byte bSynchAddress, byte[] extra) {
+        this.bEndpointAddress = bEndpointAddress;
+        this.bmAttributes = bmAttributes;
+        this.wMaxPacketSize = wMaxPacketSize;
+        this.bInterval = bInterval;
+        this.bRefresh = bRefresh;
+        this.bSynchAddress = bSynchAddress;
+        this.extra = extra;
+        int h = (bEndpointAddress & 0xff) << 24 | (bmAttributes & 0xff) << 16 | (wMaxPacketSize & 0xffff);
+        h = 31 * h + ((bInterval & 0xff) << 16 | (bRefresh & 0xff) << 8 | (bSynchAddress & 0xff));
+        hash = 31 * h + Arrays.hashCode(extra);
+    }
+
+    /**
+     * @return The address of the endpoint. Bits 0:3 are the endpoint number, bit 7 the direction
+     * (set for IN endpoints).
+     */
+    public byte getBEndpointAddress() {
+        return bEndpointAddress;
+    }
+
+    /**
+     * @return Attributes of the endpoint. Bits 0:1 are the transfer type, see libusb_transfer_type.
+     */
+    public byte getBmAttributes() {
+        return bmAttributes;
+    }
+
+    /**
+     * @return Maximum packet size this endpoint is capable of sending/receiving.
+     */
+    public short getWMaxPacketSize() {
+        return wMaxPacketSize;
+    }
+
+    /**
+     * @return Interval for polling endpoint for data transfers.
+     */
+    public byte getBInterval() {
+        return bInterval;
+    }
+
+    /**
+     * @return For audio devices only: the rate at which synchronization feedback is provided.
+     */
+    public byte getBRefresh() {
+        return bRefresh;
+    }
+
+    /**
+     * @return For audio devices only: the address if the synch endpoint.
+     */
+    public byte getBSynchAddress() {
+        return bSynchAddress;
+    }
+
+    /**
+     * @return true if this is an IN endpoint
+     */
+    public boolean isIn() {
+        return (bEndpointAddress & 0x80) != 0;
+    }
+
+    /**
+     * @return transfer type of the endpoint, see libusb_transfer_type
+     */
+    public int getTransferType() {
+        return bmAttributes & 0x03;
+    }
+
+    /**
+     * @return Extra descriptors following the endpoint descriptor, empty if there are none
+     */
+    public byte[] getExtra() {
+        return extra.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsbEndpointDescriptor)) {
+            return false;
+        }
+        UsbEndpointDescriptor d = (UsbEndpointDescriptor) o;
+        return hash == d.hash &&
+                bEndpointAddress == d.bEndpointAddress && bmAttributes == d.bmAttributes &&
+                wMaxPacketSize == d.wMaxPacketSize && bInterval == d.bInterval && bRefresh == d.bRefresh &&
+                bSynchAddress == d.bSynchAddress && Arrays.equals(extra, d.extra);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UsbEndpointDescriptor{bEndpointAddress=%02x, bmAttributes=%02x, wMaxPacketSize=%d, " +
+                        "bInterval=%d, extra=%d}",
+                bEndpointAddress & 0xff, bmAttributes & 0xff, wMaxPacketSize & 0xffff, bInterval & 0xff,
+                extra.length);
+    }
+}
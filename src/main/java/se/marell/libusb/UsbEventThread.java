@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.timeval;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Thread driving libusb event handling for one context. Asynchronous transfer callbacks run on this thread.
+ *
+ * Each iteration calls libusb_handle_events_timeout_completed() with the configured tick as timeout, so the
+ * thread reacts to stop() within one tick. The time spent in each iteration is recorded and may be read with
+ * the statistics getters while the thread runs. Tasks added with addTask() run after each iteration, on this
+ * thread.
+ *
+ * Normally started and stopped by LibUsbSystem, see LibUsbSystem.startEventThread().
+ */
+public class UsbEventThread extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(UsbEventThread.class);
+
+    private final LibUsb usb;
+    private final Pointer context;
+    private final int tickMs;
+    private final Memory stopFlag = new Memory(4);
+    private volatile boolean running = true;
+    private final List<Runnable> tasks = new CopyOnWriteArrayList<Runnable>();
+
+    private volatile long iterations;
+    private volatile long totalIterationNanos;
+    private volatile long maxIterationNanos;
+    private volatile long lastIterationNanos;
+    private volatile long errors;
+
+    /**
+     * @param usb     native library object
+     * @param context the context to handle events for, or null for the default context
+     * @param tickMs  maximum time in ms each iteration blocks waiting for events
+     */
+    public UsbEventThread(LibUsb usb, Pointer context, int tickMs) {
+        super("libusb-events");
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs=" + tickMs);
+        }
+        this.usb = usb;
+        this.context = context;
+        this.tickMs = tickMs;
+        stopFlag.setInt(0, 0);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        timeval tv = new timeval();
+        tv.setMicros(tickMs * 1000L);
+        log.debug("Event thread started, tick " + tickMs + " ms");
+        while (running) {
+            long t0 = System.nanoTime();
+            int rc = usb.libusb_handle_events_timeout_completed(context, tv, stopFlag);
+            long elapsed = System.nanoTime() - t0;
+            iterations++;
+            totalIterationNanos += elapsed;
+            lastIterationNanos = elapsed;
+            if (elapsed > maxIterationNanos) {
+                maxIterationNanos = elapsed;
+            }
+            if (rc < 0 && rc != libusb_error.ERROR_INTERRUPTED) {
+                errors++;
+                log.warn("libusb_handle_events_timeout_completed failed:" + libusb_error.getText(rc));
+                try {
+                    Thread.sleep(tickMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Event thread task failed", e);
+                }
+            }
+        }
+        log.debug("Event thread stopped");
+    }
+
+    /**
+     * Add a task run after each event handling iteration, that is at least once per tick. The task shall not
+     * block.
+     *
+     * @param task the task
+     */
+    public void addTask(Runnable task) {
+        tasks.add(task);
+    }
+
+    /**
+     * @param task a task added with addTask()
+     */
+    public void removeTask(Runnable task) {
+        tasks.remove(task);
+    }
+
+    /**
+     * Stop the thread and wait for it to terminate. Returns within about one tick.
+     *
+     * @throws IllegalStateException if called from this thread, for example from a transfer callback, which
+     *                               would wait for itself
+     */
+    public void shutdown() {
+        if (Thread.currentThread() == this) {
+            throw new IllegalStateException("Event thread cannot shut itself down");
+        }
+        running = false;
+        stopFlag.setInt(0, 1);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return tick in ms
+     */
+    public int getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * @return number of completed event handling iterations
+     */
+    public long getIterationCount() {
+        return iterations;
+    }
+
+    /**
+     * @return time spent in the last iteration in ns
+     */
+    public long getLastIterationNanos() {
+        return lastIterationNanos;
+    }
+
+    /**
+     * @return longest time spent in one iteration in ns
+     */
+    public long getMaxIterationNanos() {
+        return maxIterationNanos;
+    }
+
+    /**
+     * @return total time spent in event handling in ns
+     */
+    public long getTotalIterationNanos() {
+        return totalIterationNanos;
+    }
+
+    /**
+     * @return number of iterations where libusb reported an error
+     */
+    public long getErrorCount() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        long n = iterations;
+        return "UsbEventThread {" +
+                " tickMs=" + tickMs +
+                " iterations=" + n +
+                " avgIterationNanos=" + (n == 0 ? 0 : totalIterationNanos / n) +
+                " maxIterationNanos=" + maxIterationNanos +
+                " errors=" + errors +
+                "}";
+    }
+}
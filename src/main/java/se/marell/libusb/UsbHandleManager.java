@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Counts the open handles and device references held through UsbDevice objects of one LibUsb backend.
+ *
+ * A device has at most one libusb device handle. UsbDevice.open() of a device that is already open, through the
+ * same or another UsbDevice object, reuses that handle and counts one more open, and the handle is closed by the
+ * matching number of UsbDevice.close(). References taken with UsbDevice.ref_device() are counted the same way.
+ *
+ * A UsbDevice that is garbage collected while holding opens is a leak: it is logged and its opens are closed.
+ * With leak detection enabled every open records the stack of the caller, which is logged with the leak.
+ * References still held by a garbage collected UsbDevice are released without being counted as leaks, since
+ * that is how the devices returned by UsbSystem.visitUsbDevices() are released when not unreferenced explicitly.
+ * The manager outlives the contexts of its backend, so the opens and references still held through the devices
+ * of a context are released by LibUsbSystem.cleanup() before the context is exited, see release().
+ *
+ * The manager is thread safe.
+ */
+public class UsbHandleManager {
+    private static final Logger log = LoggerFactory.getLogger(UsbHandleManager.class);
+
+    private static final Map<LibUsb, UsbHandleManager> managers = new WeakHashMap<LibUsb, UsbHandleManager>();
+
+    private final Map<Long, Handle> handles = new HashMap<Long, Handle>();
+    private final ReferenceQueue<UsbDevice> leakQueue = new ReferenceQueue<UsbDevice>();
+    private final Set<Lease> leases = new HashSet<Lease>();
+    private volatile boolean leakDetection;
+
+    private int opens;
+    private int refs;
+    private long handlesOpened;
+    private long handlesReused;
+    private long leaks;
+
+    /**
+     * An open libusb device handle
+     */
+    private static class Handle {
+        final Pointer dev_handle;
+        int opens;
+
+        Handle(Pointer dev_handle) {
+            this.dev_handle = dev_handle;
+        }
+    }
+
+    /**
+     * The opens and references held by a UsbDevice. Keeps what is needed to release them if it is garbage collected.
+     */
+    static class Lease extends PhantomReference<UsbDevice> {
+        final LibUsb usb;
+        final Pointer context;
+        final Pointer usb_device;
+        int opens;
+        int refs;
+        Throwable openedAt;
+
+        /**
+         * Set when the context has been exited, after which the lease is no longer used
+         */
+        boolean released;
+
+        Lease(UsbDevice device, ReferenceQueue<UsbDevice> queue) {
+            super(device, queue);
+            this.usb = device.getLibUsb();
+            this.context = device.getContext();
+            this.usb_device = device.get_usb_device();
+        }
+    }
+
+    UsbHandleManager() {
+    }
+
+    /**
+     * Get the handle manager of a backend.
+     *
+     * @param usb the backend
+     * @return the manager, created on first use
+     */
+    public static UsbHandleManager get(LibUsb usb) {
+        synchronized (managers) {
+            UsbHandleManager m = managers.get(usb);
+            if (m == null) {
+                m = new UsbHandleManager();
+                managers.put(usb, m);
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Open the device, or count one more open of its handle if it is already open.
+     *
+     * @param dev_handle output location for the handle
+     * @return 0 or a libusb_error from libusb_open()
+     */
+    synchronized int open(UsbDevice device, Pointer[] dev_handle) {
+        reclaimLeaks();
+        Long key = Pointer.nativeValue(device.get_usb_device());
+        Handle h = handles.get(key);
+        if (h == null) {
+            int rc = device.getLibUsb().libusb_open(device.get_usb_device(), dev_handle);
+            if (rc < 0) {
+                return rc;
+            }
+            h = new Handle(dev_handle[0]);
+            handles.put(key, h);
+            handlesOpened++;
+        } else {
+            dev_handle[0] = h.dev_handle;
+            handlesReused++;
+        }
+        h.opens++;
+        opens++;
+        Lease lease = lease(device);
+        lease.opens++;
+        if (leakDetection && lease.openedAt == null) {
+            lease.openedAt = new Throwable("Opened at");
+        }
+        return 0;
+    }
+
+    /**
+     * Undo one open of the device, closing its handle when no opens remain.
+     *
+     * @return number of opens still held by device
+     */
+    synchronized int close(UsbDevice device) {
+        Lease lease = device.lease;
+        if (lease == null || lease.opens == 0) {
+            return 0;
+        }
+        lease.opens--;
+        closeHandle(lease.usb, lease.usb_device);
+        int remaining = lease.opens;
+        endLease(device, lease);
+        return remaining;
+    }
+
+    /**
+     * Increment the reference count of the device and count it as held by device.
+     */
+    synchronized void ref(UsbDevice device) {
+        reclaimLeaks();
+        device.getLibUsb().libusb_ref_device(device.get_usb_device());
+        adopt(device);
+    }
+
+    /**
+     * Count a reference taken by other means, for example by libusb_get_device_list(), as held by device.
+     */
+    synchronized void adopt(UsbDevice device) {
+        lease(device).refs++;
+        refs++;
+    }
+
+    /**
+     * Decrement the reference count of the device, and the references counted as held by device if any.
+     */
+    synchronized void unref(UsbDevice device) {
+        Lease lease = device.lease;
+        if (lease != null && lease.refs > 0) {
+            lease.refs--;
+            refs--;
+            endLease(device, lease);
+        }
+        device.getLibUsb().libusb_unref_device(device.get_usb_device());
+    }
+
+    private Lease lease(UsbDevice device) {
+        Lease lease = device.lease;
+        if (lease == null || lease.released) {
+            lease = new Lease(device, leakQueue);
+            leases.add(lease);
+            device.lease = lease;
+        }
+        return lease;
+    }
+
+    private void endLease(UsbDevice device, Lease lease) {
+        if (lease.opens == 0 && lease.refs == 0) {
+            leases.remove(lease);
+            lease.clear();
+            device.lease = null;
+        }
+    }
+
+    /**
+     * Release the opens and references held through the devices of a context, before the context is exited.
+     * Devices garbage collected later are then no longer released, and devices still open are logged.
+     *
+     * @param context the context, null for the default context
+     */
+    synchronized void release(Pointer context) {
+        reclaimLeaks();
+        for (Iterator<Lease> i = leases.iterator(); i.hasNext(); ) {
+            Lease lease = i.next();
+            if (context == null ? lease.context != null : !context.equals(lease.context)) {
+                continue;
+            }
+            i.remove();
+            lease.clear();
+            lease.released = true;
+            if (lease.opens > 0) {
+                log.warn("UsbDevice " + lease.usb_device + " still open at cleanup, closing " + lease.opens + " opens");
+                for (; lease.opens > 0; lease.opens--) {
+                    closeHandle(lease.usb, lease.usb_device);
+                }
+            }
+            for (; lease.refs > 0; lease.refs--) {
+                refs--;
+                lease.usb.libusb_unref_device(lease.usb_device);
+            }
+        }
+    }
+
+    private void closeHandle(LibUsb usb, Pointer usb_device) {
+        Long key = Pointer.nativeValue(usb_device);
+        Handle h = handles.get(key);
+        opens--;
+        if (--h.opens == 0) {
+            handles.remove(key);
+            usb.libusb_close(h.dev_handle);
+        }
+    }
+
+    /**
+     * Enable or disable recording of where devices are opened, logged when an open device leaks.
+     *
+     * @param leakDetection true to enable
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * @return true if leak detection is enabled
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @return number of open libusb device handles
+     */
+    public synchronized int getOpenHandleCount() {
+        reclaimLeaks();
+        return handles.size();
+    }
+
+    /**
+     * @return number of opens not yet closed, at least getOpenHandleCount()
+     */
+    public synchronized int getOpenCount() {
+        reclaimLeaks();
+        return opens;
+    }
+
+    /**
+     * @return number of device references held through UsbDevice objects
+     */
+    public synchronized int getReferenceCount() {
+        reclaimLeaks();
+        return refs;
+    }
+
+    /**
+     * @return number of times libusb_open() has been called
+     */
+    public synchronized long getHandlesOpened() {
+        return handlesOpened;
+    }
+
+    /**
+     * @return number of opens that reused a handle already open
+     */
+    public synchronized long getHandlesReused() {
+        return handlesReused;
+    }
+
+    /**
+     * @return number of UsbDevice objects garbage collected while open
+     */
+    public synchronized long getLeaks() {
+        reclaimLeaks();
+        return leaks;
+    }
+
+    /**
+     * Release the opens and references of UsbDevice objects that have been garbage collected, logging the opens.
+     */
+    private void reclaimLeaks() {
+        Lease lease;
+        while ((lease = (Lease) leakQueue.poll()) != null) {
+            if (!leases.remove(lease)) {
+                continue;
+            }
+            if (lease.opens > 0) {
+                leaks++;
+                String msg = "UsbDevice " + lease.usb_device + " was not closed, closing " + lease.opens + " opens";
+                if (lease.openedAt != null) {
+                    log.error(msg, lease.openedAt);
+                } else {
+                    log.error(msg);
+                }
+                for (; lease.opens > 0; lease.opens--) {
+                    closeHandle(lease.usb, lease.usb_device);
+                }
+            }
+            for (; lease.refs > 0; lease.refs--) {
+                refs--;
+                lease.usb.libusb_unref_device(lease.usb_device);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UsbHandleManager {" +
+                " handles=" + handles.size() +
+                " opens=" + opens +
+                " refs=" + refs +
+                " handlesOpened=" + handlesOpened +
+                " handlesReused=" + handlesReused +
+                " leaks=" + leaks +
+                "}";
+    }
+}
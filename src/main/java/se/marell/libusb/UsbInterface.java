@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable USB interface of a UsbConfigDescriptor: the alternate settings sharing an interface number.
+ */
+public final class UsbInterface {
+    private final List<UsbInterfaceDescriptor> altSettings;
+    private final int hash;
+
+    UsbInterface(UsbInterfaceDescriptor[] altSettings) {
+        this.altSettings = Collections.unmodifiableList(Arrays.asList(altSettings));
+        hash = Arrays.hashCode(altSettings);
+    }
+
+    /**
+     * @return the alternate settings, in the order given by the device
+     */
+    public List<UsbInterfaceDescriptor> getAltSettings() {
+        return altSettings;
+    }
+
+    /**
+     * @return the interface number, or -1 if there are no alternate settings
+     */
+    public int getInterfaceNumber() {
+        return altSettings.isEmpty() ? -1 : altSettings.get(0).getBInterfaceNumber() & 0xff;
+    }
+
+    /**
+     * Get an alternate setting by value.
+     *
+     * @param alternateSetting bAlternateSetting of the alternate setting
+     * @return the alternate setting, or null if there is none with this value
+     */
+    public UsbInterfaceDescriptor getAltSetting(int alternateSetting) {
+        for (UsbInterfaceDescriptor d : altSettings) {
+            if ((d.getBAlternateSetting() & 0xff) == alternateSetting) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof UsbInterface && hash == ((UsbInterface) o).hash &&
+                altSettings.equals(((UsbInterface) o).altSettings);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "UsbInterface{altSettings=" + altSettings + "}";
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable USB interface descriptor, one alternate setting of a UsbInterface, with its endpoints.
+ */
+public final class UsbInterfaceDescriptor {
+    private final byte bInterfaceNumber;
+    private final byte bAlternateSetting;
+    private final byte bInterfaceClass;
+    private final byte bInterfaceSubClass;
+    private final byte bInterfaceProtocol;
+    private final byte iInterface;
+    private final List<UsbEndpointDescriptor> endpoints;
+    private final byte[] extra;
+    private final int hash;
+
+    UsbInterfaceDescriptor(byte bInterfaceNumber, byte bAlternateSetting, byte bInterfaceClass,
+                           byte bInterfaceSubClass, byte bInterfaceProtocol, byte iInterface,
+                           UsbEndpointDescriptor[] endpoints, byte[] extra) {
+        this.bInterfaceNumber = bInterfaceNumber;
+        this.bAlternateSetting = bAlternateSetting;
+        this.bInterfaceClass = bInterfaceClass;
+        this.bInterfaceSubClass = bInterfaceSubClass;
+        this.bInterfaceProtocol = bInterfaceProtocol;
+        this.iInterface = iInterface;
+        this.endpoints = Collections.unmodifiableList(Arrays.asList(endpoints));
+        this.extra = extra;
+        int h = (bInterfaceNumber & 0xff) << 24 | (bAlternateSetting & 0xff) << 16 | (iInterface & 0xff);
+        h = 31 * h + ((bInterfaceClass & 0xff) << 16 | (bInterfaceSubClass & 0xff) << 8 | (bInterfaceProtocol & 0xff));
+        h = 31 * h + Arrays.hashCode(endpoints);
+        hash = 31 * h + Arrays.hashCode(extra);
+    }
+
+    /**
+     * @return Number of this interface.
+     */
+    public byte getBInterfaceNumber() {
+        return bInterfaceNumber;
+    }
+
+    /**
+     * @return Value used to select this alternate setting for this interface.
+     */
+    public byte getBAlternateSetting() {
+        return bAlternateSetting;
+    }
+
+    /**
+     * @return USB-IF class code for this interface.
+     */
+    public byte getBInterfaceClass() {
+        return bInterfaceClass;
+    }
+
+    /**
+     * @return USB-IF subclass code for this interface, qualified by the bInterfaceClass value.
+     */
+    public byte getBInterfaceSubClass() {
+        return bInterfaceSubClass;
+    }
+
+    /**
+     * @return USB-IF protocol code for this interface, qualified by the bInterfaceClass and bInterfaceSubClass
+     * values.
+     */
+    public byte getBInterfaceProtocol() {
+        return bInterfaceProtocol;
+    }
+
+    /**
+     * @return Index of string descriptor describing this interface.
+     */
+    public byte getIInterface() {
+        return iInterface;
+    }
+
+    /**
+     * @return The endpoints of this alternate setting, excluding endpoint 0
+     */
+    public List<UsbEndpointDescriptor> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Get an endpoint by address.
+     *
+     * @param endpoint endpoint address, including the direction bit
+     * @return the endpoint, or null if this alternate setting has no such endpoint
+     */
+    public UsbEndpointDescriptor getEndpoint(int endpoint) {
+        for (UsbEndpointDescriptor e : endpoints) {
+            if ((e.getBEndpointAddress() & 0xff) == (endpoint & 0xff)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Extra descriptors following the interface descriptor, for example a HID descriptor, empty if there
+     * are none
+     */
+    public byte[] getExtra() {
+        return extra.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UsbInterfaceDescriptor)) {
+            return false;
+        }
+        UsbInterfaceDescriptor d = (UsbInterfaceDescriptor) o;
+        return hash == d.hash &&
+                bInterfaceNumber == d.bInterfaceNumber && bAlternateSetting == d.bAlternateSetting &&
+                bInterfaceClass == d.bInterfaceClass && bInterfaceSubClass == d.bInterfaceSubClass &&
+                bInterfaceProtocol == d.bInterfaceProtocol && iInterface == d.iInterface &&
+                endpoints.equals(d.endpoints) && Arrays.equals(extra, d.extra);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UsbInterfaceDescriptor{bInterfaceNumber=%d, bAlternateSetting=%d, class=%02x/%02x/%02x, " +
+                        "endpoints=%s}",
+                bInterfaceNumber & 0xff, bAlternateSetting & 0xff,
+                bInterfaceClass & 0xff, bInterfaceSubClass & 0xff, bInterfaceProtocol & 0xff, endpoints);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_pollfd;
+import se.marell.libusb.jna.libusb_pollfd_added_cb;
+import se.marell.libusb.jna.libusb_pollfd_removed_cb;
+import se.marell.libusb.jna.timeval;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * libusb event source for an application's own poll loop.
+ *
+ * Tracks the file descriptors libusb wants monitored, as returned by libusb_get_pollfds() and later reported
+ * through the pollfd notifiers, and passes additions and removals on to listeners which typically register
+ * them with an epoll or select based reactor (see EpollEventLoop). When the reactor finds one of the file
+ * descriptors ready it calls handleEvents(), which lets libusb handle the events without blocking.
+ *
+ * Do not combine with an event thread (LibUsbSystem.startEventThread()) on the same context.
+ */
+public class UsbPollSource {
+    private static final Logger log = LoggerFactory.getLogger(UsbPollSource.class);
+
+    public interface Listener {
+        /**
+         * A file descriptor shall be monitored.
+         *
+         * @param fd     file descriptor
+         * @param events libusb_pollfd.POLLIN and/or libusb_pollfd.POLLOUT
+         */
+        void pollfdAdded(int fd, int events);
+
+        /**
+         * A file descriptor shall no longer be monitored.
+         *
+         * @param fd file descriptor
+         */
+        void pollfdRemoved(int fd);
+    }
+
+    private final LibUsb usb;
+    private final Pointer context;
+    private final Map<Integer, Integer> pollfds = new ConcurrentHashMap<Integer, Integer>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final timeval zero = new timeval();
+    private final timeval next = new timeval();
+    private boolean open;
+
+    // Referenced from here to stay reachable while libusb holds them
+    private final libusb_pollfd_added_cb addedCallback = new libusb_pollfd_added_cb() {
+        @Override
+        public void invoke(int fd, short events, Pointer user_data) {
+            added(fd, events);
+        }
+    };
+    private final libusb_pollfd_removed_cb removedCallback = new libusb_pollfd_removed_cb() {
+        @Override
+        public void invoke(int fd, Pointer user_data) {
+            removed(fd);
+        }
+    };
+
+    /**
+     * @param usb     native library object
+     * @param context the context to operate on, or null for the default context
+     */
+    public UsbPollSource(LibUsb usb, Pointer context) {
+        this.usb = usb;
+        this.context = context;
+        zero.write();
+    }
+
+    /**
+     * Register the pollfd notifiers and read the current set of file descriptors.
+     */
+    public synchronized void open() {
+        if (open) {
+            return;
+        }
+        open = true;
+        usb.libusb_set_pollfd_notifiers(context, addedCallback, removedCallback, null);
+        Pointer list = usb.libusb_get_pollfds(context);
+        if (list == null) {
+            log.warn("libusb_get_pollfds failed");
+            return;
+        }
+        for (Pointer p : list.getPointerArray(0)) {
+            libusb_pollfd pollfd = new libusb_pollfd(p);
+            added(pollfd.fd, pollfd.events);
+        }
+        try {
+            usb.libusb_free_pollfds(list);
+        } catch (UnsatisfiedLinkError e) {
+            // libusb < 1.0.20, the list is leaked
+        }
+    }
+
+    /**
+     * Unregister the pollfd notifiers. Listeners are told that all file descriptors are removed.
+     */
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        usb.libusb_set_pollfd_notifiers(context, null, null, null);
+        for (Integer fd : pollfds.keySet()) {
+            removed(fd);
+        }
+    }
+
+    /**
+     * Add a listener. It is immediately told about the file descriptors currently monitored.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        for (Map.Entry<Integer, Integer> e : pollfds.entrySet()) {
+            listener.pollfdAdded(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return copy of the file descriptors to monitor, mapped to the events to monitor for
+     */
+    public Map<Integer, Integer> getPollfds() {
+        return new HashMap<Integer, Integer>(pollfds);
+    }
+
+    /**
+     * @return true if libusb handles all timeouts through activity on its file descriptors, false if
+     * getNextTimeoutMillis() must be honoured
+     */
+    public boolean pollfdsHandleTimeouts() {
+        return usb.libusb_pollfds_handle_timeouts(context) == 1;
+    }
+
+    /**
+     * Determine when libusb needs to be called into next to handle timeouts.
+     *
+     * @return timeout in ms, rounded up, or -1 if there are no pending timeouts
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public int getNextTimeoutMillis() throws LibUsbOtherException {
+        int rc;
+        synchronized (next) {
+            rc = usb.libusb_get_next_timeout(context, next);
+            if (rc == 1) {
+                next.read();
+                return (int) ((next.getMicros() + 999) / 1000);
+            }
+        }
+        if (rc < 0) {
+            throw new LibUsbOtherException(rc);
+        }
+        return -1;
+    }
+
+    /**
+     * Handle pending events without blocking. Call this when one of the file descriptors is ready, or when the
+     * timeout from getNextTimeoutMillis() has expired. Transfer callbacks run on the calling thread.
+     *
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    public void handleEvents() throws LibUsbOtherException {
+        int rc = usb.libusb_handle_events_timeout(context, zero);
+        if (rc < 0) {
+            throw new LibUsbOtherException(rc);
+        }
+    }
+
+    private void added(int fd, int events) {
+        if (pollfds.put(fd, events) != null) {
+            return;
+        }
+        log.trace("pollfd added:" + fd);
+        for (Listener l : listeners) {
+            l.pollfdAdded(fd, events);
+        }
+    }
+
+    private void removed(int fd) {
+        if (pollfds.remove(fd) == null) {
+            return;
+        }
+        log.trace("pollfd removed:" + fd);
+        for (Listener l : listeners) {
+            l.pollfdRemoved(fd);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns devices to the shards of a ShardedUsbSystem. A device is opened through, and its transfers complete
+ * on the event thread of, the context of its shard.
+ *
+ * The policy is consulted with a device from each context in turn, so it must give the same shard for the same
+ * physical device every time, for example by deciding on bus number or port path. It is called while
+ * enumerating and should not do I/O; the device descriptor is read if used.
+ */
+public interface UsbShardPolicy {
+    /**
+     * @param device     the device
+     * @param shardCount number of shards
+     * @return shard of the device, 0..shardCount-1
+     */
+    int shardOf(UsbDevice device, int shardCount);
+
+    /**
+     * Devices on the same bus share a shard, spreading host controllers across shards.
+     */
+    UsbShardPolicy BY_BUS_NUMBER = new UsbShardPolicy() {
+        @Override
+        public int shardOf(UsbDevice device, int shardCount) {
+            return device.get_bus_number() % shardCount;
+        }
+
+        @Override
+        public String toString() {
+            return "BY_BUS_NUMBER";
+        }
+    };
+
+    /**
+     * Assigns devices to shards in turn as they are first seen. A device reconnected to the same port gets the
+     * same shard.
+     */
+    final class RoundRobin implements UsbShardPolicy {
+        private final Map<String, Integer> shards = new ConcurrentHashMap<String, Integer>();
+        private int next;
+
+        @Override
+        public synchronized int shardOf(UsbDevice device, int shardCount) {
+            String portPath = device.getPortPath();
+            Integer shard = shards.get(portPath);
+            if (shard == null) {
+                shard = next;
+                next = (next + 1) % shardCount;
+                shards.put(portPath, shard);
+            }
+            return shard;
+        }
+
+        @Override
+        public String toString() {
+            return "RoundRobin{assigned=" + shards.size() + "}";
+        }
+    }
+
+    /**
+     * Places given ports on given shards and leaves the other devices to another policy, for example to give
+     * each high rate device a shard of its own.
+     */
+    final class Pinned implements UsbShardPolicy {
+        private final Map<String, Integer> pins = new ConcurrentHashMap<String, Integer>();
+        private final UsbShardPolicy other;
+
+        /**
+         * @param other policy for the devices not pinned
+         */
+        public Pinned(UsbShardPolicy other) {
+            this.other = other;
+        }
+
+        /**
+         * Pin a port to a shard. Applies to devices enumerated from now on.
+         *
+         * @param portPath port path, see UsbDevice.getPortPath()
+         * @param shard    the shard
+         * @return this policy
+         */
+        public Pinned pin(String portPath, int shard) {
+            if (shard < 0) {
+                throw new IllegalArgumentException("shard=" + shard);
+            }
+            pins.put(portPath, shard);
+            return this;
+        }
+
+        @Override
+        public int shardOf(UsbDevice device, int shardCount) {
+            Integer shard = pins.get(device.getPortPath());
+            if (shard == null) {
+                return other.shardOf(device, shardCount);
+            }
+            if (shard >= shardCount) {
+                throw new IllegalStateException("Port " + device.getPortPath() + " pinned to shard " + shard +
+                        " of " + shardCount);
+            }
+            return shard;
+        }
+
+        @Override
+        public String toString() {
+            return "Pinned{pins=" + pins + ", other=" + other + "}";
+        }
+    }
+}
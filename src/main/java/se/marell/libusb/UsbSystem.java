@@ -50,7 +50,8 @@ public interface UsbSystem {
      * Find and select USB device(s).
      *
      * @param visitor Implemented by caller used by this method to identify USB-device to open and return
-     * @return List of USB devices of interest
+     * @return List of USB devices of interest. Each holds a device reference, released by unref_device() or when
+     * the UsbDevice is garbage collected.
      * @throws LibUsbNoDeviceException   if the device has been disconnected
      * @throws LibUsbPermissionException if the user has insufficient permissions
      * @throws LibUsbOtherException      if another USB error occurred
@@ -59,6 +60,24 @@ public interface UsbSystem {
             LibUsbPermissionException,
             LibUsbOtherException;
 
+    /**
+     * Handle any pending events in blocking mode.
+     * 
+     * Asynchronous transfers (see UsbTransfer and the *Async methods of UsbDevice) complete from within this
+     * method, on the calling thread. Call it repeatedly from a thread of your own while transfers are in flight,
+     * unless the implementation runs its own event thread (see LibUsbSystem.startEventThread()).
+     *
+     * The default implementation handles the events of the default libusb context.
+     *
+     * @throws LibUsbOtherException if a USB error occurred
+     */
+    default void handle_events() throws LibUsbOtherException {
+        int rc = getLibUsb().libusb_handle_events(null);
+        if (rc < 0) {
+            throw new LibUsbOtherException(rc);
+        }
+    }
+
     /**
      * Deinitialize libusb.
      * 
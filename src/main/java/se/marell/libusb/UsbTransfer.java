@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_cb_fn;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An asynchronous USB transfer allocated with libusb_alloc_transfer().
+ *
+ * A transfer is filled, submitted and later completed from within libusb event handling, on whatever thread
+ * is handling events at the time (see UsbSystem.handle_events()). The listener is then invoked with the
+ * transfer. A completed transfer may be re-filled and re-submitted, also from within the listener.
+ *
+ * The data buffer is native memory owned by the caller and must stay reachable until the transfer completes.
+ * When the transfer is no longer needed it must be released with free().
+ */
+public class UsbTransfer {
+    private static final Logger log = LoggerFactory.getLogger(UsbTransfer.class);
+
+    /**
+     * Transfers currently submitted, keyed by native transfer address. This keeps the transfers reachable
+     * while libusb owns them and lets one shared callback serve every transfer.
+     */
+    private static final ConcurrentMap<Long, UsbTransfer> submittedTransfers = new ConcurrentHashMap<Long, UsbTransfer>();
+
+    private static final libusb_transfer_cb_fn callback = new libusb_transfer_cb_fn() {
+        @Override
+        public void invoke(Pointer transfer) {
+            UsbTransfer t = submittedTransfers.remove(Pointer.nativeValue(transfer));
+            if (t == null) {
+                log.warn("Completion for unknown transfer " + transfer);
+                return;
+            }
+            t.completed();
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Called when the transfer has completed, failed or been cancelled.
+         *
+         * @param transfer the completed transfer
+         */
+        void transferCompleted(UsbTransfer transfer);
+    }
+
+    private final LibUsb usb;
+    private final Pointer pointer;
+    private final libusb_transfer transfer;
+    private Pointer buffer;
+    private Listener listener;
+    private volatile boolean submitted;
+
+    /**
+     * Allocate a transfer.
+     *
+     * @param usb         native library object
+     * @param iso_packets number of isochronous packet descriptors to allocate, 0 for non-isochronous transfers
+     */
+    public UsbTransfer(LibUsb usb, int iso_packets) {
+        this.usb = usb;
+        pointer = usb.libusb_alloc_transfer(iso_packets);
+        if (pointer == null) {
+            throw new OutOfMemoryError("libusb_alloc_transfer failed");
+        }
+        transfer = new libusb_transfer(pointer);
+    }
+
+    /**
+     * Get the Java callback of a transfer being submitted through this class. Bindings that route completions
+     * themselves, instead of through the native callback pointer JNA created, invoke it with the transfer.
+     *
+     * @param transfer libusb_transfer pointer
+     * @return the callback, or null if the transfer is not being submitted through this class
+     */
+    public static libusb_transfer_cb_fn getCallback(Pointer transfer) {
+        return submittedTransfers.containsKey(Pointer.nativeValue(transfer)) ? callback : null;
+    }
+
+    /**
+     * Get libusb_transfer pointer.
+     *
+     * @return libusb_transfer pointer
+     */
+    public Pointer get_transfer() {
+        return pointer;
+    }
+
+    /**
+     * Set the listener invoked when the transfer completes.
+     *
+     * @param listener the listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Populate the transfer for a bulk transfer.
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param endpoint   address of the endpoint where this transfer will be sent
+     * @param buffer     native data buffer
+     * @param length     number of bytes of the buffer to send or receive
+     * @param timeout    timeout for the transfer in milliseconds, 0 for no timeout
+     */
+    public void fill_bulk_transfer(Pointer dev_handle, int endpoint, Pointer buffer, int length, int timeout) {
+        this.buffer = buffer;
+        transfer.fill_bulk_transfer(dev_handle, (byte) endpoint, buffer, length, callback, null, timeout);
+    }
+
+    /**
+     * Populate the transfer for an interrupt transfer.
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param endpoint   address of the endpoint where this transfer will be sent
+     * @param buffer     native data buffer
+     * @param length     number of bytes of the buffer to send or receive
+     * @param timeout    timeout for the transfer in milliseconds, 0 for no timeout
+     */
+    public void fill_interrupt_transfer(Pointer dev_handle, int endpoint, Pointer buffer, int length, int timeout) {
+        this.buffer = buffer;
+        transfer.fill_interrupt_transfer(dev_handle, (byte) endpoint, buffer, length, callback, null, timeout);
+    }
+
+    /**
+     * Populate the transfer for an isochronous transfer and set the length of every packet to packet_length.
+     *
+     * @param dev_handle      handle of the device that will handle the transfer
+     * @param endpoint        address of the endpoint where this transfer will be sent
+     * @param buffer          native data buffer, at least num_iso_packets * packet_length bytes
+     * @param num_iso_packets number of packets, at most the number the transfer was allocated with
+     * @param packet_length   length of each packet
+     * @param timeout         timeout for the transfer in milliseconds, 0 for no timeout
+     */
+    public void fill_iso_transfer(Pointer dev_handle, int endpoint, Pointer buffer, int num_iso_packets,
+                                  int packet_length, int timeout) {
+        this.buffer = buffer;
+        transfer.fill_iso_transfer(dev_handle, (byte) endpoint, buffer, num_iso_packets * packet_length,
+                num_iso_packets, callback, null, timeout);
+        transfer.set_iso_packet_lengths(packet_length);
+    }
+
+    /**
+     * Populate the transfer for a control transfer. The buffer must start with a setup packet, see
+     * libusb_transfer.fill_control_setup().
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param buffer     native buffer holding setup packet and data stage
+     * @param timeout    timeout for the transfer in milliseconds, 0 for no timeout
+     */
+    public void fill_control_transfer(Pointer dev_handle, Pointer buffer, int timeout) {
+        this.buffer = buffer;
+        transfer.fill_control_transfer(dev_handle, buffer, callback, null, timeout);
+    }
+
+    /**
+     * Submit the transfer. This function returns immediately, the listener is invoked when the transfer completes.
+     *
+     * @throws LibUsbNoDeviceException if the device has been disconnected
+     * @throws LibUsbBusyException     if the transfer has already been submitted
+     * @throws LibUsbOtherException    if another USB error occurred
+     */
+    public void submit() throws LibUsbNoDeviceException,
+            LibUsbBusyException,
+            LibUsbOtherException {
+        Long key = Pointer.nativeValue(pointer);
+        if (submittedTransfers.putIfAbsent(key, this) != null) {
+            throw new LibUsbBusyException();
+        }
+        submitted = true;
+        int rc = usb.libusb_submit_transfer(pointer);
+        if (rc < 0) {
+            submittedTransfers.remove(key);
+            submitted = false;
+            switch (rc) {
+                case libusb_error.ERROR_NO_DEVICE:
+                    throw new LibUsbNoDeviceException();
+                case libusb_error.ERROR_BUSY:
+                    throw new LibUsbBusyException();
+                default:
+                    throw new LibUsbOtherException(rc);
+            }
+        }
+    }
+
+    /**
+     * Asynchronously cancel the transfer. The listener is invoked later with status TRANSFER_CANCELLED.
+     *
+     * @return true if cancellation was requested, false if the transfer was not in progress
+     */
+    public boolean cancel() {
+        if (!submitted) {
+            return false;
+        }
+        return usb.libusb_cancel_transfer(pointer) == 0;
+    }
+
+    /**
+     * Free the transfer. It is not legal to free a transfer which is submitted and has not yet completed.
+     */
+    public void free() {
+        if (submitted) {
+            throw new IllegalStateException("Transfer is in progress");
+        }
+        usb.libusb_free_transfer(pointer);
+    }
+
+    /**
+     * @return true if the transfer has been submitted and has not yet completed
+     */
+    public boolean isSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return transfer status from libusb_transfer_status, valid after completion
+     */
+    public int getStatus() {
+        return transfer.status;
+    }
+
+    /**
+     * @return number of bytes actually transferred, valid after completion
+     */
+    public int getActualLength() {
+        return transfer.actual_length;
+    }
+
+    /**
+     * @return requested length of the transfer
+     */
+    public int getLength() {
+        return transfer.length;
+    }
+
+    /**
+     * @return endpoint address of the transfer
+     */
+    public int getEndpoint() {
+        return transfer.endpoint & 0xff;
+    }
+
+    /**
+     * @return number of isochronous packets of the transfer
+     */
+    public int getNumIsoPackets() {
+        return transfer.num_iso_packets;
+    }
+
+    /**
+     * @param packet packet index
+     * @return transfer status from libusb_transfer_status of the isochronous packet, valid after completion
+     */
+    public int getIsoPacketStatus(int packet) {
+        return transfer.get_iso_packet_status(packet);
+    }
+
+    /**
+     * @param packet packet index
+     * @return number of bytes actually transferred in the isochronous packet, valid after completion
+     */
+    public int getIsoPacketActualLength(int packet) {
+        return transfer.get_iso_packet_actual_length(packet);
+    }
+
+    /**
+     * @param packet packet index
+     * @return offset of the isochronous packet in the buffer
+     */
+    public int getIsoPacketOffset(int packet) {
+        return transfer.get_iso_packet_offset(packet);
+    }
+
+    /**
+     * @return native data buffer of the transfer
+     */
+    public Pointer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get an exception describing the completion status of the transfer.
+     *
+     * @return the exception corresponding to the transfer status, or null if the transfer completed
+     */
+    public LibUsbException getStatusException() {
+        switch (transfer.status) {
+            case libusb_transfer_status.TRANSFER_COMPLETED:
+                return null;
+            case libusb_transfer_status.TRANSFER_TIMED_OUT:
+                return new LibUsbTimeoutException(transfer.actual_length);
+            case libusb_transfer_status.TRANSFER_STALL:
+                return new LibUsbPipeException();
+            case libusb_transfer_status.TRANSFER_NO_DEVICE:
+                return new LibUsbNoDeviceException();
+            case libusb_transfer_status.TRANSFER_OVERFLOW:
+                return new LibUsbOverflowException();
+            default:
+                return new LibUsbOtherException(libusb_error.ERROR_IO, libusb_transfer_status.getText(transfer.status));
+        }
+    }
+
+    private void completed() {
+        transfer.read();
+        submitted = false;
+        Listener l = listener;
+        if (l == null) {
+            return;
+        }
+        try {
+            l.transferCompleted(this);
+        } catch (RuntimeException e) {
+            // Must not propagate into libusb
+            log.error("Transfer listener failed", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UsbTransfer {" +
+                " endpoint=" + getEndpoint() +
+                " length=" + transfer.length +
+                " actual_length=" + transfer.actual_length +
+                " status=" + libusb_transfer_status.getText(transfer.status) +
+                "}";
+    }
+}
@@ -28,6 +28,9 @@ import java.util.List;
 
 /**
  * Convenience class used to find a USB device based on vendor and product ID and a sequence number.
+ * 
+ * This scans the device list on each call. Where devices are looked up repeatedly, use the indexed lookups of
+ * UsbDeviceCache.find() instead.
  */
 public class VendorProductVisitor implements UsbSystem.UsbDeviceVisitor {
     private int vendorId;
@@ -45,7 +48,7 @@ public class VendorProductVisitor implements UsbSystem.UsbDeviceVisitor {
         List<UsbDevice> devices = new ArrayList<UsbDevice>();
         int hitCount = deviceNumber;
         for (UsbDevice d : allDevices) {
-            if (d.getIdVendor() == vendorId && d.getIdProduct() == productId) {
+            if ((d.getIdVendor() & 0xffff) == (vendorId & 0xffff) && (d.getIdProduct() & 0xffff) == (productId & 0xffff)) {
                 if (hitCount == 0) {
                     devices.add(d);
                     return devices;
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Byte offsets and sizes of the native libusb descriptor structures, for reading them at fixed offsets instead
+ * of through JNA Structure reflection.
+ *
+ * The one byte and two byte fields are at the same offsets as in the descriptors on the wire, in host byte
+ * order. The pointer and length fields following them (endpoint arrays, extra descriptors) are aligned to the
+ * pointer size of the platform.
+ */
+public final class DescriptorLayout {
+    private static final int P = Pointer.SIZE;
+
+    /**
+     * Size of struct libusb_device_descriptor
+     */
+    public static final int DEVICE_DESCRIPTOR_SIZE = 18;
+
+    /*
+     * struct libusb_config_descriptor. Fields before CONFIG_INTERFACE as on the wire:
+     * bLength, bDescriptorType, wTotalLength, bNumInterfaces, bConfigurationValue, iConfiguration,
+     * bmAttributes, MaxPower
+     */
+    public static final int CONFIG_INTERFACE = align(9);
+    public static final int CONFIG_EXTRA = CONFIG_INTERFACE + P;
+    public static final int CONFIG_EXTRA_LENGTH = CONFIG_EXTRA + P;
+    public static final int CONFIG_SIZE = align(CONFIG_EXTRA_LENGTH + 4);
+
+    /*
+     * struct libusb_interface
+     */
+    public static final int INTERFACE_ALTSETTING = 0;
+    public static final int INTERFACE_NUM_ALTSETTING = P;
+    public static final int INTERFACE_SIZE = align(INTERFACE_NUM_ALTSETTING + 4);
+
+    /*
+     * struct libusb_interface_descriptor. Fields before INTERFACE_DESCRIPTOR_ENDPOINT as on the wire:
+     * bLength, bDescriptorType, bInterfaceNumber, bAlternateSetting, bNumEndpoints, bInterfaceClass,
+     * bInterfaceSubClass, bInterfaceProtocol, iInterface
+     */
+    public static final int INTERFACE_DESCRIPTOR_ENDPOINT = align(9);
+    public static final int INTERFACE_DESCRIPTOR_EXTRA = INTERFACE_DESCRIPTOR_ENDPOINT + P;
+    public static final int INTERFACE_DESCRIPTOR_EXTRA_LENGTH = INTERFACE_DESCRIPTOR_EXTRA + P;
+    public static final int INTERFACE_DESCRIPTOR_SIZE = align(INTERFACE_DESCRIPTOR_EXTRA_LENGTH + 4);
+
+    /*
+     * struct libusb_endpoint_descriptor. Fields before ENDPOINT_DESCRIPTOR_EXTRA as on the wire:
+     * bLength, bDescriptorType, bEndpointAddress, bmAttributes, wMaxPacketSize, bInterval, bRefresh,
+     * bSynchAddress
+     */
+    public static final int ENDPOINT_DESCRIPTOR_EXTRA = align(9);
+    public static final int ENDPOINT_DESCRIPTOR_EXTRA_LENGTH = ENDPOINT_DESCRIPTOR_EXTRA + P;
+    public static final int ENDPOINT_DESCRIPTOR_SIZE = align(ENDPOINT_DESCRIPTOR_EXTRA_LENGTH + 4);
+
+    private DescriptorLayout() {
+    }
+
+    private static int align(int offset) {
+        return (offset + P - 1) & -P;
+    }
+}
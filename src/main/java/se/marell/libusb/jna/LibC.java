@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * The Linux C library functions needed to run an epoll based event loop over libusb's file descriptors.
+ */
+public interface LibC extends Library {
+    LibC libC = (LibC) Native.loadLibrary("c", LibC.class);
+
+    int EPOLLIN = 0x001;
+    int EPOLLOUT = 0x004;
+    int EPOLLERR = 0x008;
+    int EPOLLHUP = 0x010;
+
+    int EPOLL_CTL_ADD = 1;
+    int EPOLL_CTL_DEL = 2;
+    int EPOLL_CTL_MOD = 3;
+
+    int EPOLL_CLOEXEC = 02000000;
+    int EFD_CLOEXEC = 02000000;
+    int EFD_NONBLOCK = 04000;
+
+    int EINTR = 4;
+
+    /**
+     * Open an epoll file descriptor.
+     *
+     * @param flags 0 or EPOLL_CLOEXEC
+     * @return file descriptor, or -1 on error
+     */
+    int epoll_create1(int flags);
+
+    /**
+     * Add, modify, or remove entries in the interest list of an epoll instance.
+     *
+     * @param epfd  epoll file descriptor
+     * @param op    EPOLL_CTL_ADD, EPOLL_CTL_MOD or EPOLL_CTL_DEL
+     * @param fd    target file descriptor
+     * @param event struct epoll_event, see EpollEventLoop for the layout
+     * @return 0 on success, -1 on error
+     */
+    int epoll_ctl(int epfd, int op, int fd, Pointer event);
+
+    /**
+     * Wait for an I/O event on an epoll file descriptor.
+     *
+     * @param epfd      epoll file descriptor
+     * @param events    output array of struct epoll_event
+     * @param maxevents capacity of events
+     * @param timeout   timeout in ms, -1 for infinite
+     * @return number of ready file descriptors, or -1 on error
+     */
+    int epoll_wait(int epfd, Pointer events, int maxevents, int timeout);
+
+    /**
+     * Create a file descriptor for event notification.
+     *
+     * @param initval initial counter value
+     * @param flags   EFD_NONBLOCK, EFD_CLOEXEC
+     * @return file descriptor, or -1 on error
+     */
+    int eventfd(int initval, int flags);
+
+    NativeLong read(int fd, Pointer buf, NativeLong count);
+
+    NativeLong write(int fd, Pointer buf, NativeLong count);
+
+    int close(int fd);
+}
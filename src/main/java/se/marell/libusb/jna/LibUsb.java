@@ -4,11 +4,22 @@
 package se.marell.libusb.jna;
 
 import com.sun.jna.Library;
-import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 
+/**
+ * The libusb 1.0 API. Besides the JNA mapping of the native library (libUsb) this interface is the backend SPI
+ * of LibUsbSystem: implementations include LibUsbDirect, the Panama backend and the in-memory
+ * se.marell.libusb.sim.SimulatedLibUsb. Accessing libUsb loads the native library.
+ */
 public interface LibUsb extends Library {
-    LibUsb libUsb = (LibUsb) Native.loadLibrary("usb-1.0", LibUsb.class);
+    /**
+     * The native library, loaded when this interface is initialized. If it cannot be loaded this is a backend
+     * throwing UnsatisfiedLinkError from all methods.
+     *
+     * @deprecated use LibUsbLoader.getLibUsb(), which loads the library on first use and can be configured
+     */
+    @Deprecated
+    LibUsb libUsb = LibUsbLoader.getLibUsb();
 
   /*
    Library initialization/deinitialization
@@ -40,6 +51,14 @@ public interface LibUsb extends Library {
      */
     void libusb_set_debug(Pointer context, int level);
 
+    /**
+     * Returns a pointer to a libusb_version structure with the version of the running library.
+     * Available since libusb 1.0.10.
+     *
+     * @return pointer to a static libusb_version structure
+     */
+    Pointer libusb_get_version();
+
     /**
      * Initialize libusb.
      * 
@@ -86,11 +105,10 @@ public interface LibUsb extends Library {
      * 
      * If the unref_devices parameter is set, the reference count of each device in the list is decremented by 1.
      *
-     * @param context       the context to operate on, or null for the default context
      * @param list          the list to free
      * @param unref_devices whether to unref the devices in the list
      */
-    void libusb_free_device_list(Pointer context, Pointer list, int unref_devices);
+    void libusb_free_device_list(Pointer list, int unref_devices);
 
     /**
      * Get the number of the bus that a device is connected to.
@@ -108,6 +126,20 @@ public interface LibUsb extends Library {
      */
     int libusb_get_device_address(Pointer usb_device);
 
+    /**
+     * Get the list of all port numbers from root for the specified device. Available since libusb 1.0.16.
+     * 
+     * The port numbers of a device do not change while it is connected, unlike its address, which is assigned
+     * anew each time the device is connected.
+     *
+     * @param usb_device        a device
+     * @param port_numbers      the array that should contain the port numbers
+     * @param port_numbers_len  the maximum length of the array. As per the USB 3.0 specs, the current maximum
+     *                          limit for the depth is 7.
+     * @return the number of elements filled, or ERROR_OVERFLOW if the array is too small
+     */
+    int libusb_get_port_numbers(Pointer usb_device, byte[] port_numbers, int port_numbers_len);
+
     /**
      * Convenience function to retrieve the wMaxPacketSize value for a particular endpoint in the active
      * device configuration.
@@ -434,6 +466,52 @@ public interface LibUsb extends Library {
      */
     int libusb_get_device_descriptor(Pointer usb_device, libusb_device_descriptor[] desc);
 
+    /**
+     * Get the USB device descriptor for a given device into native memory, see DescriptorLayout.
+     *
+     * @param usb_device the device
+     * @param desc       output location of at least DescriptorLayout.DEVICE_DESCRIPTOR_SIZE bytes
+     * @return 0 on success or a LIBUSB_ERROR code on failure
+     */
+    int libusb_get_device_descriptor(Pointer usb_device, Pointer desc);
+
+    /**
+     * Get the USB configuration descriptor for the currently active configuration.
+     * 
+     * This is a non-blocking function which does not involve any requests being sent to the device.
+     *
+     * @param usb_device the device
+     * @param config     output location for the libusb_config_descriptor, see DescriptorLayout. Must be freed with
+     *                   libusb_free_config_descriptor() after use.
+     * @return 0 on success
+     * LIBUSB_ERROR_NOT_FOUND if the device is in unconfigured state
+     * another LIBUSB_ERROR code on error
+     */
+    int libusb_get_active_config_descriptor(Pointer usb_device, Pointer[] config);
+
+    /**
+     * Get a USB configuration descriptor based on its index.
+     * 
+     * This is a non-blocking function which does not involve any requests being sent to the device.
+     *
+     * @param usb_device   the device
+     * @param config_index the index of the configuration you wish to retrieve
+     * @param config       output location for the libusb_config_descriptor, see DescriptorLayout. Must be freed
+     *                     with libusb_free_config_descriptor() after use.
+     * @return 0 on success
+     * LIBUSB_ERROR_NOT_FOUND if the configuration does not exist
+     * another LIBUSB_ERROR code on error
+     */
+    int libusb_get_config_descriptor(Pointer usb_device, byte config_index, Pointer[] config);
+
+    /**
+     * Free a configuration descriptor obtained from libusb_get_active_config_descriptor() or
+     * libusb_get_config_descriptor().
+     *
+     * @param config the configuration descriptor to free, may be null
+     */
+    void libusb_free_config_descriptor(Pointer config);
+
     /**
      * Retrieve a string descriptor in C style ASCII.
      * 
@@ -449,43 +527,312 @@ public interface LibUsb extends Library {
 
   /*
   Asynchronous device I/O.
-  Todo: Implement
-  struct libusb_transfer * 	libusb_alloc_transfer (int iso_packets)
-  void 	libusb_free_transfer (struct libusb_transfer *transfer)
-  int 	libusb_submit_transfer (struct libusb_transfer *transfer)
-  int 	libusb_cancel_transfer (struct libusb_transfer *transfer)
-  static unsigned char * 	libusb_control_transfer_get_data (struct libusb_transfer *transfer)
-  static struct libusb_control_setup * 	libusb_control_transfer_get_setup (struct libusb_transfer *transfer)
-  static void 	libusb_fill_control_setup (unsigned char *buffer, uint8_t bmRequestType, uint8_t bRequest, uint16_t wValue, uint16_t wIndex, uint16_t wLength)
-  static void 	libusb_fill_control_transfer (struct libusb_transfer *transfer, libusb_device_handle *dev_handle, unsigned char *buffer, libusb_transfer_cb_fn callback, void *user_data, unsigned int timeout)
-  static void 	libusb_fill_bulk_transfer (struct libusb_transfer *transfer, libusb_device_handle *dev_handle, unsigned char endpoint, unsigned char *buffer, int length, libusb_transfer_cb_fn callback, void *user_data, unsigned int timeout)
-  static void 	libusb_fill_interrupt_transfer (struct libusb_transfer *transfer, libusb_device_handle *dev_handle, unsigned char endpoint, unsigned char *buffer, int length, libusb_transfer_cb_fn callback, void *user_data, unsigned int timeout)
-  static void 	libusb_fill_iso_transfer (struct libusb_transfer *transfer, libusb_device_handle *dev_handle, unsigned char endpoint, unsigned char *buffer, int length, int num_iso_packets, libusb_transfer_cb_fn callback, void *user_data, unsigned int timeout)
-  static void 	libusb_set_iso_packet_lengths (struct libusb_transfer *transfer, unsigned int length)
-  static unsigned char * 	libusb_get_iso_packet_buffer (struct libusb_transfer *transfer, unsigned int packet)
-  static unsigned char * 	libusb_get_iso_packet_buffer_simple (struct libusb_transfer *transfer, unsigned int packet)
+  The static inline helper functions (libusb_fill_bulk_transfer(), libusb_fill_iso_transfer(),
+  libusb_get_iso_packet_buffer() etc.) are implemented in libusb_transfer.
   */
 
+    /**
+     * Allocate a libusb transfer with a specified number of isochronous packet descriptors.
+     * 
+     * The returned transfer is pre-initialized for you. When the new transfer is no longer needed, it should be
+     * freed with libusb_free_transfer().
+     * 
+     * Transfers intended for non-isochronous endpoints (e.g. control, bulk, interrupt) should specify an iso_packets
+     * count of zero.
+     *
+     * @param iso_packets number of isochronous packet descriptors to allocate
+     * @return a newly allocated transfer, or null on error
+     */
+    Pointer libusb_alloc_transfer(int iso_packets);
+
+    /**
+     * Free a transfer structure.
+     * 
+     * This should be called for all transfers allocated with libusb_alloc_transfer(). It is legal to call this
+     * function with a null transfer. In this case, the function will simply return safely.
+     * 
+     * It is not legal to free an active transfer (one which has been submitted and has not yet completed).
+     *
+     * @param transfer the transfer to free
+     */
+    void libusb_free_transfer(Pointer transfer);
+
+    /**
+     * Submit a transfer.
+     * 
+     * This function will fire off the USB transfer and then return immediately.
+     *
+     * @param transfer the transfer to submit
+     * @return 0 on success
+     * LIBUSB_ERROR_NO_DEVICE if the device has been disconnected
+     * LIBUSB_ERROR_BUSY if the transfer has already been submitted.
+     * LIBUSB_ERROR_NOT_SUPPORTED if the transfer flags are not supported by the operating system.
+     * another LIBUSB_ERROR code on other failure
+     */
+    int libusb_submit_transfer(Pointer transfer);
+
+    /**
+     * Asynchronously cancel a previously submitted transfer.
+     * 
+     * This function returns immediately, but this does not indicate cancellation is complete. Your callback function
+     * will be invoked at some later time with a transfer status of LIBUSB_TRANSFER_CANCELLED.
+     *
+     * @param transfer the transfer to cancel
+     * @return 0 on success
+     * LIBUSB_ERROR_NOT_FOUND if the transfer is already complete or cancelled.
+     * a LIBUSB_ERROR code on failure
+     */
+    int libusb_cancel_transfer(Pointer transfer);
+
   /*
   Polling and timing:
-  Todo: Implement
-  int 	libusb_try_lock_events (libusb_context *ctx)
-  void 	libusb_lock_events (libusb_context *ctx)
-  void 	libusb_unlock_events (libusb_context *ctx)
-  int 	libusb_event_handling_ok (libusb_context *ctx)
-  int 	libusb_event_handler_active (libusb_context *ctx)
-  void 	libusb_lock_event_waiters (libusb_context *ctx)
-  void 	libusb_unlock_event_waiters (libusb_context *ctx)
-  int 	libusb_wait_for_event (libusb_context *ctx, struct timeval *tv)
-  int 	libusb_handle_events_timeout (libusb_context *ctx, struct timeval *tv)
-  int 	libusb_handle_events (libusb_context *ctx)
-  int 	libusb_handle_events_locked (libusb_context *ctx, struct timeval *tv)
-  int 	libusb_pollfds_handle_timeouts (libusb_context *ctx)
-  int 	libusb_get_next_timeout (libusb_context *ctx, struct timeval *tv)
-  void 	libusb_set_pollfd_notifiers (libusb_context *ctx, libusb_pollfd_added_cb added_cb, libusb_pollfd_removed_cb removed_cb, void *user_data)
-  struct libusb_pollfd ** 	libusb_get_pollfds (libusb_context *ctx)
   */
 
+    /**
+     * Attempt to acquire the event handling lock.
+     * 
+     * This lock is used to ensure that only one thread is monitoring libusb event sources at any one time.
+     * 
+     * You only need to use this lock if you are developing an application which calls poll() or select() on
+     * libusb's file descriptors directly. If you stick to libusb's event handling loop functions (e.g.
+     * libusb_handle_events()) then you do not need to be concerned with this locking.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return 0 if the lock was obtained successfully, 1 if the lock was not obtained (i.e. another thread holds
+     * the lock)
+     */
+    int libusb_try_lock_events(Pointer context);
+
+    /**
+     * Acquire the event handling lock, blocking until successful acquisition if it is contended.
+     *
+     * @param context the context to operate on, or null for the default context
+     */
+    void libusb_lock_events(Pointer context);
+
+    /**
+     * Release the lock previously acquired with libusb_try_lock_events() or libusb_lock_events().
+     * 
+     * Releasing this lock will wake up any threads blocked on libusb_wait_for_event().
+     *
+     * @param context the context to operate on, or null for the default context
+     */
+    void libusb_unlock_events(Pointer context);
+
+    /**
+     * Determine if it is still OK for this thread to be doing event handling.
+     * 
+     * Sometimes, libusb needs to temporarily pause all event handlers, and this is the function you should use
+     * before polling file descriptors to see if this is the case.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return 1 if event handling can start or continue, 0 if this thread must give up the events lock
+     */
+    int libusb_event_handling_ok(Pointer context);
+
+    /**
+     * Determine if an active thread is handling events (i.e. if anyone is holding the event handling lock).
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return 1 if a thread is handling events, 0 if there are no threads currently handling events
+     */
+    int libusb_event_handler_active(Pointer context);
+
+    /**
+     * Acquire the event waiters lock.
+     * 
+     * This lock is designed to be obtained under the situation where you want to be aware when events are
+     * completed, but some other thread is event handling so calling libusb_handle_events() is not allowed.
+     *
+     * @param context the context to operate on, or null for the default context
+     */
+    void libusb_lock_event_waiters(Pointer context);
+
+    /**
+     * Release the event waiters lock.
+     *
+     * @param context the context to operate on, or null for the default context
+     */
+    void libusb_unlock_event_waiters(Pointer context);
+
+    /**
+     * Wait for another thread to signal completion of an event.
+     * 
+     * Must be called with the event waiters lock held, see libusb_lock_event_waiters().
+     *
+     * @param context the context to operate on, or null for the default context
+     * @param tv      maximum timeout for this blocking function. A null value indicates unlimited timeout.
+     * @return 0 after a transfer completes or another thread stops event handling, 1 if the timeout expired
+     */
+    int libusb_wait_for_event(Pointer context, timeval tv);
+
+    /**
+     * Handle any pending events.
+     * 
+     * libusb determines "pending events" by checking if any timeouts have expired and by checking the set of
+     * file descriptors for activity.
+     * 
+     * If a zero timeval is passed, this function will handle any already-pending events and then immediately
+     * return in non-blocking style.
+     * 
+     * If a non-zero timeval is passed and no events are currently pending, this function will block waiting for
+     * events to handle up until the specified timeout. If an event arrives or a signal is raised, this function
+     * will return early.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @param tv      the maximum time to block waiting for events, or a zero timeval for non-blocking mode
+     * @return 0 on success, or a LIBUSB_ERROR code on failure
+     */
+    int libusb_handle_events_timeout(Pointer context, timeval tv);
+
+    /**
+     * Handle any pending events, like libusb_handle_events_timeout(), but return early once the completed
+     * flag has been set to non-zero by a transfer callback.
+     *
+     * Since v1.0.9.
+     *
+     * @param context   the context to operate on, or null for the default context
+     * @param tv        the maximum time to block waiting for events, or a zero timeval for non-blocking mode
+     * @param completed pointer to completion integer to check, or null
+     * @return 0 on success, or a LIBUSB_ERROR code on failure
+     */
+    int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed);
+
+    /**
+     * Handle any pending events by polling file descriptors, without checking if any other threads are already
+     * doing so. Must be called with the event lock held, see libusb_lock_events().
+     *
+     * @param context the context to operate on, or null for the default context
+     * @param tv      the maximum time to block waiting for events, or zero for non-blocking mode
+     * @return 0 on success, or a LIBUSB_ERROR code on failure
+     */
+    int libusb_handle_events_locked(Pointer context, timeval tv);
+
+    /**
+     * Determine the next internal timeout that libusb needs to handle.
+     * 
+     * You only need to use this function if you are calling poll() or select() or similar on libusb's file
+     * descriptors yourself - you do not need to use it if you are calling libusb_handle_events() or a variant
+     * directly.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @param tv      output location for a relative time against the current clock in which libusb must be called
+     *                into in order to process timeout events
+     * @return 0 if there are no pending timeouts, 1 if a timeout was returned, or LIBUSB_ERROR_OTHER on failure
+     */
+    int libusb_get_next_timeout(Pointer context, timeval tv);
+
+    /**
+     * Determines whether your application must apply special timing considerations when monitoring libusb's
+     * file descriptors.
+     * 
+     * This function is only useful for applications which retrieve and poll libusb's file descriptors in their
+     * own main loop.
+     * 
+     * Ordinarily, libusb's event handler needs to be called into at specific moments in time (in addition to
+     * times when there is activity on the file descriptor set), see libusb_get_next_timeout(). On some platforms
+     * (Linux with timerfd) libusb is able to handle timeouts through the file descriptors instead.
+     *
+     * Since v1.0.5.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return 0 if you must call into libusb at times determined by libusb_get_next_timeout(), or 1 if all
+     * timeout events are handled internally or through regular activity on the file descriptors
+     */
+    int libusb_pollfds_handle_timeouts(Pointer context);
+
+    /**
+     * Register notification functions for file descriptor additions/removals.
+     * 
+     * These functions will be invoked for every new or removed file descriptor that libusb uses as an event
+     * source. To remove notifiers, pass null values for the function pointers.
+     * 
+     * Note that file descriptors may have been added even before you register these notifiers (e.g. at
+     * libusb_init() time).
+     *
+     * @param context    the context to operate on, or null for the default context
+     * @param added_cb   pointer to function for addition notifications
+     * @param removed_cb pointer to function for removal notifications
+     * @param user_data  user data to be passed back to callbacks (useful for passing context information)
+     */
+    void libusb_set_pollfd_notifiers(Pointer context, libusb_pollfd_added_cb added_cb,
+                                     libusb_pollfd_removed_cb removed_cb, Pointer user_data);
+
+    /**
+     * Retrieve a list of file descriptors that should be polled by your main loop as libusb event sources.
+     * 
+     * The returned list is null-terminated and should be freed with libusb_free_pollfds() when done.
+     * The actual list contents must not be touched.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return a null-terminated list of libusb_pollfd pointers, or null on error
+     */
+    Pointer libusb_get_pollfds(Pointer context);
+
+    /**
+     * Free a list of libusb_pollfd structures. This should be called for all pollfd lists allocated with
+     * libusb_get_pollfds().
+     *
+     * Since v1.0.20.
+     *
+     * @param pollfds the list of libusb_pollfd structures to free
+     */
+    void libusb_free_pollfds(Pointer pollfds);
+
+    /**
+     * Handle any pending events in blocking mode.
+     * 
+     * Like libusb_handle_events_timeout(), with a sensible default timeout value. Transfer callbacks are invoked
+     * from within this function, on the calling thread.
+     *
+     * @param context the context to operate on, or null for the default context
+     * @return 0 on success, or a LIBUSB_ERROR code on failure
+     */
+    int libusb_handle_events(Pointer context);
+
+  /*
+  Device hotplug event notification:
+  */
+
+    /**
+     * Check at runtime if the loaded library has a given capability.
+     *
+     * @param capability the libusb_capability to check for
+     * @return nonzero if the running library has the capability, 0 otherwise
+     */
+    int libusb_has_capability(int capability);
+
+    /**
+     * Register a hotplug callback function.
+     *
+     * The callback is invoked from within libusb_handle_events() and its variants, on the calling thread, when a
+     * matching device arrives or leaves. If the callback returns 1 it is deregistered. Since version 1.0.16.
+     *
+     * @param context         the context to register the callback with, or null for the default context
+     * @param events          bitwise or of libusb_hotplug_event values
+     * @param flags           libusb_hotplug_flag values, HOTPLUG_ENUMERATE to get arrival events for devices
+     *                        already present
+     * @param vendor_id       the vendor id to match or HOTPLUG_MATCH_ANY
+     * @param product_id      the product id to match or HOTPLUG_MATCH_ANY
+     * @param dev_class       the device class to match or HOTPLUG_MATCH_ANY
+     * @param cb_fn           the function to be invoked on a matching event, must be kept reachable until deregistered
+     * @param user_data       user data to pass to the callback function
+     * @param callback_handle output location for the callback handle, can be null
+     * @return 0 on success, LIBUSB_ERROR_NOT_SUPPORTED if hotplug is not supported on this platform or another
+     *         LIBUSB_ERROR code on failure
+     */
+    int libusb_hotplug_register_callback(Pointer context, int events, int flags, int vendor_id, int product_id,
+                                         int dev_class, libusb_hotplug_callback_fn cb_fn, Pointer user_data,
+                                         int[] callback_handle);
+
+    /**
+     * Deregister a hotplug callback. The callback will not be invoked after this function returns.
+     *
+     * @param context         the context the callback was registered with, or null for the default context
+     * @param callback_handle the handle of the callback to deregister
+     */
+    void libusb_hotplug_deregister_callback(Pointer context, int callback_handle);
+
   /*
   Synchronous device I/O:
   */
@@ -514,6 +861,11 @@ public interface LibUsb extends Library {
      */
     int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue, short wIndex, byte[] data, short wLength, int timeout);
 
+    /**
+     * Same as libusb_control_transfer() above, but with a native data buffer that is passed on without copying.
+     */
+    int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data, short wLength, int timeout);
+
     /**
      * Perform a USB bulk transfer.
      * 
@@ -546,6 +898,11 @@ public interface LibUsb extends Library {
      */
     int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred, int timeout);
 
+    /**
+     * Same as libusb_bulk_transfer() above, but with a native data buffer that is passed on without copying.
+     */
+    int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred, int timeout);
+
     /**
      * Perform a USB interrupt transfer.
      * 
@@ -580,4 +937,9 @@ public interface LibUsb extends Library {
      * another LIBUSB_ERROR code on other error
      */
     int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred, int timeout);
+
+    /**
+     * Same as libusb_interrupt_transfer() above, but with a native data buffer that is passed on without copying.
+     */
+    int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred, int timeout);
 }
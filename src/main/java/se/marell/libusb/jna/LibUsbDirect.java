@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+/**
+ * LibUsb implementation that calls the frequently used functions (transfers, device enumeration and event
+ * handling) through JNA direct mapping (Native.register), which avoids the reflective proxy of the interface
+ * mapping. All other functions are forwarded to an interface mapped LibUsb.
+ */
+public class LibUsbDirect implements LibUsb {
+    private final LibUsb other;
+
+    /**
+     * Directly mapped functions. Registered with libusb when the class is initialized.
+     */
+    private static class Natives {
+        static {
+            Native.register(Natives.class, LibUsbLoader.getNativeLibrary());
+        }
+
+        static void load() {
+        }
+
+        static native int libusb_get_device_list(Pointer context, Pointer list);
+
+        static native void libusb_free_device_list(Pointer list, int unref_devices);
+
+        static native int libusb_get_bus_number(Pointer usb_device);
+
+        static native int libusb_get_device_address(Pointer usb_device);
+
+        static native Pointer libusb_ref_device(Pointer usb_device);
+
+        static native void libusb_unref_device(Pointer usb_device);
+
+        static native int libusb_get_device_descriptor(Pointer usb_device, Pointer desc);
+
+        static native Pointer libusb_alloc_transfer(int iso_packets);
+
+        static native void libusb_free_transfer(Pointer transfer);
+
+        static native int libusb_submit_transfer(Pointer transfer);
+
+        static native int libusb_cancel_transfer(Pointer transfer);
+
+        static native int libusb_handle_events_timeout(Pointer context, timeval tv);
+
+        static native int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed);
+
+        static native int libusb_get_next_timeout(Pointer context, timeval tv);
+
+        static native int libusb_pollfds_handle_timeouts(Pointer context);
+
+        static native int libusb_handle_events(Pointer context);
+
+        static native int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue, short wIndex, byte[] data, short wLength, int timeout);
+
+        static native int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data, short wLength, int timeout);
+
+        static native int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred, int timeout);
+
+        static native int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred, int timeout);
+
+        static native int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred, int timeout);
+
+        static native int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred, int timeout);
+    }
+
+    /**
+     * Register the directly mapped functions.
+     *
+     * @param other interface mapped library used for the functions that are not directly mapped
+     * @throws UnsatisfiedLinkError if the library or one of the functions could not be found
+     */
+    public LibUsbDirect(LibUsb other) {
+        this.other = other;
+        Natives.load();
+    }
+
+    @Override
+    public void libusb_set_debug(Pointer context, int level) {
+        other.libusb_set_debug(context, level);
+    }
+
+    @Override
+    public Pointer libusb_get_version() {
+        return other.libusb_get_version();
+    }
+
+    @Override
+    public int libusb_init(Pointer[] context) {
+        return other.libusb_init(context);
+    }
+
+    @Override
+    public void libusb_exit(Pointer context) {
+        other.libusb_exit(context);
+    }
+
+    @Override
+    public int libusb_get_device_list(Pointer context, Pointer[] list) {
+        Memory p = new Memory(Pointer.SIZE);
+        int rc = Natives.libusb_get_device_list(context, p);
+        list[0] = p.getPointer(0);
+        return rc;
+    }
+
+    @Override
+    public void libusb_free_device_list(Pointer list, int unref_devices) {
+        Natives.libusb_free_device_list(list, unref_devices);
+    }
+
+    @Override
+    public int libusb_get_bus_number(Pointer usb_device) {
+        return Natives.libusb_get_bus_number(usb_device);
+    }
+
+    @Override
+    public int libusb_get_device_address(Pointer usb_device) {
+        return Natives.libusb_get_device_address(usb_device);
+    }
+
+    @Override
+    public int libusb_get_port_numbers(Pointer usb_device, byte[] port_numbers, int port_numbers_len) {
+        return other.libusb_get_port_numbers(usb_device, port_numbers, port_numbers_len);
+    }
+
+    @Override
+    public int libusb_get_max_packet_size(Pointer usb_device, int endpoint) {
+        return other.libusb_get_max_packet_size(usb_device, endpoint);
+    }
+
+    @Override
+    public int libusb_get_max_iso_packet_size(Pointer usb_device, int endpoint) {
+        return other.libusb_get_max_iso_packet_size(usb_device, endpoint);
+    }
+
+    @Override
+    public Pointer libusb_ref_device(Pointer usb_device) {
+        return Natives.libusb_ref_device(usb_device);
+    }
+
+    @Override
+    public void libusb_unref_device(Pointer usb_device) {
+        Natives.libusb_unref_device(usb_device);
+    }
+
+    @Override
+    public int libusb_open(Pointer usb_device, Pointer[] dev_handle) {
+        return other.libusb_open(usb_device, dev_handle);
+    }
+
+    @Override
+    public Pointer libusb_open_device_with_vid_pid(Pointer context, int vendor_id, int product_id) {
+        return other.libusb_open_device_with_vid_pid(context, vendor_id, product_id);
+    }
+
+    @Override
+    public void libusb_close(Pointer dev_handle) {
+        other.libusb_close(dev_handle);
+    }
+
+    @Override
+    public Pointer libusb_get_device(Pointer dev_handle) {
+        return other.libusb_get_device(dev_handle);
+    }
+
+    @Override
+    public int libusb_get_configuration(Pointer dev_handle, int[] config) {
+        return other.libusb_get_configuration(dev_handle, config);
+    }
+
+    @Override
+    public int libusb_set_configuration(Pointer dev_handle, int configuration) {
+        return other.libusb_set_configuration(dev_handle, configuration);
+    }
+
+    @Override
+    public int libusb_claim_interface(Pointer dev_handle, int interface_number) {
+        return other.libusb_claim_interface(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_release_interface(Pointer dev_handle, int interface_number) {
+        return other.libusb_release_interface(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_set_interface_alt_setting(Pointer dev_handle, int interface_number, int alternate_setting) {
+        return other.libusb_set_interface_alt_setting(dev_handle, interface_number, alternate_setting);
+    }
+
+    @Override
+    public int libusb_clear_halt(Pointer dev_handle, byte endpoint) {
+        return other.libusb_clear_halt(dev_handle, endpoint);
+    }
+
+    @Override
+    public int libusb_reset_device(Pointer dev_handle) {
+        return other.libusb_reset_device(dev_handle);
+    }
+
+    @Override
+    public int libusb_kernel_driver_active(Pointer dev_handle, int interface_number) {
+        return other.libusb_kernel_driver_active(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_detach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return other.libusb_detach_kernel_driver(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_attach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return other.libusb_attach_kernel_driver(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, libusb_device_descriptor[] desc) {
+        return other.libusb_get_device_descriptor(usb_device, desc);
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, Pointer desc) {
+        return Natives.libusb_get_device_descriptor(usb_device, desc);
+    }
+
+    @Override
+    public int libusb_get_active_config_descriptor(Pointer usb_device, Pointer[] config) {
+        return other.libusb_get_active_config_descriptor(usb_device, config);
+    }
+
+    @Override
+    public int libusb_get_config_descriptor(Pointer usb_device, byte config_index, Pointer[] config) {
+        return other.libusb_get_config_descriptor(usb_device, config_index, config);
+    }
+
+    @Override
+    public void libusb_free_config_descriptor(Pointer config) {
+        other.libusb_free_config_descriptor(config);
+    }
+
+    @Override
+    public int libusb_get_string_descriptor_ascii(Pointer dev_handle, byte desc_index, byte[] data, int length) {
+        return other.libusb_get_string_descriptor_ascii(dev_handle, desc_index, data, length);
+    }
+
+    @Override
+    public Pointer libusb_alloc_transfer(int iso_packets) {
+        return Natives.libusb_alloc_transfer(iso_packets);
+    }
+
+    @Override
+    public void libusb_free_transfer(Pointer transfer) {
+        Natives.libusb_free_transfer(transfer);
+    }
+
+    @Override
+    public int libusb_submit_transfer(Pointer transfer) {
+        return Natives.libusb_submit_transfer(transfer);
+    }
+
+    @Override
+    public int libusb_cancel_transfer(Pointer transfer) {
+        return Natives.libusb_cancel_transfer(transfer);
+    }
+
+    @Override
+    public int libusb_try_lock_events(Pointer context) {
+        return other.libusb_try_lock_events(context);
+    }
+
+    @Override
+    public void libusb_lock_events(Pointer context) {
+        other.libusb_lock_events(context);
+    }
+
+    @Override
+    public void libusb_unlock_events(Pointer context) {
+        other.libusb_unlock_events(context);
+    }
+
+    @Override
+    public int libusb_event_handling_ok(Pointer context) {
+        return other.libusb_event_handling_ok(context);
+    }
+
+    @Override
+    public int libusb_event_handler_active(Pointer context) {
+        return other.libusb_event_handler_active(context);
+    }
+
+    @Override
+    public void libusb_lock_event_waiters(Pointer context) {
+        other.libusb_lock_event_waiters(context);
+    }
+
+    @Override
+    public void libusb_unlock_event_waiters(Pointer context) {
+        other.libusb_unlock_event_waiters(context);
+    }
+
+    @Override
+    public int libusb_wait_for_event(Pointer context, timeval tv) {
+        return other.libusb_wait_for_event(context, tv);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout(Pointer context, timeval tv) {
+        return Natives.libusb_handle_events_timeout(context, tv);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed) {
+        return Natives.libusb_handle_events_timeout_completed(context, tv, completed);
+    }
+
+    @Override
+    public int libusb_handle_events_locked(Pointer context, timeval tv) {
+        return other.libusb_handle_events_locked(context, tv);
+    }
+
+    @Override
+    public int libusb_get_next_timeout(Pointer context, timeval tv) {
+        return Natives.libusb_get_next_timeout(context, tv);
+    }
+
+    @Override
+    public int libusb_pollfds_handle_timeouts(Pointer context) {
+        return Natives.libusb_pollfds_handle_timeouts(context);
+    }
+
+    @Override
+    public void libusb_set_pollfd_notifiers(Pointer context, libusb_pollfd_added_cb added_cb,
+                                            libusb_pollfd_removed_cb removed_cb, Pointer user_data) {
+        other.libusb_set_pollfd_notifiers(context, added_cb, removed_cb, user_data);
+    }
+
+    @Override
+    public Pointer libusb_get_pollfds(Pointer context) {
+        return other.libusb_get_pollfds(context);
+    }
+
+    @Override
+    public void libusb_free_pollfds(Pointer pollfds) {
+        other.libusb_free_pollfds(pollfds);
+    }
+
+    @Override
+    public int libusb_handle_events(Pointer context) {
+        return Natives.libusb_handle_events(context);
+    }
+
+    @Override
+    public int libusb_has_capability(int capability) {
+        return other.libusb_has_capability(capability);
+    }
+
+    @Override
+    public int libusb_hotplug_register_callback(Pointer context, int events, int flags, int vendor_id,
+                                                int product_id, int dev_class, libusb_hotplug_callback_fn cb_fn,
+                                                Pointer user_data, int[] callback_handle) {
+        return other.libusb_hotplug_register_callback(context, events, flags, vendor_id, product_id, dev_class,
+                cb_fn, user_data, callback_handle);
+    }
+
+    @Override
+    public void libusb_hotplug_deregister_callback(Pointer context, int callback_handle) {
+        other.libusb_hotplug_deregister_callback(context, callback_handle);
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, byte[] data, short wLength, int timeout) {
+        return Natives.libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, Pointer data, short wLength, int timeout) {
+        return Natives.libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, data, wLength, timeout);
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred,
+                                    int timeout) {
+        return Natives.libusb_bulk_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred,
+                                    int timeout) {
+        return Natives.libusb_bulk_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length,
+                                         int[] transferred, int timeout) {
+        return Natives.libusb_interrupt_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length,
+                                         int[] transferred, int timeout) {
+        return Natives.libusb_interrupt_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the native libusb library on first use and caches the result.
+ *
+ * The library is searched for as "usb-1.0" and, where the unversioned development link is missing, as
+ * "libusb-1.0.so.0", first in the directories of LIBRARY_PATH_PROPERTY and addSearchPath(), then in the
+ * default locations of JNA. An entry of LIBRARY_PATH_PROPERTY may also be the library file itself.
+ *
+ * If the library cannot be loaded the failure is cached too, and getLibUsb() returns a backend whose methods
+ * throw UnsatisfiedLinkError with the original reason. Nothing is loaded before getLibUsb(), getNativeLibrary()
+ * or getVersion() is called.
+ */
+public final class LibUsbLoader {
+    private static final Logger log = LoggerFactory.getLogger(LibUsbLoader.class);
+
+    /**
+     * System property with directories or files to search for libusb, separated by File.pathSeparator
+     */
+    public static final String LIBRARY_PATH_PROPERTY = "se.marell.libusb.library.path";
+
+    private static final String[] NAMES = {"usb-1.0", "libusb-1.0.so.0"};
+
+    private static final List<String> searchPaths = new ArrayList<String>();
+    private static volatile boolean loaded;
+    private static NativeLibrary nativeLibrary;
+    private static LibUsb libUsb;
+    private static UnsatisfiedLinkError loadError;
+    private static libusb_version version;
+
+    private LibUsbLoader() {
+    }
+
+    /**
+     * Add a directory to search for libusb. Only has effect before the library is loaded.
+     *
+     * @param path directory or library file
+     */
+    public static synchronized void addSearchPath(String path) {
+        if (loaded) {
+            log.warn("libusb already loaded, search path ignored:" + path);
+        }
+        searchPaths.add(path);
+    }
+
+    /**
+     * Get the interface mapped libusb, loading the library on the first call.
+     *
+     * @return the library, or a backend throwing UnsatisfiedLinkError from all methods if it could not be loaded
+     */
+    public static LibUsb getLibUsb() {
+        load();
+        return libUsb;
+    }
+
+    /**
+     * @return the loaded library, for direct mapping
+     * @throws UnsatisfiedLinkError if the library could not be loaded
+     */
+    public static NativeLibrary getNativeLibrary() {
+        load();
+        if (nativeLibrary == null) {
+            throw unavailable();
+        }
+        return nativeLibrary;
+    }
+
+    /**
+     * @return true if the library is loaded, loading it if not tried before
+     */
+    public static boolean isAvailable() {
+        load();
+        return nativeLibrary != null;
+    }
+
+    /**
+     * @return the reason the library could not be loaded, or null
+     */
+    public static UnsatisfiedLinkError getLoadError() {
+        load();
+        return loadError;
+    }
+
+    /**
+     * Get the version of the loaded library, as reported by libusb_get_version().
+     *
+     * @return the version, or null if the library is not available or too old to report its version (before 1.0.10)
+     */
+    public static libusb_version getVersion() {
+        load();
+        return version;
+    }
+
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (LibUsbLoader.class) {
+            if (loaded) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<String> names = candidates();
+            List<String> errors = new ArrayList<String>();
+            for (String name : names) {
+                try {
+                    nativeLibrary = NativeLibrary.getInstance(name);
+                    libUsb = (LibUsb) Native.loadLibrary(name, LibUsb.class);
+                    break;
+                } catch (UnsatisfiedLinkError e) {
+                    nativeLibrary = null;
+                    errors.add(e.getMessage());
+                }
+            }
+            if (nativeLibrary != null) {
+                try {
+                    Pointer p = libUsb.libusb_get_version();
+                    version = p != null ? new libusb_version(p) : null;
+                } catch (UnsatisfiedLinkError e) {
+                    version = null;
+                }
+                log.info("Loaded libusb " + (version != null ? version : "(unknown version)") + " from " +
+                        nativeLibrary.getFile() + " in " + (System.nanoTime() - start) / 1000 + " us");
+            } else {
+                loadError = new UnsatisfiedLinkError("libusb not available, tried " + names + ":" + errors);
+                libUsb = createUnavailable();
+                log.warn(loadError.getMessage());
+            }
+            loaded = true;
+        }
+    }
+
+    private static List<String> candidates() {
+        List<String> paths = new ArrayList<String>(searchPaths);
+        String property = System.getProperty(LIBRARY_PATH_PROPERTY);
+        if (property != null) {
+            for (String path : property.split(File.pathSeparator)) {
+                if (path.length() > 0) {
+                    paths.add(path);
+                }
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        for (String path : paths) {
+            File f = new File(path);
+            if (f.isFile()) {
+                names.add(f.getAbsolutePath());
+            } else {
+                for (String name : NAMES) {
+                    NativeLibrary.addSearchPath(name, path);
+                }
+            }
+        }
+        for (String name : NAMES) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static UnsatisfiedLinkError unavailable() {
+        UnsatisfiedLinkError e = new UnsatisfiedLinkError(loadError.getMessage());
+        e.initCause(loadError);
+        return e;
+    }
+
+    private static LibUsb createUnavailable() {
+        return (LibUsb) Proxy.newProxyInstance(LibUsb.class.getClassLoader(), new Class<?>[]{LibUsb.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getDeclaringClass() == Object.class) {
+                            if (method.getName().equals("equals")) {
+                                return proxy == args[0];
+                            }
+                            if (method.getName().equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return "LibUsb(unavailable)";
+                        }
+                        throw unavailable();
+                    }
+                });
+    }
+}
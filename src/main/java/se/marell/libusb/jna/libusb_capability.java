@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+/**
+ * Capabilities supported by an instance of libusb on the current running platform, see libusb_has_capability().
+ */
+public class libusb_capability {
+    /**
+     * The libusb_has_capability() API is available
+     */
+    public static final int CAP_HAS_CAPABILITY = 0x0000;
+
+    /**
+     * Hotplug support is available on this platform
+     */
+    public static final int CAP_HAS_HOTPLUG = 0x0001;
+
+    /**
+     * The library can access HID devices without requiring user intervention
+     */
+    public static final int CAP_HAS_HID_ACCESS = 0x0100;
+
+    /**
+     * The library supports detaching of the default USB driver
+     */
+    public static final int CAP_SUPPORTS_DETACH_KERNEL_DRIVER = 0x0101;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+/**
+ * Descriptor types as defined by the USB specification, the high byte of wValue of a GET_DESCRIPTOR request.
+ */
+public class libusb_descriptor_type {
+    /**
+     * Device descriptor
+     */
+    public static final int DT_DEVICE = 0x01;
+
+    /**
+     * Configuration descriptor
+     */
+    public static final int DT_CONFIG = 0x02;
+
+    /**
+     * String descriptor
+     */
+    public static final int DT_STRING = 0x03;
+
+    /**
+     * Interface descriptor
+     */
+    public static final int DT_INTERFACE = 0x04;
+
+    /**
+     * Endpoint descriptor
+     */
+    public static final int DT_ENDPOINT = 0x05;
+}
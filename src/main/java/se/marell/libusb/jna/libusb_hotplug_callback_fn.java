@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Pointer;
+
+/**
+ * Hotplug callback function type, see libusb_hotplug_register_callback().
+ *
+ * The callback is invoked from within libusb event handling. It may read the device descriptor but should not
+ * perform blocking operations on the device.
+ */
+public interface libusb_hotplug_callback_fn extends Callback {
+    /**
+     * @param context   context of this notification
+     * @param device    libusb_device this event occurred on
+     * @param event     event that occurred, see libusb_hotplug_event
+     * @param user_data user data provided when this callback was registered
+     * @return 1 to deregister the callback, 0 to keep it
+     */
+    int invoke(Pointer context, Pointer device, int event, Pointer user_data);
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * File descriptor for polling.
+ */
+public class libusb_pollfd extends Structure {
+    /**
+     * Events flag for fd: data to read
+     */
+    public static final short POLLIN = 0x001;
+
+    /**
+     * Events flag for fd: writing now will not block
+     */
+    public static final short POLLOUT = 0x004;
+
+    /**
+     * Numeric file descriptor
+     */
+    public int fd;
+
+    /**
+     * Event flags to poll for from poll.h. POLLIN indicates that you should monitor this file descriptor
+     * for becoming ready to read from, and POLLOUT indicates that you should monitor this file descriptor
+     * for nonblocking write readiness.
+     */
+    public short events;
+
+    /**
+     * @param p pollfd returned by libusb_get_pollfds()
+     */
+    public libusb_pollfd(Pointer p) {
+        super(p);
+        read();
+    }
+
+    @Override
+    public String toString() {
+        return "libusb_pollfd {" +
+                " fd=" + fd +
+                " events=" + events +
+                "}";
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * The generic USB transfer structure. The user populates this structure and then submits it in order to request
+ * a transfer. After the transfer has completed, the library populates the transfer with the results and passes
+ * it back to the user.
+ *
+ * Instances are always backed by memory allocated with libusb_alloc_transfer(). The static inline helper
+ * functions of libusb.h (libusb_fill_bulk_transfer() etc.) are implemented here as methods operating on the
+ * structure. The variable length iso_packet_desc array following the structure is accessed directly in the
+ * transfer memory.
+ */
+public class libusb_transfer extends Structure {
+    /**
+     * Size of the setup packet in the beginning of a control transfer buffer.
+     */
+    public static final int CONTROL_SETUP_SIZE = 8;
+
+    /**
+     * Offset of the iso_packet_desc array, which follows num_iso_packets without padding.
+     */
+    public static final int ISO_PACKET_DESC_OFFSET = align(Pointer.SIZE + 20, Pointer.SIZE) + 3 * Pointer.SIZE + 4;
+
+    /**
+     * Size of struct libusb_iso_packet_descriptor: unsigned int length, unsigned int actual_length, int status.
+     */
+    public static final int ISO_PACKET_DESC_SIZE = 12;
+
+    /**
+     * Handle of the device that this transfer will be submitted to
+     */
+    public Pointer dev_handle;
+
+    /**
+     * A bitwise OR combination of libusb_transfer_flags.
+     */
+    public byte flags;
+
+    /**
+     * Address of the endpoint where this transfer will be sent.
+     */
+    public byte endpoint;
+
+    /**
+     * Type of the endpoint from libusb_transfer_type
+     */
+    public byte type;
+
+    /**
+     * Timeout for this transfer in millseconds. A value of 0 indicates no timeout.
+     */
+    public int timeout;
+
+    /**
+     * The status of the transfer. Read-only, and only for use within transfer callback function.
+     */
+    public int status;
+
+    /**
+     * Length of the data buffer
+     */
+    public int length;
+
+    /**
+     * Actual length of data that was transferred. Read-only, and only for use within transfer callback function.
+     */
+    public int actual_length;
+
+    /**
+     * Callback function. This will be invoked when the transfer completes, fails, or is cancelled.
+     */
+    public libusb_transfer_cb_fn callback;
+
+    /**
+     * User context data to pass to the callback function.
+     */
+    public Pointer user_data;
+
+    /**
+     * Data buffer
+     */
+    public Pointer buffer;
+
+    /**
+     * Number of isochronous packets. Only used for I/O with isochronous endpoints.
+     */
+    public int num_iso_packets;
+
+    /**
+     * @param p transfer allocated with libusb_alloc_transfer()
+     */
+    public libusb_transfer(Pointer p) {
+        super(p);
+    }
+
+    /**
+     * Helper function to populate the setup packet (first 8 bytes of the data buffer) for a control transfer.
+     * The wValue, wIndex and wLength values should be given in host-endian byte order.
+     *
+     * @param buffer        buffer to output the setup packet into
+     * @param bmRequestType see the bmRequestType field of libusb_control_setup
+     * @param bRequest      see the bRequest field of libusb_control_setup
+     * @param wValue        see the wValue field of libusb_control_setup
+     * @param wIndex        see the wIndex field of libusb_control_setup
+     * @param wLength       see the wLength field of libusb_control_setup
+     */
+    public static void fill_control_setup(Pointer buffer, byte bmRequestType, byte bRequest, short wValue,
+                                          short wIndex, short wLength) {
+        buffer.setByte(0, bmRequestType);
+        buffer.setByte(1, bRequest);
+        setLe16(buffer, 2, wValue);
+        setLe16(buffer, 4, wIndex);
+        setLe16(buffer, 6, wLength);
+    }
+
+    /**
+     * Get the data section of a control transfer. This is the part of the buffer following the setup packet.
+     *
+     * @return pointer to the first byte of the data section
+     */
+    public Pointer control_transfer_get_data() {
+        return buffer.share(CONTROL_SETUP_SIZE);
+    }
+
+    /**
+     * Helper function to populate the required libusb_transfer fields for a control transfer.
+     *
+     * If you pass a transfer buffer to this function, the first 8 bytes will be interpreted as a control setup
+     * packet, and the wLength field will be used to automatically populate the length field of the transfer.
+     * Therefore the recommended approach is:
+     * 1. Allocate a suitably sized data buffer (including space for control setup)
+     * 2. Call fill_control_setup()
+     * 3. If this is a host-to-device transfer with a data stage, put the data in place after the setup packet
+     * 4. Call this function
+     * 5. Call libusb_submit_transfer()
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param buffer     data buffer. If provided, this function will interpret the first 8 bytes as a setup packet
+     *                   and infer the transfer length from that.
+     * @param callback   callback function to be invoked on transfer completion
+     * @param user_data  user data to pass to callback function
+     * @param timeout    timeout for the transfer in milliseconds
+     */
+    public void fill_control_transfer(Pointer dev_handle, Pointer buffer, libusb_transfer_cb_fn callback,
+                                      Pointer user_data, int timeout) {
+        this.dev_handle = dev_handle;
+        this.endpoint = 0;
+        this.type = libusb_transfer_type.TRANSFER_TYPE_CONTROL;
+        this.timeout = timeout;
+        this.buffer = buffer;
+        if (buffer != null) {
+            this.length = CONTROL_SETUP_SIZE + getLe16(buffer, 6);
+        }
+        this.user_data = user_data;
+        this.callback = callback;
+        write();
+    }
+
+    /**
+     * Helper function to populate the required libusb_transfer fields for a bulk transfer.
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param endpoint   address of the endpoint where this transfer will be sent
+     * @param buffer     data buffer
+     * @param length     length of data buffer
+     * @param callback   callback function to be invoked on transfer completion
+     * @param user_data  user data to pass to callback function
+     * @param timeout    timeout for the transfer in milliseconds
+     */
+    public void fill_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer buffer, int length,
+                                   libusb_transfer_cb_fn callback, Pointer user_data, int timeout) {
+        fill(dev_handle, endpoint, libusb_transfer_type.TRANSFER_TYPE_BULK, buffer, length, callback, user_data, timeout);
+    }
+
+    /**
+     * Helper function to populate the required libusb_transfer fields for an interrupt transfer.
+     *
+     * @param dev_handle handle of the device that will handle the transfer
+     * @param endpoint   address of the endpoint where this transfer will be sent
+     * @param buffer     data buffer
+     * @param length     length of data buffer
+     * @param callback   callback function to be invoked on transfer completion
+     * @param user_data  user data to pass to callback function
+     * @param timeout    timeout for the transfer in milliseconds
+     */
+    public void fill_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer buffer, int length,
+                                        libusb_transfer_cb_fn callback, Pointer user_data, int timeout) {
+        fill(dev_handle, endpoint, libusb_transfer_type.TRANSFER_TYPE_INTERRUPT, buffer, length, callback, user_data, timeout);
+    }
+
+    /**
+     * Helper function to populate the required libusb_transfer fields for an isochronous transfer.
+     * The packet lengths must be set separately, e.g. with set_iso_packet_lengths().
+     *
+     * @param dev_handle      handle of the device that will handle the transfer
+     * @param endpoint        address of the endpoint where this transfer will be sent
+     * @param buffer          data buffer
+     * @param length          length of data buffer
+     * @param num_iso_packets the number of isochronous packets. Must not exceed the number of packet
+     *                        descriptors the transfer was allocated with.
+     * @param callback        callback function to be invoked on transfer completion
+     * @param user_data       user data to pass to callback function
+     * @param timeout         timeout for the transfer in milliseconds
+     */
+    public void fill_iso_transfer(Pointer dev_handle, byte endpoint, Pointer buffer, int length, int num_iso_packets,
+                                  libusb_transfer_cb_fn callback, Pointer user_data, int timeout) {
+        this.num_iso_packets = num_iso_packets;
+        fill(dev_handle, endpoint, libusb_transfer_type.TRANSFER_TYPE_ISOCHRONOUS, buffer, length, callback, user_data, timeout);
+    }
+
+    /**
+     * Convenience function to set the length of all packets in an isochronous transfer, based on the
+     * num_iso_packets field.
+     *
+     * @param length the length to set in each isochronous packet descriptor
+     */
+    public void set_iso_packet_lengths(int length) {
+        Pointer p = getPointer();
+        for (int i = 0; i < num_iso_packets; ++i) {
+            p.setInt(ISO_PACKET_DESC_OFFSET + i * ISO_PACKET_DESC_SIZE, length);
+        }
+    }
+
+    /**
+     * Convenience function to locate the position of an isochronous packet within the buffer of an isochronous
+     * transfer. This is a thorough function which loops through all preceding packets, accumulating their lengths
+     * to find the position of the specified packet.
+     *
+     * @param packet the packet to return the offset of
+     * @return offset of the packet in the buffer, or -1 if the packet does not exist
+     */
+    public int get_iso_packet_offset(int packet) {
+        if (packet < 0 || packet >= num_iso_packets) {
+            return -1;
+        }
+        int offset = 0;
+        for (int i = 0; i < packet; ++i) {
+            offset += get_iso_packet_length(i);
+        }
+        return offset;
+    }
+
+    /**
+     * Convenience function to locate the position of an isochronous packet within the buffer of an isochronous
+     * transfer, for transfers where each packet is of identical size. This only looks at the length of the
+     * first packet.
+     *
+     * @param packet the packet to return the offset of
+     * @return offset of the packet in the buffer, or -1 if the packet does not exist
+     */
+    public int get_iso_packet_offset_simple(int packet) {
+        if (packet < 0 || packet >= num_iso_packets) {
+            return -1;
+        }
+        return get_iso_packet_length(0) * packet;
+    }
+
+    /**
+     * Pointer version of get_iso_packet_offset().
+     *
+     * @param packet the packet to return the address of
+     * @return pointer to the start of the packet, or null if the packet does not exist
+     */
+    public Pointer get_iso_packet_buffer(int packet) {
+        int offset = get_iso_packet_offset(packet);
+        return offset < 0 ? null : buffer.share(offset);
+    }
+
+    /**
+     * Pointer version of get_iso_packet_offset_simple().
+     *
+     * @param packet the packet to return the address of
+     * @return pointer to the start of the packet, or null if the packet does not exist
+     */
+    public Pointer get_iso_packet_buffer_simple(int packet) {
+        int offset = get_iso_packet_offset_simple(packet);
+        return offset < 0 ? null : buffer.share(offset);
+    }
+
+    /**
+     * @param packet packet index
+     * @return the length field of the packet descriptor
+     */
+    public int get_iso_packet_length(int packet) {
+        return getPointer().getInt(ISO_PACKET_DESC_OFFSET + packet * ISO_PACKET_DESC_SIZE);
+    }
+
+    /**
+     * @param packet packet index
+     * @return amount of data that was actually transferred in the packet, valid after completion
+     */
+    public int get_iso_packet_actual_length(int packet) {
+        return getPointer().getInt(ISO_PACKET_DESC_OFFSET + packet * ISO_PACKET_DESC_SIZE + 4);
+    }
+
+    /**
+     * @param packet packet index
+     * @return status code for the packet from libusb_transfer_status, valid after completion
+     */
+    public int get_iso_packet_status(int packet) {
+        return getPointer().getInt(ISO_PACKET_DESC_OFFSET + packet * ISO_PACKET_DESC_SIZE + 8);
+    }
+
+    private void fill(Pointer dev_handle, byte endpoint, int type, Pointer buffer, int length,
+                      libusb_transfer_cb_fn callback, Pointer user_data, int timeout) {
+        this.dev_handle = dev_handle;
+        this.endpoint = endpoint;
+        this.type = (byte) type;
+        this.timeout = timeout;
+        this.buffer = buffer;
+        this.length = length;
+        this.user_data = user_data;
+        this.callback = callback;
+        write();
+    }
+
+    private static int align(int offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    private static void setLe16(Pointer p, long offset, short value) {
+        p.setByte(offset, (byte) value);
+        p.setByte(offset + 1, (byte) (value >> 8));
+    }
+
+    private static int getLe16(Pointer p, long offset) {
+        return (p.getByte(offset) & 0xff) | ((p.getByte(offset + 1) & 0xff) << 8);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+/**
+ * Values for the flags field of libusb_transfer.
+ */
+public class libusb_transfer_flags {
+    /**
+     * Report short frames as errors
+     */
+    public static final int TRANSFER_SHORT_NOT_OK = 1 << 0;
+
+    /**
+     * Automatically free() transfer buffer during libusb_free_transfer().
+     * Never set this for buffers allocated on the Java side.
+     */
+    public static final int TRANSFER_FREE_BUFFER = 1 << 1;
+
+    /**
+     * Automatically call libusb_free_transfer() after callback returns.
+     */
+    public static final int TRANSFER_FREE_TRANSFER = 1 << 2;
+
+    /**
+     * Terminate transfers that are a multiple of the endpoint's wMaxPacketSize with an extra zero length packet.
+     */
+    public static final int TRANSFER_ADD_ZERO_PACKET = 1 << 3;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+/**
+ * Transfer status codes.
+ */
+public class libusb_transfer_status {
+    /**
+     * Transfer completed without error. Note that this does not indicate that the entire amount of
+     * requested data was transferred.
+     */
+    public static final int TRANSFER_COMPLETED = 0;
+
+    /**
+     * Transfer failed
+     */
+    public static final int TRANSFER_ERROR = 1;
+
+    /**
+     * Transfer timed out
+     */
+    public static final int TRANSFER_TIMED_OUT = 2;
+
+    /**
+     * Transfer was cancelled
+     */
+    public static final int TRANSFER_CANCELLED = 3;
+
+    /**
+     * For bulk/interrupt endpoints: halt condition detected (endpoint stalled).
+     * For control endpoints: control request not supported.
+     */
+    public static final int TRANSFER_STALL = 4;
+
+    /**
+     * Device was disconnected
+     */
+    public static final int TRANSFER_NO_DEVICE = 5;
+
+    /**
+     * Device sent more data than requested
+     */
+    public static final int TRANSFER_OVERFLOW = 6;
+
+    /**
+     * Get text for transfer status.
+     *
+     * @param s Transfer status
+     * @return Text string
+     */
+    public static String getText(int s) {
+        switch (s) {
+            case TRANSFER_COMPLETED:
+                return "TRANSFER_COMPLETED";
+            case TRANSFER_ERROR:
+                return "TRANSFER_ERROR";
+            case TRANSFER_TIMED_OUT:
+                return "TRANSFER_TIMED_OUT";
+            case TRANSFER_CANCELLED:
+                return "TRANSFER_CANCELLED";
+            case TRANSFER_STALL:
+                return "TRANSFER_STALL";
+            case TRANSFER_NO_DEVICE:
+                return "TRANSFER_NO_DEVICE";
+            case TRANSFER_OVERFLOW:
+                return "TRANSFER_OVERFLOW";
+            default:
+                return "?(" + s + ")";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+/**
+ * Structure providing the version of the libusb runtime, returned by libusb_get_version().
+ */
+public class libusb_version extends Structure {
+    /**
+     * Library major version
+     */
+    public short major;
+
+    /**
+     * Library minor version
+     */
+    public short minor;
+
+    /**
+     * Library micro version
+     */
+    public short micro;
+
+    /**
+     * Library nano version
+     */
+    public short nano;
+
+    /**
+     * Library release candidate suffix string, e.g. "-rc4"
+     */
+    public String rc;
+
+    /**
+     * For ABI compatibility only
+     */
+    public String describe;
+
+    public libusb_version() {
+    }
+
+    /**
+     * @param p structure returned by libusb_get_version()
+     */
+    public libusb_version(Pointer p) {
+        super(p);
+        read();
+    }
+
+    @Override
+    public String toString() {
+        return (major & 0xffff) + "." + (minor & 0xffff) + "." + (micro & 0xffff) + "." + (nano & 0xffff) +
+                (rc != null ? rc : "");
+    }
+}
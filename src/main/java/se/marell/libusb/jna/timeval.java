@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.jna;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+
+/**
+ * struct timeval as used by the libusb polling and timing functions.
+ */
+public class timeval extends Structure {
+    /**
+     * Seconds
+     */
+    public NativeLong tv_sec;
+
+    /**
+     * Microseconds
+     */
+    public NativeLong tv_usec;
+
+    public timeval() {
+        tv_sec = new NativeLong(0);
+        tv_usec = new NativeLong(0);
+    }
+
+    /**
+     * Set the time value.
+     *
+     * @param micros time in microseconds
+     */
+    public void setMicros(long micros) {
+        tv_sec = new NativeLong(micros / 1000000);
+        tv_usec = new NativeLong(micros % 1000000);
+        write();
+    }
+
+    /**
+     * @return time in microseconds, as last read from native memory
+     */
+    public long getMicros() {
+        return tv_sec.longValue() * 1000000 + tv_usec.longValue();
+    }
+
+    @Override
+    public String toString() {
+        return "timeval {" +
+                " tv_sec=" + tv_sec +
+                " tv_usec=" + tv_usec +
+                "}";
+    }
+}
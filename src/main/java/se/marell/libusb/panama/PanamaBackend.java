@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.panama;
+
+import se.marell.libusb.jna.LibUsb;
+
+/**
+ * Entry point of the libusb backend built on the Java Foreign Function and Memory API (java.lang.foreign).
+ *
+ * This is the version loaded by JVMs older than Java 22, where the backend is not supported. The jar is a
+ * multi-release jar and on Java 22 and later the version in META-INF/versions/22 is loaded instead.
+ */
+public final class PanamaBackend {
+    private PanamaBackend() {
+    }
+
+    /**
+     * @return true if the running JVM supports the backend
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Create the backend.
+     *
+     * @param other LibUsb used for the functions that the backend does not implement itself
+     * @return the backend
+     * @throws UnsupportedOperationException if the backend is not supported by the running JVM
+     */
+    public static LibUsb create(LibUsb other) {
+        throw new UnsupportedOperationException("The Panama backend requires Java 22 or later");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Handles the control requests of a VirtualDevice that the device does not answer itself. The device answers
+ * the standard GET_DESCRIPTOR requests for its device and string descriptors.
+ */
+public interface ControlHandler {
+    /**
+     * Handle a control request.
+     *
+     * @param bmRequestType the request type field for the setup packet
+     * @param bRequest      the request field for the setup packet
+     * @param wValue        the value field for the setup packet
+     * @param wIndex        the index field for the setup packet
+     * @param data          data stage buffer, read for host-to-device and written for device-to-host requests
+     * @param wLength       the length of the data stage
+     * @return number of bytes transferred in the data stage, VirtualEndpoint.NAK, or a libusb_error code
+     *         (ERROR_PIPE to stall the request)
+     */
+    int control(byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data, int wLength);
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Endpoint returning the data written to it. Register the same instance at an OUT and an IN address: each OUT
+ * transfer queues one packet and each IN transfer returns the oldest packet. An IN transfer shorter than the
+ * packet gets the first part of it, the rest is kept for the next transfer. IN transfers NAK while the queue is
+ * empty and OUT transfers NAK while it is full.
+ */
+public class LoopbackEndpoint implements VirtualEndpoint {
+    private final Deque<byte[]> packets = new ArrayDeque<byte[]>();
+    private final int capacity;
+
+    /**
+     * @param capacity maximum number of queued packets
+     */
+    public LoopbackEndpoint(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized int transfer(int endpoint, Pointer data, int length) {
+        if ((endpoint & 0x80) == 0) {
+            if (packets.size() >= capacity) {
+                return NAK;
+            }
+            packets.addLast(data.getByteArray(0, length));
+            return length;
+        }
+        byte[] packet = packets.pollFirst();
+        if (packet == null) {
+            return NAK;
+        }
+        int n = Math.min(length, packet.length);
+        data.write(0, packet, 0, n);
+        if (n < packet.length) {
+            byte[] rest = new byte[packet.length - n];
+            System.arraycopy(packet, n, rest, 0, rest.length);
+            packets.addFirst(rest);
+        }
+        return n;
+    }
+
+    /**
+     * @return number of queued packets
+     */
+    public synchronized int getQueuedPackets() {
+        return packets.size();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_INTERFACE;
+import static se.marell.libusb.jna.DescriptorLayout.CONFIG_SIZE;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.ENDPOINT_DESCRIPTOR_SIZE;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_ALTSETTING;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_ENDPOINT;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_EXTRA;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_EXTRA_LENGTH;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_DESCRIPTOR_SIZE;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_NUM_ALTSETTING;
+import static se.marell.libusb.jna.DescriptorLayout.INTERFACE_SIZE;
+
+/**
+ * A struct libusb_config_descriptor in native memory, parsed from a configuration descriptor as sent on the wire
+ * the way libusb does: interface descriptors with the same number become alternate settings of one interface,
+ * and descriptors that are neither interface nor endpoint descriptors become the extra descriptors of the
+ * preceding configuration, interface or endpoint descriptor.
+ */
+class NativeConfigDescriptor {
+    private static final int DESCRIPTOR_TYPE_INTERFACE = 4;
+    private static final int DESCRIPTOR_TYPE_ENDPOINT = 5;
+
+    /**
+     * All memory of the structure, referenced here until the descriptor is freed
+     */
+    private final List<Memory> memory = new ArrayList<Memory>();
+    private final Memory config;
+
+    /**
+     * An interface or endpoint descriptor at offset in raw, and the extra descriptors following it
+     */
+    private static class Descriptor {
+        final byte[] raw;
+        final int offset;
+        final ByteArrayOutputStream extra = new ByteArrayOutputStream();
+
+        Descriptor(byte[] raw, int offset) {
+            this.raw = raw;
+            this.offset = offset;
+        }
+    }
+
+    private static class AltSetting extends Descriptor {
+        final List<Descriptor> endpoints = new ArrayList<Descriptor>();
+
+        AltSetting(byte[] raw, int offset) {
+            super(raw, offset);
+        }
+    }
+
+    /**
+     * @param raw configuration descriptor as sent on the wire, at least its 9 byte header
+     */
+    NativeConfigDescriptor(byte[] raw) {
+        int totalLength = Math.min(raw.length, le16(raw, 2));
+        ByteArrayOutputStream configExtra = new ByteArrayOutputStream();
+        List<List<AltSetting>> interfaces = new ArrayList<List<AltSetting>>();
+        AltSetting alt = null;
+        Descriptor endpoint = null;
+        int pos = raw[0] & 0xff;
+        while (pos + 2 <= totalLength) {
+            int length = raw[pos] & 0xff;
+            if (length < 2 || pos + length > totalLength) {
+                break;
+            }
+            int type = raw[pos + 1];
+            if (type == DESCRIPTOR_TYPE_INTERFACE && length >= 9) {
+                alt = new AltSetting(raw, pos);
+                endpoint = null;
+                interfaceOf(interfaces, raw[pos + 2]).add(alt);
+            } else if (type == DESCRIPTOR_TYPE_ENDPOINT && length >= 7 && alt != null) {
+                endpoint = new Descriptor(raw, pos);
+                alt.endpoints.add(endpoint);
+            } else {
+                ByteArrayOutputStream extra = endpoint != null ? endpoint.extra : alt != null ? alt.extra : configExtra;
+                extra.write(raw, pos, length);
+            }
+            pos += length;
+        }
+
+        config = allocate(CONFIG_SIZE);
+        config.setByte(0, raw[0]);
+        config.setByte(1, raw[1]);
+        config.setShort(2, (short) le16(raw, 2));
+        config.setByte(4, (byte) interfaces.size());
+        config.write(5, raw, 5, 4);
+        config.setPointer(CONFIG_INTERFACE, writeInterfaces(interfaces));
+        writeExtra(config, CONFIG_EXTRA, CONFIG_EXTRA_LENGTH, configExtra);
+    }
+
+    private static List<AltSetting> interfaceOf(List<List<AltSetting>> interfaces, byte number) {
+        for (List<AltSetting> i : interfaces) {
+            if (i.get(0).raw[i.get(0).offset + 2] == number) {
+                return i;
+            }
+        }
+        List<AltSetting> i = new ArrayList<AltSetting>();
+        interfaces.add(i);
+        return i;
+    }
+
+    private Pointer writeInterfaces(List<List<AltSetting>> interfaces) {
+        if (interfaces.isEmpty()) {
+            return null;
+        }
+        Memory array = allocate(INTERFACE_SIZE * interfaces.size());
+        for (int i = 0; i < interfaces.size(); ++i) {
+            List<AltSetting> alts = interfaces.get(i);
+            Memory altArray = allocate(INTERFACE_DESCRIPTOR_SIZE * alts.size());
+            for (int j = 0; j < alts.size(); ++j) {
+                writeAltSetting(altArray.share(j * INTERFACE_DESCRIPTOR_SIZE), alts.get(j));
+            }
+            array.setPointer(i * INTERFACE_SIZE + INTERFACE_ALTSETTING, altArray);
+            array.setInt(i * INTERFACE_SIZE + INTERFACE_NUM_ALTSETTING, alts.size());
+        }
+        return array;
+    }
+
+    private void writeAltSetting(Pointer p, AltSetting alt) {
+        p.write(0, alt.raw, alt.offset, 9);
+        p.setByte(4, (byte) alt.endpoints.size());
+        Memory array = null;
+        if (!alt.endpoints.isEmpty()) {
+            array = allocate(ENDPOINT_DESCRIPTOR_SIZE * alt.endpoints.size());
+            for (int i = 0; i < alt.endpoints.size(); ++i) {
+                writeEndpoint(array.share(i * ENDPOINT_DESCRIPTOR_SIZE), alt.endpoints.get(i));
+            }
+        }
+        p.setPointer(INTERFACE_DESCRIPTOR_ENDPOINT, array);
+        writeExtra(p, INTERFACE_DESCRIPTOR_EXTRA, INTERFACE_DESCRIPTOR_EXTRA_LENGTH, alt.extra);
+    }
+
+    private void writeEndpoint(Pointer p, Descriptor endpoint) {
+        byte[] raw = endpoint.raw;
+        int offset = endpoint.offset;
+        p.write(0, raw, offset, 4);
+        p.setShort(4, (short) le16(raw, offset + 4));
+        p.setByte(6, raw[offset + 6]);
+        boolean audio = (raw[offset] & 0xff) >= 9;
+        p.setByte(7, audio ? raw[offset + 7] : 0);
+        p.setByte(8, audio ? raw[offset + 8] : 0);
+        writeExtra(p, ENDPOINT_DESCRIPTOR_EXTRA, ENDPOINT_DESCRIPTOR_EXTRA_LENGTH, endpoint.extra);
+    }
+
+    private void writeExtra(Pointer p, int extraOffset, int lengthOffset, ByteArrayOutputStream extra) {
+        Memory m = null;
+        if (extra.size() > 0) {
+            m = allocate(extra.size());
+            m.write(0, extra.toByteArray(), 0, extra.size());
+        }
+        p.setPointer(extraOffset, m);
+        p.setInt(lengthOffset, extra.size());
+    }
+
+    private Memory allocate(int size) {
+        Memory m = new Memory(size);
+        m.clear();
+        memory.add(m);
+        return m;
+    }
+
+    private static int le16(byte[] d, int offset) {
+        return (d[offset] & 0xff) | (d[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * @return the struct libusb_config_descriptor
+     */
+    Pointer getPointer() {
+        return config;
+    }
+}
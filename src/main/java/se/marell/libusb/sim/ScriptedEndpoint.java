@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Endpoint answering with a script. IN transfers return the scripted packets in order, OUT transfers are
+ * recorded and accept all data. A scripted error is returned by the next transfer in either direction.
+ * IN transfers NAK when the script is exhausted.
+ */
+public class ScriptedEndpoint implements VirtualEndpoint {
+    private final Deque<Object> script = new ArrayDeque<Object>();
+    private final List<byte[]> received = new ArrayList<byte[]>();
+
+    /**
+     * Add a packet to be returned by an IN transfer. A packet longer than the transfer is truncated.
+     *
+     * @param packet packet data
+     */
+    public synchronized void addPacket(byte[] packet) {
+        script.addLast(packet.clone());
+    }
+
+    /**
+     * Add an error to be returned by the next transfer.
+     *
+     * @param error libusb_error code, for example ERROR_PIPE for a stall
+     */
+    public synchronized void addError(int error) {
+        script.addLast(error);
+    }
+
+    /**
+     * @return the data of the OUT transfers so far
+     */
+    public synchronized List<byte[]> getReceived() {
+        return new ArrayList<byte[]>(received);
+    }
+
+    @Override
+    public synchronized int transfer(int endpoint, Pointer data, int length) {
+        Object next = script.peekFirst();
+        if (next instanceof Integer) {
+            script.removeFirst();
+            return (Integer) next;
+        }
+        if ((endpoint & 0x80) == 0) {
+            received.add(data.getByteArray(0, length));
+            return length;
+        }
+        if (next == null) {
+            return NAK;
+        }
+        script.removeFirst();
+        byte[] packet = (byte[]) next;
+        int n = Math.min(length, packet.length);
+        data.write(0, packet, 0, n);
+        return n;
+    }
+}
@@ -0,0 +1,1147 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import se.marell.libusb.jna.DescriptorLayout;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_capability;
+import se.marell.libusb.jna.libusb_device_descriptor;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_hotplug_callback_fn;
+import se.marell.libusb.jna.libusb_hotplug_event;
+import se.marell.libusb.jna.libusb_hotplug_flag;
+import se.marell.libusb.jna.libusb_pollfd_added_cb;
+import se.marell.libusb.jna.libusb_pollfd_removed_cb;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.libusb_transfer_type;
+import se.marell.libusb.jna.libusb_version;
+import se.marell.libusb.jna.timeval;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LibUsb implementation simulating a USB bus in memory, for running and benchmarking code on machines without
+ * USB devices or libusb. Pass it to LibUsbSystem(LibUsb, boolean) and add VirtualDevice objects to it.
+ *
+ * The native library is never loaded; transfers and handles are plain JNA Memory. Synchronous transfers block
+ * the calling thread for the time given by the latency and bandwidth of the device. Asynchronous transfers are
+ * performed at submit and their callbacks are invoked from within the handle_events functions once their
+ * completion time has passed, so an event thread (LibUsbSystem.startEventThread()) or a handle_events loop is
+ * needed as with real libusb. Transfers that NAK are retried until they succeed, time out or are cancelled.
+ *
+ * Hotplug callbacks are supported unless disabled with setHotplugSupported(). Like transfer callbacks they are
+ * invoked from within the handle_events functions for the context they were registered with.
+ *
+ * Device references taken by device lists, libusb_ref_device() and open handles are counted per device (see
+ * VirtualDevice.getReferenceCount()); releasing an unreferenced device throws IllegalStateException.
+ *
+ * Polled file descriptors are not simulated: get_pollfds returns an empty list.
+ */
+public class SimulatedLibUsb implements LibUsb {
+    /**
+     * Interval at which NAKed transfers are retried
+     */
+    private static final long NAK_RETRY_NANOS = 100000;
+
+    /**
+     * Synchronous transfers spin instead of parking for the last part of their time, as parking overshoots
+     */
+    private static final long SPIN_NANOS = 50000;
+
+    /**
+     * Timeout of libusb_handle_events(), as in libusb
+     */
+    private static final long HANDLE_EVENTS_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final List<VirtualDevice> devices = new CopyOnWriteArrayList<VirtualDevice>();
+    private final Map<Long, VirtualDevice> devicesByPointer = new ConcurrentHashMap<Long, VirtualDevice>();
+    private final Map<Long, OpenHandle> handles = new ConcurrentHashMap<Long, OpenHandle>();
+    private final Map<Long, Memory> contexts = new ConcurrentHashMap<Long, Memory>();
+    private final Map<Long, Memory> transfers = new ConcurrentHashMap<Long, Memory>();
+    private final Map<Long, Submitted> inFlight = new ConcurrentHashMap<Long, Submitted>();
+    private final Map<Long, NativeConfigDescriptor> configs = new ConcurrentHashMap<Long, NativeConfigDescriptor>();
+
+    private final Map<Integer, Hotplug> hotplugs = new ConcurrentHashMap<Integer, Hotplug>();
+    private volatile boolean hotplugSupported = true;
+
+    /**
+     * Guards completions, naks, hotplugEvents and hotplugHandles. changed is signalled when a transfer or a
+     * hotplug event is queued.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Submitted> completions = new PriorityQueue<Submitted>();
+    private final List<Submitted> naks = new ArrayList<Submitted>();
+    private final List<HotplugEvent> hotplugEvents = new ArrayList<HotplugEvent>();
+    private int hotplugHandles;
+    private long sequence;
+    private final libusb_version version = new libusb_version();
+
+    private static final class OpenHandle {
+        final Memory memory = new Memory(8);
+        final VirtualDevice device;
+
+        OpenHandle(VirtualDevice device) {
+            this.device = device;
+        }
+    }
+
+    private static final class Submitted implements Comparable<Submitted> {
+        final Pointer transfer;
+        final libusb_transfer t;
+        final VirtualDevice device;
+        final long deadline;
+        long due;
+        long sequence;
+        int status;
+        int actualLength;
+        boolean cancelled;
+
+        Submitted(Pointer transfer, libusb_transfer t, VirtualDevice device, long deadline) {
+            this.transfer = transfer;
+            this.t = t;
+            this.device = device;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Submitted o) {
+            if (due != o.due) {
+                return due - o.due < 0 ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+    }
+
+    private static final class Hotplug {
+        final int handle;
+        final long context;
+        final int events;
+        final int vendorId;
+        final int productId;
+        final int deviceClass;
+        final libusb_hotplug_callback_fn fn;
+        final Pointer userData;
+
+        Hotplug(int handle, long context, int events, int vendorId, int productId, int deviceClass,
+                libusb_hotplug_callback_fn fn, Pointer userData) {
+            this.handle = handle;
+            this.context = context;
+            this.events = events;
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.deviceClass = deviceClass;
+            this.fn = fn;
+            this.userData = userData;
+        }
+
+        boolean matches(VirtualDevice d, int event) {
+            libusb_device_descriptor desc = d.getDescriptor();
+            return (events & event) != 0 &&
+                    (vendorId == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || vendorId == (desc.idVendor & 0xffff)) &&
+                    (productId == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || productId == (desc.idProduct & 0xffff)) &&
+                    (deviceClass == libusb_hotplug_flag.HOTPLUG_MATCH_ANY || deviceClass == (desc.bDeviceClass & 0xff));
+        }
+    }
+
+    private static final class HotplugEvent {
+        final Hotplug hotplug;
+        final VirtualDevice device;
+        final int event;
+
+        HotplugEvent(Hotplug hotplug, VirtualDevice device, int event) {
+            this.hotplug = hotplug;
+            this.device = device;
+            this.event = event;
+        }
+    }
+
+    public SimulatedLibUsb() {
+        version.major = 1;
+        version.rc = "-sim";
+        version.describe = "";
+        version.write();
+    }
+
+    /**
+     * Connect a device to the bus.
+     *
+     * @param device the device
+     */
+    public void addDevice(VirtualDevice device) {
+        device.setConnected(true);
+        devicesByPointer.put(Pointer.nativeValue(device.getPointer()), device);
+        devices.add(device);
+        queueHotplugEvent(device, libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED);
+    }
+
+    /**
+     * Disconnect a device from the bus. Its open handles stay valid but all operations on them fail with
+     * ERROR_NO_DEVICE, and its NAKing transfers complete with TRANSFER_NO_DEVICE.
+     *
+     * @param device the device
+     */
+    public void removeDevice(VirtualDevice device) {
+        device.setConnected(false);
+        devices.remove(device);
+        queueHotplugEvent(device, libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_LEFT);
+        retryNaks();
+    }
+
+    /**
+     * Set whether libusb_has_capability() reports CAP_HAS_HOTPLUG and hotplug callbacks can be registered.
+     * Default is true.
+     *
+     * @param supported false to simulate a platform without hotplug support
+     */
+    public void setHotplugSupported(boolean supported) {
+        hotplugSupported = supported;
+    }
+
+    private void queueHotplugEvent(VirtualDevice device, int event) {
+        lock.lock();
+        try {
+            for (Hotplug h : hotplugs.values()) {
+                if (h.matches(device, event)) {
+                    hotplugEvents.add(new HotplugEvent(h, device, event));
+                }
+            }
+            if (!hotplugEvents.isEmpty()) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invokeHotplug(Hotplug h, VirtualDevice device, int event) {
+        if (hotplugs.get(h.handle) != h) {
+            return;
+        }
+        Pointer context = h.context == 0 ? null : contexts.get(h.context);
+        if (h.fn.invoke(context, device.getPointer(), event, h.userData) != 0) {
+            hotplugs.remove(h.handle);
+        }
+    }
+
+    /**
+     * @return the connected devices
+     */
+    public List<VirtualDevice> getDevices() {
+        return new ArrayList<VirtualDevice>(devices);
+    }
+
+    /**
+     * @return number of device handles opened and not closed
+     */
+    public int getOpenHandleCount() {
+        return handles.size();
+    }
+
+    /**
+     * @return number of submitted transfers whose callback has not been invoked yet
+     */
+    public int getTransfersInFlight() {
+        return inFlight.size();
+    }
+
+    private VirtualDevice device(Pointer usb_device) {
+        return usb_device == null ? null : devicesByPointer.get(Pointer.nativeValue(usb_device));
+    }
+
+    private VirtualDevice handleDevice(Pointer dev_handle) {
+        OpenHandle h = dev_handle == null ? null : handles.get(Pointer.nativeValue(dev_handle));
+        return h == null ? null : h.device;
+    }
+
+    /**
+     * @return 0 if the handle is open and its device is connected, else a libusb_error code
+     */
+    private int check(Pointer dev_handle) {
+        VirtualDevice d = handleDevice(dev_handle);
+        if (d == null) {
+            return libusb_error.ERROR_INVALID_PARAM;
+        }
+        return d.isConnected() ? 0 : libusb_error.ERROR_NO_DEVICE;
+    }
+
+    @Override
+    public void libusb_set_debug(Pointer context, int level) {
+    }
+
+    /**
+     * Reports version 1.0.0 with rc "-sim".
+     */
+    @Override
+    public Pointer libusb_get_version() {
+        return version.getPointer();
+    }
+
+    @Override
+    public int libusb_init(Pointer[] context) {
+        if (context != null) {
+            Memory m = new Memory(8);
+            contexts.put(Pointer.nativeValue(m), m);
+            context[0] = m;
+        }
+        return 0;
+    }
+
+    @Override
+    public void libusb_exit(Pointer context) {
+        if (context != null) {
+            contexts.remove(Pointer.nativeValue(context));
+        }
+    }
+
+    @Override
+    public int libusb_get_device_list(Pointer context, Pointer[] list) {
+        List<VirtualDevice> connected = getDevices();
+        Memory m = new Memory((connected.size() + 1) * Pointer.SIZE);
+        for (int i = 0; i < connected.size(); ++i) {
+            connected.get(i).ref();
+            m.setPointer(i * Pointer.SIZE, connected.get(i).getPointer());
+        }
+        m.setPointer(connected.size() * Pointer.SIZE, null);
+        list[0] = m;
+        return connected.size();
+    }
+
+    @Override
+    public void libusb_free_device_list(Pointer list, int unref_devices) {
+        if (list == null || unref_devices == 0) {
+            return;
+        }
+        Pointer p;
+        for (int i = 0; (p = list.getPointer(i * Pointer.SIZE)) != null; ++i) {
+            VirtualDevice d = device(p);
+            if (d != null) {
+                d.unref();
+            }
+        }
+    }
+
+    @Override
+    public int libusb_get_bus_number(Pointer usb_device) {
+        VirtualDevice d = device(usb_device);
+        return d == null ? 0 : d.getBusNumber();
+    }
+
+    @Override
+    public int libusb_get_device_address(Pointer usb_device) {
+        VirtualDevice d = device(usb_device);
+        return d == null ? 0 : d.getAddress();
+    }
+
+    @Override
+    public int libusb_get_port_numbers(Pointer usb_device, byte[] port_numbers, int port_numbers_len) {
+        VirtualDevice d = device(usb_device);
+        if (d == null) {
+            return libusb_error.ERROR_NO_DEVICE;
+        }
+        int[] ports = d.getPortNumbers();
+        if (ports.length > port_numbers_len) {
+            return libusb_error.ERROR_OVERFLOW;
+        }
+        for (int i = 0; i < ports.length; ++i) {
+            port_numbers[i] = (byte) ports[i];
+        }
+        return ports.length;
+    }
+
+    @Override
+    public int libusb_get_max_packet_size(Pointer usb_device, int endpoint) {
+        VirtualDevice d = device(usb_device);
+        return d == null ? libusb_error.ERROR_NO_DEVICE : d.getMaxPacketSize(endpoint);
+    }
+
+    @Override
+    public int libusb_get_max_iso_packet_size(Pointer usb_device, int endpoint) {
+        return libusb_get_max_packet_size(usb_device, endpoint);
+    }
+
+    @Override
+    public Pointer libusb_ref_device(Pointer usb_device) {
+        VirtualDevice d = device(usb_device);
+        if (d != null) {
+            d.ref();
+        }
+        return usb_device;
+    }
+
+    @Override
+    public void libusb_unref_device(Pointer usb_device) {
+        VirtualDevice d = device(usb_device);
+        if (d != null) {
+            d.unref();
+        }
+    }
+
+    @Override
+    public int libusb_open(Pointer usb_device, Pointer[] dev_handle) {
+        VirtualDevice d = device(usb_device);
+        if (d == null || !d.isConnected()) {
+            return libusb_error.ERROR_NO_DEVICE;
+        }
+        OpenHandle h = new OpenHandle(d);
+        d.ref();
+        handles.put(Pointer.nativeValue(h.memory), h);
+        dev_handle[0] = h.memory;
+        return 0;
+    }
+
+    @Override
+    public Pointer libusb_open_device_with_vid_pid(Pointer context, int vendor_id, int product_id) {
+        for (VirtualDevice d : devices) {
+            libusb_device_descriptor desc = d.getDescriptor();
+            if ((desc.idVendor & 0xffff) == vendor_id && (desc.idProduct & 0xffff) == product_id) {
+                Pointer[] p = new Pointer[1];
+                return libusb_open(d.getPointer(), p) == 0 ? p[0] : null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void libusb_close(Pointer dev_handle) {
+        OpenHandle h = dev_handle == null ? null : handles.remove(Pointer.nativeValue(dev_handle));
+        if (h != null) {
+            h.device.unref();
+        }
+    }
+
+    @Override
+    public Pointer libusb_get_device(Pointer dev_handle) {
+        VirtualDevice d = handleDevice(dev_handle);
+        return d == null ? null : d.getPointer();
+    }
+
+    @Override
+    public int libusb_get_configuration(Pointer dev_handle, int[] config) {
+        int rc = check(dev_handle);
+        if (rc == 0) {
+            config[0] = 1;
+        }
+        return rc;
+    }
+
+    @Override
+    public int libusb_set_configuration(Pointer dev_handle, int configuration) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_claim_interface(Pointer dev_handle, int interface_number) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_release_interface(Pointer dev_handle, int interface_number) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_set_interface_alt_setting(Pointer dev_handle, int interface_number, int alternate_setting) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_clear_halt(Pointer dev_handle, byte endpoint) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_reset_device(Pointer dev_handle) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_kernel_driver_active(Pointer dev_handle, int interface_number) {
+        return check(dev_handle);
+    }
+
+    @Override
+    public int libusb_detach_kernel_driver(Pointer dev_handle, int interface_number) {
+        int rc = check(dev_handle);
+        return rc == 0 ? libusb_error.ERROR_NOT_FOUND : rc;
+    }
+
+    @Override
+    public int libusb_attach_kernel_driver(Pointer dev_handle, int interface_number) {
+        int rc = check(dev_handle);
+        return rc == 0 ? libusb_error.ERROR_NOT_FOUND : rc;
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, libusb_device_descriptor[] desc) {
+        VirtualDevice d = device(usb_device);
+        if (d == null) {
+            return libusb_error.ERROR_NO_DEVICE;
+        }
+        libusb_device_descriptor from = d.getDescriptor();
+        libusb_device_descriptor to = desc[0] != null ? desc[0] : new libusb_device_descriptor();
+        to.bLength = from.bLength;
+        to.bDescriptorType = from.bDescriptorType;
+        to.bcdUSB = from.bcdUSB;
+        to.bDeviceClass = from.bDeviceClass;
+        to.bDeviceSubClass = from.bDeviceSubClass;
+        to.bDeviceProtocol = from.bDeviceProtocol;
+        to.bMaxPacketSize0 = from.bMaxPacketSize0;
+        to.idVendor = from.idVendor;
+        to.idProduct = from.idProduct;
+        to.bcdDevice = from.bcdDevice;
+        to.iManufacturer = from.iManufacturer;
+        to.iProduct = from.iProduct;
+        to.iSerialNumber = from.iSerialNumber;
+        to.bNumConfigurations = from.bNumConfigurations;
+        desc[0] = to;
+        return 0;
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, Pointer desc) {
+        VirtualDevice d = device(usb_device);
+        if (d == null) {
+            return libusb_error.ERROR_NO_DEVICE;
+        }
+        libusb_device_descriptor from = d.getDescriptor();
+        from.write();
+        desc.write(0, from.getPointer().getByteArray(0, DescriptorLayout.DEVICE_DESCRIPTOR_SIZE), 0,
+                DescriptorLayout.DEVICE_DESCRIPTOR_SIZE);
+        return 0;
+    }
+
+    /**
+     * The device is always in its first configuration.
+     */
+    @Override
+    public int libusb_get_active_config_descriptor(Pointer usb_device, Pointer[] config) {
+        return libusb_get_config_descriptor(usb_device, (byte) 0, config);
+    }
+
+    /**
+     * Devices have one configuration, see VirtualDevice.setConfigDescriptor().
+     */
+    @Override
+    public int libusb_get_config_descriptor(Pointer usb_device, byte config_index, Pointer[] config) {
+        VirtualDevice d = device(usb_device);
+        if (d == null) {
+            return libusb_error.ERROR_NO_DEVICE;
+        }
+        if (config_index != 0) {
+            return libusb_error.ERROR_NOT_FOUND;
+        }
+        NativeConfigDescriptor c = new NativeConfigDescriptor(d.getConfigDescriptor());
+        configs.put(Pointer.nativeValue(c.getPointer()), c);
+        config[0] = c.getPointer();
+        return 0;
+    }
+
+    @Override
+    public void libusb_free_config_descriptor(Pointer config) {
+        if (config != null) {
+            configs.remove(Pointer.nativeValue(config));
+        }
+    }
+
+    /**
+     * Characters outside ASCII are replaced by '?', as done by libusb.
+     */
+    @Override
+    public int libusb_get_string_descriptor_ascii(Pointer dev_handle, byte desc_index, byte[] data, int length) {
+        int rc = check(dev_handle);
+        if (rc < 0) {
+            return rc;
+        }
+        if (desc_index == 0) {
+            return libusb_error.ERROR_INVALID_PARAM;
+        }
+        String s = handleDevice(dev_handle).getString(desc_index & 0xff);
+        if (s == null) {
+            return libusb_error.ERROR_PIPE;
+        }
+        int n = Math.min(s.length(), length - 1);
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            data[i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        data[n] = 0;
+        return n;
+    }
+
+    @Override
+    public Pointer libusb_alloc_transfer(int iso_packets) {
+        // The structure is padded to pointer alignment after the iso packet descriptor offset
+        Memory m = new Memory(libusb_transfer.ISO_PACKET_DESC_OFFSET + Pointer.SIZE +
+                iso_packets * libusb_transfer.ISO_PACKET_DESC_SIZE);
+        m.clear();
+        transfers.put(Pointer.nativeValue(m), m);
+        return m;
+    }
+
+    @Override
+    public void libusb_free_transfer(Pointer transfer) {
+        if (transfer != null) {
+            transfers.remove(Pointer.nativeValue(transfer));
+        }
+    }
+
+    @Override
+    public int libusb_submit_transfer(Pointer transfer) {
+        long address = Pointer.nativeValue(transfer);
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        int rc = check(t.dev_handle);
+        if (rc < 0) {
+            return rc;
+        }
+        if (inFlight.containsKey(address)) {
+            return libusb_error.ERROR_BUSY;
+        }
+        long now = System.nanoTime();
+        long deadline = t.timeout > 0 ? now + TimeUnit.MILLISECONDS.toNanos(t.timeout) : Long.MAX_VALUE;
+        Submitted s = new Submitted(transfer, t, handleDevice(t.dev_handle), deadline);
+        inFlight.put(address, s);
+        if (perform(s)) {
+            schedule(s);
+            retryNaks();
+        } else {
+            lock.lock();
+            try {
+                naks.add(s);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int libusb_cancel_transfer(Pointer transfer) {
+        Submitted s = inFlight.get(Pointer.nativeValue(transfer));
+        if (s == null) {
+            return libusb_error.ERROR_NOT_FOUND;
+        }
+        lock.lock();
+        try {
+            if (s.cancelled) {
+                return libusb_error.ERROR_NOT_FOUND;
+            }
+            s.cancelled = true;
+            if (naks.remove(s) || completions.remove(s)) {
+                s.status = libusb_transfer_status.TRANSFER_CANCELLED;
+                s.actualLength = 0;
+                complete(s, System.nanoTime());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return 0;
+    }
+
+    /**
+     * Perform the transfer on the virtual device and record its status.
+     *
+     * @return false if the endpoint NAKed
+     */
+    private boolean perform(Submitted s) {
+        libusb_transfer t = s.t;
+        if (!s.device.isConnected()) {
+            s.status = libusb_transfer_status.TRANSFER_NO_DEVICE;
+            return true;
+        }
+        int rc;
+        switch (t.type) {
+            case libusb_transfer_type.TRANSFER_TYPE_CONTROL:
+                Pointer b = t.buffer;
+                rc = s.device.control(b.getByte(0), b.getByte(1), (short) getLe16(b, 2), (short) getLe16(b, 4),
+                        b.share(libusb_transfer.CONTROL_SETUP_SIZE), getLe16(b, 6));
+                break;
+            case libusb_transfer_type.TRANSFER_TYPE_ISOCHRONOUS:
+                rc = 0;
+                for (int i = 0; i < t.num_iso_packets; ++i) {
+                    int length = t.get_iso_packet_length(i);
+                    int n = s.device.transfer(t.endpoint, t.buffer.share(t.get_iso_packet_offset(i)), length);
+                    long desc = libusb_transfer.ISO_PACKET_DESC_OFFSET + i * libusb_transfer.ISO_PACKET_DESC_SIZE;
+                    s.transfer.setInt(desc + 4, Math.max(n, 0));
+                    s.transfer.setInt(desc + 8, n >= 0 || n == VirtualEndpoint.NAK ?
+                            libusb_transfer_status.TRANSFER_COMPLETED : toStatus(n));
+                    rc += Math.max(n, 0);
+                }
+                break;
+            default:
+                rc = s.device.transfer(t.endpoint, t.buffer, t.length);
+                break;
+        }
+        if (rc == VirtualEndpoint.NAK) {
+            return false;
+        }
+        s.status = rc >= 0 ? libusb_transfer_status.TRANSFER_COMPLETED : toStatus(rc);
+        s.actualLength = Math.max(rc, 0);
+        return true;
+    }
+
+    private void schedule(Submitted s) {
+        long due = s.device.schedule(System.nanoTime(), s.actualLength);
+        lock.lock();
+        try {
+            if (due > s.deadline) {
+                due = s.deadline;
+                s.status = libusb_transfer_status.TRANSFER_TIMED_OUT;
+                s.actualLength = 0;
+            }
+            if (s.cancelled) {
+                s.status = libusb_transfer_status.TRANSFER_CANCELLED;
+                s.actualLength = 0;
+            }
+            complete(s, due);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue the callback of a transfer. Called with lock held.
+     *
+     * @param s   the transfer
+     * @param due System.nanoTime() at which the callback may be invoked
+     */
+    private void complete(Submitted s, long due) {
+        s.due = due;
+        s.sequence = sequence++;
+        completions.add(s);
+        changed.signalAll();
+    }
+
+    /**
+     * Retry the NAKed transfers, completing those that succeed, have timed out, are cancelled or whose device
+     * has been removed.
+     */
+    private void retryNaks() {
+        List<Submitted> retry;
+        lock.lock();
+        try {
+            if (naks.isEmpty()) {
+                return;
+            }
+            retry = new ArrayList<Submitted>(naks);
+            naks.clear();
+        } finally {
+            lock.unlock();
+        }
+        long now = System.nanoTime();
+        for (Submitted s : retry) {
+            if (perform(s)) {
+                schedule(s);
+                continue;
+            }
+            lock.lock();
+            try {
+                if (s.cancelled || now >= s.deadline) {
+                    s.status = s.cancelled ? libusb_transfer_status.TRANSFER_CANCELLED :
+                            libusb_transfer_status.TRANSFER_TIMED_OUT;
+                    s.actualLength = 0;
+                    complete(s, now);
+                } else {
+                    naks.add(s);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Wait for transfers to complete and invoke their callbacks.
+     *
+     * Hotplug events queued for the context are delivered first.
+     *
+     * @param context      the context whose hotplug callbacks to invoke
+     * @param timeoutNanos maximum time to wait
+     * @param completed    int set non-zero to stop waiting, or null
+     * @return 0 or a libusb_error code
+     */
+    private int handleEvents(Pointer context, long timeoutNanos, Pointer completed) {
+        long key = context == null ? 0 : Pointer.nativeValue(context);
+        long deadline = System.nanoTime() + timeoutNanos;
+        List<Submitted> ready = new ArrayList<Submitted>();
+        List<HotplugEvent> hotplugReady = new ArrayList<HotplugEvent>();
+        while (ready.isEmpty() && hotplugReady.isEmpty()) {
+            retryNaks();
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                for (Iterator<HotplugEvent> it = hotplugEvents.iterator(); it.hasNext(); ) {
+                    HotplugEvent e = it.next();
+                    if (e.hotplug.context == key) {
+                        hotplugReady.add(e);
+                        it.remove();
+                    }
+                }
+                while (!completions.isEmpty() && completions.peek().due - now <= 0) {
+                    ready.add(completions.poll());
+                }
+                if (!ready.isEmpty() || !hotplugReady.isEmpty() || deadline - now <= 0 ||
+                        (completed != null && completed.getInt(0) != 0)) {
+                    break;
+                }
+                long wait = deadline - now;
+                if (!completions.isEmpty()) {
+                    wait = Math.min(wait, completions.peek().due - now);
+                }
+                if (!naks.isEmpty()) {
+                    wait = Math.min(wait, NAK_RETRY_NANOS);
+                }
+                changed.awaitNanos(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return libusb_error.ERROR_INTERRUPTED;
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (HotplugEvent e : hotplugReady) {
+            invokeHotplug(e.hotplug, e.device, e.event);
+        }
+        for (Submitted s : ready) {
+            inFlight.remove(Pointer.nativeValue(s.transfer));
+            s.t.status = s.status;
+            s.t.actual_length = s.actualLength;
+            s.t.writeField("status");
+            s.t.writeField("actual_length");
+            s.t.callback.invoke(s.transfer);
+        }
+        return 0;
+    }
+
+    private static long timeoutNanos(timeval tv) {
+        if (tv == null) {
+            return 0;
+        }
+        tv.read();
+        return TimeUnit.MICROSECONDS.toNanos(tv.getMicros());
+    }
+
+    @Override
+    public int libusb_try_lock_events(Pointer context) {
+        return 0;
+    }
+
+    @Override
+    public void libusb_lock_events(Pointer context) {
+    }
+
+    @Override
+    public void libusb_unlock_events(Pointer context) {
+    }
+
+    @Override
+    public int libusb_event_handling_ok(Pointer context) {
+        return 1;
+    }
+
+    @Override
+    public int libusb_event_handler_active(Pointer context) {
+        return 0;
+    }
+
+    @Override
+    public void libusb_lock_event_waiters(Pointer context) {
+    }
+
+    @Override
+    public void libusb_unlock_event_waiters(Pointer context) {
+    }
+
+    @Override
+    public int libusb_wait_for_event(Pointer context, timeval tv) {
+        lock.lock();
+        try {
+            changed.awaitNanos(tv == null ? HANDLE_EVENTS_NANOS : timeoutNanos(tv));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        return 0;
+    }
+
+    @Override
+    public int libusb_handle_events_timeout(Pointer context, timeval tv) {
+        return handleEvents(context, timeoutNanos(tv), null);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed) {
+        return handleEvents(context, timeoutNanos(tv), completed);
+    }
+
+    @Override
+    public int libusb_handle_events_locked(Pointer context, timeval tv) {
+        return handleEvents(context, timeoutNanos(tv), null);
+    }
+
+    @Override
+    public int libusb_get_next_timeout(Pointer context, timeval tv) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_pollfds_handle_timeouts(Pointer context) {
+        return 1;
+    }
+
+    @Override
+    public void libusb_set_pollfd_notifiers(Pointer context, libusb_pollfd_added_cb added_cb,
+                                            libusb_pollfd_removed_cb removed_cb, Pointer user_data) {
+    }
+
+    @Override
+    public Pointer libusb_get_pollfds(Pointer context) {
+        Memory list = new Memory(Pointer.SIZE);
+        list.setPointer(0, null);
+        return list;
+    }
+
+    @Override
+    public void libusb_free_pollfds(Pointer pollfds) {
+    }
+
+    @Override
+    public int libusb_handle_events(Pointer context) {
+        return handleEvents(context, HANDLE_EVENTS_NANOS, null);
+    }
+
+    @Override
+    public int libusb_has_capability(int capability) {
+        switch (capability) {
+            case libusb_capability.CAP_HAS_CAPABILITY:
+                return 1;
+            case libusb_capability.CAP_HAS_HOTPLUG:
+                return hotplugSupported ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * With HOTPLUG_ENUMERATE the callback is invoked for the connected matching devices before this returns, as
+     * in libusb.
+     */
+    @Override
+    public int libusb_hotplug_register_callback(Pointer context, int events, int flags, int vendor_id,
+                                                int product_id, int dev_class, libusb_hotplug_callback_fn cb_fn,
+                                                Pointer user_data, int[] callback_handle) {
+        if (!hotplugSupported) {
+            return libusb_error.ERROR_NOT_SUPPORTED;
+        }
+        if (cb_fn == null || (events & (libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED |
+                libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_LEFT)) == 0) {
+            return libusb_error.ERROR_INVALID_PARAM;
+        }
+        Hotplug h;
+        lock.lock();
+        try {
+            h = new Hotplug(++hotplugHandles, context == null ? 0 : Pointer.nativeValue(context), events,
+                    vendor_id, product_id, dev_class, cb_fn, user_data);
+            hotplugs.put(h.handle, h);
+        } finally {
+            lock.unlock();
+        }
+        if (callback_handle != null) {
+            callback_handle[0] = h.handle;
+        }
+        if ((flags & libusb_hotplug_flag.HOTPLUG_ENUMERATE) != 0) {
+            for (VirtualDevice d : devices) {
+                if (h.matches(d, libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED)) {
+                    invokeHotplug(h, d, libusb_hotplug_event.HOTPLUG_EVENT_DEVICE_ARRIVED);
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void libusb_hotplug_deregister_callback(Pointer context, int callback_handle) {
+        hotplugs.remove(callback_handle);
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, byte[] data, short wLength, int timeout) {
+        int length = wLength & 0xffff;
+        Memory buffer = new Memory(Math.max(length, 1));
+        if ((bmRequestType & 0x80) == 0 && length > 0) {
+            buffer.write(0, data, 0, length);
+        }
+        int rc = libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, buffer, wLength, timeout);
+        if ((bmRequestType & 0x80) != 0 && rc > 0) {
+            buffer.read(0, data, 0, rc);
+        }
+        return rc;
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, Pointer data, short wLength, int timeout) {
+        int rc = check(dev_handle);
+        if (rc < 0) {
+            return rc;
+        }
+        VirtualDevice d = handleDevice(dev_handle);
+        long deadline = deadline(timeout);
+        do {
+            rc = d.control(bmRequestType, bRequest, wValue, wIndex, data, wLength & 0xffff);
+        } while (rc == VirtualEndpoint.NAK && waitForRetry(deadline));
+        if (rc == VirtualEndpoint.NAK) {
+            return libusb_error.ERROR_TIMEOUT;
+        }
+        if (!completeAt(d.schedule(System.nanoTime(), Math.max(rc, 0)), deadline)) {
+            return libusb_error.ERROR_TIMEOUT;
+        }
+        retryNaks();
+        return rc;
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred,
+                                    int timeout) {
+        Memory buffer = new Memory(Math.max(length, 1));
+        if ((endpoint & 0x80) == 0 && length > 0) {
+            buffer.write(0, data, 0, length);
+        }
+        int rc = libusb_bulk_transfer(dev_handle, endpoint, buffer, length, transferred, timeout);
+        if ((endpoint & 0x80) != 0 && transferred[0] > 0) {
+            buffer.read(0, data, 0, transferred[0]);
+        }
+        return rc;
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred,
+                                    int timeout) {
+        transferred[0] = 0;
+        int rc = check(dev_handle);
+        if (rc < 0) {
+            return rc;
+        }
+        VirtualDevice d = handleDevice(dev_handle);
+        long deadline = deadline(timeout);
+        do {
+            rc = d.transfer(endpoint, data, length);
+        } while (rc == VirtualEndpoint.NAK && waitForRetry(deadline));
+        if (rc == VirtualEndpoint.NAK) {
+            return libusb_error.ERROR_TIMEOUT;
+        }
+        if (rc < 0) {
+            return rc;
+        }
+        if (!completeAt(d.schedule(System.nanoTime(), rc), deadline)) {
+            return libusb_error.ERROR_TIMEOUT;
+        }
+        transferred[0] = rc;
+        retryNaks();
+        return 0;
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length,
+                                         int[] transferred, int timeout) {
+        return libusb_bulk_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length,
+                                         int[] transferred, int timeout) {
+        return libusb_bulk_transfer(dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    private static long deadline(int timeout) {
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Wait before retrying a NAKed synchronous transfer.
+     *
+     * @return false if the deadline has passed
+     */
+    private static boolean waitForRetry(long deadline) {
+        if (deadline - System.nanoTime() <= 0) {
+            return false;
+        }
+        LockSupport.parkNanos(NAK_RETRY_NANOS);
+        return true;
+    }
+
+    /**
+     * Block until a synchronous transfer completes.
+     *
+     * @return false if the transfer times out first
+     */
+    private static boolean completeAt(long due, long deadline) {
+        long until = Math.min(due, deadline);
+        long left;
+        while ((left = until - System.nanoTime()) > 0) {
+            if (left > SPIN_NANOS) {
+                LockSupport.parkNanos(left - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+        return due <= deadline;
+    }
+
+    private static int getLe16(Pointer p, long offset) {
+        return (p.getByte(offset) & 0xff) | (p.getByte(offset + 1) & 0xff) << 8;
+    }
+
+    private static int toStatus(int error) {
+        switch (error) {
+            case libusb_error.ERROR_TIMEOUT:
+                return libusb_transfer_status.TRANSFER_TIMED_OUT;
+            case libusb_error.ERROR_PIPE:
+                return libusb_transfer_status.TRANSFER_STALL;
+            case libusb_error.ERROR_NO_DEVICE:
+                return libusb_transfer_status.TRANSFER_NO_DEVICE;
+            case libusb_error.ERROR_OVERFLOW:
+                return libusb_transfer_status.TRANSFER_OVERFLOW;
+            default:
+                return libusb_transfer_status.TRANSFER_ERROR;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Endpoint that never runs dry: IN transfers are filled completely with a counting byte pattern and OUT
+ * transfers are discarded. Combined with the bandwidth of the device this gives a steady stream for throughput
+ * measurements.
+ */
+public class StreamEndpoint implements VirtualEndpoint {
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private volatile byte[] pattern = new byte[0];
+
+    @Override
+    public int transfer(int endpoint, Pointer data, int length) {
+        if ((endpoint & 0x80) == 0) {
+            bytesOut.addAndGet(length);
+        } else {
+            byte[] p = pattern;
+            if (p.length < length) {
+                p = new byte[length];
+                for (int i = 0; i < length; ++i) {
+                    p[i] = (byte) i;
+                }
+                pattern = p;
+            }
+            data.write(0, p, 0, length);
+            bytesIn.addAndGet(length);
+        }
+        return length;
+    }
+
+    /**
+     * @return number of bytes returned by IN transfers
+     */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /**
+     * @return number of bytes accepted by OUT transfers
+     */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+}
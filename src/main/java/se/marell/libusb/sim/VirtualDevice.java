@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import se.marell.libusb.jna.libusb_device_descriptor;
+import se.marell.libusb.jna.libusb_error;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A device on a SimulatedLibUsb bus.
+ *
+ * The device has a device descriptor, string descriptors and endpoints whose behaviour is given by
+ * VirtualEndpoint implementations. Transfers are timed from the latency and bandwidth of the device: the bytes
+ * of each transfer occupy the device for length / bandwidth seconds, one transfer after the other, and the
+ * transfer completes latency later. Configure the device before adding it to the bus.
+ */
+public class VirtualDevice {
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+    private static final int DESCRIPTOR_TYPE_DEVICE = 1;
+    private static final int DESCRIPTOR_TYPE_CONFIG = 2;
+    private static final int DESCRIPTOR_TYPE_STRING = 3;
+    private static final int DESCRIPTOR_TYPE_INTERFACE = 4;
+    private static final int DESCRIPTOR_TYPE_ENDPOINT = 5;
+    private static final short LANGID_EN_US = 0x0409;
+
+    private final int busNumber;
+    private final int address;
+    private final libusb_device_descriptor descriptor = new libusb_device_descriptor();
+    private final Map<Integer, String> strings = new ConcurrentHashMap<Integer, String>();
+    private final Map<Integer, VirtualEndpoint> endpoints = new ConcurrentHashMap<Integer, VirtualEndpoint>();
+    private final Pointer pointer = new Memory(8);
+    private volatile int[] portNumbers;
+    private volatile byte[] configDescriptor;
+    private volatile ControlHandler controlHandler;
+    private volatile int maxPacketSize = 64;
+    private volatile long latencyNanos;
+    private volatile long bytesPerSecond;
+    private volatile boolean connected;
+    private final AtomicInteger referenceCount = new AtomicInteger();
+    private long busyUntil;
+
+    /**
+     * @param busNumber bus number
+     * @param address   device address on the bus
+     * @param vendorId  idVendor of the device descriptor
+     * @param productId idProduct of the device descriptor
+     */
+    public VirtualDevice(int busNumber, int address, int vendorId, int productId) {
+        this.busNumber = busNumber;
+        this.address = address;
+        portNumbers = new int[]{address};
+        descriptor.bLength = 18;
+        descriptor.bDescriptorType = DESCRIPTOR_TYPE_DEVICE;
+        descriptor.bcdUSB = 0x0200;
+        descriptor.bMaxPacketSize0 = 64;
+        descriptor.idVendor = (short) vendorId;
+        descriptor.idProduct = (short) productId;
+        descriptor.bNumConfigurations = 1;
+    }
+
+    public int getBusNumber() {
+        return busNumber;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * @return port numbers from the root hub to the device
+     */
+    public int[] getPortNumbers() {
+        return portNumbers.clone();
+    }
+
+    /**
+     * Set the port numbers from the root hub to the device. The default is the device address as single port.
+     *
+     * @param portNumbers port numbers, empty for a root hub
+     */
+    public void setPortNumbers(int... portNumbers) {
+        this.portNumbers = portNumbers.clone();
+    }
+
+    /**
+     * Get the device descriptor. Its fields may be changed to configure the device.
+     *
+     * @return the device descriptor
+     */
+    public libusb_device_descriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Set a string descriptor.
+     *
+     * @param index string descriptor index, 1..255
+     * @param s     the string
+     */
+    public void setString(int index, String s) {
+        strings.put(index, s);
+    }
+
+    /**
+     * Set string descriptor 1 and make it the iManufacturer string of the device.
+     *
+     * @param s the string
+     */
+    public void setManufacturer(String s) {
+        setString(1, s);
+        descriptor.iManufacturer = 1;
+    }
+
+    /**
+     * Set string descriptor 2 and make it the iProduct string of the device.
+     *
+     * @param s the string
+     */
+    public void setProduct(String s) {
+        setString(2, s);
+        descriptor.iProduct = 2;
+    }
+
+    /**
+     * Set string descriptor 3 and make it the iSerialNumber string of the device.
+     *
+     * @param s the string
+     */
+    public void setSerialNumber(String s) {
+        setString(3, s);
+        descriptor.iSerialNumber = 3;
+    }
+
+    /**
+     * @param index string descriptor index
+     * @return the string, or null
+     */
+    public String getString(int index) {
+        return strings.get(index);
+    }
+
+    /**
+     * Add an endpoint.
+     *
+     * @param endpoint endpoint address including the direction bit
+     * @param behaviour the behaviour of the endpoint
+     */
+    public void setEndpoint(int endpoint, VirtualEndpoint behaviour) {
+        endpoints.put(endpoint & 0xff, behaviour);
+    }
+
+    /**
+     * Set the configuration descriptor as sent on the wire, including its interface, endpoint and class specific
+     * descriptors. If not set, the device has one configuration with one vendor specific interface having the
+     * endpoints given to setEndpoint() as bulk endpoints.
+     *
+     * @param descriptor the configuration descriptor, or null for the default one
+     */
+    public void setConfigDescriptor(byte[] descriptor) {
+        configDescriptor = descriptor == null ? null : descriptor.clone();
+    }
+
+    /**
+     * @return the configuration descriptor as sent on the wire
+     */
+    byte[] getConfigDescriptor() {
+        byte[] d = configDescriptor;
+        if (d != null) {
+            return d;
+        }
+        List<Integer> addresses = new ArrayList<Integer>(new TreeSet<Integer>(endpoints.keySet()));
+        addresses.remove(Integer.valueOf(0));
+        addresses.remove(Integer.valueOf(0x80));
+        d = new byte[9 + 9 + 7 * addresses.size()];
+        d[0] = 9;
+        d[1] = DESCRIPTOR_TYPE_CONFIG;
+        setLe16(d, 2, (short) d.length);
+        d[4] = 1;
+        d[5] = 1;
+        d[7] = (byte) 0x80;
+        d[8] = 50;
+        d[9] = 9;
+        d[10] = DESCRIPTOR_TYPE_INTERFACE;
+        d[13] = (byte) addresses.size();
+        d[14] = (byte) 0xff;
+        for (int i = 0; i < addresses.size(); ++i) {
+            int p = 18 + 7 * i;
+            d[p] = 7;
+            d[p + 1] = DESCRIPTOR_TYPE_ENDPOINT;
+            d[p + 2] = (byte) (int) addresses.get(i);
+            d[p + 3] = 2;
+            setLe16(d, p + 4, (short) maxPacketSize);
+        }
+        return d;
+    }
+
+    /**
+     * @param handler handler of the control requests not answered by the device itself, or null to stall them
+     */
+    public void setControlHandler(ControlHandler handler) {
+        this.controlHandler = handler;
+    }
+
+    /**
+     * @param maxPacketSize wMaxPacketSize reported for all endpoints
+     */
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * @param micros time from the end of the data transfer to the completion of a transfer
+     */
+    public void setLatencyMicros(long micros) {
+        this.latencyNanos = micros * 1000;
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth shared by all transfers of the device, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * @return references held by the application: one per device list not freed with unref_devices, per
+     * libusb_ref_device() not undone by libusb_unref_device(), and per open handle. 0 when all are released.
+     */
+    public int getReferenceCount() {
+        return referenceCount.get();
+    }
+
+    void ref() {
+        referenceCount.incrementAndGet();
+    }
+
+    /**
+     * @throws IllegalStateException if the device is not referenced, where libusb would free it twice
+     */
+    void unref() {
+        if (referenceCount.decrementAndGet() < 0) {
+            referenceCount.incrementAndGet();
+            throw new IllegalStateException("Unreferenced device unref'd:" + this);
+        }
+    }
+
+    Pointer getPointer() {
+        return pointer;
+    }
+
+    int getMaxPacketSize(int endpoint) {
+        return endpoints.containsKey(endpoint & 0xff) ? maxPacketSize : libusb_error.ERROR_NOT_FOUND;
+    }
+
+    /**
+     * Reserve the device for a transfer.
+     *
+     * @param now    current System.nanoTime()
+     * @param length number of bytes transferred
+     * @return System.nanoTime() at which the transfer completes
+     */
+    synchronized long schedule(long now, int length) {
+        long start = Math.max(now, busyUntil);
+        busyUntil = bytesPerSecond > 0 ? start + length * 1000000000L / bytesPerSecond : start;
+        return busyUntil + latencyNanos;
+    }
+
+    int transfer(int endpoint, Pointer data, int length) {
+        VirtualEndpoint e = endpoints.get(endpoint & 0xff);
+        if (e == null) {
+            return libusb_error.ERROR_IO;
+        }
+        return e.transfer(endpoint & 0xff, data, length);
+    }
+
+    int control(byte bmRequestType, byte bRequest, short wValue, short wIndex, Pointer data, int wLength) {
+        if ((bmRequestType & 0xff) == 0x80 && bRequest == 6) {
+            byte[] d = getDescriptor((wValue >> 8) & 0xff, wValue & 0xff);
+            if (d != null) {
+                int n = Math.min(wLength, d.length);
+                data.write(0, d, 0, n);
+                return n;
+            }
+        }
+        ControlHandler h = controlHandler;
+        if (h == null) {
+            return libusb_error.ERROR_PIPE;
+        }
+        return h.control(bmRequestType, bRequest, wValue, wIndex, data, wLength);
+    }
+
+    private byte[] getDescriptor(int type, int index) {
+        if (type == DESCRIPTOR_TYPE_DEVICE) {
+            byte[] d = new byte[18];
+            d[0] = 18;
+            d[1] = DESCRIPTOR_TYPE_DEVICE;
+            setLe16(d, 2, descriptor.bcdUSB);
+            d[4] = descriptor.bDeviceClass;
+            d[5] = descriptor.bDeviceSubClass;
+            d[6] = descriptor.bDeviceProtocol;
+            d[7] = descriptor.bMaxPacketSize0;
+            setLe16(d, 8, descriptor.idVendor);
+            setLe16(d, 10, descriptor.idProduct);
+            setLe16(d, 12, descriptor.bcdDevice);
+            d[14] = descriptor.iManufacturer;
+            d[15] = descriptor.iProduct;
+            d[16] = descriptor.iSerialNumber;
+            d[17] = descriptor.bNumConfigurations;
+            return d;
+        }
+        if (type == DESCRIPTOR_TYPE_CONFIG) {
+            return index == 0 ? getConfigDescriptor() : null;
+        }
+        if (type == DESCRIPTOR_TYPE_STRING) {
+            if (index == 0) {
+                byte[] d = new byte[4];
+                d[0] = 4;
+                d[1] = DESCRIPTOR_TYPE_STRING;
+                setLe16(d, 2, LANGID_EN_US);
+                return d;
+            }
+            String s = strings.get(index);
+            if (s == null) {
+                return null;
+            }
+            byte[] text = s.getBytes(UTF_16LE);
+            int length = Math.min(2 + text.length, 254);
+            byte[] d = new byte[length];
+            d[0] = (byte) length;
+            d[1] = DESCRIPTOR_TYPE_STRING;
+            System.arraycopy(text, 0, d, 2, length - 2);
+            return d;
+        }
+        return null;
+    }
+
+    private static void setLe16(byte[] d, int offset, short value) {
+        d[offset] = (byte) value;
+        d[offset + 1] = (byte) (value >> 8);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VirtualDevice{bus=%d, address=%d, id=%04x:%04x}", busNumber, address,
+                descriptor.idVendor & 0xffff, descriptor.idProduct & 0xffff);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Behaviour of a bulk, interrupt or isochronous endpoint of a VirtualDevice.
+ *
+ * An implementation may be registered at several endpoint addresses, for example both the IN and the OUT
+ * address of a loopback pair. It is called from the threads submitting or performing transfers, so it must be
+ * thread safe.
+ */
+public interface VirtualEndpoint {
+    /**
+     * Returned by transfer() when the endpoint has no data or cannot accept data right now. The transfer is
+     * retried until it succeeds, times out or is cancelled.
+     */
+    int NAK = Integer.MIN_VALUE;
+
+    /**
+     * Perform one transfer.
+     *
+     * @param endpoint endpoint address, the direction bit tells if data is to be read from (OUT) or written to (IN)
+     * @param data     the transfer buffer
+     * @param length   buffer length
+     * @return number of bytes transferred, NAK, or a libusb_error code
+     */
+    int transfer(int endpoint, Pointer data, int length);
+}
@@ -0,0 +1,740 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.panama;
+
+import com.sun.jna.Pointer;
+import se.marell.libusb.UsbTransfer;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.LibUsbLoader;
+import se.marell.libusb.jna.libusb_device_descriptor;
+import se.marell.libusb.jna.libusb_hotplug_callback_fn;
+import se.marell.libusb.jna.libusb_pollfd_added_cb;
+import se.marell.libusb.jna.libusb_pollfd_removed_cb;
+import se.marell.libusb.jna.libusb_transfer_cb_fn;
+import se.marell.libusb.jna.timeval;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * LibUsb implemented with downcall handles of the Foreign Function and Memory API.
+ *
+ * Enumeration, device open/close, transfers and event handling are called directly. Native buffers given as
+ * Pointer are passed by address, byte arrays are copied through per-thread native scratch memory. Completion
+ * callbacks of transfers submitted through UsbTransfer are routed through a single upcall stub: at submit the
+ * callback of the transfer is swapped for the stub, which restores it and dispatches by transfer address to the
+ * Java callback on completion. Other transfers complete through the callback pointer JNA created.
+ * Functions without a hot path are forwarded to another LibUsb.
+ *
+ * Run with --enable-native-access=ALL-UNNAMED (or the module name) to avoid restricted method warnings.
+ */
+final class LibUsbPanama implements LibUsb {
+    private static final Linker LINKER = Linker.nativeLinker();
+
+    /**
+     * Offset of the callback field in struct libusb_transfer: after dev_handle, three bytes and four ints.
+     */
+    private static final long CALLBACK_OFFSET = align(ADDRESS.byteSize() + 20, ADDRESS.byteSize());
+
+    private static final long DEVICE_DESCRIPTOR_SIZE = 18;
+
+    private static final MemorySegment transferCompletedStub;
+
+    /**
+     * Submitted transfers whose callback has been replaced by the upcall stub, keyed by transfer address.
+     */
+    private static final ConcurrentMap<Long, Submitted> submitted = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            MethodHandle target = MethodHandles.lookup().findStatic(LibUsbPanama.class, "transferCompleted",
+                    MethodType.methodType(void.class, MemorySegment.class));
+            transferCompletedStub = LINKER.upcallStub(target, FunctionDescriptor.ofVoid(ADDRESS), Arena.global());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private record Submitted(libusb_transfer_cb_fn callback, long functionPointer) {
+    }
+
+    /**
+     * Per-thread native memory for copying byte arrays and for output parameters.
+     */
+    private static final class Scratch {
+        final MemorySegment out = Arena.ofAuto().allocate(ADDRESS);
+        final MemorySegment descriptor = Arena.ofAuto().allocate(DEVICE_DESCRIPTOR_SIZE, 2);
+        MemorySegment data = Arena.ofAuto().allocate(4096, 8);
+
+        MemorySegment data(int size) {
+            if (data.byteSize() < size) {
+                data = Arena.ofAuto().allocate(Math.max(size, data.byteSize() * 2), 8);
+            }
+            return data;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final LibUsb other;
+    private final MethodHandle get_device_list;
+    private final MethodHandle free_device_list;
+    private final MethodHandle get_bus_number;
+    private final MethodHandle get_device_address;
+    private final MethodHandle ref_device;
+    private final MethodHandle unref_device;
+    private final MethodHandle open;
+    private final MethodHandle close;
+    private final MethodHandle claim_interface;
+    private final MethodHandle release_interface;
+    private final MethodHandle get_device_descriptor;
+    private final MethodHandle alloc_transfer;
+    private final MethodHandle free_transfer;
+    private final MethodHandle submit_transfer;
+    private final MethodHandle cancel_transfer;
+    private final MethodHandle handle_events;
+    private final MethodHandle handle_events_timeout;
+    private final MethodHandle handle_events_timeout_completed;
+    private final MethodHandle get_next_timeout;
+    private final MethodHandle control_transfer;
+    private final MethodHandle bulk_transfer;
+    private final MethodHandle interrupt_transfer;
+
+    LibUsbPanama(LibUsb other) {
+        this(other, openLibrary());
+    }
+
+    /**
+     * @param other LibUsb used for the functions that are forwarded
+     * @param lib   where to find the libusb functions called directly
+     */
+    LibUsbPanama(LibUsb other, SymbolLookup lib) {
+        this.other = other;
+        get_device_list = downcall(lib, "libusb_get_device_list", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+        free_device_list = downcall(lib, "libusb_free_device_list", FunctionDescriptor.ofVoid(ADDRESS, JAVA_INT));
+        get_bus_number = downcall(lib, "libusb_get_bus_number", FunctionDescriptor.of(JAVA_BYTE, ADDRESS));
+        get_device_address = downcall(lib, "libusb_get_device_address", FunctionDescriptor.of(JAVA_BYTE, ADDRESS));
+        ref_device = downcall(lib, "libusb_ref_device", FunctionDescriptor.of(ADDRESS, ADDRESS));
+        unref_device = downcall(lib, "libusb_unref_device", FunctionDescriptor.ofVoid(ADDRESS));
+        open = downcall(lib, "libusb_open", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+        close = downcall(lib, "libusb_close", FunctionDescriptor.ofVoid(ADDRESS));
+        claim_interface = downcall(lib, "libusb_claim_interface", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+        release_interface = downcall(lib, "libusb_release_interface", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+        get_device_descriptor = downcall(lib, "libusb_get_device_descriptor", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+        alloc_transfer = downcall(lib, "libusb_alloc_transfer", FunctionDescriptor.of(ADDRESS, JAVA_INT));
+        free_transfer = downcall(lib, "libusb_free_transfer", FunctionDescriptor.ofVoid(ADDRESS));
+        submit_transfer = downcall(lib, "libusb_submit_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+        cancel_transfer = downcall(lib, "libusb_cancel_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+        handle_events = downcall(lib, "libusb_handle_events", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+        handle_events_timeout = downcall(lib, "libusb_handle_events_timeout", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+        handle_events_timeout_completed = downcall(lib, "libusb_handle_events_timeout_completed",
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+        get_next_timeout = downcall(lib, "libusb_get_next_timeout", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+        control_transfer = downcall(lib, "libusb_control_transfer",
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, JAVA_BYTE, JAVA_SHORT, JAVA_SHORT, ADDRESS, JAVA_SHORT, JAVA_INT));
+        bulk_transfer = downcall(lib, "libusb_bulk_transfer",
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT));
+        interrupt_transfer = downcall(lib, "libusb_interrupt_transfer",
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT));
+    }
+
+    private static SymbolLookup openLibrary() {
+        File file = LibUsbLoader.getNativeLibrary().getFile();
+        if (file != null && file.isFile()) {
+            return SymbolLookup.libraryLookup(file.toPath(), Arena.global());
+        }
+        String[] names = {System.mapLibraryName("usb-1.0"), "libusb-1.0.so.0"};
+        for (String name : names) {
+            try {
+                return SymbolLookup.libraryLookup(name, Arena.global());
+            } catch (IllegalArgumentException e) {
+                // try next name
+            }
+        }
+        throw new UnsatisfiedLinkError("Unable to load library 'usb-1.0'");
+    }
+
+    private static MethodHandle downcall(SymbolLookup lib, String name, FunctionDescriptor descriptor) {
+        MemorySegment symbol = lib.find(name).orElseThrow(() -> new UnsatisfiedLinkError("Function not found:" + name));
+        return LINKER.downcallHandle(symbol, descriptor);
+    }
+
+    private static long align(long offset, long alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    private static MemorySegment segment(Pointer p) {
+        return p == null ? MemorySegment.NULL : MemorySegment.ofAddress(Pointer.nativeValue(p));
+    }
+
+    private static Pointer pointer(MemorySegment s) {
+        return s.address() == 0 ? null : new Pointer(s.address());
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException r) {
+            throw r;
+        }
+        if (t instanceof Error e) {
+            throw e;
+        }
+        throw new IllegalStateException(t);
+    }
+
+    private static void transferCompleted(MemorySegment transfer) {
+        Submitted s = submitted.remove(transfer.address());
+        if (s == null) {
+            return;
+        }
+        MemorySegment t = transfer.reinterpret(CALLBACK_OFFSET + ADDRESS.byteSize());
+        t.set(ADDRESS, CALLBACK_OFFSET, MemorySegment.ofAddress(s.functionPointer()));
+        s.callback().invoke(new Pointer(transfer.address()));
+    }
+
+    @Override
+    public void libusb_set_debug(Pointer context, int level) {
+        other.libusb_set_debug(context, level);
+    }
+
+    @Override
+    public Pointer libusb_get_version() {
+        return other.libusb_get_version();
+    }
+
+    @Override
+    public int libusb_init(Pointer[] context) {
+        return other.libusb_init(context);
+    }
+
+    @Override
+    public void libusb_exit(Pointer context) {
+        other.libusb_exit(context);
+    }
+
+    @Override
+    public int libusb_get_device_list(Pointer context, Pointer[] list) {
+        MemorySegment out = scratch.get().out;
+        try {
+            int rc = (int) get_device_list.invokeExact(segment(context), out);
+            list[0] = pointer(out.get(ADDRESS, 0));
+            return rc;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void libusb_free_device_list(Pointer list, int unref_devices) {
+        try {
+            free_device_list.invokeExact(segment(list), unref_devices);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_get_bus_number(Pointer usb_device) {
+        try {
+            return ((byte) get_bus_number.invokeExact(segment(usb_device))) & 0xff;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_get_device_address(Pointer usb_device) {
+        try {
+            return ((byte) get_device_address.invokeExact(segment(usb_device))) & 0xff;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_get_port_numbers(Pointer usb_device, byte[] port_numbers, int port_numbers_len) {
+        return other.libusb_get_port_numbers(usb_device, port_numbers, port_numbers_len);
+    }
+
+    @Override
+    public int libusb_get_max_packet_size(Pointer usb_device, int endpoint) {
+        return other.libusb_get_max_packet_size(usb_device, endpoint);
+    }
+
+    @Override
+    public int libusb_get_max_iso_packet_size(Pointer usb_device, int endpoint) {
+        return other.libusb_get_max_iso_packet_size(usb_device, endpoint);
+    }
+
+    @Override
+    public Pointer libusb_ref_device(Pointer usb_device) {
+        try {
+            return pointer((MemorySegment) ref_device.invokeExact(segment(usb_device)));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void libusb_unref_device(Pointer usb_device) {
+        try {
+            unref_device.invokeExact(segment(usb_device));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_open(Pointer usb_device, Pointer[] dev_handle) {
+        MemorySegment out = scratch.get().out;
+        try {
+            int rc = (int) open.invokeExact(segment(usb_device), out);
+            dev_handle[0] = rc == 0 ? pointer(out.get(ADDRESS, 0)) : null;
+            return rc;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public Pointer libusb_open_device_with_vid_pid(Pointer context, int vendor_id, int product_id) {
+        return other.libusb_open_device_with_vid_pid(context, vendor_id, product_id);
+    }
+
+    @Override
+    public void libusb_close(Pointer dev_handle) {
+        try {
+            close.invokeExact(segment(dev_handle));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public Pointer libusb_get_device(Pointer dev_handle) {
+        return other.libusb_get_device(dev_handle);
+    }
+
+    @Override
+    public int libusb_get_configuration(Pointer dev_handle, int[] config) {
+        return other.libusb_get_configuration(dev_handle, config);
+    }
+
+    @Override
+    public int libusb_set_configuration(Pointer dev_handle, int configuration) {
+        return other.libusb_set_configuration(dev_handle, configuration);
+    }
+
+    @Override
+    public int libusb_claim_interface(Pointer dev_handle, int interface_number) {
+        try {
+            return (int) claim_interface.invokeExact(segment(dev_handle), interface_number);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_release_interface(Pointer dev_handle, int interface_number) {
+        try {
+            return (int) release_interface.invokeExact(segment(dev_handle), interface_number);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_set_interface_alt_setting(Pointer dev_handle, int interface_number, int alternate_setting) {
+        return other.libusb_set_interface_alt_setting(dev_handle, interface_number, alternate_setting);
+    }
+
+    @Override
+    public int libusb_clear_halt(Pointer dev_handle, byte endpoint) {
+        return other.libusb_clear_halt(dev_handle, endpoint);
+    }
+
+    @Override
+    public int libusb_reset_device(Pointer dev_handle) {
+        return other.libusb_reset_device(dev_handle);
+    }
+
+    @Override
+    public int libusb_kernel_driver_active(Pointer dev_handle, int interface_number) {
+        return other.libusb_kernel_driver_active(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_detach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return other.libusb_detach_kernel_driver(dev_handle, interface_number);
+    }
+
+    @Override
+    public int libusb_attach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return other.libusb_attach_kernel_driver(dev_handle, interface_number);
+    }
+
+    /**
+     * Reads the descriptor at its fixed offsets into the Java fields, without Structure reflection.
+     */
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, libusb_device_descriptor[] desc) {
+        MemorySegment s = scratch.get().descriptor;
+        int rc;
+        try {
+            rc = (int) get_device_descriptor.invokeExact(segment(usb_device), s);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+        if (rc < 0) {
+            return rc;
+        }
+        libusb_device_descriptor d = desc[0] != null ? desc[0] : new libusb_device_descriptor();
+        d.bLength = s.get(JAVA_BYTE, 0);
+        d.bDescriptorType = s.get(JAVA_BYTE, 1);
+        d.bcdUSB = s.get(JAVA_SHORT, 2);
+        d.bDeviceClass = s.get(JAVA_BYTE, 4);
+        d.bDeviceSubClass = s.get(JAVA_BYTE, 5);
+        d.bDeviceProtocol = s.get(JAVA_BYTE, 6);
+        d.bMaxPacketSize0 = s.get(JAVA_BYTE, 7);
+        d.idVendor = s.get(JAVA_SHORT, 8);
+        d.idProduct = s.get(JAVA_SHORT, 10);
+        d.bcdDevice = s.get(JAVA_SHORT, 12);
+        d.iManufacturer = s.get(JAVA_BYTE, 14);
+        d.iProduct = s.get(JAVA_BYTE, 15);
+        d.iSerialNumber = s.get(JAVA_BYTE, 16);
+        d.bNumConfigurations = s.get(JAVA_BYTE, 17);
+        desc[0] = d;
+        return rc;
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, Pointer desc) {
+        try {
+            return (int) get_device_descriptor.invokeExact(segment(usb_device), segment(desc));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_get_active_config_descriptor(Pointer usb_device, Pointer[] config) {
+        return other.libusb_get_active_config_descriptor(usb_device, config);
+    }
+
+    @Override
+    public int libusb_get_config_descriptor(Pointer usb_device, byte config_index, Pointer[] config) {
+        return other.libusb_get_config_descriptor(usb_device, config_index, config);
+    }
+
+    @Override
+    public void libusb_free_config_descriptor(Pointer config) {
+        other.libusb_free_config_descriptor(config);
+    }
+
+    @Override
+    public int libusb_get_string_descriptor_ascii(Pointer dev_handle, byte desc_index, byte[] data, int length) {
+        return other.libusb_get_string_descriptor_ascii(dev_handle, desc_index, data, length);
+    }
+
+    @Override
+    public Pointer libusb_alloc_transfer(int iso_packets) {
+        try {
+            return pointer((MemorySegment) alloc_transfer.invokeExact(iso_packets));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void libusb_free_transfer(Pointer transfer) {
+        try {
+            free_transfer.invokeExact(segment(transfer));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Swaps the callback of a transfer submitted through UsbTransfer for the upcall stub before submitting it.
+     */
+    @Override
+    public int libusb_submit_transfer(Pointer transfer) {
+        long address = Pointer.nativeValue(transfer);
+        MemorySegment t = MemorySegment.ofAddress(address).reinterpret(CALLBACK_OFFSET + ADDRESS.byteSize());
+        libusb_transfer_cb_fn callback = UsbTransfer.getCallback(transfer);
+        if (callback == null) {
+            try {
+                return (int) submit_transfer.invokeExact(t);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+        long functionPointer = t.get(ADDRESS, CALLBACK_OFFSET).address();
+        submitted.put(address, new Submitted(callback, functionPointer));
+        t.set(ADDRESS, CALLBACK_OFFSET, transferCompletedStub);
+        int rc;
+        try {
+            rc = (int) submit_transfer.invokeExact(t);
+        } catch (Throwable e) {
+            submitted.remove(address);
+            t.set(ADDRESS, CALLBACK_OFFSET, MemorySegment.ofAddress(functionPointer));
+            throw rethrow(e);
+        }
+        if (rc < 0) {
+            submitted.remove(address);
+            t.set(ADDRESS, CALLBACK_OFFSET, MemorySegment.ofAddress(functionPointer));
+        }
+        return rc;
+    }
+
+    @Override
+    public int libusb_cancel_transfer(Pointer transfer) {
+        try {
+            return (int) cancel_transfer.invokeExact(segment(transfer));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_try_lock_events(Pointer context) {
+        return other.libusb_try_lock_events(context);
+    }
+
+    @Override
+    public void libusb_lock_events(Pointer context) {
+        other.libusb_lock_events(context);
+    }
+
+    @Override
+    public void libusb_unlock_events(Pointer context) {
+        other.libusb_unlock_events(context);
+    }
+
+    @Override
+    public int libusb_event_handling_ok(Pointer context) {
+        return other.libusb_event_handling_ok(context);
+    }
+
+    @Override
+    public int libusb_event_handler_active(Pointer context) {
+        return other.libusb_event_handler_active(context);
+    }
+
+    @Override
+    public void libusb_lock_event_waiters(Pointer context) {
+        other.libusb_lock_event_waiters(context);
+    }
+
+    @Override
+    public void libusb_unlock_event_waiters(Pointer context) {
+        other.libusb_unlock_event_waiters(context);
+    }
+
+    @Override
+    public int libusb_wait_for_event(Pointer context, timeval tv) {
+        return other.libusb_wait_for_event(context, tv);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout(Pointer context, timeval tv) {
+        tv.write();
+        try {
+            return (int) handle_events_timeout.invokeExact(segment(context), segment(tv.getPointer()));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed) {
+        tv.write();
+        try {
+            return (int) handle_events_timeout_completed.invokeExact(segment(context), segment(tv.getPointer()),
+                    segment(completed));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_handle_events_locked(Pointer context, timeval tv) {
+        return other.libusb_handle_events_locked(context, tv);
+    }
+
+    @Override
+    public int libusb_get_next_timeout(Pointer context, timeval tv) {
+        try {
+            int rc = (int) get_next_timeout.invokeExact(segment(context), segment(tv.getPointer()));
+            tv.read();
+            return rc;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_pollfds_handle_timeouts(Pointer context) {
+        return other.libusb_pollfds_handle_timeouts(context);
+    }
+
+    @Override
+    public void libusb_set_pollfd_notifiers(Pointer context, libusb_pollfd_added_cb added_cb,
+                                            libusb_pollfd_removed_cb removed_cb, Pointer user_data) {
+        other.libusb_set_pollfd_notifiers(context, added_cb, removed_cb, user_data);
+    }
+
+    @Override
+    public Pointer libusb_get_pollfds(Pointer context) {
+        return other.libusb_get_pollfds(context);
+    }
+
+    @Override
+    public void libusb_free_pollfds(Pointer pollfds) {
+        other.libusb_free_pollfds(pollfds);
+    }
+
+    @Override
+    public int libusb_handle_events(Pointer context) {
+        try {
+            return (int) handle_events.invokeExact(segment(context));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_has_capability(int capability) {
+        return other.libusb_has_capability(capability);
+    }
+
+    @Override
+    public int libusb_hotplug_register_callback(Pointer context, int events, int flags, int vendor_id,
+                                                int product_id, int dev_class, libusb_hotplug_callback_fn cb_fn,
+                                                Pointer user_data, int[] callback_handle) {
+        return other.libusb_hotplug_register_callback(context, events, flags, vendor_id, product_id, dev_class,
+                cb_fn, user_data, callback_handle);
+    }
+
+    @Override
+    public void libusb_hotplug_deregister_callback(Pointer context, int callback_handle) {
+        other.libusb_hotplug_deregister_callback(context, callback_handle);
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, byte[] data, short wLength, int timeout) {
+        int length = wLength & 0xffff;
+        MemorySegment buffer = scratch.get().data(length);
+        boolean in = (bmRequestType & 0x80) != 0;
+        if (!in && length > 0) {
+            MemorySegment.copy(data, 0, buffer, JAVA_BYTE, 0, length);
+        }
+        int rc = controlTransfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, buffer, wLength, timeout);
+        if (in && rc > 0) {
+            MemorySegment.copy(buffer, JAVA_BYTE, 0, data, 0, rc);
+        }
+        return rc;
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, Pointer data, short wLength, int timeout) {
+        return controlTransfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, segment(data), wLength, timeout);
+    }
+
+    private int controlTransfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue, short wIndex,
+                                MemorySegment data, short wLength, int timeout) {
+        try {
+            return (int) control_transfer.invokeExact(segment(dev_handle), bmRequestType, bRequest, wValue, wIndex,
+                    data, wLength, timeout);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred,
+                                    int timeout) {
+        return arrayTransfer(bulk_transfer, dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred,
+                                    int timeout) {
+        return nativeTransfer(bulk_transfer, dev_handle, endpoint, segment(data), length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length,
+                                         int[] transferred, int timeout) {
+        return arrayTransfer(interrupt_transfer, dev_handle, endpoint, data, length, transferred, timeout);
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length,
+                                         int[] transferred, int timeout) {
+        return nativeTransfer(interrupt_transfer, dev_handle, endpoint, segment(data), length, transferred, timeout);
+    }
+
+    private int arrayTransfer(MethodHandle function, Pointer dev_handle, byte endpoint, byte[] data, int length,
+                              int[] transferred, int timeout) {
+        MemorySegment buffer = scratch.get().data(length);
+        boolean in = (endpoint & 0x80) != 0;
+        if (!in && length > 0) {
+            MemorySegment.copy(data, 0, buffer, JAVA_BYTE, 0, length);
+        }
+        int rc = nativeTransfer(function, dev_handle, endpoint, buffer, length, transferred, timeout);
+        if (in && transferred[0] > 0) {
+            MemorySegment.copy(buffer, JAVA_BYTE, 0, data, 0, transferred[0]);
+        }
+        return rc;
+    }
+
+    private int nativeTransfer(MethodHandle function, Pointer dev_handle, byte endpoint, MemorySegment data,
+                               int length, int[] transferred, int timeout) {
+        MemorySegment out = scratch.get().out;
+        out.set(JAVA_INT, 0, 0);
+        try {
+            int rc = (int) function.invokeExact(segment(dev_handle), endpoint, data, length, out, timeout);
+            transferred[0] = out.get(JAVA_INT, 0);
+            return rc;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
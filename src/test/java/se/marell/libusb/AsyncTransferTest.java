@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.libusb_transfer_type;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncTransferTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testBulkReadCompletedFromOtherThread() throws Exception {
+        byte[] data = new byte[8];
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x81, data, 1000);
+        final Pointer transfer = usb.nextSubmitted();
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_BULK, t.type);
+        assertEquals((byte) 0x81, t.endpoint);
+        assertEquals(8, t.length);
+
+        Thread completer = new Thread() {
+            @Override
+            public void run() {
+                usb.complete(transfer, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{1, 2, 3}, 3);
+            }
+        };
+        completer.start();
+
+        assertEquals(3, (int) f.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{1, 2, 3, 0, 0, 0, 0, 0}, data);
+        completer.join();
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testShortBulkWriteFails() throws Exception {
+        CompletableFuture<Integer> f = device.bulkWriteAsync(0x02, new byte[]{1, 2, 3, 4}, 1000);
+        Pointer transfer = usb.nextSubmitted();
+        byte[] sent = new byte[4];
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        t.buffer.read(0, sent, 0, sent.length);
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, sent);
+
+        usb.complete(transfer, libusb_transfer_status.TRANSFER_COMPLETED, null, 2);
+        assertFailure(f, LibUsbTransmissionException.class);
+    }
+
+    @Test
+    public void testStatusMapping() throws Exception {
+        CompletableFuture<Integer> f = device.interruptReadAsync(0x81, new byte[4], 100);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_TIMED_OUT, null, 0);
+        assertFailure(f, LibUsbTimeoutException.class);
+
+        f = device.bulkReadAsync(0x81, new byte[4], 100);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_STALL, null, 0);
+        assertFailure(f, LibUsbPipeException.class);
+
+        f = device.bulkReadAsync(0x81, new byte[4], 100);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_NO_DEVICE, null, 0);
+        assertFailure(f, LibUsbNoDeviceException.class);
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x81, new byte[4], 0);
+        usb.nextSubmitted();
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testNoCopyAfterCancel() throws Exception {
+        // libusb completes a cancelled transfer later, possibly with data that arrived meanwhile
+        FakeLibUsb late = new FakeLibUsb() {
+            @Override
+            public int libusb_cancel_transfer(Pointer transfer) {
+                return 0;
+            }
+        };
+        UsbDevice d = new UsbDevice(late, late.device);
+        d.open();
+        byte[] data = new byte[4];
+        CompletableFuture<Integer> f = d.bulkReadAsync(0x81, data, 0);
+        Pointer transfer = late.nextSubmitted();
+        assertTrue(f.cancel(false));
+        late.complete(transfer, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{1, 2, 3, 4}, 4);
+        assertTrue(f.isCancelled());
+        assertArrayEquals(new byte[4], data);
+        assertTrue(late.transfers.isEmpty());
+    }
+
+    @Test
+    public void testControlRead() throws Exception {
+        byte[] data = new byte[2];
+        CompletableFuture<Integer> f = device.controlReadAsync((byte) 0x80, (byte) 0x06, (short) 0x0100, (short) 0, data, 100);
+        Pointer transfer = usb.nextSubmitted();
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        assertEquals(libusb_transfer.CONTROL_SETUP_SIZE + 2, t.length);
+        byte[] setup = t.buffer.getByteArray(0, libusb_transfer.CONTROL_SETUP_SIZE);
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x06, 0x00, 0x01, 0, 0, 2, 0}, setup);
+
+        usb.complete(transfer, libusb_transfer_status.TRANSFER_COMPLETED,
+                new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0x12, 0x34}, 2);
+        assertEquals(2, (int) f.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{0x12, 0x34}, data);
+    }
+
+    private static void assertFailure(CompletableFuture<Integer> f, Class<? extends LibUsbException> expected)
+            throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getClass());
+        }
+    }
+}
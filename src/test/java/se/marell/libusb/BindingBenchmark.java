@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.LibUsbDirect;
+import se.marell.libusb.jna.LibUsbLoader;
+
+/**
+ * Compares the per-call overhead of the interface mapped LibUsb and the directly mapped LibUsbDirect.
+ * Needs libusb and at least one USB device.
+ * <pre>
+ * BindingBenchmark [iterations [vendorId productId inEndpoint]]
+ * </pre>
+ * libusb_get_bus_number is measured on the first device found. If a device and a bulk IN endpoint are given,
+ * libusb_bulk_transfer is also measured with a 1 ms timeout; the claimed interface is 0.
+ */
+public class BindingBenchmark {
+    public static void main(String[] args) throws LibUsbException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        LibUsb proxy = LibUsbLoader.getLibUsb();
+        LibUsb direct = new LibUsbDirect(proxy);
+
+        UsbSystem us = new LibUsbSystem(false, 0);
+        Pointer[] list = new Pointer[1];
+        if (proxy.libusb_get_device_list(null, list) <= 0) {
+            System.out.println("No USB devices");
+            return;
+        }
+        Pointer usb_device = list[0].getPointer(0);
+        System.out.printf("%-24s %12s %12s\n", "function", "interface", "direct");
+        System.out.printf("%-24s %12.1f %12.1f ns/call\n", "libusb_get_bus_number",
+                busNumberNanos(proxy, usb_device, iterations), busNumberNanos(direct, usb_device, iterations));
+        proxy.libusb_free_device_list(list[0], 1);
+
+        if (args.length >= 4) {
+            UsbDevice device = us.visitUsbDevices(new VendorProductVisitor(
+                    Integer.parseInt(args[1], 16), Integer.parseInt(args[2], 16), 0)).get(0);
+            device.open();
+            device.claim_interface(0);
+            int endpoint = Integer.parseInt(args[3], 16);
+            int n = Math.min(iterations, 10000);
+            System.out.printf("%-24s %12.1f %12.1f ns/call\n", "libusb_bulk_transfer",
+                    bulkTransferNanos(proxy, device.get_dev_handle(), endpoint, n),
+                    bulkTransferNanos(direct, device.get_dev_handle(), endpoint, n));
+            device.release_interface(0);
+            device.close();
+        }
+        us.cleanup();
+    }
+
+    private static double busNumberNanos(LibUsb usb, Pointer usb_device, int iterations) {
+        for (int i = 0; i < iterations; ++i) {
+            usb.libusb_get_bus_number(usb_device);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            usb.libusb_get_bus_number(usb_device);
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    private static double bulkTransferNanos(LibUsb usb, Pointer dev_handle, int endpoint, int iterations) {
+        byte[] data = new byte[64];
+        int[] transferred = new int[1];
+        for (int i = 0; i < iterations / 10; ++i) {
+            usb.libusb_bulk_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, 1);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            usb.libusb_bulk_transfer(dev_handle, (byte) endpoint, data, data.length, transferred, 1);
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkInStreamTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+    private final List<Integer> received = new ArrayList<Integer>();
+    private LibUsbException failure;
+    private final BulkInStream.Consumer consumer = new BulkInStream.Consumer() {
+        @Override
+        public void dataReceived(ByteBuffer data) {
+            received.add(data.get(0) & 0xff);
+        }
+
+        @Override
+        public void streamFailed(LibUsbException e) {
+            failure = e;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testKeepsQueueFullAndDeliversInOrder() throws Exception {
+        BulkInStream stream = new BulkInStream(device, 0x81, 3, 16, 0, consumer);
+        stream.start();
+        Pointer t0 = usb.nextSubmitted();
+        Pointer t1 = usb.nextSubmitted();
+        Pointer t2 = usb.nextSubmitted();
+        assertEquals(3, usb.active.size());
+
+        // Second transfer completes first, it must be held back until the first one is delivered
+        usb.complete(t1, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{2}, 16);
+        assertTrue(received.isEmpty());
+        usb.complete(t0, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{1}, 16);
+        assertEquals("[1, 2]", received.toString());
+        assertEquals(3, usb.active.size());
+
+        usb.complete(t2, libusb_transfer_status.TRANSFER_TIMED_OUT, new byte[]{3}, 4);
+        assertEquals("[1, 2, 3]", received.toString());
+        assertEquals(3, usb.active.size());
+        assertEquals(36, stream.getBytesReceived());
+        assertEquals(3, stream.getTransfersCompleted());
+        assertTrue(stream.getThroughput() > 0);
+
+        assertTrue(stream.stop(1000));
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+        assertNull(failure);
+    }
+
+    @Test
+    public void testStallStopsStream() throws Exception {
+        BulkInStream stream = new BulkInStream(device, 0x81, 2, 16, 0, consumer);
+        stream.start();
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_STALL, null, 0);
+        assertTrue(failure instanceof LibUsbPipeException);
+        assertTrue(usb.active.isEmpty());
+        assertTrue(stream.stop(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testRestartAfterSubmitFailure() throws Exception {
+        BulkInStream stream = new BulkInStream(device, 0x81, 3, 16, 0, consumer);
+        usb.submitError = libusb_error.ERROR_NO_DEVICE;
+        usb.submitsBeforeError = 2;
+        usb.deferCancel = true;
+        Thread completer = usb.completeCancelledLater(2);
+        try {
+            stream.start();
+            fail("Expected LibUsbNoDeviceException");
+        } catch (LibUsbNoDeviceException e) {
+            // The two submitted transfers were cancelled and freed before start() threw
+        }
+        completer.join();
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+
+        usb.submitError = 0;
+        usb.deferCancel = false;
+        usb.submitted.clear();
+        stream.start();
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{7}, 16);
+        assertEquals("[7]", received.toString());
+        assertTrue(stream.stop(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+}
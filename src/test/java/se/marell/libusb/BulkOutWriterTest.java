@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkOutWriterTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testPipelineAndBackpressure() throws Exception {
+        BulkOutWriter writer = new BulkOutWriter(device, 0x02, 2, 3, 1000);
+        CompletableFuture<Integer> f1 = writer.write(new byte[]{1});
+        CompletableFuture<Integer> f2 = writer.write(new byte[]{2, 2});
+        CompletableFuture<Integer> f3 = writer.offer(new byte[]{3, 3, 3});
+        assertEquals(3, writer.getOutstanding());
+        assertNull(writer.offer(new byte[]{4}));
+        assertNull(writer.offer(new byte[]{4}, 10, TimeUnit.MILLISECONDS));
+
+        Pointer t1 = usb.nextSubmitted();
+        Pointer t2 = usb.nextSubmitted();
+        assertArrayEquals(new byte[]{2, 2}, sent(t2));
+        assertTrue(usb.submitted.isEmpty());
+
+        usb.complete(t1, libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        assertEquals(1, (int) f1.get(5, TimeUnit.SECONDS));
+        Pointer t3 = usb.nextSubmitted();
+        assertArrayEquals(new byte[]{3, 3, 3}, sent(t3));
+        CompletableFuture<Integer> f4 = writer.offer(new byte[]{4});
+        assertTrue(f4 != null);
+
+        usb.complete(t2, libusb_transfer_status.TRANSFER_COMPLETED, null, 2);
+        usb.complete(t3, libusb_transfer_status.TRANSFER_COMPLETED, null, 3);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        assertEquals(2, (int) f2.get(5, TimeUnit.SECONDS));
+        assertEquals(3, (int) f3.get(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) f4.get(5, TimeUnit.SECONDS));
+        assertTrue(writer.flush(1000));
+        assertEquals(4, writer.getBuffersWritten());
+        assertEquals(7, writer.getBytesWritten());
+        assertTrue(writer.close(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testBlockingWriteWaitsForCompletion() throws Exception {
+        final BulkOutWriter writer = new BulkOutWriter(device, 0x02, 1, 1, 1000);
+        writer.write(new byte[]{1});
+        final CompletableFuture<CompletableFuture<Integer>> second = new CompletableFuture<CompletableFuture<Integer>>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    second.complete(writer.write(new byte[]{2}));
+                } catch (InterruptedException e) {
+                    second.completeExceptionally(e);
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertFalse(second.isDone());
+
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        CompletableFuture<Integer> f2 = second.get(5, TimeUnit.SECONDS);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        assertEquals(1, (int) f2.get(5, TimeUnit.SECONDS));
+        producer.join();
+        assertTrue(writer.close(1000));
+    }
+
+    @Test
+    public void testShortWriteFailsWriter() throws Exception {
+        BulkOutWriter writer = new BulkOutWriter(device, 0x02, 2, 4, 1000);
+        CompletableFuture<Integer> f1 = writer.write(new byte[]{1, 1});
+        CompletableFuture<Integer> f2 = writer.write(new byte[]{2});
+        CompletableFuture<Integer> f3 = writer.write(new byte[]{3});
+        Pointer t1 = usb.nextSubmitted();
+        usb.nextSubmitted();
+
+        usb.complete(t1, libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        assertFailure(f1, LibUsbTransmissionException.class);
+        assertFailure(f2, LibUsbTransmissionException.class);
+        assertFailure(f3, LibUsbTransmissionException.class);
+        assertFailure(writer.write(new byte[]{4}), LibUsbTransmissionException.class);
+        assertEquals(0, writer.getOutstanding());
+        assertTrue(usb.active.isEmpty());
+        assertTrue(writer.close(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testFuturesCompleteWithoutLock() throws Exception {
+        final BulkOutWriter writer = new BulkOutWriter(device, 0x02, 1, 2, 1000);
+        final boolean[] locked = new boolean[2];
+        writer.write(new byte[]{1}).thenRun(new Runnable() {
+            @Override
+            public void run() {
+                locked[0] = Thread.holdsLock(writer);
+            }
+        });
+        writer.write(new byte[]{2, 2}).whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer n, Throwable e) {
+                locked[1] = Thread.holdsLock(writer);
+            }
+        });
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_COMPLETED, null, 1);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_ERROR, null, 0);
+        assertEquals(1, writer.getBuffersWritten());
+        assertFalse(locked[0]);
+        assertFalse(locked[1]);
+        assertTrue(writer.close(1000));
+    }
+
+    private static byte[] sent(Pointer transfer) {
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        return t.buffer.getByteArray(0, t.length);
+    }
+
+    private static void assertFailure(CompletableFuture<Integer> f, Class<? extends LibUsbException> expected)
+            throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertEquals(expected, e.getCause().getClass());
+        }
+    }
+}
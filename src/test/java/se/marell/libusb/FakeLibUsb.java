@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import se.marell.libusb.jna.DescriptorLayout;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_device_descriptor;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_hotplug_callback_fn;
+import se.marell.libusb.jna.libusb_pollfd_added_cb;
+import se.marell.libusb.jna.libusb_pollfd_removed_cb;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.timeval;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory LibUsb used by tests. It has one device and never touches the native libusb library.
+ * Submitted transfers are queued and completed by the test through complete().
+ */
+public class FakeLibUsb implements LibUsb {
+    public final Pointer device = new Memory(8);
+    public final libusb_device_descriptor descriptor = new libusb_device_descriptor();
+    public final BlockingQueue<Pointer> submitted = new LinkedBlockingQueue<Pointer>();
+    /**
+     * Transfers cancelled while deferCancel is set, to be completed by the test through complete()
+     */
+    public final BlockingQueue<Pointer> cancelled = new LinkedBlockingQueue<Pointer>();
+    public final Map<Long, Memory> transfers = new ConcurrentHashMap<Long, Memory>();
+    public final Map<Long, Pointer> active = new ConcurrentHashMap<Long, Pointer>();
+    public final Map<Integer, Short> pollfds = new LinkedHashMap<Integer, Short>();
+    public final AtomicInteger handleEventsCount = new AtomicInteger();
+    public Pointer lastTransferData;
+    public int syncTransferError;
+    /**
+     * If non-zero, libusb_submit_transfer() returns this error once submitsBeforeError submits have succeeded
+     */
+    public volatile int submitError;
+    public volatile int submitsBeforeError;
+    /**
+     * If set, cancelled transfers are queued in cancelled instead of completing at once, as libusb completes
+     * them later from within event handling
+     */
+    public volatile boolean deferCancel;
+    public libusb_pollfd_added_cb pollfdAdded;
+    public libusb_pollfd_removed_cb pollfdRemoved;
+
+    public FakeLibUsb() {
+        descriptor.idVendor = 0x1234;
+        descriptor.idProduct = 0x5678;
+    }
+
+    /**
+     * Wait for the next submitted transfer.
+     *
+     * @return the transfer
+     * @throws InterruptedException if interrupted
+     */
+    public Pointer nextSubmitted() throws InterruptedException {
+        return submitted.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Complete a transfer as libusb would from within event handling.
+     *
+     * @param transfer      the transfer
+     * @param status        transfer status
+     * @param in            data to place in the buffer, or null
+     * @param actual_length actual length to report
+     */
+    public void complete(Pointer transfer, int status, byte[] in, int actual_length) {
+        submitted.remove(transfer);
+        active.remove(Pointer.nativeValue(transfer));
+        libusb_transfer t = new libusb_transfer(transfer);
+        t.read();
+        if (in != null) {
+            t.buffer.write(0, in, 0, in.length);
+        }
+        t.status = status;
+        t.actual_length = actual_length;
+        t.write();
+        t.callback.invoke(transfer);
+    }
+
+    /**
+     * Complete the next n cancellations queued while deferCancel is set, on another thread as an event thread
+     * would.
+     *
+     * @param n number of cancellations
+     * @return the started thread
+     */
+    public Thread completeCancelledLater(final int n) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < n; ++i) {
+                        Pointer transfer = cancelled.poll(5, TimeUnit.SECONDS);
+                        if (transfer == null) {
+                            return;
+                        }
+                        complete(transfer, libusb_transfer_status.TRANSFER_CANCELLED, null, 0);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Set the result of an isochronous packet, to be followed by complete().
+     *
+     * @param transfer      the transfer
+     * @param packet        packet index
+     * @param actual_length actual length to report
+     * @param status        packet status
+     */
+    public void setIsoPacketResult(Pointer transfer, int packet, int actual_length, int status) {
+        long offset = libusb_transfer.ISO_PACKET_DESC_OFFSET + packet * libusb_transfer.ISO_PACKET_DESC_SIZE;
+        transfer.setInt(offset + 4, actual_length);
+        transfer.setInt(offset + 8, status);
+    }
+
+    @Override
+    public void libusb_set_debug(Pointer context, int level) {
+    }
+
+    @Override
+    public Pointer libusb_get_version() {
+        return null;
+    }
+
+    @Override
+    public int libusb_init(Pointer[] context) {
+        if (context != null) {
+            context[0] = new Memory(8);
+        }
+        return 0;
+    }
+
+    @Override
+    public void libusb_exit(Pointer context) {
+    }
+
+    @Override
+    public int libusb_get_device_list(Pointer context, Pointer[] list) {
+        Memory m = new Memory(2 * Pointer.SIZE);
+        m.setPointer(0, device);
+        m.setPointer(Pointer.SIZE, null);
+        list[0] = m;
+        return 1;
+    }
+
+    @Override
+    public void libusb_free_device_list(Pointer list, int unref_devices) {
+    }
+
+    @Override
+    public int libusb_get_bus_number(Pointer usb_device) {
+        return 1;
+    }
+
+    @Override
+    public int libusb_get_device_address(Pointer usb_device) {
+        return 2;
+    }
+
+    @Override
+    public int libusb_get_port_numbers(Pointer usb_device, byte[] port_numbers, int port_numbers_len) {
+        port_numbers[0] = 1;
+        return 1;
+    }
+
+    @Override
+    public int libusb_get_max_packet_size(Pointer usb_device, int endpoint) {
+        return 64;
+    }
+
+    @Override
+    public int libusb_get_max_iso_packet_size(Pointer usb_device, int endpoint) {
+        return 64;
+    }
+
+    @Override
+    public Pointer libusb_ref_device(Pointer usb_device) {
+        return usb_device;
+    }
+
+    @Override
+    public void libusb_unref_device(Pointer usb_device) {
+    }
+
+    @Override
+    public int libusb_open(Pointer usb_device, Pointer[] dev_handle) {
+        dev_handle[0] = new Memory(8);
+        return 0;
+    }
+
+    @Override
+    public Pointer libusb_open_device_with_vid_pid(Pointer context, int vendor_id, int product_id) {
+        return null;
+    }
+
+    @Override
+    public void libusb_close(Pointer dev_handle) {
+    }
+
+    @Override
+    public Pointer libusb_get_device(Pointer dev_handle) {
+        return device;
+    }
+
+    @Override
+    public int libusb_get_configuration(Pointer dev_handle, int[] config) {
+        config[0] = 1;
+        return 0;
+    }
+
+    @Override
+    public int libusb_set_configuration(Pointer dev_handle, int configuration) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_claim_interface(Pointer dev_handle, int interface_number) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_release_interface(Pointer dev_handle, int interface_number) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_set_interface_alt_setting(Pointer dev_handle, int interface_number, int alternate_setting) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_clear_halt(Pointer dev_handle, byte endpoint) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_reset_device(Pointer dev_handle) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_kernel_driver_active(Pointer dev_handle, int interface_number) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_detach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return libusb_error.ERROR_NOT_FOUND;
+    }
+
+    @Override
+    public int libusb_attach_kernel_driver(Pointer dev_handle, int interface_number) {
+        return libusb_error.ERROR_NOT_FOUND;
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, libusb_device_descriptor[] desc) {
+        desc[0] = descriptor;
+        return 0;
+    }
+
+    @Override
+    public int libusb_get_device_descriptor(Pointer usb_device, Pointer desc) {
+        descriptor.write();
+        desc.write(0, descriptor.getPointer().getByteArray(0, DescriptorLayout.DEVICE_DESCRIPTOR_SIZE), 0,
+                DescriptorLayout.DEVICE_DESCRIPTOR_SIZE);
+        return 0;
+    }
+
+    @Override
+    public int libusb_get_active_config_descriptor(Pointer usb_device, Pointer[] config) {
+        return libusb_error.ERROR_NOT_FOUND;
+    }
+
+    @Override
+    public int libusb_get_config_descriptor(Pointer usb_device, byte config_index, Pointer[] config) {
+        return libusb_error.ERROR_NOT_FOUND;
+    }
+
+    @Override
+    public void libusb_free_config_descriptor(Pointer config) {
+    }
+
+    @Override
+    public int libusb_get_string_descriptor_ascii(Pointer dev_handle, byte desc_index, byte[] data, int length) {
+        byte[] s = ("string" + desc_index).getBytes();
+        System.arraycopy(s, 0, data, 0, s.length);
+        data[s.length] = 0;
+        return s.length;
+    }
+
+    @Override
+    public Pointer libusb_alloc_transfer(int iso_packets) {
+        Memory m = new Memory(128 + 16 * iso_packets);
+        m.clear();
+        transfers.put(Pointer.nativeValue(m), m);
+        return m;
+    }
+
+    @Override
+    public void libusb_free_transfer(Pointer transfer) {
+        transfers.remove(Pointer.nativeValue(transfer));
+    }
+
+    @Override
+    public int libusb_submit_transfer(Pointer transfer) {
+        if (submitError != 0 && submitsBeforeError-- <= 0) {
+            return submitError;
+        }
+        active.put(Pointer.nativeValue(transfer), transfer);
+        submitted.add(transfer);
+        return 0;
+    }
+
+    @Override
+    public int libusb_cancel_transfer(Pointer transfer) {
+        if (!active.containsKey(Pointer.nativeValue(transfer))) {
+            return libusb_error.ERROR_NOT_FOUND;
+        }
+        if (deferCancel) {
+            if (!cancelled.contains(transfer)) {
+                cancelled.add(transfer);
+            }
+            return 0;
+        }
+        complete(transfer, libusb_transfer_status.TRANSFER_CANCELLED, null, 0);
+        return 0;
+    }
+
+    @Override
+    public int libusb_try_lock_events(Pointer context) {
+        return 0;
+    }
+
+    @Override
+    public void libusb_lock_events(Pointer context) {
+    }
+
+    @Override
+    public void libusb_unlock_events(Pointer context) {
+    }
+
+    @Override
+    public int libusb_event_handling_ok(Pointer context) {
+        return 1;
+    }
+
+    @Override
+    public int libusb_event_handler_active(Pointer context) {
+        return 0;
+    }
+
+    @Override
+    public void libusb_lock_event_waiters(Pointer context) {
+    }
+
+    @Override
+    public void libusb_unlock_event_waiters(Pointer context) {
+    }
+
+    @Override
+    public int libusb_wait_for_event(Pointer context, timeval tv) {
+        return sleep(tv);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout(Pointer context, timeval tv) {
+        handleEventsCount.incrementAndGet();
+        return sleep(tv);
+    }
+
+    @Override
+    public int libusb_handle_events_timeout_completed(Pointer context, timeval tv, Pointer completed) {
+        if (completed != null && completed.getInt(0) != 0) {
+            return 0;
+        }
+        return sleep(tv);
+    }
+
+    @Override
+    public int libusb_handle_events_locked(Pointer context, timeval tv) {
+        return sleep(tv);
+    }
+
+    @Override
+    public int libusb_get_next_timeout(Pointer context, timeval tv) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_pollfds_handle_timeouts(Pointer context) {
+        return 1;
+    }
+
+    @Override
+    public void libusb_set_pollfd_notifiers(Pointer context, libusb_pollfd_added_cb added_cb,
+                                            libusb_pollfd_removed_cb removed_cb, Pointer user_data) {
+        pollfdAdded = added_cb;
+        pollfdRemoved = removed_cb;
+    }
+
+    @Override
+    public Pointer libusb_get_pollfds(Pointer context) {
+        Memory list = new Memory((pollfds.size() + 1) * Pointer.SIZE);
+        int i = 0;
+        for (Map.Entry<Integer, Short> e : pollfds.entrySet()) {
+            Memory pollfd = new Memory(8);
+            pollfd.setInt(0, e.getKey());
+            pollfd.setShort(4, e.getValue());
+            list.setPointer(i++ * Pointer.SIZE, pollfd);
+        }
+        list.setPointer(i * Pointer.SIZE, null);
+        return list;
+    }
+
+    @Override
+    public void libusb_free_pollfds(Pointer pollfds) {
+    }
+
+    @Override
+    public int libusb_handle_events(Pointer context) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_has_capability(int capability) {
+        return 0;
+    }
+
+    @Override
+    public int libusb_hotplug_register_callback(Pointer context, int events, int flags, int vendor_id,
+                                                int product_id, int dev_class, libusb_hotplug_callback_fn cb_fn,
+                                                Pointer user_data, int[] callback_handle) {
+        return libusb_error.ERROR_NOT_SUPPORTED;
+    }
+
+    @Override
+    public void libusb_hotplug_deregister_callback(Pointer context, int callback_handle) {
+    }
+
+    /**
+     * No events ever arrive from the fake, so handling events just waits for the timeout.
+     */
+    private static int sleep(timeval tv) {
+        if (tv == null) {
+            return 0;
+        }
+        tv.read();
+        try {
+            Thread.sleep(tv.getMicros() / 1000);
+        } catch (InterruptedException e) {
+            return libusb_error.ERROR_INTERRUPTED;
+        }
+        return 0;
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, byte[] data, short wLength, int timeout) {
+        return wLength;
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length, int[] transferred,
+                                    int timeout) {
+        if (syncTransferError != 0) {
+            transferred[0] = 0;
+            return syncTransferError;
+        }
+        transferred[0] = length;
+        return 0;
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, byte[] data, int length,
+                                         int[] transferred, int timeout) {
+        if (syncTransferError != 0) {
+            transferred[0] = 0;
+            return syncTransferError;
+        }
+        transferred[0] = length;
+        return 0;
+    }
+
+    @Override
+    public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                       short wIndex, Pointer data, short wLength, int timeout) {
+        return transferNative(bmRequestType, data, wLength & 0xffff);
+    }
+
+    @Override
+    public int libusb_bulk_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length, int[] transferred,
+                                    int timeout) {
+        transferred[0] = transferNative(endpoint, data, length);
+        return 0;
+    }
+
+    @Override
+    public int libusb_interrupt_transfer(Pointer dev_handle, byte endpoint, Pointer data, int length,
+                                         int[] transferred, int timeout) {
+        transferred[0] = transferNative(endpoint, data, length);
+        return 0;
+    }
+
+    /**
+     * Records the buffer and fills IN transfers with 1, 2, 3...
+     */
+    private int transferNative(byte direction, Pointer data, int length) {
+        lastTransferData = data;
+        if ((direction & 0x80) != 0) {
+            for (int i = 0; i < length; ++i) {
+                data.setByte(i, (byte) (i + 1));
+            }
+        }
+        return length;
+    }
+}
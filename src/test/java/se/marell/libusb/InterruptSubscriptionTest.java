@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.libusb_transfer_type;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InterruptSubscriptionTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+    private final List<String> reports = new ArrayList<String>();
+    private LibUsbException failure;
+    private final InterruptSubscription.Listener listener = new InterruptSubscription.Listener() {
+        @Override
+        public void reportReceived(UsbDevice d, ByteBuffer report) {
+            assertSame(device, d);
+            StringBuilder sb = new StringBuilder();
+            while (report.hasRemaining()) {
+                sb.append(report.get());
+            }
+            reports.add(sb.toString());
+        }
+
+        @Override
+        public void subscriptionFailed(UsbDevice d, LibUsbException e) {
+            failure = e;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testReportsArePushedAndTransfersRequeued() throws Exception {
+        InterruptSubscription s = device.subscribeInterrupt(0x81, 4, 2, listener);
+        Pointer t0 = usb.nextSubmitted();
+        Pointer t1 = usb.nextSubmitted();
+        libusb_transfer t = new libusb_transfer(t0);
+        t.read();
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_INTERRUPT, t.type);
+        assertEquals(0, t.timeout);
+
+        usb.complete(t0, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{1, 2, 3, 4}, 4);
+        usb.complete(t1, libusb_transfer_status.TRANSFER_COMPLETED, new byte[]{5, 6}, 2);
+        assertEquals("[1234, 56]", reports.toString());
+        assertEquals(2, usb.active.size());
+        assertEquals(2, s.getReportsReceived());
+
+        assertTrue(s.cancel(1000));
+        assertFalse(s.isActive());
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+        assertNull(failure);
+    }
+
+    @Test
+    public void testDisconnectEndsSubscription() throws Exception {
+        InterruptSubscription s = device.subscribeInterrupt(0x81, 4, 2, listener);
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_NO_DEVICE, null, 0);
+        assertTrue(failure instanceof LibUsbNoDeviceException);
+        assertFalse(s.isActive());
+        assertTrue(usb.active.isEmpty());
+        assertTrue(s.cancel(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+
+    @Test
+    public void testSubmitFailureFreesTransfers() throws Exception {
+        usb.submitError = libusb_error.ERROR_NO_DEVICE;
+        usb.submitsBeforeError = 1;
+        usb.deferCancel = true;
+        Thread completer = usb.completeCancelledLater(1);
+        try {
+            device.subscribeInterrupt(0x81, 4, 2, listener);
+            fail("Expected LibUsbNoDeviceException");
+        } catch (LibUsbNoDeviceException e) {
+            // The submitted transfer was cancelled and freed before subscribeInterrupt() threw
+        }
+        completer.join();
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_transfer;
+import se.marell.libusb.jna.libusb_transfer_status;
+import se.marell.libusb.jna.libusb_transfer_type;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IsoInStreamTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+    private final List<String> received = new ArrayList<String>();
+    private LibUsbException failure;
+    private final IsoInStream.Consumer consumer = new IsoInStream.Consumer() {
+        @Override
+        public void packetReceived(ByteBuffer data, int status) {
+            received.add(data.remaining() + ":" + (data.hasRemaining() ? data.get(data.position()) : -1) + ":" + status);
+        }
+
+        @Override
+        public void streamFailed(LibUsbException e) {
+            failure = e;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testIsoPacketDescriptorLayout() {
+        assertEquals(Pointer.SIZE == 8 ? 60 : 40, libusb_transfer.ISO_PACKET_DESC_OFFSET);
+    }
+
+    @Test
+    public void testDeliversPacketsWithStatus() throws Exception {
+        IsoInStream stream = new IsoInStream(device, 0x82, 2, 3, 8, 0, consumer);
+        stream.start();
+        Pointer t0 = usb.nextSubmitted();
+        usb.nextSubmitted();
+        libusb_transfer t = new libusb_transfer(t0);
+        t.read();
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_ISOCHRONOUS, t.type);
+        assertEquals(3, t.num_iso_packets);
+        assertEquals(24, t.length);
+        assertEquals(8, t.get_iso_packet_length(2));
+        assertEquals(16, t.get_iso_packet_offset(2));
+
+        usb.setIsoPacketResult(t0, 0, 8, libusb_transfer_status.TRANSFER_COMPLETED);
+        usb.setIsoPacketResult(t0, 1, 0, libusb_transfer_status.TRANSFER_ERROR);
+        usb.setIsoPacketResult(t0, 2, 3, libusb_transfer_status.TRANSFER_COMPLETED);
+        byte[] data = new byte[24];
+        data[0] = 1;
+        data[16] = 3;
+        usb.complete(t0, libusb_transfer_status.TRANSFER_COMPLETED, data, 0);
+        assertEquals("[8:1:0, 0:-1:1, 3:3:0]", received.toString());
+        assertEquals(3, stream.getPacketsReceived());
+        assertEquals(1, stream.getPacketErrors());
+        assertEquals(11, stream.getBytesReceived());
+        assertEquals(2, usb.active.size());
+
+        assertTrue(stream.stop(1000));
+        assertTrue(usb.active.isEmpty());
+        assertTrue(usb.transfers.isEmpty());
+        assertNull(failure);
+    }
+
+    @Test
+    public void testDisconnectStopsStream() throws Exception {
+        IsoInStream stream = new IsoInStream(device, 0x82, 2, 4, 8, 0, consumer);
+        stream.start();
+        usb.complete(usb.nextSubmitted(), libusb_transfer_status.TRANSFER_NO_DEVICE, null, 0);
+        assertTrue(failure instanceof LibUsbNoDeviceException);
+        assertTrue(received.isEmpty());
+        assertTrue(usb.active.isEmpty());
+        assertTrue(stream.stop(1000));
+    }
+
+    @Test
+    public void testRestartAfterSubmitFailure() throws Exception {
+        IsoInStream stream = new IsoInStream(device, 0x82, 2, 3, 8, 0, consumer);
+        usb.submitError = libusb_error.ERROR_NO_DEVICE;
+        usb.submitsBeforeError = 1;
+        usb.deferCancel = true;
+        Thread completer = usb.completeCancelledLater(1);
+        try {
+            stream.start();
+            fail("Expected LibUsbNoDeviceException");
+        } catch (LibUsbNoDeviceException e) {
+            // The submitted transfer was cancelled and freed before start() threw
+        }
+        completer.join();
+        assertTrue(usb.transfers.isEmpty());
+
+        usb.submitError = 0;
+        usb.deferCancel = false;
+        stream.start();
+        assertTrue(stream.stop(1000));
+        assertTrue(usb.transfers.isEmpty());
+    }
+}
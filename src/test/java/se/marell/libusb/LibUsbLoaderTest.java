@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Test;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.LibUsbLoader;
+import se.marell.libusb.jna.libusb_version;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LibUsbLoaderTest {
+    @Test
+    public void testLoadIsCached() {
+        LibUsb usb = LibUsbLoader.getLibUsb();
+        assertNotNull(usb);
+        assertSame(usb, LibUsbLoader.getLibUsb());
+    }
+
+    @Test
+    public void testUnavailableBackend() {
+        if (LibUsbLoader.isAvailable()) {
+            assertNull(LibUsbLoader.getLoadError());
+            libusb_version v = LibUsbLoader.getVersion();
+            System.out.println("libusb " + v);
+            return;
+        }
+        LibUsb usb = LibUsbLoader.getLibUsb();
+        assertEquals("LibUsb(unavailable)", usb.toString());
+        assertNull(LibUsbLoader.getVersion());
+        try {
+            usb.libusb_init(null);
+            fail();
+        } catch (UnsatisfiedLinkError e) {
+            assertTrue(e.getMessage().startsWith("libusb not available"));
+            assertSame(LibUsbLoader.getLoadError(), e.getCause());
+        }
+        try {
+            LibUsbLoader.getNativeLibrary();
+            fail();
+        } catch (UnsatisfiedLinkError e) {
+            // expected
+        }
+    }
+}
@@ -6,6 +6,7 @@ package se.marell.libusb;
 import com.sun.jna.Pointer;
 import org.junit.Test;
 import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.LibUsbLoader;
 import se.marell.libusb.jna.libusb_error;
 
 import static org.junit.Assert.assertFalse;
@@ -14,14 +15,11 @@ import static org.junit.Assert.assertTrue;
 public class LibUsbTest {
     @Test
     public void testInit() throws Exception {
-        LibUsb usb;
-
-        try {
-            usb = LibUsb.libUsb;
-        } catch (UnsatisfiedLinkError e) {
-            e.printStackTrace();
+        if (!LibUsbLoader.isAvailable()) {
+            System.out.println(LibUsbLoader.getLoadError().getMessage());
             return;
         }
+        LibUsb usb = LibUsbLoader.getLibUsb();
         int rc;
 
         rc = usb.libusb_init(null);
@@ -36,7 +34,7 @@ public class LibUsbTest {
         assertTrue(devices.length > 1);
         Pointer usb_device = devices[0];
 
-        usb.libusb_free_device_list(null, pa[0], 0);
+        usb.libusb_free_device_list(pa[0], 0);
 
         rc = usb.libusb_get_bus_number(usb_device);
         assertSuccess(rc);
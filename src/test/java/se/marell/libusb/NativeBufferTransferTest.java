@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class NativeBufferTransferTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testDirectBufferReadHonoursPositionAndLimit() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(16);
+        buf.position(4).limit(10);
+        assertEquals(6, device.bulk_read(0x81, buf, 100));
+        assertEquals(10, buf.position());
+        assertEquals(Pointer.nativeValue(Native.getDirectBufferPointer(buf)) + 4,
+                Pointer.nativeValue(usb.lastTransferData));
+        buf.clear();
+        assertEquals(0, buf.get(3));
+        assertEquals(1, buf.get(4));
+        assertEquals(6, buf.get(9));
+        assertEquals(0, buf.get(10));
+    }
+
+    @Test
+    public void testDirectBufferWrite() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(8);
+        buf.position(2);
+        device.interrupt_write(0x02, buf, 100);
+        assertEquals(8, buf.position());
+        buf.position(1);
+        device.control_write((byte) 0x40, (byte) 1, (short) 0, (short) 0, buf, 100);
+        assertEquals(8, buf.position());
+        assertEquals(Pointer.nativeValue(Native.getDirectBufferPointer(buf)) + 1,
+                Pointer.nativeValue(usb.lastTransferData));
+    }
+
+    @Test
+    public void testMemory() throws Exception {
+        Memory m = new Memory(8);
+        assertEquals(8, device.interrupt_read(0x81, m, 8, 100));
+        assertEquals(8, m.getByte(7));
+        device.bulk_write(0x02, m, 8, 100);
+        assertEquals(4, device.control_read((byte) 0xc0, (byte) 1, (short) 0, (short) 0, m, (short) 4, 100));
+        assertEquals(Pointer.nativeValue(m), Pointer.nativeValue(usb.lastTransferData));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHeapBufferIsRejected() throws Exception {
+        device.bulk_read(0x81, ByteBuffer.allocate(8), 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testControlBufferOverWLengthIsRejected() throws Exception {
+        device.control_read((byte) 0xc0, (byte) 1, (short) 0, (short) 0, ByteBuffer.allocateDirect(0x10000), 100);
+    }
+}
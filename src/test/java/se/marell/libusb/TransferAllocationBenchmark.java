@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures heap allocation and time per call of the synchronous transfer methods of UsbDevice, using FakeLibUsb
+ * so that only the Java side is measured. Run as a main program, or through TransferAllocationTest.
+ */
+public class TransferAllocationBenchmark {
+    interface Op {
+        void run() throws LibUsbException;
+    }
+
+    private final Map<String, Op> ops = new LinkedHashMap<String, Op>();
+    private final UsbDevice device;
+
+    public TransferAllocationBenchmark() throws LibUsbException {
+        FakeLibUsb usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+        final byte[] array = new byte[64];
+        final Memory memory = new Memory(64);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        ops.put("bulk_read(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.bulk_read(0x81, array, 100);
+            }
+        });
+        ops.put("bulk_write(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.bulk_write(0x02, array, 100);
+            }
+        });
+        ops.put("interrupt_read(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.interrupt_read(0x81, array, 100);
+            }
+        });
+        ops.put("interrupt_write(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.interrupt_write(0x02, array, 100);
+            }
+        });
+        ops.put("control_read(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.control_read((byte) 0xc0, (byte) 1, (short) 0, (short) 0, array, (short) array.length, 100);
+            }
+        });
+        ops.put("control_write(byte[])", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.control_write((byte) 0x40, (byte) 1, (short) 0, (short) 0, array, (short) array.length, 100);
+            }
+        });
+        ops.put("bulk_read(Memory)", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.bulk_read(0x81, memory, 64, 100);
+            }
+        });
+        ops.put("interrupt_write(Memory)", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                device.interrupt_write(0x02, memory, 64, 100);
+            }
+        });
+        ops.put("bulk_read(ByteBuffer)", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                direct.clear();
+                device.bulk_read(0x81, direct, 100);
+            }
+        });
+        ops.put("bulk_write(ByteBuffer)", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                direct.clear();
+                device.bulk_write(0x02, direct, 100);
+            }
+        });
+        ops.put("control_read(ByteBuffer)", new Op() {
+            @Override
+            public void run() throws LibUsbException {
+                direct.clear();
+                device.control_read((byte) 0xc0, (byte) 1, (short) 0, (short) 0, direct, 100);
+            }
+        });
+    }
+
+    public Map<String, Op> getOps() {
+        return ops;
+    }
+
+    public UsbDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return allocated bytes per call, or -1 if the JVM cannot measure thread allocation
+     */
+    public static double bytesPerOp(Op op, int iterations) throws LibUsbException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        if (!mx.isThreadAllocatedMemorySupported() || !mx.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; ++i) {
+            op.run();
+        }
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < iterations; ++i) {
+            op.run();
+        }
+        long after = mx.getThreadAllocatedBytes(id);
+        return (double) (after - before) / iterations;
+    }
+
+    public static double nanosPerOp(Op op, int iterations) throws LibUsbException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            op.run();
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    public static void main(String[] args) throws LibUsbException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        TransferAllocationBenchmark b = new TransferAllocationBenchmark();
+        System.out.printf("%-28s %10s %10s\n", "method", "B/op", "ns/op");
+        for (Map.Entry<String, Op> e : b.getOps().entrySet()) {
+            double bytes = bytesPerOp(e.getValue(), iterations);
+            double nanos = nanosPerOp(e.getValue(), iterations);
+            System.out.printf("%-28s %10.2f %10.1f\n", e.getKey(), bytes, nanos);
+        }
+    }
+}
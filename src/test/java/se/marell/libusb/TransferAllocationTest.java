@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+public class TransferAllocationTest {
+    @Test
+    public void testSuccessfulTransfersDoNotAllocate() throws Exception {
+        TransferAllocationBenchmark b = new TransferAllocationBenchmark();
+        for (Map.Entry<String, TransferAllocationBenchmark.Op> e : b.getOps().entrySet()) {
+            double bytes = TransferAllocationBenchmark.bytesPerOp(e.getValue(), 20000);
+            Assume.assumeTrue(bytes >= 0);
+            // Allow for the constant cost of reading the allocation counter
+            assertTrue(e.getKey() + " allocates " + bytes + " B/op", bytes < 0.1);
+        }
+    }
+
+    @Test
+    public void testTransfersDoNotAllocateWithConcurrentCaller() throws Exception {
+        TransferAllocationBenchmark b = new TransferAllocationBenchmark();
+        final UsbDevice device = b.getDevice();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                byte[] data = new byte[64];
+                try {
+                    while (running.get()) {
+                        device.interrupt_read(0x83, data, 100);
+                    }
+                } catch (LibUsbException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        other.start();
+        try {
+            for (Map.Entry<String, TransferAllocationBenchmark.Op> e : b.getOps().entrySet()) {
+                double bytes = TransferAllocationBenchmark.bytesPerOp(e.getValue(), 20000);
+                Assume.assumeTrue(bytes >= 0);
+                assertTrue(e.getKey() + " allocates " + bytes + " B/op", bytes < 0.1);
+            }
+        } finally {
+            running.set(false);
+            other.join();
+        }
+    }
+}
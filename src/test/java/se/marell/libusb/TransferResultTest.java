@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.libusb_error;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransferResultTest {
+    private FakeLibUsb usb;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+        device = new UsbDevice(usb, usb.device);
+        device.open();
+    }
+
+    @Test
+    public void testPacking() {
+        long r = TransferResult.of(libusb_error.ERROR_TIMEOUT, 17);
+        assertEquals(libusb_error.ERROR_TIMEOUT, TransferResult.getError(r));
+        assertEquals(17, TransferResult.getTransferred(r));
+        assertTrue(TransferResult.isTimeout(r));
+        assertFalse(TransferResult.isSuccess(r));
+
+        r = TransferResult.of(0, Integer.MAX_VALUE);
+        assertEquals(0, TransferResult.getError(r));
+        assertEquals(Integer.MAX_VALUE, TransferResult.getTransferred(r));
+        assertTrue(TransferResult.isComplete(r, Integer.MAX_VALUE));
+        assertFalse(TransferResult.isComplete(r, 1));
+    }
+
+    @Test
+    public void testTimeoutDoesNotThrow() throws Exception {
+        byte[] data = new byte[4];
+        assertTrue(TransferResult.isComplete(device.interrupt_transfer(0x81, data, 100), 4));
+
+        usb.syncTransferError = libusb_error.ERROR_TIMEOUT;
+        assertTrue(TransferResult.isTimeout(device.interrupt_transfer(0x81, data, 100)));
+        assertTrue(TransferResult.isTimeout(device.bulk_transfer(0x81, data, 100)));
+        try {
+            device.bulk_read(0x81, data, 100);
+            fail();
+        } catch (LibUsbTimeoutException e) {
+            assertEquals(0, e.getTransferredBytes());
+        }
+
+        usb.syncTransferError = libusb_error.ERROR_OVERFLOW;
+        assertEquals(libusb_error.ERROR_OVERFLOW, TransferResult.getError(device.bulk_transfer(0x81, data, 100)));
+        try {
+            device.interrupt_read(0x81, data, 100);
+            fail();
+        } catch (LibUsbOverflowException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UsbBufferPoolTest {
+    @Test
+    public void testReuseAndStats() {
+        UsbBufferPool pool = new UsbBufferPool(1024, false);
+        UsbBuffer a = pool.lease(100);
+        UsbBuffer b = pool.lease(64);
+        assertEquals(128, a.capacity());
+        assertEquals(64, b.capacity());
+        assertEquals(128, a.getByteBuffer().remaining());
+        assertEquals(192, pool.getInUseBytes());
+        a.release();
+        b.release();
+        assertEquals(0, pool.getInUseBytes());
+        assertEquals(192, pool.getHighWaterBytes());
+
+        for (int i = 0; i < 100; ++i) {
+            UsbBuffer c = pool.lease(128);
+            c.getByteBuffer().position(10);
+            assertSame(a, c);
+            c.release();
+        }
+        assertEquals(2, pool.getAllocations());
+        assertEquals(102, pool.getLeases());
+        assertEquals(192, pool.getAllocatedBytes());
+        assertEquals(0, pool.lease(128).getByteBuffer().position());
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotPooled() {
+        UsbBufferPool pool = new UsbBufferPool(1000, false);
+        UsbBuffer a = pool.lease(1025);
+        assertEquals(1025, a.capacity());
+        a.release();
+        assertEquals(0, pool.getAllocatedBytes());
+        assertNotSame(a, pool.lease(1025));
+        assertEquals(1024, pool.lease(1024).capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        UsbBuffer a = new UsbBufferPool(1024, false).lease(10);
+        a.release();
+        a.release();
+    }
+
+    @Test
+    public void testLeakIsDetectedAndReclaimed() throws Exception {
+        UsbBufferPool pool = new UsbBufferPool(1024, true);
+        pool.lease(256);
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getLeaks());
+        assertEquals(0, pool.getInUseBytes());
+        pool.lease(256);
+        assertEquals(1, pool.getAllocations());
+        assertTrue(pool.toString().contains("leaks=1"));
+    }
+}
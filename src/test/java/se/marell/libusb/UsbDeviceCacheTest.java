@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.sim.SimulatedLibUsb;
+import se.marell.libusb.sim.VirtualDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UsbDeviceCacheTest {
+    private SimulatedLibUsb bus;
+    private VirtualDevice hub;
+    private VirtualDevice mouse;
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        hub = new VirtualDevice(1, 2, 0x1111, 0x0001);
+        hub.setPortNumbers(3);
+        mouse = new VirtualDevice(1, 3, 0x2222, 0x0002);
+        mouse.setPortNumbers(3, 1);
+        bus.addDevice(hub);
+        bus.addDevice(mouse);
+    }
+
+    @Test
+    public void testRefreshReusesDevices() throws Exception {
+        UsbDeviceCache cache = new UsbDeviceCache(bus, null, -1);
+        UsbDeviceCache.Diff diff = cache.refresh();
+        assertEquals(2, diff.getAdded().size());
+        assertTrue(diff.getRemoved().isEmpty());
+        UsbDevice d = cache.getDevice("1-3.1");
+        assertEquals(0x2222, d.getIdVendor() & 0xffff);
+        assertEquals("1-3", cache.getDevice("1-3").getPortPath());
+
+        assertTrue(cache.refresh().isEmpty());
+        assertSame(d, cache.getDevice("1-3.1"));
+        assertEquals(2, cache.getRefreshCount());
+        assertEquals(1, mouse.getReferenceCount());
+
+        cache.clear();
+        assertEquals(0, hub.getReferenceCount());
+        assertEquals(0, mouse.getReferenceCount());
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        UsbDeviceCache cache = new UsbDeviceCache(bus, null, -1);
+        final List<UsbDeviceCache.Diff> diffs = new ArrayList<UsbDeviceCache.Diff>();
+        cache.addListener(new UsbDeviceCache.Listener() {
+            @Override
+            public void devicesChanged(UsbDeviceCache.Diff diff) {
+                diffs.add(diff);
+            }
+        });
+        cache.refresh();
+        UsbDevice old = cache.getDevice("1-3.1");
+
+        // Reconnected to the same port: a new device
+        bus.removeDevice(mouse);
+        VirtualDevice again = new VirtualDevice(1, 4, 0x2222, 0x0002);
+        again.setPortNumbers(3, 1);
+        bus.addDevice(again);
+        UsbDeviceCache.Diff diff = cache.refresh();
+        assertEquals(1, diff.getAdded().size());
+        assertSame(old, diff.getRemoved().get(0));
+        assertEquals(4, cache.getDevice("1-3.1").get_address());
+        assertEquals(0, mouse.getReferenceCount());
+        assertEquals(1, again.getReferenceCount());
+
+        bus.removeDevice(hub);
+        diff = cache.refresh();
+        assertTrue(diff.getAdded().isEmpty());
+        assertEquals("1-3", diff.getRemoved().get(0).getPortPath());
+        assertNull(cache.getDevice("1-3"));
+        assertEquals(3, diffs.size());
+        assertEquals(0, hub.getReferenceCount());
+    }
+
+    @Test
+    public void testTimeBasedRefresh() throws Exception {
+        UsbDeviceCache cache = new UsbDeviceCache(bus, null, 20);
+        cache.getDevices();
+        cache.getDevices();
+        assertEquals(1, cache.getRefreshCount());
+        Thread.sleep(30);
+        cache.getDevices();
+        assertEquals(2, cache.getRefreshCount());
+        cache.invalidate();
+        cache.getDevices();
+        assertEquals(3, cache.getRefreshCount());
+    }
+
+    @Test
+    public void testSystemCache() throws Exception {
+        LibUsbSystem system = new LibUsbSystem(bus, false);
+        List<UsbDevice> devices = system.getDeviceCache().visitUsbDevices(new VendorProductVisitor(0x1111, 0x0001, 0));
+        assertEquals(1, devices.size());
+        assertSame(devices.get(0), system.getDeviceCache().getDevice("1-3"));
+        system.cleanup();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsbEventThreadTest {
+    @Test
+    public void testTicksAndShutdown() throws Exception {
+        UsbEventThread t = new UsbEventThread(new FakeLibUsb(), null, 10);
+        t.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (t.getIterationCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(t.getIterationCount() >= 3);
+        assertTrue(t.getMaxIterationNanos() >= t.getLastIterationNanos());
+        assertTrue(t.getTotalIterationNanos() >= 3 * 5000000L);
+
+        long t0 = System.currentTimeMillis();
+        t.shutdown();
+        assertFalse(t.isAlive());
+        assertTrue(System.currentTimeMillis() - t0 < 1000);
+        assertEquals(0, t.getErrorCount());
+    }
+
+    @Test
+    public void testShutdownFromEventThreadFails() throws Exception {
+        final UsbEventThread t = new UsbEventThread(new FakeLibUsb(), null, 10);
+        final CompletableFuture<RuntimeException> result = new CompletableFuture<RuntimeException>();
+        t.addTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    t.shutdown();
+                    result.complete(null);
+                } catch (RuntimeException e) {
+                    result.complete(e);
+                }
+            }
+        });
+        t.start();
+        assertEquals(IllegalStateException.class, result.get(5, TimeUnit.SECONDS).getClass());
+        t.shutdown();
+        assertFalse(t.isAlive());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTick() throws Exception {
+        new UsbEventThread(new FakeLibUsb(), null, 0);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb;
+
+import com.sun.jna.Memory;
+import com.sun.jna.NativeLong;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.jna.LibC;
+import se.marell.libusb.jna.libusb_pollfd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsbPollSourceTest {
+    private FakeLibUsb usb;
+
+    @Before
+    public void setUp() throws Exception {
+        usb = new FakeLibUsb();
+    }
+
+    @Test
+    public void testTracksPollfds() throws Exception {
+        usb.pollfds.put(10, libusb_pollfd.POLLIN);
+        UsbPollSource source = new UsbPollSource(usb, null);
+        source.open();
+        assertEquals(Integer.valueOf(libusb_pollfd.POLLIN), source.getPollfds().get(10));
+
+        final List<String> seen = new ArrayList<String>();
+        source.addListener(new UsbPollSource.Listener() {
+            @Override
+            public void pollfdAdded(int fd, int events) {
+                seen.add("+" + fd);
+            }
+
+            @Override
+            public void pollfdRemoved(int fd) {
+                seen.add("-" + fd);
+            }
+        });
+        usb.pollfdAdded.invoke(11, libusb_pollfd.POLLOUT, null);
+        usb.pollfdRemoved.invoke(10, null);
+        assertEquals("[+10, +11, -10]", seen.toString());
+        assertFalse(source.getPollfds().containsKey(10));
+
+        source.close();
+        assertTrue(source.getPollfds().isEmpty());
+        assertEquals("[+10, +11, -10, -11]", seen.toString());
+    }
+
+    @Test
+    public void testEpollHandlesEventsOnlyWhenReadable() throws Exception {
+        Assume.assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+        LibC libc = LibC.libC;
+        int fd = libc.eventfd(0, LibC.EFD_NONBLOCK);
+        assertTrue(fd >= 0);
+        usb.pollfds.put(fd, libusb_pollfd.POLLIN);
+        UsbPollSource source = new UsbPollSource(usb, null);
+        source.open();
+        EpollEventLoop loop = new EpollEventLoop(source);
+        try {
+            loop.runOnce(10);
+            assertEquals(0, usb.handleEventsCount.get());
+
+            Memory one = new Memory(8);
+            one.setLong(0, 1);
+            libc.write(fd, one, new NativeLong(8));
+            loop.runOnce(1000);
+            assertEquals(1, usb.handleEventsCount.get());
+
+            usb.pollfdRemoved.invoke(fd, null);
+            loop.runOnce(10);
+            assertEquals(1, usb.handleEventsCount.get());
+        } finally {
+            loop.close();
+            libc.close(fd);
+        }
+    }
+}
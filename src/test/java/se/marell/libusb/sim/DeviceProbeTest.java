@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbException;
+import se.marell.libusb.LibUsbPipeException;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbDeviceProbe;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceProbeTest {
+    private SimulatedLibUsb bus;
+    private LibUsbSystem system;
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        system = new LibUsbSystem(bus, true);
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    private VirtualDevice addDevice(int address, String product, long latencyMicros) {
+        VirtualDevice d = new VirtualDevice(1, address, 0x1234, address);
+        d.setManufacturer("Marell");
+        d.setProduct(product);
+        d.setLatencyMicros(latencyMicros);
+        bus.addDevice(d);
+        return d;
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        VirtualDevice v = addDevice(2, "A", 0);
+        v.setSerialNumber("0001");
+        addDevice(3, "B", 0);
+        List<UsbDeviceProbe.Result<UsbDeviceProbe.Strings>> results =
+                system.probeDevices(UsbDeviceProbe.STRINGS, 2, 1000);
+        assertEquals(2, results.size());
+        for (UsbDeviceProbe.Result<UsbDeviceProbe.Strings> r : results) {
+            assertTrue(r.toString(), r.isSuccess());
+            assertEquals("Marell", r.getValue().getManufacturer());
+            assertNull(r.getDevice().get_dev_handle());
+        }
+        assertEquals("A", results.get(0).getValue().getProduct());
+        assertEquals("0001", results.get(0).getValue().getSerialNumber());
+        assertEquals("B", results.get(1).getValue().getProduct());
+        assertNull(results.get(1).getValue().getSerialNumber());
+    }
+
+    @Test
+    public void testPartialResults() throws Exception {
+        addDevice(2, "ok", 0);
+        addDevice(3, "fails", 0);
+        addDevice(4, "slow", 500000);
+        UsbDeviceProbe<String> probe = new UsbDeviceProbe<String>() {
+            @Override
+            public String probe(UsbDevice device) throws LibUsbException {
+                String product = device.get_string_descriptor(device.getDeviceDescriptor().getIProduct(), 0x0409);
+                if (product.equals("fails")) {
+                    throw new LibUsbPipeException();
+                }
+                return product;
+            }
+        };
+        long start = System.nanoTime();
+        List<UsbDeviceProbe.Result<String>> results = system.probeDevices(probe, 3, 200);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("elapsed " + elapsedMs, elapsedMs < 450);
+
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("ok", results.get(0).getValue());
+
+        assertFalse(results.get(1).isSuccess());
+        assertFalse(results.get(1).isTimedOut());
+        assertTrue(results.get(1).getError() instanceof LibUsbPipeException);
+        assertNull(results.get(1).getDevice().get_dev_handle());
+
+        assertTrue(results.get(2).isTimedOut());
+        assertNull(results.get(2).getValue());
+        assertTrue(results.get(2).getElapsedNanos() >= 200000000L);
+    }
+
+    @Test
+    public void testBoundedParallelism() throws Exception {
+        for (int i = 0; i < 4; ++i) {
+            addDevice(2 + i, "P" + i, 100000);
+        }
+        long start = System.nanoTime();
+        List<UsbDeviceProbe.Result<String>> results = system.probeDevices(new UsbDeviceProbe<String>() {
+            @Override
+            public String probe(UsbDevice device) throws LibUsbException {
+                return device.get_string_descriptor(device.getDeviceDescriptor().getIProduct(), 0x0409);
+            }
+        }, 2, 1000);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        for (int i = 0; i < 4; ++i) {
+            assertEquals("P" + i, results.get(i).getValue());
+        }
+        // Two rounds of two devices, each taking 100 ms
+        assertTrue("elapsed " + elapsedMs, elapsedMs >= 200 && elapsedMs < 400);
+    }
+
+    @Test
+    public void testTimedOutProbeDoesNotHoldQueue() throws Exception {
+        addDevice(2, "hung", 1000000);
+        addDevice(3, "A", 0);
+        addDevice(4, "B", 0);
+        long start = System.nanoTime();
+        List<UsbDeviceProbe.Result<UsbDeviceProbe.Strings>> results =
+                system.probeDevices(UsbDeviceProbe.STRINGS, 1, 100);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("elapsed " + elapsedMs, elapsedMs < 500);
+        assertTrue(results.get(0).isTimedOut());
+        // The queued devices get a thread of their own and their full deadline
+        assertEquals("A", results.get(1).getValue().getProduct());
+        assertEquals("B", results.get(2).getValue().getProduct());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.HotplugSubscription;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.jna.libusb_hotplug_flag;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HotplugSubscriptionTest {
+    private SimulatedLibUsb bus;
+    private LibUsbSystem system;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private final HotplugSubscription.Listener listener = new HotplugSubscription.Listener() {
+        @Override
+        public void deviceArrived(UsbDevice device) {
+            events.add("arrived " + Integer.toHexString(device.getIdVendor() & 0xffff) + " " + Thread.currentThread().getName());
+        }
+
+        @Override
+        public void deviceLeft(UsbDevice device) {
+            events.add("left " + Integer.toHexString(device.getIdVendor() & 0xffff) + " " + Thread.currentThread().getName());
+        }
+    };
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        bus.addDevice(new VirtualDevice(1, 2, 0x1234, 0x0001));
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    private void start(boolean hotplug) {
+        bus.setHotplugSupported(hotplug);
+        system = new LibUsbSystem(bus, true);
+        system.startEventThread(10);
+    }
+
+    private String next() throws InterruptedException {
+        return events.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testNative() throws Exception {
+        start(true);
+        assertTrue(system.hasHotplug());
+        HotplugSubscription s = system.registerHotplugListener(0x1234, libusb_hotplug_flag.HOTPLUG_MATCH_ANY,
+                libusb_hotplug_flag.HOTPLUG_MATCH_ANY, true, listener);
+        assertFalse(s.isPolling());
+        assertEquals("arrived 1234 " + Thread.currentThread().getName(), events.poll());
+
+        VirtualDevice other = new VirtualDevice(1, 3, 0x4321, 0x0001);
+        VirtualDevice matching = new VirtualDevice(1, 4, 0x1234, 0x0002);
+        bus.addDevice(other);
+        bus.addDevice(matching);
+        assertEquals("arrived 1234 libusb-events", next());
+        bus.removeDevice(matching);
+        assertEquals("left 1234 libusb-events", next());
+
+        s.cancel();
+        assertFalse(s.isActive());
+        bus.addDevice(matching);
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPolling() throws Exception {
+        start(false);
+        assertFalse(system.hasHotplug());
+        HotplugSubscription s = system.registerHotplugListener(libusb_hotplug_flag.HOTPLUG_MATCH_ANY,
+                libusb_hotplug_flag.HOTPLUG_MATCH_ANY, libusb_hotplug_flag.HOTPLUG_MATCH_ANY, false, listener);
+        assertTrue(s.isPolling());
+        assertNull(events.poll());
+
+        VirtualDevice added = new VirtualDevice(1, 3, 0x4321, 0x0001);
+        bus.addDevice(added);
+        assertEquals("arrived 4321 libusb-events", next());
+        bus.removeDevice(added);
+        assertEquals("left 4321 libusb-events", next());
+
+        s.cancel();
+        bus.addDevice(added);
+        assertNull(events.poll(LibUsbSystem.DEFAULT_HOTPLUG_POLL_INTERVAL_MS + 200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.HotplugSubscription;
+import se.marell.libusb.ShardedUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbShardPolicy;
+import se.marell.libusb.UsbSystem;
+import se.marell.libusb.jna.libusb_error;
+import se.marell.libusb.jna.libusb_hotplug_flag;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedUsbSystemTest {
+    private SimulatedLibUsb bus;
+    private ShardedUsbSystem system;
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        for (int i = 1; i <= 4; ++i) {
+            VirtualDevice d = new VirtualDevice(i, 2, 0x1234, i);
+            d.setPortNumbers(1);
+            bus.addDevice(d);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (system != null) {
+            system.cleanup();
+        }
+    }
+
+    @Test
+    public void testFailedInitCleansUpCreatedShards() throws Exception {
+        final AtomicInteger contexts = new AtomicInteger();
+        SimulatedLibUsb failing = new SimulatedLibUsb() {
+            @Override
+            public int libusb_init(Pointer[] context) {
+                if (contexts.get() == 2) {
+                    return libusb_error.ERROR_NO_MEM;
+                }
+                contexts.incrementAndGet();
+                return super.libusb_init(context);
+            }
+
+            @Override
+            public void libusb_exit(Pointer context) {
+                contexts.decrementAndGet();
+                super.libusb_exit(context);
+            }
+        };
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        try {
+            new ShardedUsbSystem(failing, 3, UsbShardPolicy.BY_BUS_NUMBER, 10);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, contexts.get());
+        }
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertTrue(before.contains(t) || !t.getName().startsWith("libusb-events-"));
+        }
+    }
+
+    @Test
+    public void testByBusNumber() throws Exception {
+        system = new ShardedUsbSystem(bus, 2, UsbShardPolicy.BY_BUS_NUMBER, 10);
+        List<UsbDevice> devices = system.getDeviceCache().getDevices();
+        assertEquals(4, devices.size());
+        for (UsbDevice d : devices) {
+            assertSame(system.getShard(d.get_bus_number() % 2), system.getShard(d));
+        }
+        List<UsbDevice> visited = system.visitUsbDevices(new UsbSystem.UsbDeviceVisitor() {
+            @Override
+            public List<UsbDevice> visitDevices(List<UsbDevice> allDevices) {
+                return allDevices;
+            }
+        });
+        assertEquals(4, new HashSet<UsbDevice>(visited).size());
+        for (UsbDevice d : visited) {
+            d.unref_device();
+        }
+        assertEquals(2, system.getShardCount());
+        assertEquals("libusb-events-1", system.getShard(1).getEventThread().getName());
+    }
+
+    @Test
+    public void testPinnedAndRoundRobin() throws Exception {
+        UsbShardPolicy policy = new UsbShardPolicy.Pinned(new UsbShardPolicy.RoundRobin()).pin("3-1", 2);
+        system = new ShardedUsbSystem(bus, 3, policy, 10);
+        Set<Integer> shards = new HashSet<Integer>();
+        for (UsbDevice d : system.getDeviceCache().getDevices()) {
+            int shard = policy.shardOf(d, 3);
+            if (d.get_bus_number() == 3) {
+                assertEquals(2, shard);
+            } else {
+                shards.add(shard);
+            }
+        }
+        assertEquals(3, shards.size());
+
+        system.getDeviceCache().refresh();
+        for (UsbDevice d : system.getDeviceCache().getDevices()) {
+            assertSame(system.getShard(policy.shardOf(d, 3)), system.getShard(d));
+        }
+    }
+
+    @Test
+    public void testHotplug() throws Exception {
+        system = new ShardedUsbSystem(bus, 2, UsbShardPolicy.BY_BUS_NUMBER, 10);
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        HotplugSubscription s = system.registerHotplugListener(libusb_hotplug_flag.HOTPLUG_MATCH_ANY,
+                libusb_hotplug_flag.HOTPLUG_MATCH_ANY, libusb_hotplug_flag.HOTPLUG_MATCH_ANY, false,
+                new HotplugSubscription.Listener() {
+                    @Override
+                    public void deviceArrived(UsbDevice device) {
+                        events.add("arrived " + device.get_bus_number() + " " + Thread.currentThread().getName());
+                    }
+
+                    @Override
+                    public void deviceLeft(UsbDevice device) {
+                        events.add("left " + device.get_bus_number() + " " + Thread.currentThread().getName());
+                    }
+                });
+        assertFalse(s.isPolling());
+        VirtualDevice added = new VirtualDevice(5, 3, 0x4321, 1);
+        bus.addDevice(added);
+        assertEquals("arrived 5 libusb-events-1", events.poll(5, TimeUnit.SECONDS));
+        bus.removeDevice(added);
+        assertEquals("left 5 libusb-events-1", events.poll(5, TimeUnit.SECONDS));
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+
+        s.cancel();
+        bus.addDevice(added);
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
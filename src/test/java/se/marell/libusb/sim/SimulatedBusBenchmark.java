@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import se.marell.libusb.BulkInStream;
+import se.marell.libusb.LibUsbException;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbSystem;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Measures throughput and latency of the transfer stack against a SimulatedLibUsb device with fixed latency and
+ * bandwidth, so that results are reproducible on machines without USB devices. Run as a main program.
+ *
+ * Arguments: [latency us] [bandwidth bytes/s] [transfer size] [seconds]
+ */
+public class SimulatedBusBenchmark {
+    public static void main(String[] args) throws Exception {
+        long latencyMicros = args.length > 0 ? Long.parseLong(args[0]) : 125;
+        long bandwidth = args.length > 1 ? Long.parseLong(args[1]) : 40000000;
+        int transferSize = args.length > 2 ? Integer.parseInt(args[2]) : 16384;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 2;
+
+        SimulatedLibUsb bus = new SimulatedLibUsb();
+        VirtualDevice virtual = new VirtualDevice(1, 1, 0x1234, 0x5678);
+        virtual.setLatencyMicros(latencyMicros);
+        virtual.setBandwidth(bandwidth);
+        StreamEndpoint stream = new StreamEndpoint();
+        virtual.setEndpoint(0x81, stream);
+        virtual.setEndpoint(0x01, stream);
+        LoopbackEndpoint loopback = new LoopbackEndpoint(16);
+        virtual.setEndpoint(0x82, loopback);
+        virtual.setEndpoint(0x02, loopback);
+        bus.addDevice(virtual);
+
+        LibUsbSystem system = new LibUsbSystem(bus, true);
+        system.startEventThread(10);
+        UsbDevice device = system.visitUsbDevices(new UsbSystem.UsbDeviceVisitor() {
+            @Override
+            public List<UsbDevice> visitDevices(List<UsbDevice> allDevices) {
+                return allDevices;
+            }
+        }).get(0);
+        device.open();
+
+        System.out.printf("latency %d us, bandwidth %.1f MB/s, transfer size %d\n", latencyMicros, bandwidth / 1e6,
+                transferSize);
+        System.out.printf("%-28s %12s %12s\n", "test", "MB/s", "us/transfer");
+
+        byte[] data = new byte[transferSize];
+        long n = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            device.bulk_read(0x81, data, 1000);
+            ++n;
+        }
+        report("bulk_read", n, transferSize, System.nanoTime() - start);
+
+        for (int depth : new int[]{1, 2, 4, 8}) {
+            BulkInStream in = new BulkInStream(device, 0x81, depth, transferSize, 1000, new BulkInStream.Consumer() {
+                @Override
+                public void dataReceived(ByteBuffer data) {
+                }
+
+                @Override
+                public void streamFailed(LibUsbException e) {
+                    System.out.println("Stream failed:" + e);
+                }
+            });
+            start = System.nanoTime();
+            in.start();
+            Thread.sleep(seconds * 1000);
+            in.stop(1000);
+            report("BulkInStream depth " + depth, in.getTransfersCompleted(), transferSize, System.nanoTime() - start);
+        }
+
+        byte[] ping = new byte[64];
+        n = 0;
+        start = System.nanoTime();
+        end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            device.bulk_write(0x02, ping, 1000);
+            device.bulk_read(0x82, ping, 1000);
+            ++n;
+        }
+        report("loopback round trip 64 B", n, 2 * ping.length, System.nanoTime() - start);
+
+        device.close();
+        system.cleanup();
+    }
+
+    private static void report(String test, long transfers, int transferSize, long nanos) {
+        System.out.printf("%-28s %12.2f %12.1f\n", test, transfers * (double) transferSize * 1000 / nanos,
+                transfers == 0 ? 0 : nanos / 1000.0 / transfers);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.AbstractSynchronousUsbDevice;
+import se.marell.libusb.LibUsbException;
+import se.marell.libusb.LibUsbNoDeviceException;
+import se.marell.libusb.LibUsbOtherException;
+import se.marell.libusb.LibUsbPermissionException;
+import se.marell.libusb.LibUsbPipeException;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.LibUsbTimeoutException;
+import se.marell.libusb.TransferResult;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbSystem;
+import se.marell.libusb.jna.LibUsb;
+import se.marell.libusb.jna.libusb_error;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimulatedLibUsbTest {
+    private SimulatedLibUsb bus;
+    private VirtualDevice virtual;
+    private LibUsbSystem system;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 5, 0x1234, 0x5678);
+        virtual.setManufacturer("Marell");
+        virtual.setProduct("Loopback");
+        LoopbackEndpoint loopback = new LoopbackEndpoint(16);
+        virtual.setEndpoint(0x02, loopback);
+        virtual.setEndpoint(0x82, loopback);
+        bus.addDevice(virtual);
+        bus.addDevice(new VirtualDevice(2, 1, 0xaaaa, 0xbbbb));
+        system = new LibUsbSystem(bus, true);
+        system.startEventThread(10);
+        device = find(0x1234);
+        device.open();
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+        system.cleanup();
+    }
+
+    private UsbDevice find(final int vendorId) throws Exception {
+        List<UsbDevice> devices = system.visitUsbDevices(new UsbSystem.UsbDeviceVisitor() {
+            @Override
+            public List<UsbDevice> visitDevices(List<UsbDevice> allDevices) {
+                assertEquals(2, allDevices.size());
+                for (UsbDevice d : allDevices) {
+                    if ((d.getIdVendor() & 0xffff) == vendorId) {
+                        return Collections.singletonList(d);
+                    }
+                }
+                return Collections.emptyList();
+            }
+        });
+        return devices.get(0);
+    }
+
+    @Test
+    public void testDriverOnPlainUsbSystem() throws Exception {
+        // A UsbSystem implemented outside the library, without a device cache
+        UsbSystem plain = new UsbSystem() {
+            @Override
+            public LibUsb getLibUsb() {
+                return system.getLibUsb();
+            }
+
+            @Override
+            public List<UsbDevice> visitUsbDevices(UsbDeviceVisitor visitor) throws LibUsbNoDeviceException,
+                    LibUsbPermissionException,
+                    LibUsbOtherException {
+                return system.visitUsbDevices(visitor);
+            }
+
+            @Override
+            public void cleanup() {
+            }
+        };
+        class Driver extends AbstractSynchronousUsbDevice {
+            Driver(UsbSystem us) {
+                super(us, 0);
+            }
+
+            UsbDevice connect() throws LibUsbException {
+                return getUsbDevice(0xaaaa, 0xbbbb, 0);
+            }
+        }
+        UsbDevice d = new Driver(plain).connect();
+        assertEquals("2-1", d.getPortPath());
+        d.close();
+    }
+
+    @Test
+    public void testDescriptors() throws Exception {
+        assertEquals(0x5678, device.getIdProduct() & 0xffff);
+        assertEquals(1, device.get_bus_number());
+        assertEquals(5, device.get_address());
+        assertEquals("Marell", device.getManufacturer());
+        assertEquals("Loopback", device.getProduct());
+
+        byte[] data = new byte[64];
+        int n = device.control_read((byte) 0x80, (byte) 6, (short) 0x0302, (short) 0x0409, data, (short) data.length, 100);
+        assertEquals(2 + 2 * "Loopback".length(), n);
+        assertEquals("Loopback", new String(data, 2, n - 2, "UTF-16LE"));
+        n = device.control_read((byte) 0x80, (byte) 6, (short) 0x0100, (short) 0, data, (short) data.length, 100);
+        assertEquals(18, n);
+        assertEquals(0x34, data[8]);
+        assertEquals(0x12, data[9]);
+    }
+
+    @Test(expected = LibUsbPipeException.class)
+    public void testUnhandledControlRequestStalls() throws Exception {
+        device.control_write((byte) 0x40, (byte) 1, (short) 0, (short) 0, new byte[0], (short) 0, 100);
+    }
+
+    @Test
+    public void testSynchronousLoopback() throws Exception {
+        device.bulk_write(0x02, new byte[]{1, 2, 3, 4}, 100);
+        byte[] data = new byte[2];
+        assertEquals(2, device.bulk_read(0x82, data, 100));
+        assertArrayEquals(new byte[]{1, 2}, data);
+        assertEquals(2, device.bulk_read(0x82, data, 100));
+        assertArrayEquals(new byte[]{3, 4}, data);
+    }
+
+    @Test
+    public void testReadTimesOutWithoutData() throws Exception {
+        long start = System.nanoTime();
+        try {
+            device.bulk_read(0x82, new byte[4], 20);
+            fail();
+        } catch (LibUsbTimeoutException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        }
+    }
+
+    @Test
+    public void testAsyncReadCompletesWhenDataIsWritten() throws Exception {
+        byte[] data = new byte[4];
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x82, data, 0);
+        Thread.sleep(20);
+        assertFalse(f.isDone());
+        device.bulk_write(0x02, new byte[]{9, 8, 7}, 100);
+        assertEquals(3, (int) f.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{9, 8, 7, 0}, data);
+        assertEquals(0, bus.getTransfersInFlight());
+    }
+
+    @Test
+    public void testCancelNakedTransfer() throws Exception {
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x82, new byte[4], 0);
+        assertTrue(f.cancel(false));
+        waitForNoTransfersInFlight();
+    }
+
+    @Test
+    public void testRemovedDeviceFailsPendingTransfer() throws Exception {
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x82, new byte[4], 0);
+        bus.removeDevice(virtual);
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(LibUsbNoDeviceException.class, e.getCause().getClass());
+        }
+        assertEquals(libusb_error.ERROR_NO_DEVICE, TransferResult.getError(device.bulk_transfer(0x02, new byte[1], 100)));
+    }
+
+    @Test
+    public void testScriptedEndpoint() throws Exception {
+        ScriptedEndpoint script = new ScriptedEndpoint();
+        script.addPacket(new byte[]{5, 6});
+        script.addError(libusb_error.ERROR_PIPE);
+        virtual.setEndpoint(0x81, script);
+        virtual.setEndpoint(0x01, script);
+        byte[] data = new byte[8];
+        assertEquals(2, device.interrupt_read(0x81, data, 100));
+        assertEquals(5, data[0]);
+        assertEquals(libusb_error.ERROR_PIPE, TransferResult.getError(device.interrupt_transfer(0x01, new byte[]{1}, 100)));
+        device.interrupt_write(0x01, new byte[]{1, 2}, 100);
+        assertArrayEquals(new byte[]{1, 2}, script.getReceived().get(0));
+    }
+
+    @Test
+    public void testLatencyAndBandwidth() throws Exception {
+        virtual.setLatencyMicros(5000);
+        virtual.setBandwidth(1000000);
+        long start = System.nanoTime();
+        device.bulk_write(0x02, new byte[10000], 1000);
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MICROSECONDS.toNanos(15000));
+
+        virtual.setLatencyMicros(100000);
+        assertEquals(libusb_error.ERROR_TIMEOUT, TransferResult.getError(device.bulk_transfer(0x02, new byte[4], 20)));
+    }
+
+    private void waitForNoTransfersInFlight() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bus.getTransfersInFlight() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbNotFoundException;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbConfigDescriptor;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbDeviceDescriptor;
+import se.marell.libusb.UsbEndpointDescriptor;
+import se.marell.libusb.UsbInterface;
+import se.marell.libusb.UsbInterfaceDescriptor;
+import se.marell.libusb.jna.libusb_transfer_type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsbConfigDescriptorTest {
+    /**
+     * Interface 0 (HID with a HID descriptor and an interrupt IN endpoint) and interface 1 with two alternate
+     * settings, the second one with an isochronous audio endpoint followed by a class specific descriptor
+     */
+    private static final byte[] CONFIG = {
+            9, 2, 68, 0, 2, 1, 0, (byte) 0xa0, 50,
+            9, 4, 0, 0, 1, 3, 1, 1, 0,
+            9, 0x21, 0x11, 0x01, 0, 1, 0x22, 63, 0,
+            7, 5, (byte) 0x81, 3, 8, 0, 10,
+            9, 4, 1, 0, 0, 1, 2, 0, 0,
+            9, 4, 1, 1, 1, 1, 2, 0, 0,
+            9, 5, 0x02, 5, (byte) 0xc0, 0, 1, 0, 0,
+            7, 0x25, 1, 0, 0, 0, 0
+    };
+
+    private SimulatedLibUsb bus;
+    private VirtualDevice virtual;
+    private LibUsbSystem system;
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 2, 0x1234, 0x5678);
+        virtual.getDescriptor().bcdDevice = 0x0102;
+        virtual.getDescriptor().bDeviceClass = (byte) 0xef;
+        bus.addDevice(virtual);
+        system = new LibUsbSystem(bus, true);
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    private UsbDevice device() throws Exception {
+        return system.getDeviceCache().getDevices().get(0);
+    }
+
+    @Test
+    public void testDeviceDescriptor() throws Exception {
+        UsbDeviceDescriptor d = device().getDeviceDescriptor();
+        assertEquals(0x1234, d.getIdVendor() & 0xffff);
+        assertEquals(0x5678, d.getIdProduct() & 0xffff);
+        assertEquals(0x0102, d.getBcdDevice());
+        assertEquals(0x0200, d.getBcdUSB());
+        assertEquals(0x0200, device().getBcdUSB());
+        assertEquals(0xef, d.getBDeviceClass() & 0xff);
+        assertEquals(64, d.getBMaxPacketSize0());
+        assertEquals(1, d.getBNumConfigurations());
+
+        UsbDeviceDescriptor again = new UsbDevice(bus, device().get_usb_device()).getDeviceDescriptor();
+        assertNotSame(d, again);
+        assertEquals(d, again);
+        assertEquals(d.hashCode(), again.hashCode());
+    }
+
+    @Test
+    public void testDefaultConfig() throws Exception {
+        LoopbackEndpoint loopback = new LoopbackEndpoint(16);
+        virtual.setEndpoint(0x02, loopback);
+        virtual.setEndpoint(0x82, loopback);
+        UsbConfigDescriptor c = device().get_active_config_descriptor();
+        assertEquals(1, c.getBConfigurationValue());
+        assertEquals(1, c.getBNumInterfaces());
+        UsbInterfaceDescriptor alt = c.getInterface(0).getAltSetting(0);
+        assertEquals(0xff, alt.getBInterfaceClass() & 0xff);
+        assertEquals(2, alt.getEndpoints().size());
+        UsbEndpointDescriptor in = alt.getEndpoint(0x82);
+        assertTrue(in.isIn());
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_BULK, in.getTransferType());
+        assertEquals(64, in.getWMaxPacketSize());
+        assertFalse(alt.getEndpoint(0x02).isIn());
+    }
+
+    @Test
+    public void testConfig() throws Exception {
+        virtual.setConfigDescriptor(CONFIG);
+        UsbConfigDescriptor c = device().get_config_descriptor(0);
+        assertEquals(CONFIG.length, c.getWTotalLength());
+        assertEquals((byte) 0xa0, c.getBmAttributes());
+        assertEquals(50, c.getMaxPower());
+        assertEquals(0, c.getExtra().length);
+        assertEquals(2, c.getInterfaces().size());
+
+        UsbInterfaceDescriptor hid = c.getInterface(0).getAltSetting(0);
+        assertEquals(3, hid.getBInterfaceClass());
+        assertArrayEquals(new byte[]{9, 0x21, 0x11, 0x01, 0, 1, 0x22, 63, 0}, hid.getExtra());
+        UsbEndpointDescriptor interrupt = hid.getEndpoints().get(0);
+        assertEquals((byte) 0x81, interrupt.getBEndpointAddress());
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_INTERRUPT, interrupt.getTransferType());
+        assertEquals(8, interrupt.getWMaxPacketSize());
+        assertEquals(10, interrupt.getBInterval());
+
+        UsbInterface audio = c.getInterface(1);
+        assertEquals(2, audio.getAltSettings().size());
+        assertEquals(0, audio.getAltSetting(0).getEndpoints().size());
+        UsbEndpointDescriptor iso = audio.getAltSetting(1).getEndpoint(0x02);
+        assertEquals(libusb_transfer_type.TRANSFER_TYPE_ISOCHRONOUS, iso.getTransferType());
+        assertEquals(192, iso.getWMaxPacketSize());
+        assertArrayEquals(new byte[]{7, 0x25, 1, 0, 0, 0, 0}, iso.getExtra());
+        assertNull(c.getInterface(2));
+
+        UsbConfigDescriptor again = device().get_config_descriptor(0);
+        assertEquals(c, again);
+        assertEquals(c.hashCode(), again.hashCode());
+    }
+
+    @Test(expected = LibUsbNotFoundException.class)
+    public void testConfigNotFound() throws Exception {
+        device().get_config_descriptor(1);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.TransferResult;
+import se.marell.libusb.UsbDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsbDeviceConcurrencyTest {
+    private VirtualDevice virtual;
+    private LibUsbSystem system;
+    private UsbDevice device;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    /**
+     * Takes some time per transfer and records how many transfers it has in progress at the same time.
+     */
+    private class SlowEndpoint implements VirtualEndpoint {
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile long sleepMs = 20;
+        volatile boolean completed;
+
+        @Override
+        public int transfer(int endpoint, Pointer data, int length) {
+            max(maxInProgress, inProgress.incrementAndGet());
+            max(maxActive, active.incrementAndGet());
+            entered.countDown();
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completed = true;
+            active.decrementAndGet();
+            inProgress.decrementAndGet();
+            return length;
+        }
+    }
+
+    private static void max(AtomicInteger max, int value) {
+        int m;
+        while ((m = max.get()) < value && !max.compareAndSet(m, value)) {
+            // Retry
+        }
+    }
+
+    private SlowEndpoint command;
+    private SlowEndpoint data;
+
+    @Before
+    public void setUp() throws Exception {
+        SimulatedLibUsb bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 2, 0x1234, 0x5678);
+        command = new SlowEndpoint();
+        data = new SlowEndpoint();
+        virtual.setEndpoint(0x01, command);
+        virtual.setEndpoint(0x82, data);
+        bus.addDevice(virtual);
+        system = new LibUsbSystem(bus, true);
+        device = system.getDeviceCache().getDevices().get(0);
+        device.open();
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+        system.cleanup();
+    }
+
+    @Test
+    public void testEndpointsInParallel() throws Exception {
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final int endpoint : new int[]{0x01, 0x01, 0x82, 0x82}) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[64];
+                    for (int i = 0; i < 5; ++i) {
+                        if (!TransferResult.isSuccess(device.bulk_transfer(endpoint, buffer, 1000))) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, command.maxInProgress.get());
+        assertEquals(1, data.maxInProgress.get());
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    public void testCloseWaitsForTransfer() throws Exception {
+        data.sleepMs = 200;
+        final AtomicLong result = new AtomicLong(-1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                result.set(device.bulk_transfer(0x82, new byte[64], 1000));
+            }
+        };
+        reader.start();
+        data.entered.await();
+        assertFalse(data.completed);
+        device.close();
+        assertTrue(data.completed);
+        assertNull(device.get_dev_handle());
+        reader.join();
+        assertTrue(TransferResult.toString(result.get()), TransferResult.isSuccess(result.get()));
+        device.open();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbDeviceIterator;
+import se.marell.libusb.UsbDeviceRegistry;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsbDeviceIteratorTest {
+    private CountingLibUsb bus;
+    private LibUsbSystem system;
+
+    /**
+     * Counts descriptor reads, and sums the device references tracked by the simulator.
+     */
+    private static class CountingLibUsb extends SimulatedLibUsb {
+        int descriptorReads;
+
+        @Override
+        public int libusb_get_device_descriptor(Pointer usb_device, Pointer desc) {
+            descriptorReads++;
+            return super.libusb_get_device_descriptor(usb_device, desc);
+        }
+
+        int count(Pointer usb_device) {
+            for (VirtualDevice d : getDevices()) {
+                if (d.getPointer().equals(usb_device)) {
+                    return d.getReferenceCount();
+                }
+            }
+            throw new IllegalArgumentException("Unknown device " + usb_device);
+        }
+
+        int total() {
+            int total = 0;
+            for (VirtualDevice d : getDevices()) {
+                total += d.getReferenceCount();
+            }
+            return total;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        bus = new CountingLibUsb();
+        for (int i = 0; i < 10; ++i) {
+            VirtualDevice d = new VirtualDevice(1, 2 + i, 0x1234, 0x100 + i);
+            d.setPortNumbers(1 + i);
+            bus.addDevice(d);
+        }
+        system = new LibUsbSystem(bus, true);
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    @Test
+    public void testEarlyTermination() throws Exception {
+        UsbDeviceIterator it = system.iterateUsbDevices();
+        assertEquals(10, it.size());
+        assertEquals(10, bus.total());
+        UsbDevice first = it.next();
+        assertEquals("1-1", first.getPortPath());
+        UsbDevice second = it.next();
+        assertEquals(0, bus.count(first.get_usb_device()));
+        assertEquals(1, bus.count(second.get_usb_device()));
+        it.close();
+        assertEquals(0, bus.total());
+        assertFalse(it.hasNext());
+        it.close();
+        assertEquals(0, bus.descriptorReads);
+    }
+
+    @Test
+    public void testLazyDescriptors() throws Exception {
+        UsbDevice d = system.findUsbDevice(new UsbDeviceRegistry.Query().portPath("1-4"));
+        assertEquals(0, bus.descriptorReads);
+        assertEquals(0x103, d.getIdProduct() & 0xffff);
+        assertEquals(1, bus.descriptorReads);
+        assertEquals(1, bus.total());
+        d.unref_device();
+        assertEquals(0, bus.total());
+
+        assertNull(system.findUsbDevice(new UsbDeviceRegistry.Query().vendorId(0x4321)));
+        assertEquals(0, bus.total());
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        List<Integer> products;
+        try (Stream<UsbDevice> s = system.streamUsbDevices()) {
+            products = s.filter(new Predicate<UsbDevice>() {
+                @Override
+                public boolean test(UsbDevice d) {
+                    return (d.getIdProduct() & 1) == 0;
+                }
+            }).limit(3).map(new Function<UsbDevice, Integer>() {
+                @Override
+                public Integer apply(UsbDevice d) {
+                    return d.getIdProduct() & 0xffff;
+                }
+            }).collect(Collectors.<Integer>toList());
+        }
+        assertEquals(3, products.size());
+        assertEquals(0x104, (int) products.get(2));
+        assertEquals(5, bus.descriptorReads);
+        assertEquals(0, bus.total());
+    }
+
+    @Test
+    public void testUntilEnd() throws Exception {
+        int n = 0;
+        try (UsbDeviceIterator it = system.iterateUsbDevices()) {
+            while (it.hasNext()) {
+                assertTrue(it.next().getPortPath().startsWith("1-"));
+                ++n;
+            }
+        }
+        assertEquals(10, n);
+        assertEquals(0, bus.total());
+    }
+}
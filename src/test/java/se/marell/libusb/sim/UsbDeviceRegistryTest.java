@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbDeviceCache;
+import se.marell.libusb.UsbDeviceRegistry;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsbDeviceRegistryTest {
+    private SimulatedLibUsb bus;
+    private LibUsbSystem system;
+    private UsbDeviceCache cache;
+    private VirtualDevice hub;
+
+    @Before
+    public void setUp() {
+        bus = new SimulatedLibUsb();
+        hub = device(1, 0x1d6b, 0x0002, 9, null);
+        for (int i = 0; i < 20; ++i) {
+            device(2 + i, 0x1234, 0x0001, 0xff, "SN" + i);
+        }
+        device(30, 0xfedc, 0x0001, 0xff, null);
+        device(31, 0x1234, 0x0002, 0x02, "SNX");
+        system = new LibUsbSystem(bus, true);
+        cache = system.getDeviceCache();
+    }
+
+    private VirtualDevice device(int address, int vendorId, int productId, int deviceClass, String serial) {
+        VirtualDevice d = new VirtualDevice(1, address, vendorId, productId);
+        d.getDescriptor().bDeviceClass = (byte) deviceClass;
+        if (serial != null) {
+            d.setSerialNumber(serial);
+        }
+        bus.addDevice(d);
+        return d;
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        UsbDeviceRegistry registry = cache.getRegistry();
+        assertEquals(23, registry.size());
+        assertEquals(20, registry.findByVendorProduct(0x1234, 0x0001).size());
+        assertEquals(1, registry.findByClass(9, 0, 0).size());
+        assertEquals(0x1d6b, registry.getByPortPath("1-1").getIdVendor() & 0xffff);
+        assertNull(registry.getByPortPath("2-1"));
+        List<UsbDevice> bySerial = registry.findBySerialNumber("SN7");
+        assertEquals(1, bySerial.size());
+        assertEquals("1-9", bySerial.get(0).getPortPath());
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        assertEquals(21, cache.find(new UsbDeviceRegistry.Query().vendorId(0x1234)).size());
+        assertEquals(21, cache.find(new UsbDeviceRegistry.Query().deviceClass(0xff)).size());
+        assertEquals(1, cache.find(new UsbDeviceRegistry.Query().vendorId(0x1234).deviceClass(2)).size());
+        assertEquals(0, cache.find(new UsbDeviceRegistry.Query().vendorId(0x1234).productId(0x0001)
+                .serialNumber("SNX")).size());
+        UsbDevice d = cache.getRegistry().findFirst(new UsbDeviceRegistry.Query().serialNumber("SN3").vendorId(0x1234));
+        assertEquals("1-5", d.getPortPath());
+        assertEquals(23, cache.find(new UsbDeviceRegistry.Query()).size());
+
+        List<UsbDevice> visited = system.visitUsbDevices(new UsbDeviceRegistry.Query().vendorId(0xfedc));
+        assertEquals(1, visited.size());
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        UsbDeviceRegistry registry = cache.getRegistry();
+        assertEquals(1, registry.findBySerialNumber("SNX").size());
+        bus.removeDevice(hub);
+        VirtualDevice added = device(40, 0x1d6b, 0x0003, 9, "SNY");
+        cache.refresh();
+        assertEquals(0, registry.findByVendorProduct(0x1d6b, 0x0002).size());
+        assertEquals(1, registry.findByClass(9, 0, 0).size());
+        assertEquals(1, registry.findBySerialNumber("SNY").size());
+        bus.removeDevice(added);
+        cache.refresh();
+        assertEquals(0, registry.findBySerialNumber("SNY").size());
+        assertEquals(0, registry.findByClass(9, 0, 0).size());
+    }
+
+    @Test
+    public void testDeviceIdentity() throws Exception {
+        UsbDevice d = cache.getRegistry().getByPortPath("1-2");
+        UsbDevice other = new UsbDevice(system.getLibUsb(), d.get_usb_device());
+        assertNotSame(d, other);
+        assertEquals(d, other);
+        assertEquals(d.hashCode(), other.hashCode());
+        assertTrue(cache.getRegistry().remove(other));
+        assertNull(cache.getRegistry().getByPortPath("1-2"));
+        assertEquals(22, cache.getRegistry().size());
+    }
+}
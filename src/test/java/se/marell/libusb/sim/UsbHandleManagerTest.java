@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.UsbHandleManager;
+import se.marell.libusb.UsbSystem;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class UsbHandleManagerTest {
+    private SimulatedLibUsb bus;
+    private VirtualDevice virtual;
+    private LibUsbSystem system;
+    private UsbHandleManager handles;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 2, 0x1234, 0x5678);
+        virtual.setProduct("Handles");
+        bus.addDevice(virtual);
+        system = new LibUsbSystem(bus, true);
+        handles = system.getHandleManager();
+        device = system.getDeviceCache().getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() {
+        system.cleanup();
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        int cached = virtual.getReferenceCount();
+        device.open();
+        UsbDevice other = new UsbDevice(bus, device.get_usb_device());
+        other.open();
+        device.open();
+        assertSame(device.get_dev_handle(), other.get_dev_handle());
+        assertEquals(1, bus.getOpenHandleCount());
+        assertEquals(1, handles.getOpenHandleCount());
+        assertEquals(3, handles.getOpenCount());
+        assertEquals(1, handles.getHandlesOpened());
+        assertEquals(2, handles.getHandlesReused());
+        assertEquals(cached + 1, virtual.getReferenceCount());
+
+        device.close();
+        assertNotNull(device.get_dev_handle());
+        device.close();
+        assertNull(device.get_dev_handle());
+        device.close();
+        assertEquals(1, bus.getOpenHandleCount());
+        other.close();
+        assertEquals(0, bus.getOpenHandleCount());
+        assertEquals(0, handles.getOpenCount());
+        assertEquals(cached, virtual.getReferenceCount());
+    }
+
+    @Test
+    public void testTryWithResources() throws Exception {
+        try (UsbDevice d = device) {
+            d.open();
+            assertEquals("Handles", d.getProduct());
+        }
+        assertNull(device.get_dev_handle());
+        assertEquals(0, bus.getOpenHandleCount());
+        assertEquals(1, handles.getHandlesOpened());
+    }
+
+    @Test
+    public void testReferences() throws Exception {
+        int cached = handles.getReferenceCount();
+        assertEquals(1, virtual.getReferenceCount());
+        device.ref_device();
+        assertEquals(cached + 1, handles.getReferenceCount());
+        assertEquals(2, virtual.getReferenceCount());
+        device.unref_device();
+        assertEquals(cached, handles.getReferenceCount());
+        system.getDeviceCache().clear();
+        assertEquals(cached - 1, handles.getReferenceCount());
+        assertEquals(0, virtual.getReferenceCount());
+    }
+
+    @Test
+    public void testLeak() throws Exception {
+        int cached = virtual.getReferenceCount();
+        openAndDrop();
+        assertEquals(1, bus.getOpenHandleCount());
+        for (int i = 0; i < 100 && handles.getLeaks() == 0; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, handles.getLeaks());
+        assertEquals(0, handles.getOpenHandleCount());
+        assertEquals(0, bus.getOpenHandleCount());
+        assertEquals(cached, virtual.getReferenceCount());
+    }
+
+    @Test
+    public void testCleanupThenCollect() throws Exception {
+        WeakReference<UsbDevice> dropped = visitOpenAndDrop();
+        assertEquals(3, virtual.getReferenceCount());
+        system.cleanup();
+        assertEquals(0, virtual.getReferenceCount());
+        assertEquals(0, bus.getOpenHandleCount());
+        assertEquals(0, handles.getReferenceCount());
+
+        // A later system on the same backend must not release the dropped device again
+        system = new LibUsbSystem(bus, true);
+        for (int i = 0; i < 100 && dropped.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(dropped.get());
+        assertEquals(0, handles.getLeaks());
+        assertEquals(0, handles.getOpenCount());
+        assertEquals(0, handles.getReferenceCount());
+        assertEquals(0, virtual.getReferenceCount());
+    }
+
+    private WeakReference<UsbDevice> visitOpenAndDrop() throws Exception {
+        List<UsbDevice> devices = system.visitUsbDevices(new UsbSystem.UsbDeviceVisitor() {
+            @Override
+            public List<UsbDevice> visitDevices(List<UsbDevice> devices) {
+                return devices;
+            }
+        });
+        UsbDevice d = devices.get(0);
+        d.open();
+        return new WeakReference<UsbDevice>(d);
+    }
+
+    private void openAndDrop() throws Exception {
+        UsbDevice d = new UsbDevice(bus, device.get_usb_device());
+        d.open();
+    }
+}
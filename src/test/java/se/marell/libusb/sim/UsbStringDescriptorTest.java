@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.sim;
+
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbOtherException;
+import se.marell.libusb.LibUsbPipeException;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.jna.libusb_error;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class UsbStringDescriptorTest {
+    private VirtualDevice virtual;
+    private LibUsbSystem system;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        SimulatedLibUsb bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 2, 0x1234, 0x5678);
+        virtual.setManufacturer("Marell");
+        virtual.setProduct("Mätdon № 1");
+        bus.addDevice(virtual);
+        system = new LibUsbSystem(bus, true);
+        device = system.getDeviceCache().getDevices().get(0);
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+        system.cleanup();
+    }
+
+    @Test
+    public void testClosedDevice() {
+        assertNull(device.get_dev_handle());
+        assertEquals("Marell", device.getManufacturer());
+        assertEquals("", device.getSerialNumber());
+        assertNull(device.get_dev_handle());
+    }
+
+    @Test
+    public void testUtf16AndLanguages() throws Exception {
+        device.open();
+        assertArrayEquals(new int[]{0x0409}, device.get_language_ids());
+        assertEquals("Mätdon № 1", device.getProduct());
+        assertEquals("Mätdon № 1", device.get_string_descriptor(device.getDeviceDescriptor().getIProduct(), 0x0409));
+        assertEquals("M?tdon ? 1", device.get_string_ascii(device.getDeviceDescriptor().getIProduct()));
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        assertEquals("Marell", device.getManufacturer());
+        assertEquals("Marell", device.get_string_ascii(device.getDeviceDescriptor().getIManufacturer()));
+        virtual.setManufacturer("Changed");
+        assertEquals("Marell", device.getManufacturer());
+        assertEquals("Marell", device.get_string_ascii(device.getDeviceDescriptor().getIManufacturer()));
+        assertEquals("Changed", new UsbDevice(system.getLibUsb(), device.get_usb_device()).getManufacturer());
+    }
+
+    @Test(expected = LibUsbPipeException.class)
+    public void testMissingString() throws Exception {
+        device.get_string_descriptor(99, 0x0409);
+    }
+
+    @Test
+    public void testShortDescriptors() throws Exception {
+        final int[] bLength = new int[]{-1, -1};
+        SimulatedLibUsb bus = new SimulatedLibUsb() {
+            @Override
+            public int libusb_control_transfer(Pointer dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                                               short wIndex, byte[] data, short wLength, int timeout) {
+                int rc = super.libusb_control_transfer(dev_handle, bmRequestType, bRequest, wValue, wIndex, data,
+                        wLength, timeout);
+                if (rc >= 2 && data[1] == 3 && bLength[wValue & 0xff] >= 0) {
+                    data[0] = (byte) bLength[wValue & 0xff];
+                }
+                return rc;
+            }
+        };
+        VirtualDevice v = new VirtualDevice(1, 3, 0x1234, 0x9abc);
+        v.setManufacturer("Short");
+        bus.addDevice(v);
+        LibUsbSystem other = new LibUsbSystem(bus, true);
+        try {
+            UsbDevice d = other.getDeviceCache().getDevices().get(0);
+            bLength[1] = 1;
+            try {
+                d.get_string_descriptor(1, 0x0409);
+                fail();
+            } catch (LibUsbOtherException e) {
+                assertEquals(libusb_error.ERROR_IO, e.getCode());
+            }
+            bLength[0] = 0;
+            try {
+                d.get_language_ids();
+                fail();
+            } catch (LibUsbOtherException e) {
+                assertEquals(libusb_error.ERROR_IO, e.getCode());
+            }
+            assertNull(d.getString(1));
+            assertEquals("", d.getManufacturer());
+        } finally {
+            other.cleanup();
+        }
+    }
+}
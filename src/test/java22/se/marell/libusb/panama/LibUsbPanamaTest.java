@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2011 Daniel Marell
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package se.marell.libusb.panama;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.marell.libusb.LibUsbSystem;
+import se.marell.libusb.UsbDevice;
+import se.marell.libusb.jna.timeval;
+import se.marell.libusb.sim.LoopbackEndpoint;
+import se.marell.libusb.sim.SimulatedLibUsb;
+import se.marell.libusb.sim.VirtualDevice;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs LibUsbPanama against a SimulatedLibUsb: the libusb functions it calls directly are resolved to upcall stubs
+ * into the simulated bus, so every downcall, the transfer callback swap and the forwarded functions are exercised
+ * without a native libusb.
+ */
+public class LibUsbPanamaTest {
+    private SimulatedLibUsb bus;
+    private VirtualDevice virtual;
+    private SimulatedLibrary library;
+    private LibUsbSystem system;
+    private UsbDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        bus = new SimulatedLibUsb();
+        virtual = new VirtualDevice(1, 5, 0x1234, 0x5678);
+        virtual.setManufacturer("Marell");
+        virtual.setProduct("Mätdon");
+        LoopbackEndpoint loopback = new LoopbackEndpoint(16);
+        virtual.setEndpoint(0x02, loopback);
+        virtual.setEndpoint(0x82, loopback);
+        bus.addDevice(virtual);
+        library = new SimulatedLibrary(bus);
+        system = new LibUsbSystem(new LibUsbPanama(bus, library), true);
+        system.startEventThread(10);
+        device = system.getDeviceCache().getDevices().get(0);
+        device.open();
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+        system.cleanup();
+        library.close();
+    }
+
+    @Test
+    public void testDescriptorsAndStrings() throws Exception {
+        assertEquals(0x1234, device.getIdVendor() & 0xffff);
+        assertEquals(0x5678, device.getIdProduct() & 0xffff);
+        assertEquals(1, device.get_bus_number());
+        assertEquals(5, device.get_address());
+        assertEquals("Marell", device.getManufacturer());
+        assertEquals("Mätdon", device.getProduct());
+    }
+
+    @Test
+    public void testSynchronousLoopback() throws Exception {
+        device.bulk_write(0x02, new byte[]{1, 2, 3, 4}, 100);
+        byte[] data = new byte[4];
+        assertEquals(4, device.bulk_read(0x82, data, 100));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, data);
+    }
+
+    @Test
+    public void testAsyncTransferCompletesThroughUpcallStub() throws Exception {
+        byte[] data = new byte[4];
+        CompletableFuture<Integer> f = device.bulkReadAsync(0x82, data, 0);
+        Thread.sleep(20);
+        assertFalse(f.isDone());
+        device.bulk_write(0x02, new byte[]{9, 8, 7}, 100);
+        assertEquals(3, (int) f.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{9, 8, 7, 0}, data);
+        assertEquals(0, bus.getTransfersInFlight());
+    }
+
+    @Test
+    public void testReferencesBalance() throws Exception {
+        device.close();
+        system.getDeviceCache().clear();
+        assertEquals(0, bus.getOpenHandleCount());
+        assertEquals(0, virtual.getReferenceCount());
+    }
+
+    /**
+     * Resolves the libusb functions that LibUsbPanama calls directly to upcall stubs calling a SimulatedLibUsb.
+     */
+    static final class SimulatedLibrary implements SymbolLookup, AutoCloseable {
+        private final SimulatedLibUsb bus;
+        private final Arena arena = Arena.ofShared();
+        private final Map<String, MemorySegment> functions = new HashMap<>();
+
+        SimulatedLibrary(SimulatedLibUsb bus) {
+            this.bus = bus;
+            add("get_device_list", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            add("free_device_list", FunctionDescriptor.ofVoid(ADDRESS, JAVA_INT));
+            add("get_bus_number", FunctionDescriptor.of(JAVA_BYTE, ADDRESS));
+            add("get_device_address", FunctionDescriptor.of(JAVA_BYTE, ADDRESS));
+            add("ref_device", FunctionDescriptor.of(ADDRESS, ADDRESS));
+            add("unref_device", FunctionDescriptor.ofVoid(ADDRESS));
+            add("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            add("close", FunctionDescriptor.ofVoid(ADDRESS));
+            add("claim_interface", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            add("release_interface", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            add("get_device_descriptor", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            add("alloc_transfer", FunctionDescriptor.of(ADDRESS, JAVA_INT));
+            add("free_transfer", FunctionDescriptor.ofVoid(ADDRESS));
+            add("submit_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+            add("cancel_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+            add("handle_events", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+            add("handle_events_timeout", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            add("handle_events_timeout_completed", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+            add("get_next_timeout", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            add("control_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, JAVA_BYTE, JAVA_SHORT,
+                    JAVA_SHORT, ADDRESS, JAVA_SHORT, JAVA_INT));
+            add("bulk_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, ADDRESS, JAVA_INT, ADDRESS,
+                    JAVA_INT));
+            add("interrupt_transfer", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_BYTE, ADDRESS, JAVA_INT, ADDRESS,
+                    JAVA_INT));
+        }
+
+        private void add(String name, FunctionDescriptor descriptor) {
+            try {
+                MethodHandle target = MethodHandles.lookup().findVirtual(SimulatedLibrary.class, name,
+                        descriptor.toMethodType()).bindTo(this);
+                functions.put("libusb_" + name, Linker.nativeLinker().upcallStub(target, descriptor, arena));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Optional<MemorySegment> find(String name) {
+            return Optional.ofNullable(functions.get(name));
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+
+        private static Pointer pointer(MemorySegment s) {
+            return s.address() == 0 ? null : new Pointer(s.address());
+        }
+
+        private static MemorySegment segment(Pointer p) {
+            return p == null ? MemorySegment.NULL : MemorySegment.ofAddress(Pointer.nativeValue(p));
+        }
+
+        private static void setPointer(MemorySegment out, Pointer p) {
+            out.reinterpret(ADDRESS.byteSize()).set(ADDRESS, 0, segment(p));
+        }
+
+        private static timeval toTimeval(MemorySegment tv) {
+            Pointer p = pointer(tv);
+            timeval t = new timeval();
+            t.setMicros(p.getNativeLong(0).longValue() * 1000000 + p.getNativeLong(NativeLong.SIZE).longValue());
+            return t;
+        }
+
+        int get_device_list(MemorySegment context, MemorySegment list) {
+            Pointer[] pa = new Pointer[1];
+            int rc = bus.libusb_get_device_list(pointer(context), pa);
+            setPointer(list, pa[0]);
+            return rc;
+        }
+
+        void free_device_list(MemorySegment list, int unref_devices) {
+            bus.libusb_free_device_list(pointer(list), unref_devices);
+        }
+
+        byte get_bus_number(MemorySegment usb_device) {
+            return (byte) bus.libusb_get_bus_number(pointer(usb_device));
+        }
+
+        byte get_device_address(MemorySegment usb_device) {
+            return (byte) bus.libusb_get_device_address(pointer(usb_device));
+        }
+
+        MemorySegment ref_device(MemorySegment usb_device) {
+            return segment(bus.libusb_ref_device(pointer(usb_device)));
+        }
+
+        void unref_device(MemorySegment usb_device) {
+            bus.libusb_unref_device(pointer(usb_device));
+        }
+
+        int open(MemorySegment usb_device, MemorySegment dev_handle) {
+            Pointer[] pa = new Pointer[1];
+            int rc = bus.libusb_open(pointer(usb_device), pa);
+            if (rc == 0) {
+                setPointer(dev_handle, pa[0]);
+            }
+            return rc;
+        }
+
+        void close(MemorySegment dev_handle) {
+            bus.libusb_close(pointer(dev_handle));
+        }
+
+        int claim_interface(MemorySegment dev_handle, int interface_number) {
+            return bus.libusb_claim_interface(pointer(dev_handle), interface_number);
+        }
+
+        int release_interface(MemorySegment dev_handle, int interface_number) {
+            return bus.libusb_release_interface(pointer(dev_handle), interface_number);
+        }
+
+        int get_device_descriptor(MemorySegment usb_device, MemorySegment desc) {
+            return bus.libusb_get_device_descriptor(pointer(usb_device), pointer(desc));
+        }
+
+        MemorySegment alloc_transfer(int iso_packets) {
+            return segment(bus.libusb_alloc_transfer(iso_packets));
+        }
+
+        void free_transfer(MemorySegment transfer) {
+            bus.libusb_free_transfer(pointer(transfer));
+        }
+
+        int submit_transfer(MemorySegment transfer) {
+            return bus.libusb_submit_transfer(pointer(transfer));
+        }
+
+        int cancel_transfer(MemorySegment transfer) {
+            return bus.libusb_cancel_transfer(pointer(transfer));
+        }
+
+        int handle_events(MemorySegment context) {
+            return bus.libusb_handle_events(pointer(context));
+        }
+
+        int handle_events_timeout(MemorySegment context, MemorySegment tv) {
+            return bus.libusb_handle_events_timeout(pointer(context), toTimeval(tv));
+        }
+
+        int handle_events_timeout_completed(MemorySegment context, MemorySegment tv, MemorySegment completed) {
+            return bus.libusb_handle_events_timeout_completed(pointer(context), toTimeval(tv), pointer(completed));
+        }
+
+        int get_next_timeout(MemorySegment context, MemorySegment tv) {
+            return bus.libusb_get_next_timeout(pointer(context), new timeval());
+        }
+
+        int control_transfer(MemorySegment dev_handle, byte bmRequestType, byte bRequest, short wValue,
+                             short wIndex, MemorySegment data, short wLength, int timeout) {
+            return bus.libusb_control_transfer(pointer(dev_handle), bmRequestType, bRequest, wValue, wIndex,
+                    pointer(data), wLength, timeout);
+        }
+
+        int bulk_transfer(MemorySegment dev_handle, byte endpoint, MemorySegment data, int length,
+                          MemorySegment transferred, int timeout) {
+            int[] n = new int[1];
+            int rc = bus.libusb_bulk_transfer(pointer(dev_handle), endpoint, pointer(data), length, n, timeout);
+            transferred.reinterpret(JAVA_INT.byteSize()).set(JAVA_INT, 0, n[0]);
+            return rc;
+        }
+
+        int interrupt_transfer(MemorySegment dev_handle, byte endpoint, MemorySegment data, int length,
+                               MemorySegment transferred, int timeout) {
+            int[] n = new int[1];
+            int rc = bus.libusb_interrupt_transfer(pointer(dev_handle), endpoint, pointer(data), length, n, timeout);
+            transferred.reinterpret(JAVA_INT.byteSize()).set(JAVA_INT, 0, n[0]);
+            return rc;
+        }
+    }
+}